@@ -141,8 +141,8 @@ describe('Importacao NFe API Tests', () => {
       });
     });
 
-    it('should return 400 for oversized file', () => {
-      // Create a large XML content (over 10MB)
+    it('should stream files over 10MB and reject them by content', () => {
+      // Create a large XML content (over 10MB); uploads are streamed, so only the content is rejected
       const largeContent = '<?xml version="1.0"?><root>' + 'x'.repeat(11 * 1024 * 1024) + '</root>';
       const blob = new Blob([largeContent], { type: 'text/xml' });
       const formData = new FormData();
@@ -160,7 +160,7 @@ describe('Importacao NFe API Tests', () => {
         failOnStatusCode: false
       }).then((response) => {
         expect(response.status).to.eq(400);
-        expect(response.body).to.include('muito grande');
+        expect(response.body).to.include('XML não contém estrutura de NFe válida');
       });
     });
 
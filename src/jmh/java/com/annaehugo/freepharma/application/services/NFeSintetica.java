@@ -0,0 +1,101 @@
+package com.annaehugo.freepharma.application.services;
+
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+/**
+ * Gera NFe sintéticas no leiaute 4.00 para os benchmarks, com a quantidade de itens desejada.
+ * A semente é fixa para que cada execução meça exatamente o mesmo documento.
+ */
+final class NFeSintetica {
+
+    private static final String[] PRODUTOS = {
+        "Dipirona Sodica 500mg 10 comprimidos",
+        "Amoxicilina 500mg 21 capsulas",
+        "Xarope Expectorante 120ml",
+        "Pomada Cicatrizante 30g",
+        "Soro Fisiologico 500ml",
+        "Protetor Solar FPS 50"
+    };
+
+    private static final String[] NCMS = {"30049099", "30042019", "30049069", "30039056", "33049910", "33049990"};
+
+    private NFeSintetica() {
+    }
+
+    static byte[] gerar(int quantidadeItens) {
+        Random random = new Random(42);
+        StringBuilder itens = new StringBuilder(quantidadeItens * 900);
+        BigDecimal total = BigDecimal.ZERO;
+
+        for (int i = 0; i < quantidadeItens; i++) {
+            int produto = random.nextInt(PRODUTOS.length);
+            int quantidade = random.nextInt(48) + 1;
+            BigDecimal valorUnitario = BigDecimal.valueOf(random.nextInt(20000) + 100, 2);
+            BigDecimal valorTotal = valorUnitario.multiply(BigDecimal.valueOf(quantidade));
+            total = total.add(valorTotal);
+
+            itens.append("<det nItem=\"").append(i + 1).append("\"><prod>")
+                .append("<cProd>").append(100000 + i).append("</cProd>")
+                .append("<cEAN>").append(ean(random)).append("</cEAN>")
+                .append("<xProd>").append(PRODUTOS[produto]).append("</xProd>")
+                .append("<NCM>").append(NCMS[produto]).append("</NCM>")
+                .append("<CEST>1300100</CEST>")
+                .append("<CFOP>").append(random.nextBoolean() ? "1102" : "2102").append("</CFOP>")
+                .append("<uCom>CX</uCom>")
+                .append("<qCom>").append(quantidade).append(".0000</qCom>")
+                .append("<vUnCom>").append(valorUnitario.setScale(10)).append("</vUnCom>")
+                .append("<vProd>").append(valorTotal.setScale(2)).append("</vProd>")
+                .append("<cEANTrib>SEM GTIN</cEANTrib><uTrib>CX</uTrib>")
+                .append("<qTrib>").append(quantidade).append(".0000</qTrib>")
+                .append("<indTot>1</indTot>")
+                .append("<rastro><nLote>L").append(random.nextInt(99999)).append("</nLote>")
+                .append("<qLote>").append(quantidade).append(".000</qLote>")
+                .append("<dFab>2025-0").append(random.nextInt(9) + 1).append("-10</dFab>")
+                .append("<dVal>2028-0").append(random.nextInt(9) + 1).append("-10</dVal></rastro>")
+                .append("</prod><imposto><vTotTrib>0.00</vTotTrib>")
+                .append("<ICMS><ICMS60><orig>0</orig><CST>60</CST></ICMS60></ICMS>")
+                .append("<PIS><PISNT><CST>04</CST></PISNT></PIS>")
+                .append("<COFINS><COFINSNT><CST>04</CST></COFINSNT></COFINS>")
+                .append("</imposto></det>");
+        }
+
+        String xml = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+            + "<nfeProc versao=\"4.00\" xmlns=\"http://www.portalfiscal.inf.br/nfe\"><NFe>"
+            + "<infNFe versao=\"4.00\" Id=\"NFe35240111222333000144550010000012341234567890\">"
+            + "<ide><cUF>35</cUF><natOp>Compra para comercializacao</natOp><mod>55</mod>"
+            + "<serie>1</serie><nNF>1234</nNF><dhEmi>2024-01-15T10:00:00-03:00</dhEmi>"
+            + "<tpNF>1</tpNF><idDest>1</idDest><cMunFG>3550308</cMunFG></ide>"
+            + "<emit><CNPJ>11222333000144</CNPJ><xNome>Distribuidora de Medicamentos LTDA</xNome>"
+            + "<xFant>Distribuidora</xFant><enderEmit><xLgr>Rua das Industrias</xLgr><nro>100</nro>"
+            + "<xBairro>Distrito Industrial</xBairro><cMun>3550308</cMun><xMun>Sao Paulo</xMun>"
+            + "<UF>SP</UF><CEP>01000000</CEP><fone>1133334444</fone></enderEmit>"
+            + "<IE>123456789012</IE><CRT>3</CRT></emit>"
+            + "<dest><CNPJ>12345678000199</CNPJ><xNome>Farmacia Central LTDA</xNome>"
+            + "<enderDest><xLgr>Av. Brasil</xLgr><nro>500</nro><xBairro>Centro</xBairro>"
+            + "<xMun>Juiz de Fora</xMun><UF>MG</UF><CEP>36000000</CEP></enderDest>"
+            + "<email>compras@farmacia.com.br</email></dest>"
+            + itens
+            + "<total><ICMSTot><vProd>" + total.setScale(2) + "</vProd>"
+            + "<vNF>" + total.setScale(2) + "</vNF></ICMSTot></total>"
+            + "<transp><modFrete>0</modFrete></transp>"
+            + "</infNFe><Signature xmlns=\"http://www.w3.org/2000/09/xmldsig#\"><SignedInfo/></Signature></NFe>"
+            + "<protNFe versao=\"4.00\"><infProt><nProt>135240000000000</nProt></infProt></protNFe></nfeProc>";
+
+        return xml.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String ean(Random random) {
+        StringBuilder ean = new StringBuilder("789");
+        for (int i = 0; i < 9; i++) {
+            ean.append(random.nextInt(10));
+        }
+        int soma = 0;
+        for (int i = 0; i < 12; i++) {
+            int digito = ean.charAt(i) - '0';
+            soma += (i % 2 == 0) ? digito : digito * 3;
+        }
+        return ean.append((10 - (soma % 10)) % 10).toString();
+    }
+}
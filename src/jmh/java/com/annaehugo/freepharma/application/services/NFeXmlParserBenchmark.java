@@ -0,0 +1,51 @@
+package com.annaehugo.freepharma.application.services;
+
+import com.annaehugo.freepharma.application.dto.fiscal.NFeXmlData;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parse de uma NFe por tamanho de nota. O modo SampleTime reporta os percentis (p0.99)
+ * e o profiler gc, habilitado por padrão no perfil benchmark, a taxa de alocação.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class NFeXmlParserBenchmark {
+
+    @Param({"1", "50", "500", "5000"})
+    private int itens;
+
+    private NFeXmlParser parser;
+    private byte[] xml;
+
+    @Setup
+    public void setUp() {
+        parser = new NFeXmlParser();
+        xml = NFeSintetica.gerar(itens);
+    }
+
+    @Benchmark
+    public NFeXmlData parseNFeXml() {
+        return parser.parseNFeXml(xml);
+    }
+
+    @Benchmark
+    public NFeXmlData parseNFeXmlStreaming() {
+        return parser.parseNFeXmlStreaming(xml);
+    }
+}
@@ -0,0 +1,87 @@
+package com.annaehugo.freepharma.application.services;
+
+import com.annaehugo.freepharma.application.dto.fiscal.NFeXmlData;
+import com.annaehugo.freepharma.domain.repository.fiscal.RegraValidacaoFiscalRepository;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.lang.reflect.Proxy;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Validação do ProcessamentoNFeService sobre uma nota já decodificada. A validação não acessa o
+ * banco; só as regras padrão são carregadas, de um repositório em memória sem nenhuma regra.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ProcessamentoNFeValidacaoBenchmark {
+
+    @Param({"1", "50", "500", "5000"})
+    private int itens;
+
+    private ProcessamentoNFeService sequencial;
+    private ProcessamentoNFeService paralelo;
+    private NFeXmlData nfeData;
+
+    @Setup
+    public void setUp() {
+        sequencial = criarService(Integer.MAX_VALUE);
+        paralelo = criarService(0);
+        nfeData = new NFeXmlParser().parseNFeXml(NFeSintetica.gerar(itens));
+    }
+
+    @Benchmark
+    public void validarEAN(Blackhole blackhole) {
+        for (NFeXmlData.ItemNFeDados item : nfeData.getItens()) {
+            blackhole.consume(sequencial.validarEAN(item.getEan()));
+        }
+    }
+
+    @Benchmark
+    public ProcessamentoNFeService.ValidacaoNFe validarNFeSequencial() {
+        // Inclui as verificações de NCM e CFOP por expressão regular
+        return sequencial.validarNFe(nfeData);
+    }
+
+    @Benchmark
+    public ProcessamentoNFeService.ValidacaoNFe validarNFeParalelo() {
+        return paralelo.validarNFe(nfeData);
+    }
+
+    private static ProcessamentoNFeService criarService(int limiarValidacaoParalela) {
+        ProcessamentoNFeService service = new ProcessamentoNFeService();
+        ReflectionTestUtils.setField(service, "regraValidacaoFiscalService",
+            new RegraValidacaoFiscalService(semRegrasNoBanco(), Duration.ofDays(1)));
+        ReflectionTestUtils.setField(service, "limiarValidacaoParalela", limiarValidacaoParalela);
+        return service;
+    }
+
+    private static RegraValidacaoFiscalRepository semRegrasNoBanco() {
+        return (RegraValidacaoFiscalRepository) Proxy.newProxyInstance(
+            RegraValidacaoFiscalRepository.class.getClassLoader(),
+            new Class<?>[]{RegraValidacaoFiscalRepository.class},
+            (proxy, method, args) -> {
+                if (method.getName().equals("findByModuloIgnoreCase")) {
+                    return Collections.emptyList();
+                }
+                throw new UnsupportedOperationException(method.getName());
+            });
+    }
+}
@@ -1,13 +1,16 @@
 package com.annaehugo.freepharma.api.controllers.estoque;
 
 import com.annaehugo.freepharma.application.services.EstoqueProdutoService;
+import com.annaehugo.freepharma.application.services.SaldoEstoqueService;
 import com.annaehugo.freepharma.domain.entity.estoque.EstoqueProduto;
 import com.annaehugo.freepharma.domain.entity.estoque.AjusteEstoqueProduto;
+import com.annaehugo.freepharma.domain.entity.estoque.MovimentacaoEstoque;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -16,10 +19,12 @@ import java.util.Map;
 public class EstoqueProdutoController {
 
     private final EstoqueProdutoService estoqueProdutoService;
+    private final SaldoEstoqueService saldoEstoqueService;
 
     @Autowired
-    public EstoqueProdutoController(EstoqueProdutoService estoqueProdutoService) {
+    public EstoqueProdutoController(EstoqueProdutoService estoqueProdutoService, SaldoEstoqueService saldoEstoqueService) {
         this.estoqueProdutoService = estoqueProdutoService;
+        this.saldoEstoqueService = saldoEstoqueService;
     }
 
     @GetMapping
@@ -138,4 +143,25 @@ public class EstoqueProdutoController {
         List<AjusteEstoqueProduto> ajustes = estoqueProdutoService.listarAjustesPorEstoque(id);
         return ResponseEntity.ok(ajustes);
     }
+
+    /**
+     * Saldo exato do lote, calculado pelo razão. {@code quantidadeAtual} do estoque é atualizada periodicamente.
+     */
+    @GetMapping("/{id}/saldo")
+    public ResponseEntity<Map<String, Object>> consultarSaldo(@PathVariable Long id) {
+        return estoqueProdutoService.buscarPorId(id)
+                .map(estoque -> {
+                    Map<String, Object> saldo = new HashMap<>();
+                    saldo.put("estoqueProdutoId", id);
+                    saldo.put("saldo", saldoEstoqueService.consultarSaldo(id));
+                    saldo.put("quantidadeAtual", estoque.getQuantidadeAtual());
+                    return ResponseEntity.ok(saldo);
+                })
+                .orElse(ResponseEntity.notFound().build());
+    }
+
+    @GetMapping("/{id}/movimentacoes")
+    public ResponseEntity<List<MovimentacaoEstoque>> listarMovimentacoes(@PathVariable Long id) {
+        return ResponseEntity.ok(saldoEstoqueService.listarMovimentacoes(id));
+    }
 }
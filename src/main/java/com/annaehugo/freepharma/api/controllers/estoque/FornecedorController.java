@@ -2,6 +2,7 @@ package com.annaehugo.freepharma.api.controllers.estoque;
 
 import com.annaehugo.freepharma.application.dto.estoque.FornecedorDTO;
 import com.annaehugo.freepharma.application.mapper.FornecedorMapper;
+import com.annaehugo.freepharma.application.services.FornecedorCacheService;
 import com.annaehugo.freepharma.application.services.FornecedorService;
 import com.annaehugo.freepharma.domain.entity.estoque.Fornecedor;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -9,7 +10,9 @@ import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 @RestController
 @RequestMapping("/api/fornecedores")
@@ -17,11 +20,14 @@ public class FornecedorController {
 
     private final FornecedorService fornecedorService;
     private final FornecedorMapper fornecedorMapper;
+    private final FornecedorCacheService fornecedorCacheService;
 
     @Autowired
-    public FornecedorController(FornecedorService fornecedorService, FornecedorMapper fornecedorMapper) {
+    public FornecedorController(FornecedorService fornecedorService, FornecedorMapper fornecedorMapper,
+                                FornecedorCacheService fornecedorCacheService) {
         this.fornecedorService = fornecedorService;
         this.fornecedorMapper = fornecedorMapper;
+        this.fornecedorCacheService = fornecedorCacheService;
     }
 
     @GetMapping
@@ -64,6 +70,21 @@ public class FornecedorController {
         return ResponseEntity.ok(fornecedores);
     }
 
+    /**
+     * Acertos e falhas do cache de fornecedores usado na importação de NFe.
+     */
+    @GetMapping("/cache")
+    public ResponseEntity<Map<String, Object>> estatisticasCache() {
+        long acertos = fornecedorCacheService.getAcertos();
+        long falhas = fornecedorCacheService.getFalhas();
+        Map<String, Object> estatisticas = new LinkedHashMap<>();
+        estatisticas.put("acertos", acertos);
+        estatisticas.put("falhas", falhas);
+        estatisticas.put("taxaAcerto", acertos + falhas > 0 ? (double) acertos / (acertos + falhas) : 0.0);
+        estatisticas.put("fornecedoresEmCache", fornecedorCacheService.getTamanho());
+        return ResponseEntity.ok(estatisticas);
+    }
+
     @PostMapping
     public ResponseEntity<?> criar(@RequestBody Fornecedor fornecedor) {
         try {
@@ -2,15 +2,20 @@ package com.annaehugo.freepharma.api.controllers.estoque;
 
 import com.annaehugo.freepharma.application.dto.estoque.ProdutoReferenciaDTO;
 import com.annaehugo.freepharma.application.mapper.ProdutoReferenciaMapper;
+import com.annaehugo.freepharma.application.services.DuplicidadeProdutoService;
 import com.annaehugo.freepharma.application.services.ProdutoReferenciaService;
+import com.annaehugo.freepharma.application.services.UnificacaoProdutoService;
 import com.annaehugo.freepharma.domain.entity.estoque.ProdutoReferencia;
 import com.annaehugo.freepharma.domain.entity.estoque.Medicamento;
+import com.annaehugo.freepharma.domain.entity.fiscal.LoteProcessamento;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 @RestController
 @RequestMapping("/api/produtos")
@@ -18,11 +23,17 @@ public class ProdutoReferenciaController {
 
     private final ProdutoReferenciaService produtoService;
     private final ProdutoReferenciaMapper produtoReferenciaMapper;
+    private final DuplicidadeProdutoService duplicidadeProdutoService;
+    private final UnificacaoProdutoService unificacaoProdutoService;
 
     @Autowired
-    public ProdutoReferenciaController(ProdutoReferenciaService produtoService, ProdutoReferenciaMapper produtoReferenciaMapper) {
+    public ProdutoReferenciaController(ProdutoReferenciaService produtoService, ProdutoReferenciaMapper produtoReferenciaMapper,
+                                       DuplicidadeProdutoService duplicidadeProdutoService,
+                                       UnificacaoProdutoService unificacaoProdutoService) {
         this.produtoService = produtoService;
         this.produtoReferenciaMapper = produtoReferenciaMapper;
+        this.duplicidadeProdutoService = duplicidadeProdutoService;
+        this.unificacaoProdutoService = unificacaoProdutoService;
     }
 
     @GetMapping
@@ -136,6 +147,56 @@ public class ProdutoReferenciaController {
         }
     }
 
+    /**
+     * Agenda a análise de produtos duplicados no catálogo. Devolve 202 com o lote que a acompanha; as
+     * propostas ficam em {@code /duplicados/{loteId}/propostas} quando o lote for concluído.
+     */
+    @PostMapping("/duplicados/analise")
+    public ResponseEntity<?> analisarDuplicados() {
+        try {
+            LoteProcessamento lote = duplicidadeProdutoService.iniciarAnalise();
+            Map<String, Object> resposta = new LinkedHashMap<>();
+            resposta.put("loteProcessamentoId", lote.getId());
+            resposta.put("status", lote.getStatus());
+            resposta.put("statusUrl", "/api/fiscal/lote-processamento/" + lote.getId());
+            resposta.put("propostasUrl", "/api/produtos/duplicados/" + lote.getId() + "/propostas");
+            return ResponseEntity.status(HttpStatus.ACCEPTED).body(resposta);
+        } catch (RuntimeException e) {
+            return ResponseEntity.badRequest().body(e.getMessage());
+        }
+    }
+
+    @GetMapping("/duplicados/{loteId}/propostas")
+    public ResponseEntity<?> listarPropostasUnificacao(@PathVariable Long loteId) {
+        try {
+            return ResponseEntity.ok(duplicidadeProdutoService.listarPropostas(loteId));
+        } catch (RuntimeException e) {
+            return ResponseEntity.badRequest().body(e.getMessage());
+        }
+    }
+
+    @PostMapping("/duplicados/{loteId}/unificacao")
+    public ResponseEntity<?> unificarPropostas(@PathVariable Long loteId) {
+        try {
+            return ResponseEntity.ok(duplicidadeProdutoService.unificarPropostas(loteId));
+        } catch (RuntimeException e) {
+            return ResponseEntity.badRequest().body(e.getMessage());
+        }
+    }
+
+    /**
+     * Unifica os produtos {@code origemIds} no produto {@code id}, levando itens de nota, vínculos com
+     * fornecedor e estoques.
+     */
+    @PostMapping("/{id}/unificacao")
+    public ResponseEntity<?> unificar(@PathVariable Long id, @RequestParam("origemIds") List<Long> origemIds) {
+        try {
+            return ResponseEntity.ok(unificacaoProdutoService.unificar(id, origemIds));
+        } catch (RuntimeException e) {
+            return ResponseEntity.badRequest().body(e.getMessage());
+        }
+    }
+
 //    @PatchMapping("/{id}/descontinuar")
 //    public ResponseEntity<?> descontinuar(@PathVariable Long id) {
 //        try {
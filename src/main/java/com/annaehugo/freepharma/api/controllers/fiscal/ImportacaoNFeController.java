@@ -1,94 +1,441 @@
-//package com.annaehugo.freepharma.api.controllers.fiscal;
-//
-//import org.springframework.http.HttpStatus;
-//import org.springframework.http.ResponseEntity;
-//import org.springframework.web.bind.annotation.*;
-//import org.springframework.web.multipart.MultipartFile;
-//import com.annaehugo.freepharma.application.services.ImportacaoNFeService;
-//import com.annaehugo.freepharma.domain.entity.administrativo.Unidade;
-//import com.annaehugo.freepharma.domain.entity.administrativo.UsuarioAdministrador;
-//import org.springframework.beans.factory.annotation.Autowired;
-//import io.swagger.annotations.Api;
-//import io.swagger.annotations.ApiOperation;
-//import io.swagger.annotations.ApiResponse;
-//import io.swagger.annotations.ApiResponses;
-//
-//import java.util.HashMap;
-//import java.util.Map;
-//
-//@RestController
-//@RequestMapping("/api/fiscal/importacao-nfe")
-//public class ImportacaoNFeController {
-//
-//    @Autowired
-//    private ImportacaoNFeService importacaoNFeService;
-//
-//    @PostMapping("/xml")
-//    @ApiResponses(value = {
-//        @ApiResponse(code = 200, message = "NFe importada com sucesso"),
-//        @ApiResponse(code = 400, message = "Erro na validação do arquivo ou dados"),
-//        @ApiResponse(code = 500, message = "Erro interno do servidor")
-//    })
-//    public ResponseEntity<?> importarNFe(@RequestParam("file") MultipartFile file) {
-//        try {
-//            var resultado = importacaoNFeService.importarNFeXml(file);
-//            if ("SUCESSO".equals(resultado.get("status"))) {
-//                return ResponseEntity.ok(resultado);
-//            } else {
-//                return ResponseEntity.badRequest().body(resultado);
-//            }
-//
-//        } catch (RuntimeException e) {
-//            Map<String, Object> errorResponse = new HashMap<>();
-//            errorResponse.put("status", "ERRO");
-//            errorResponse.put("mensagem", e.getMessage());
-//            errorResponse.put("timestamp", System.currentTimeMillis());
-//
-//            return ResponseEntity.badRequest().body(errorResponse);
-//        } catch (Exception e) {
-//            Map<String, Object> errorResponse = new HashMap<>();
-//            errorResponse.put("status", "ERRO_INTERNO");
-//            errorResponse.put("mensagem", "Erro interno no processamento: " + e.getMessage());
-//            errorResponse.put("timestamp", System.currentTimeMillis());
-//
-//            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body(errorResponse);
-//        }
-//    }
-//
-//    @PostMapping("/xml/completo")
-//    public ResponseEntity<?> importarNFeCompleto(
-//            @RequestParam("file") MultipartFile file,
-//            @RequestParam(value = "unidadeId", required = false) Long unidadeId,
-//            @RequestParam(value = "usuarioId", required = false) Long usuarioId,
-//            @RequestParam(value = "observacoes", required = false) String observacoes) {
-//
-//        try {
-//            // TODO: Buscar unidade e usuário pelos IDs
-//            Unidade unidade = null; // unidadeService.findById(unidadeId);
-//            UsuarioAdministrador usuario = null; // usuarioService.findById(usuarioId);
-//
-//            var resultado = importacaoNFeService.importarNFeXmlCompleto(file, unidade, usuario);
-//
-//            if ("SUCESSO".equals(resultado.get("status"))) {
-//                return ResponseEntity.ok(resultado);
-//            } else {
-//                return ResponseEntity.badRequest().body(resultado);
-//            }
-//
-//        } catch (RuntimeException e) {
-//            Map<String, Object> errorResponse = new HashMap<>();
-//            errorResponse.put("status", "ERRO");
-//            errorResponse.put("mensagem", e.getMessage());
-//            errorResponse.put("timestamp", System.currentTimeMillis());
-//
-//            return ResponseEntity.badRequest().body(errorResponse);
-//        } catch (Exception e) {
-//            Map<String, Object> errorResponse = new HashMap<>();
-//            errorResponse.put("status", "ERRO_INTERNO");
-//            errorResponse.put("mensagem", "Erro interno no processamento: " + e.getMessage());
-//            errorResponse.put("timestamp", System.currentTimeMillis());
-//
-//            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body(errorResponse);
-//        }
-//    }
-//}
+package com.annaehugo.freepharma.api.controllers.fiscal;
+
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.format.annotation.DateTimeFormat;
+import org.springframework.core.io.InputStreamResource;
+import org.springframework.core.io.Resource;
+import org.springframework.http.ContentDisposition;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+import org.springframework.web.multipart.MultipartFile;
+import com.annaehugo.freepharma.application.services.ArmazenamentoImportacaoService;
+import com.annaehugo.freepharma.application.services.ExecucaoLoteService;
+import com.annaehugo.freepharma.application.services.ImportacaoNFeAssincronaService;
+import com.annaehugo.freepharma.application.services.ImportacaoNFeService;
+import com.annaehugo.freepharma.application.services.PipelineImportacaoNFeService;
+import com.annaehugo.freepharma.application.services.ReprocessamentoNFeService;
+import com.annaehugo.freepharma.application.services.UnidadeService;
+import com.annaehugo.freepharma.application.services.UsuarioAdministradorService;
+import com.annaehugo.freepharma.domain.entity.administrativo.Unidade;
+import com.annaehugo.freepharma.domain.entity.administrativo.UsuarioAdministrador;
+import com.annaehugo.freepharma.domain.entity.fiscal.ImportacaoNFe;
+import com.annaehugo.freepharma.domain.entity.fiscal.LoteProcessamento;
+import org.springframework.beans.factory.annotation.Autowired;
+import io.swagger.annotations.ApiResponse;
+import io.swagger.annotations.ApiResponses;
+
+import javax.servlet.http.HttpServletRequest;
+import java.io.IOException;
+import java.io.InputStream;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+@RestController
+@RequestMapping("/api/fiscal/importacao-nfe")
+public class ImportacaoNFeController {
+
+    @Autowired
+    private ImportacaoNFeService importacaoNFeService;
+    @Autowired
+    private UnidadeService unidadeService;
+    @Autowired
+    private UsuarioAdministradorService usuarioAdministradorService;
+    @Autowired
+    private ImportacaoNFeAssincronaService importacaoNFeAssincronaService;
+    @Autowired
+    private PipelineImportacaoNFeService pipelineImportacaoNFeService;
+    @Autowired
+    private ArmazenamentoImportacaoService armazenamentoImportacaoService;
+    @Autowired
+    private ReprocessamentoNFeService reprocessamentoNFeService;
+    @Autowired
+    private ExecucaoLoteService execucaoLoteService;
+
+    /**
+     * Tempo máximo que {@link #consultarStatus} segura a requisição esperando a importação terminar.
+     */
+    private static final long ESPERA_MAXIMA_SEGUNDOS = 60;
+
+    @PostMapping("/xml")
+    @ApiResponses(value = {
+        @ApiResponse(code = 200, message = "NFe importada com sucesso"),
+        @ApiResponse(code = 400, message = "Erro na validação do arquivo ou dados"),
+        @ApiResponse(code = 500, message = "Erro interno do servidor")
+    })
+    public ResponseEntity<?> importarNFe(@RequestParam("file") MultipartFile file) {
+        try {
+            var resultado = importacaoNFeService.importarNFeXml(file);
+            if ("SUCESSO".equals(resultado.get("status"))) {
+                return ResponseEntity.ok(resultado);
+            } else {
+                return ResponseEntity.badRequest().body(resultado);
+            }
+
+        } catch (RuntimeException e) {
+            Map<String, Object> errorResponse = new HashMap<>();
+            errorResponse.put("status", "ERRO");
+            errorResponse.put("mensagem", e.getMessage());
+            errorResponse.put("timestamp", System.currentTimeMillis());
+
+            return ResponseEntity.badRequest().body(errorResponse);
+        } catch (Exception e) {
+            Map<String, Object> errorResponse = new HashMap<>();
+            errorResponse.put("status", "ERRO_INTERNO");
+            errorResponse.put("mensagem", "Erro interno no processamento: " + e.getMessage());
+            errorResponse.put("timestamp", System.currentTimeMillis());
+
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body(errorResponse);
+        }
+    }
+
+    @PostMapping("/xml/completo")
+    public ResponseEntity<?> importarNFeCompleto(
+            @RequestParam("file") MultipartFile file,
+            @RequestParam(value = "unidadeId", required = false) Long unidadeId,
+            @RequestParam(value = "usuarioId", required = false) Long usuarioId,
+            @RequestParam(value = "observacoes", required = false) String observacoes) {
+
+        try {
+            Unidade unidade = unidadeId != null ? unidadeService.buscarPorId(unidadeId).orElse(null) : null;
+            UsuarioAdministrador usuario = usuarioId != null
+                ? usuarioAdministradorService.buscarPorId(usuarioId).orElse(null) : null;
+
+            var resultado = importacaoNFeService.importarNFeXmlCompleto(file, unidade, usuario);
+
+            if ("SUCESSO".equals(resultado.get("status"))) {
+                return ResponseEntity.ok(resultado);
+            } else {
+                return ResponseEntity.badRequest().body(resultado);
+            }
+
+        } catch (RuntimeException e) {
+            Map<String, Object> errorResponse = new HashMap<>();
+            errorResponse.put("status", "ERRO");
+            errorResponse.put("mensagem", e.getMessage());
+            errorResponse.put("timestamp", System.currentTimeMillis());
+
+            return ResponseEntity.badRequest().body(errorResponse);
+        } catch (Exception e) {
+            Map<String, Object> errorResponse = new HashMap<>();
+            errorResponse.put("status", "ERRO_INTERNO");
+            errorResponse.put("mensagem", "Erro interno no processamento: " + e.getMessage());
+            errorResponse.put("timestamp", System.currentTimeMillis());
+
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body(errorResponse);
+        }
+    }
+
+    /**
+     * Recebe o arquivo diretamente no corpo da requisição (XML, envelope, ZIP ou gzip, inclusive com
+     * Content-Encoding: gzip), sem multipart. O corpo é lido como stream pelo parser e gravado em disco.
+     */
+    @PostMapping(value = "/arquivo", consumes = {
+        "application/xml", "text/xml", "application/zip", "application/gzip", "application/octet-stream"
+    })
+    public ResponseEntity<?> importarArquivo(
+            HttpServletRequest request,
+            @RequestParam(value = "nomeArquivo", required = false) String nomeArquivo,
+            @RequestParam(value = "unidadeId", required = false) Long unidadeId,
+            @RequestParam(value = "usuarioId", required = false) Long usuarioId) {
+
+        try (InputStream corpo = request.getInputStream()) {
+            Unidade unidade = unidadeId != null ? unidadeService.buscarPorId(unidadeId).orElse(null) : null;
+            UsuarioAdministrador usuario = usuarioId != null
+                ? usuarioAdministradorService.buscarPorId(usuarioId).orElse(null) : null;
+
+            var resultado = importacaoNFeService.importarArquivoNFe(corpo,
+                nomeArquivo != null ? nomeArquivo : "upload-" + System.currentTimeMillis(), unidade, usuario);
+
+            if ("SUCESSO".equals(resultado.get("status"))) {
+                return ResponseEntity.ok(resultado);
+            } else {
+                return ResponseEntity.badRequest().body(resultado);
+            }
+
+        } catch (RuntimeException e) {
+            Map<String, Object> errorResponse = new HashMap<>();
+            errorResponse.put("status", "ERRO");
+            errorResponse.put("mensagem", e.getMessage());
+            errorResponse.put("timestamp", System.currentTimeMillis());
+
+            return ResponseEntity.badRequest().body(errorResponse);
+        } catch (IOException e) {
+            Map<String, Object> errorResponse = new HashMap<>();
+            errorResponse.put("status", "ERRO_INTERNO");
+            errorResponse.put("mensagem", "Erro interno no processamento: " + e.getMessage());
+            errorResponse.put("timestamp", System.currentTimeMillis());
+
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body(errorResponse);
+        }
+    }
+
+    /**
+     * Recebe o upload, grava o arquivo e devolve 202 com o ID da importação, sem processar as notas
+     * na thread da requisição. O andamento é consultado em {@code GET /{id}/status}.
+     */
+    @PostMapping("/assincrona")
+    @ApiResponses(value = {
+        @ApiResponse(code = 202, message = "Arquivo recebido e importação agendada"),
+        @ApiResponse(code = 400, message = "Erro na validação do arquivo ou dados"),
+        @ApiResponse(code = 503, message = "Fila de importação cheia")
+    })
+    public ResponseEntity<?> importarNFeAssincrona(
+            @RequestParam("file") MultipartFile file,
+            @RequestParam(value = "unidadeId", required = false) Long unidadeId,
+            @RequestParam(value = "usuarioId", required = false) Long usuarioId) {
+
+        if (!importacaoNFeAssincronaService.isFilaDisponivel()) {
+            return filaCheia();
+        }
+        try {
+            Unidade unidade = unidadeId != null ? unidadeService.buscarPorId(unidadeId).orElse(null) : null;
+            UsuarioAdministrador usuario = usuarioId != null
+                ? usuarioAdministradorService.buscarPorId(usuarioId).orElse(null) : null;
+
+            ImportacaoNFe importacao = importacaoNFeService.registrarNFeXml(file, unidade, usuario);
+            return agendar(importacao);
+
+        } catch (RuntimeException e) {
+            Map<String, Object> errorResponse = new HashMap<>();
+            errorResponse.put("status", "ERRO");
+            errorResponse.put("mensagem", e.getMessage());
+            errorResponse.put("timestamp", System.currentTimeMillis());
+
+            return ResponseEntity.badRequest().body(errorResponse);
+        }
+    }
+
+    /**
+     * Como {@link #importarNFeAssincrona}, com o arquivo no corpo da requisição (ver {@link #importarArquivo}).
+     */
+    @PostMapping(value = "/assincrona/arquivo", consumes = {
+        "application/xml", "text/xml", "application/zip", "application/gzip", "application/octet-stream"
+    })
+    public ResponseEntity<?> importarArquivoAssincrono(
+            HttpServletRequest request,
+            @RequestParam(value = "nomeArquivo", required = false) String nomeArquivo,
+            @RequestParam(value = "unidadeId", required = false) Long unidadeId,
+            @RequestParam(value = "usuarioId", required = false) Long usuarioId) {
+
+        if (!importacaoNFeAssincronaService.isFilaDisponivel()) {
+            return filaCheia();
+        }
+        try (InputStream corpo = request.getInputStream()) {
+            Unidade unidade = unidadeId != null ? unidadeService.buscarPorId(unidadeId).orElse(null) : null;
+            UsuarioAdministrador usuario = usuarioId != null
+                ? usuarioAdministradorService.buscarPorId(usuarioId).orElse(null) : null;
+
+            ImportacaoNFe importacao = importacaoNFeService.registrarArquivoNFe(corpo,
+                nomeArquivo != null ? nomeArquivo : "upload-" + System.currentTimeMillis(), unidade, usuario);
+            return agendar(importacao);
+
+        } catch (RuntimeException e) {
+            Map<String, Object> errorResponse = new HashMap<>();
+            errorResponse.put("status", "ERRO");
+            errorResponse.put("mensagem", e.getMessage());
+            errorResponse.put("timestamp", System.currentTimeMillis());
+
+            return ResponseEntity.badRequest().body(errorResponse);
+        } catch (IOException e) {
+            Map<String, Object> errorResponse = new HashMap<>();
+            errorResponse.put("status", "ERRO_INTERNO");
+            errorResponse.put("mensagem", "Erro interno no processamento: " + e.getMessage());
+            errorResponse.put("timestamp", System.currentTimeMillis());
+
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body(errorResponse);
+        }
+    }
+
+    /**
+     * Situação da importação. Com {@code aguardarSegundos}, a resposta só é enviada quando a importação
+     * termina ou o tempo se esgota (limitado a {@value #ESPERA_MAXIMA_SEGUNDOS} segundos).
+     */
+    @GetMapping("/{id}/status")
+    public ResponseEntity<Map<String, Object>> consultarStatus(
+            @PathVariable Long id,
+            @RequestParam(value = "aguardarSegundos", required = false, defaultValue = "0") long aguardarSegundos) {
+        Duration espera = Duration.ofSeconds(Math.max(0, Math.min(aguardarSegundos, ESPERA_MAXIMA_SEGUNDOS)));
+        return importacaoNFeAssincronaService.aguardar(id, espera)
+                .map(importacao -> ResponseEntity.ok(resumirStatus(importacao)))
+                .orElse(ResponseEntity.notFound().build());
+    }
+
+    /**
+     * Arquivo original da importação, para auditoria. Clientes que aceitam gzip recebem o arquivo
+     * guardado como está em disco, com Content-Encoding: gzip, sem descompactar no servidor.
+     */
+    @GetMapping("/{id}/arquivo")
+    public ResponseEntity<Resource> baixarArquivo(
+            @PathVariable Long id,
+            @RequestHeader(value = HttpHeaders.ACCEPT_ENCODING, required = false) String acceptEncoding) {
+        Optional<ImportacaoNFe> encontrada = importacaoNFeAssincronaService.consultar(id);
+        if (!encontrada.isPresent()) {
+            return ResponseEntity.notFound().build();
+        }
+        ImportacaoNFe importacao = encontrada.get();
+        HttpHeaders headers = new HttpHeaders();
+        headers.setContentType(MediaType.APPLICATION_OCTET_STREAM);
+        headers.setContentDisposition(ContentDisposition.attachment().filename(importacao.getNomeArquivo()).build());
+
+        try {
+            if (armazenamentoImportacaoService.isCompactado(importacao)
+                    && acceptEncoding != null && acceptEncoding.contains("gzip")) {
+                FileSystemResource arquivo = new FileSystemResource(armazenamentoImportacaoService.localizar(importacao));
+                if (!arquivo.exists()) {
+                    return ResponseEntity.status(HttpStatus.GONE).build();
+                }
+                headers.set(HttpHeaders.CONTENT_ENCODING, "gzip");
+                return ResponseEntity.ok().headers(headers).body(arquivo);
+            }
+            return ResponseEntity.ok().headers(headers)
+                .body(new InputStreamResource(armazenamentoImportacaoService.abrir(importacao)));
+        } catch (RuntimeException e) {
+            return ResponseEntity.status(HttpStatus.GONE).build();
+        }
+    }
+
+    /**
+     * Reprocessa a partir dos arquivos guardados as importações informadas, ou as feitas no período,
+     * gravando apenas as diferenças. Devolve 202 com o lote cujo progresso acompanha o reprocessamento.
+     */
+    @PostMapping("/reprocessamento")
+    @ApiResponses(value = {
+        @ApiResponse(code = 202, message = "Reprocessamento agendado"),
+        @ApiResponse(code = 400, message = "Nenhuma importação para reprocessar ou período inválido")
+    })
+    public ResponseEntity<?> reprocessar(
+            @RequestParam(value = "importacaoIds", required = false) List<Long> importacaoIds,
+            @RequestParam(value = "inicio", required = false) @DateTimeFormat(pattern = "yyyy-MM-dd") Date inicio,
+            @RequestParam(value = "fim", required = false) @DateTimeFormat(pattern = "yyyy-MM-dd") Date fim) {
+        try {
+            LoteProcessamento lote = importacaoIds != null && !importacaoIds.isEmpty()
+                ? reprocessamentoNFeService.reprocessar(importacaoIds)
+                : reprocessamentoNFeService.reprocessarPeriodo(inicio, fim != null ? fimDoDia(fim) : null);
+
+            Map<String, Object> resposta = new LinkedHashMap<>();
+            resposta.put("loteProcessamentoId", lote.getId());
+            resposta.put("status", lote.getStatus());
+            resposta.put("statusUrl", "/api/fiscal/lote-processamento/" + lote.getId());
+            return ResponseEntity.status(HttpStatus.ACCEPTED).body(resposta);
+
+        } catch (RuntimeException e) {
+            Map<String, Object> errorResponse = new HashMap<>();
+            errorResponse.put("status", "ERRO");
+            errorResponse.put("mensagem", e.getMessage());
+            errorResponse.put("timestamp", System.currentTimeMillis());
+
+            return ResponseEntity.badRequest().body(errorResponse);
+        }
+    }
+
+    /**
+     * Processa em um lote que pode ser retomado os arquivos enviados e as importações pendentes informadas,
+     * em blocos de notas com um commit por bloco e até {@code particoesPorUnidade} partições por unidade
+     * (ver {@link ExecucaoLoteService}). Devolve 202 com o lote que acompanha a execução.
+     */
+    @PostMapping("/lote")
+    @ApiResponses(value = {
+        @ApiResponse(code = 202, message = "Lote criado e em execução"),
+        @ApiResponse(code = 400, message = "Nenhuma importação pendente para o lote ou arquivo inválido")
+    })
+    public ResponseEntity<?> importarLote(
+            @RequestParam(value = "files", required = false) List<MultipartFile> files,
+            @RequestParam(value = "importacaoIds", required = false) List<Long> importacaoIds,
+            @RequestParam(value = "unidadeId", required = false) Long unidadeId,
+            @RequestParam(value = "usuarioId", required = false) Long usuarioId,
+            @RequestParam(value = "particoesPorUnidade", defaultValue = "1") int particoesPorUnidade) {
+        try {
+            List<Long> ids = new ArrayList<>();
+            if (importacaoIds != null) {
+                ids.addAll(importacaoIds);
+            }
+            if (files != null && !files.isEmpty()) {
+                Unidade unidade = unidadeId != null ? unidadeService.buscarPorId(unidadeId).orElse(null) : null;
+                UsuarioAdministrador usuario = usuarioId != null
+                    ? usuarioAdministradorService.buscarPorId(usuarioId).orElse(null) : null;
+                for (MultipartFile file : files) {
+                    ids.add(importacaoNFeService.registrarNFeXml(file, unidade, usuario).getId());
+                }
+            }
+            LoteProcessamento lote = execucaoLoteService.criar(ids, particoesPorUnidade);
+
+            Map<String, Object> resposta = new LinkedHashMap<>();
+            resposta.put("loteProcessamentoId", lote.getId());
+            resposta.put("status", lote.getStatus());
+            resposta.put("statusUrl", "/api/fiscal/lote-processamento/" + lote.getId());
+            return ResponseEntity.status(HttpStatus.ACCEPTED).body(resposta);
+
+        } catch (RuntimeException e) {
+            Map<String, Object> errorResponse = new HashMap<>();
+            errorResponse.put("status", "ERRO");
+            errorResponse.put("mensagem", e.getMessage());
+            errorResponse.put("timestamp", System.currentTimeMillis());
+
+            return ResponseEntity.badRequest().body(errorResponse);
+        }
+    }
+
+    /**
+     * Fila, vazão e latência de cada etapa do processamento, acumuladas e por importação em andamento.
+     */
+    @GetMapping("/pipeline/metricas")
+    public ResponseEntity<Map<String, Object>> consultarMetricasPipeline() {
+        Map<String, Object> metricas = pipelineImportacaoNFeService.resumirMetricas();
+        metricas.put("importacoesNaFila", importacaoNFeAssincronaService.getImportacoesNaFila());
+        metricas.put("importacoesEmProcessamento", importacaoNFeAssincronaService.getImportacoesEmProcessamento());
+        return ResponseEntity.ok(metricas);
+    }
+
+    private ResponseEntity<?> agendar(ImportacaoNFe importacao) {
+        try {
+            importacaoNFeAssincronaService.agendar(importacao);
+        } catch (RuntimeException e) {
+            return filaCheia();
+        }
+        Map<String, Object> resposta = resumirStatus(importacao);
+        resposta.put("statusUrl", "/api/fiscal/importacao-nfe/" + importacao.getId() + "/status");
+        return ResponseEntity.status(HttpStatus.ACCEPTED).body(resposta);
+    }
+
+    private static Date fimDoDia(Date dia) {
+        return new Date(dia.getTime() + Duration.ofDays(1).toMillis() - 1);
+    }
+
+    private ResponseEntity<?> filaCheia() {
+        Map<String, Object> errorResponse = new HashMap<>();
+        errorResponse.put("status", "FILA_CHEIA");
+        errorResponse.put("mensagem", "Fila de importação cheia, tente novamente em alguns minutos");
+        errorResponse.put("timestamp", System.currentTimeMillis());
+
+        return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).body(errorResponse);
+    }
+
+    private Map<String, Object> resumirStatus(ImportacaoNFe importacao) {
+        Map<String, Object> resposta = new LinkedHashMap<>();
+        resposta.put("importacaoId", importacao.getId());
+        resposta.put("status", importacao.getStatus());
+        resposta.put("descricao", importacao.getStatus() != null ? importacao.getStatus().getDescricao() : null);
+        resposta.put("arquivo", importacao.getNomeArquivo());
+        resposta.put("dataImportacao", importacao.getDataImportacao());
+        resposta.put("dataInicioProcessamento", importacao.getDataInicioProcessamento());
+        resposta.put("dataFimProcessamento", importacao.getDataFimProcessamento());
+        resposta.put("progresso", pipelineImportacaoNFeService.consultarProgresso(importacao.getId())
+                .orElse(importacao.getLoteProcessamento() != null ? importacao.getLoteProcessamento().getProgresso() : null));
+        resposta.put("notasArquivo", importacao.getQuantidadeNotasArquivo());
+        resposta.put("notasProcessadas", importacao.getQuantidadeNotasProcessadas());
+        resposta.put("notasComErro", importacao.getQuantidadeNotasComErro());
+        resposta.put("inconsistenciasDetectadas", importacao.getQuantidadeInconsistenciasDetectadas());
+        resposta.put("log", importacao.getLogProcessamento());
+        resposta.put("erros", importacao.getErrosProcessamento());
+        return resposta;
+    }
+}
@@ -2,13 +2,20 @@ package com.annaehugo.freepharma.api.controllers.fiscal;
 
 import com.annaehugo.freepharma.application.dto.fiscal.LoteProcessamentoDTO;
 import com.annaehugo.freepharma.application.mapper.LoteProcessamentoMapper;
+import com.annaehugo.freepharma.application.services.ExecucaoLoteService;
 import com.annaehugo.freepharma.application.services.LoteProcessamentoService;
+import com.annaehugo.freepharma.domain.entity.fiscal.CheckpointLote;
 import com.annaehugo.freepharma.domain.entity.fiscal.LoteProcessamento;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 
 @RestController
@@ -17,11 +24,14 @@ public class LoteProcessamentoController {
 
     private final LoteProcessamentoService loteProcessamentoService;
     private final LoteProcessamentoMapper loteProcessamentoMapper;
+    private final ExecucaoLoteService execucaoLoteService;
 
     @Autowired
-    public LoteProcessamentoController(LoteProcessamentoService loteProcessamentoService, LoteProcessamentoMapper loteProcessamentoMapper) {
+    public LoteProcessamentoController(LoteProcessamentoService loteProcessamentoService, LoteProcessamentoMapper loteProcessamentoMapper,
+                                       ExecucaoLoteService execucaoLoteService) {
         this.loteProcessamentoService = loteProcessamentoService;
         this.loteProcessamentoMapper = loteProcessamentoMapper;
+        this.execucaoLoteService = execucaoLoteService;
     }
 
     @GetMapping
@@ -60,4 +70,45 @@ public class LoteProcessamentoController {
         LoteProcessamentoDTO loteFinalizadoDTO = loteProcessamentoMapper.toDto(loteFinalizado);
         return ResponseEntity.ok(loteFinalizadoDTO);
     }
+
+    /**
+     * Retoma a partir do último checkpoint de cada partição um lote de importação interrompido ou com erro.
+     */
+    @PostMapping("/{id}/retomada")
+    public ResponseEntity<?> retomar(@PathVariable Long id) {
+        try {
+            LoteProcessamento lote = execucaoLoteService.retomar(id);
+            Map<String, Object> resposta = new LinkedHashMap<>();
+            resposta.put("loteProcessamentoId", lote.getId());
+            resposta.put("status", lote.getStatus());
+            resposta.put("statusUrl", "/api/fiscal/lote-processamento/" + lote.getId());
+            return ResponseEntity.status(HttpStatus.ACCEPTED).body(resposta);
+        } catch (RuntimeException e) {
+            Map<String, Object> errorResponse = new HashMap<>();
+            errorResponse.put("status", "ERRO");
+            errorResponse.put("mensagem", e.getMessage());
+            return ResponseEntity.badRequest().body(errorResponse);
+        }
+    }
+
+    /**
+     * Checkpoint de cada partição do lote: unidade, importação em andamento e notas já gravadas.
+     */
+    @GetMapping("/{id}/particoes")
+    public ResponseEntity<List<Map<String, Object>>> listarParticoes(@PathVariable Long id) {
+        List<Map<String, Object>> particoes = new ArrayList<>();
+        for (CheckpointLote checkpoint : execucaoLoteService.listarParticoes(id)) {
+            Map<String, Object> particao = new LinkedHashMap<>();
+            particao.put("id", checkpoint.getId());
+            particao.put("unidadeId", checkpoint.getUnidade() != null ? checkpoint.getUnidade().getId() : null);
+            particao.put("indice", checkpoint.getIndice());
+            particao.put("status", checkpoint.getStatus());
+            particao.put("importacaoId", checkpoint.getImportacao() != null ? checkpoint.getImportacao().getId() : null);
+            particao.put("notasConcluidas", checkpoint.getNotasConcluidas());
+            particao.put("blocosConcluidos", checkpoint.getBlocosConcluidos());
+            particao.put("atualizadoEm", checkpoint.getUpdatedAt());
+            particoes.add(particao);
+        }
+        return ResponseEntity.ok(particoes);
+    }
 }
@@ -0,0 +1,66 @@
+package com.annaehugo.freepharma.api.controllers.fiscal;
+
+import com.annaehugo.freepharma.application.services.RegraValidacaoFiscalService;
+import com.annaehugo.freepharma.domain.entity.fiscal.RegraValidacaoFiscal;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+@RestController
+@RequestMapping("/api/fiscal/regras-validacao")
+public class RegraValidacaoFiscalController {
+
+    private final RegraValidacaoFiscalService regraValidacaoFiscalService;
+
+    @Autowired
+    public RegraValidacaoFiscalController(RegraValidacaoFiscalService regraValidacaoFiscalService) {
+        this.regraValidacaoFiscalService = regraValidacaoFiscalService;
+    }
+
+    @GetMapping
+    public ResponseEntity<Map<String, Object>> listarAtivas() {
+        return ResponseEntity.ok(resumir(regraValidacaoFiscalService.getRegras()));
+    }
+
+    /**
+     * Relê as regras do banco sem esperar o intervalo de recarga.
+     */
+    @PostMapping("/recarregar")
+    public ResponseEntity<?> recarregar() {
+        try {
+            return ResponseEntity.ok(resumir(regraValidacaoFiscalService.recarregar()));
+        } catch (RuntimeException e) {
+            Map<String, Object> errorResponse = new HashMap<>();
+            errorResponse.put("status", "ERRO");
+            errorResponse.put("mensagem", e.getMessage());
+            return ResponseEntity.badRequest().body(errorResponse);
+        }
+    }
+
+    private Map<String, Object> resumir(List<RegraValidacaoFiscalService.RegraCompilada> regras) {
+        List<Map<String, Object>> ativas = new ArrayList<>();
+        for (RegraValidacaoFiscalService.RegraCompilada compilada : regras) {
+            RegraValidacaoFiscal regra = compilada.getRegra();
+            Map<String, Object> item = new LinkedHashMap<>();
+            item.put("id", regra.getId());
+            item.put("nome", regra.getNome());
+            item.put("ordemExecucao", regra.getOrdemExecucao());
+            item.put("tipoInconsistencia", regra.getTipoInconsistencia());
+            item.put("severidade", regra.getSeveridade());
+            item.put("bloqueante", compilada.isBloqueante());
+            item.put("condicaoValidacao", regra.getCondicaoValidacao());
+            ativas.add(item);
+        }
+
+        Map<String, Object> resposta = new HashMap<>();
+        resposta.put("regras", ativas);
+        resposta.put("regrasInvalidas", regraValidacaoFiscalService.getRegrasInvalidas());
+        return resposta;
+    }
+}
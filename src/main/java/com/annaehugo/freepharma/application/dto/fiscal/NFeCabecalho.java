@@ -0,0 +1,16 @@
+package com.annaehugo.freepharma.application.dto.fiscal;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * DTO com a identificação da NFe lida no pré-exame do cabeçalho do XML
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class NFeCabecalho {
+    private String chaveAcesso;
+    private String cnpjEmitente;
+}
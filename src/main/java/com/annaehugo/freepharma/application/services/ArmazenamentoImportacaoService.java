@@ -0,0 +1,452 @@
+package com.annaehugo.freepharma.application.services;
+
+import com.annaehugo.freepharma.domain.entity.fiscal.ImportacaoNFe;
+import com.annaehugo.freepharma.domain.repository.fiscal.ImportacaoNFeRepository;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.io.BufferedOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Guarda em disco os arquivos recebidos na importação de NFe, endereçados pelo SHA-256 do conteúdo.
+ * O arquivo é compactado com gzip e gravado à medida que o parser o consome, sem manter o conteúdo em
+ * memória nem ler o upload uma segunda vez; ao final fica em {@code objetos/ab/cd/<sha256>.xml.gz}.
+ * Um arquivo idêntico a outro já guardado, como a mesma nota redistribuída, ocupa o disco uma única vez.
+ *
+ * A cada {@code freepharma.nfe.armazenamento.compactacao.intervalo-ms}, {@link #compactar()} remove os
+ * arquivos que nenhuma importação dentro de {@code freepharma.nfe.armazenamento.retencao} referencia.
+ * Arquivos gravados há menos de {@code freepharma.nfe.armazenamento.carencia} são mantidos, pois a
+ * importação que os referencia pode ainda não ter sido gravada.
+ */
+@Service
+public class ArmazenamentoImportacaoService {
+
+    private static final int TAMANHO_BUFFER = 64 * 1024;
+    private static final int TAMANHO_CONSULTA = 500;
+    private static final String EXTENSAO = ".xml.gz";
+
+    private final ImportacaoNFeRepository importacaoNFeRepository;
+    private final Path objetos;
+    private final Path temporarios;
+    private final Duration retencao;
+    private final Duration carencia;
+
+    @Autowired
+    public ArmazenamentoImportacaoService(
+            ImportacaoNFeRepository importacaoNFeRepository,
+            @Value("${freepharma.nfe.armazenamento.diretorio:${java.io.tmpdir}/freepharma/importacoes}") String diretorio,
+            @Value("${freepharma.nfe.armazenamento.retencao:0}") Duration retencao,
+            @Value("${freepharma.nfe.armazenamento.carencia:24h}") Duration carencia) {
+        this.importacaoNFeRepository = importacaoNFeRepository;
+        this.objetos = Paths.get(diretorio, "objetos");
+        this.temporarios = Paths.get(diretorio, "tmp");
+        this.retencao = retencao;
+        this.carencia = carencia;
+    }
+
+    /**
+     * Abre um stream que repassa o conteúdo de {@code origem} e grava no armazenamento tudo o que
+     * for lido. Ao ser fechado, o restante ainda não lido é copiado e o arquivo recebe o seu endereço.
+     */
+    public ArquivoArmazenado armazenar(InputStream origem, String nomeArquivo) {
+        return armazenar(origem, nomeArquivo, Long.MAX_VALUE);
+    }
+
+    /**
+     * Como {@link #armazenar(InputStream, String)}, mas a leitura falha e o temporário é removido assim
+     * que o conteúdo passa de {@code tamanhoMaximo} bytes, qualquer que seja a origem do stream.
+     */
+    public ArquivoArmazenado armazenar(InputStream origem, String nomeArquivo, long tamanhoMaximo) {
+        try {
+            Files.createDirectories(temporarios);
+            return new ArquivoArmazenado(this, origem, temporarios.resolve(UUID.randomUUID() + ".tmp"), tamanhoMaximo);
+        } catch (IOException e) {
+            throw new RuntimeException("Erro ao armazenar o arquivo " + nomeArquivo + ": " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Conteúdo original do arquivo da importação, descompactado à medida que é lido.
+     * Importações gravadas antes do endereçamento por hash são lidas do caminho registrado.
+     */
+    public InputStream abrir(ImportacaoNFe importacao) {
+        Path caminho = localizar(importacao);
+        try {
+            InputStream arquivo = Files.newInputStream(caminho);
+            if (importacao.getHashArquivo() == null) {
+                return arquivo;
+            }
+            try {
+                return new GZIPInputStream(arquivo, TAMANHO_BUFFER);
+            } catch (IOException e) {
+                arquivo.close();
+                throw e;
+            }
+        } catch (NoSuchFileException e) {
+            throw new RuntimeException("O arquivo " + importacao.getNomeArquivo() + " não está mais armazenado");
+        } catch (IOException e) {
+            throw new RuntimeException("Erro ao ler o arquivo " + importacao.getNomeArquivo() + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Arquivo guardado para a importação, como está em disco: compactado com gzip quando a importação
+     * tem {@link ImportacaoNFe#getHashArquivo()}, podendo ser enviado a clientes sem descompactar.
+     */
+    public Path localizar(ImportacaoNFe importacao) {
+        return importacao.getHashArquivo() != null
+            ? caminho(importacao.getHashArquivo())
+            : Paths.get(importacao.getCaminhoArquivo());
+    }
+
+    public boolean isCompactado(ImportacaoNFe importacao) {
+        return importacao.getHashArquivo() != null;
+    }
+
+    /**
+     * Remove os arquivos sem importação dentro da retenção, os diretórios que ficaram vazios e os
+     * temporários de uploads interrompidos. Retorna a quantidade de arquivos removidos.
+     */
+    @Scheduled(fixedDelayString = "${freepharma.nfe.armazenamento.compactacao.intervalo-ms:3600000}",
+            initialDelayString = "${freepharma.nfe.armazenamento.compactacao.intervalo-ms:3600000}")
+    public int compactar() {
+        Instant limiteCarencia = Instant.now().minus(carencia);
+        Date limiteRetencao = retencao.isZero() ? new Date(0) : Date.from(Instant.now().minus(retencao));
+        int removidos = 0;
+        try {
+            if (Files.isDirectory(objetos)) {
+                Map<String, Path> candidatos = new HashMap<>();
+                try (Stream<Path> arquivos = Files.walk(objetos)) {
+                    Iterator<Path> iterator = arquivos
+                        .filter(arquivo -> arquivo.getFileName().toString().endsWith(EXTENSAO))
+                        .iterator();
+                    while (iterator.hasNext()) {
+                        Path arquivo = iterator.next();
+                        if (modificadoAntes(arquivo, limiteCarencia)) {
+                            String nome = arquivo.getFileName().toString();
+                            candidatos.put(nome.substring(0, nome.length() - EXTENSAO.length()), arquivo);
+                        }
+                        if (candidatos.size() == TAMANHO_CONSULTA) {
+                            removidos += removerSemReferencia(candidatos, limiteRetencao, limiteCarencia);
+                            candidatos.clear();
+                        }
+                    }
+                }
+                removidos += removerSemReferencia(candidatos, limiteRetencao, limiteCarencia);
+                removerDiretoriosVazios();
+            }
+            if (Files.isDirectory(temporarios)) {
+                try (Stream<Path> arquivos = Files.list(temporarios)) {
+                    for (Path arquivo : arquivos.collect(Collectors.toList())) {
+                        if (modificadoAntes(arquivo, limiteCarencia)) {
+                            Files.deleteIfExists(arquivo);
+                        }
+                    }
+                }
+            }
+        } catch (IOException e) {
+            // A próxima execução continua de onde esta parou
+        }
+        return removidos;
+    }
+
+    Path caminho(String hash) {
+        return objetos.resolve(hash.substring(0, 2)).resolve(hash.substring(2, 4)).resolve(hash + EXTENSAO);
+    }
+
+    private int removerSemReferencia(Map<String, Path> candidatos, Date limiteRetencao, Instant limiteCarencia)
+            throws IOException {
+        if (candidatos.isEmpty()) {
+            return 0;
+        }
+        List<String> referenciados = importacaoNFeRepository.findHashesArquivoReferenciados(
+            candidatos.keySet(), limiteRetencao);
+        Map<String, Path> semReferencia = new HashMap<>(candidatos);
+        semReferencia.keySet().removeAll(new HashSet<>(referenciados));
+        int removidos = 0;
+        for (Path arquivo : semReferencia.values()) {
+            // Relido logo antes de remover: um upload idêntico pode ter acabado de reaproveitar o arquivo
+            if (modificadoAntes(arquivo, limiteCarencia) && Files.deleteIfExists(arquivo)) {
+                removidos++;
+            }
+        }
+        return removidos;
+    }
+
+    private void removerDiretoriosVazios() throws IOException {
+        List<Path> diretorios;
+        try (Stream<Path> caminhos = Files.walk(objetos)) {
+            diretorios = caminhos.filter(Files::isDirectory)
+                .filter(diretorio -> !diretorio.equals(objetos))
+                .sorted(Comparator.reverseOrder())
+                .collect(Collectors.toList());
+        }
+        for (Path diretorio : diretorios) {
+            try {
+                Files.deleteIfExists(diretorio);
+            } catch (DirectoryNotEmptyException e) {
+                // Ainda guarda arquivos
+            }
+        }
+    }
+
+    private static boolean modificadoAntes(Path arquivo, Instant limite) {
+        try {
+            return Files.getLastModifiedTime(arquivo).toInstant().isBefore(limite);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Move o temporário para o endereço do conteúdo, ou o descarta se o conteúdo já está guardado.
+     */
+    private Path guardar(Path temporario, String hash) throws IOException {
+        Path destino = caminho(hash);
+        if (Files.exists(destino)) {
+            // A data renovada protege o arquivo reaproveitado da compactação até a importação ser gravada
+            Files.setLastModifiedTime(destino, FileTime.from(Instant.now()));
+            Files.delete(temporario);
+            return destino;
+        }
+        for (int tentativa = 1; ; tentativa++) {
+            Files.createDirectories(destino.getParent());
+            try {
+                Files.move(temporario, destino, StandardCopyOption.ATOMIC_MOVE);
+                return destino;
+            } catch (FileAlreadyExistsException e) {
+                // Gravado ao mesmo tempo por outra importação com o mesmo conteúdo
+                Files.delete(temporario);
+                return destino;
+            } catch (NoSuchFileException e) {
+                // Diretório vazio removido pela compactação entre a criação e a movimentação
+                if (tentativa == 2) {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    /**
+     * SHA-256 do conteúdo de um arquivo, no mesmo formato de {@link ImportacaoNFe#getHashArquivo()}.
+     */
+    public static String calcularHash(Path arquivo) throws IOException {
+        MessageDigest sha256 = novoSha256();
+        byte[] buffer = new byte[TAMANHO_BUFFER];
+        try (InputStream conteudo = Files.newInputStream(arquivo)) {
+            int lidos;
+            while ((lidos = conteudo.read(buffer)) > 0) {
+                sha256.update(buffer, 0, lidos);
+            }
+        }
+        return ArquivoArmazenado.hexadecimal(sha256.digest());
+    }
+
+    private static MessageDigest novoSha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public static class ArquivoArmazenado extends FilterInputStream {
+
+        private final ArmazenamentoImportacaoService armazenamento;
+        private final Path temporario;
+        private final OutputStream destino;
+        private final MessageDigest sha256 = novoSha256();
+        private Path caminho;
+        private String hash;
+        private final long tamanhoMaximo;
+        private long tamanho;
+        private boolean fechado;
+        private boolean limiteExcedido;
+
+        private ArquivoArmazenado(ArmazenamentoImportacaoService armazenamento, InputStream origem,
+                                  Path temporario, long tamanhoMaximo) throws IOException {
+            super(origem);
+            this.armazenamento = armazenamento;
+            this.temporario = temporario;
+            this.caminho = temporario;
+            this.tamanhoMaximo = tamanhoMaximo;
+            this.destino = new GZIPOutputStream(
+                new BufferedOutputStream(Files.newOutputStream(temporario), TAMANHO_BUFFER), TAMANHO_BUFFER);
+        }
+
+        /**
+         * Caminho do arquivo: o temporário enquanto é gravado e, após o {@link #close()}, o definitivo.
+         */
+        public Path getCaminho() {
+            return caminho;
+        }
+
+        /**
+         * SHA-256 do conteúdo original, em hexadecimal; disponível após o {@link #close()}.
+         */
+        public String getHash() {
+            return hash;
+        }
+
+        /**
+         * Quantidade de bytes lidos até o momento; após o {@link #close()}, o tamanho do arquivo original.
+         */
+        public long getTamanho() {
+            return tamanho;
+        }
+
+        /**
+         * Indica que a leitura foi interrompida por passar do tamanho máximo; o arquivo não foi guardado.
+         */
+        public boolean isLimiteExcedido() {
+            return limiteExcedido;
+        }
+
+        public String getMensagemLimite() {
+            return "Arquivo muito grande. Tamanho máximo permitido: " + tamanhoMaximo / (1024 * 1024) + "MB";
+        }
+
+        @Override
+        public int read() throws IOException {
+            verificarLimite();
+            int b = super.read();
+            if (b >= 0) {
+                destino.write(b);
+                sha256.update((byte) b);
+                tamanho++;
+                verificarLimite();
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            verificarLimite();
+            int lidos = super.read(b, off, len);
+            if (lidos > 0) {
+                destino.write(b, off, lidos);
+                sha256.update(b, off, lidos);
+                tamanho += lidos;
+                verificarLimite();
+            }
+            return lidos;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            // Os bytes pulados também precisam chegar ao arquivo
+            byte[] buffer = new byte[(int) Math.min(n, TAMANHO_BUFFER)];
+            long pulados = 0;
+            while (pulados < n) {
+                int lidos = read(buffer, 0, (int) Math.min(buffer.length, n - pulados));
+                if (lidos < 0) {
+                    break;
+                }
+                pulados += lidos;
+            }
+            return pulados;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        @Override
+        public synchronized void mark(int readlimit) {
+        }
+
+        @Override
+        public synchronized void reset() throws IOException {
+            throw new IOException("mark/reset não suportado");
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (fechado) {
+                return;
+            }
+            fechado = true;
+            try {
+                byte[] buffer = new byte[TAMANHO_BUFFER];
+                while (read(buffer, 0, buffer.length) >= 0) {
+                    // Copia para o arquivo o que o parser não chegou a ler
+                }
+            } finally {
+                try {
+                    destino.close();
+                } finally {
+                    super.close();
+                }
+            }
+            hash = hexadecimal(sha256.digest());
+            caminho = armazenamento.guardar(temporario, hash);
+        }
+
+        /**
+         * Fecha o stream sem ler o restante e remove o temporário, para uploads rejeitados. Um arquivo
+         * já endereçado pode ser compartilhado com outras importações e fica para a compactação.
+         */
+        public void descartar() {
+            boolean jaGuardado = hash != null;
+            fechado = true;
+            try {
+                destino.close();
+                super.close();
+                if (!jaGuardado) {
+                    Files.deleteIfExists(temporario);
+                }
+            } catch (IOException e) {
+                // O temporário é removido pela compactação depois da carência
+            }
+        }
+
+        private void verificarLimite() throws IOException {
+            if (tamanho > tamanhoMaximo && !limiteExcedido) {
+                limiteExcedido = true;
+                descartar();
+            }
+            if (limiteExcedido) {
+                throw new IOException(getMensagemLimite());
+            }
+        }
+
+        private static String hexadecimal(byte[] bytes) {
+            StringBuilder hex = new StringBuilder(bytes.length * 2);
+            for (byte b : bytes) {
+                hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return hex.toString();
+        }
+    }
+}
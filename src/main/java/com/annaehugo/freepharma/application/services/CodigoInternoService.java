@@ -0,0 +1,81 @@
+package com.annaehugo.freepharma.application.services;
+
+import com.annaehugo.freepharma.domain.repository.estoque.ProdutoReferenciaRepository;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Gera os códigos internos dos produtos criados automaticamente na importação de NFe. Os números
+ * vêm da sequence {@code produto_referencia_codigo_seq}, que entrega a cada chamada um bloco de
+ * {@value ProdutoReferenciaRepository#TAMANHO_BLOCO_CODIGO_INTERNO} números exclusivo desta instância;
+ * dentro do bloco os códigos saem de um contador em memória, sem trava e sem ida ao banco.
+ *
+ * O prefixo {@value #PREFIXO} não coincide com o dos códigos antigos ("AUTO" + dígitos do horário),
+ * então os dois formatos convivem na mesma coluna única.
+ */
+@Service
+public class CodigoInternoService {
+
+    public static final String PREFIXO = "AUTO-";
+
+    private static final int DIGITOS = 9;
+
+    private final ProdutoReferenciaRepository produtoReferenciaRepository;
+
+    private volatile Bloco bloco = new Bloco(0, 0);
+    private boolean sequenceCriada;
+
+    @Autowired
+    public CodigoInternoService(ProdutoReferenciaRepository produtoReferenciaRepository) {
+        this.produtoReferenciaRepository = produtoReferenciaRepository;
+    }
+
+    public String gerar() {
+        while (true) {
+            Bloco atual = bloco;
+            long numero = atual.proximo.getAndIncrement();
+            if (numero < atual.fim) {
+                return formatar(numero);
+            }
+            reservarBloco(atual);
+        }
+    }
+
+    private synchronized void reservarBloco(Bloco esgotado) {
+        if (bloco != esgotado) {
+            // Outra thread já trocou o bloco enquanto esta esperava
+            return;
+        }
+        if (!sequenceCriada) {
+            produtoReferenciaRepository.criarSequenceCodigoInterno();
+            sequenceCriada = true;
+        }
+        Long inicio = produtoReferenciaRepository.reservarBlocoCodigoInterno();
+        if (inicio == null) {
+            throw new RuntimeException("Sequence de códigos internos não retornou valor");
+        }
+        bloco = new Bloco(inicio, inicio + ProdutoReferenciaRepository.TAMANHO_BLOCO_CODIGO_INTERNO);
+    }
+
+    static String formatar(long numero) {
+        String digitos = Long.toString(numero);
+        StringBuilder codigo = new StringBuilder(PREFIXO.length() + Math.max(DIGITOS, digitos.length()));
+        codigo.append(PREFIXO);
+        for (int i = digitos.length(); i < DIGITOS; i++) {
+            codigo.append('0');
+        }
+        return codigo.append(digitos).toString();
+    }
+
+    private static class Bloco {
+        private final AtomicLong proximo;
+        private final long fim;
+
+        Bloco(long inicio, long fim) {
+            this.proximo = new AtomicLong(inicio);
+            this.fim = fim;
+        }
+    }
+}
@@ -0,0 +1,490 @@
+package com.annaehugo.freepharma.application.services;
+
+import com.annaehugo.freepharma.application.dto.fiscal.NFeXmlData;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Condição de uma regra de validação fiscal compilada para avaliação sobre os itens da NFe. O texto
+ * é analisado uma única vez: expressões regulares são compiladas nesse momento e os campos viram
+ * acessores, de modo que a avaliação de um item não faz parse nem compila nada.
+ *
+ * A condição descreve o item válido; a regra é violada quando ela resulta falsa. Sintaxe:
+ * <ul>
+ *   <li>comparações entre campos e literais: {@code ==, !=, >, >=, <, <=} ({@code null}, números e textos entre aspas);</li>
+ *   <li>{@code campo ~ "regex"}: o valor inteiro deve casar com a expressão;</li>
+ *   <li>funções {@code gtin(campo)}, {@code preenchido(campo)}, {@code comecaCom(campo, "texto")} e {@code contem(campo, "texto")};</li>
+ *   <li>{@code &&}, {@code ||}, {@code !} e parênteses.</li>
+ * </ul>
+ * Exemplo: {@code !farmaceutico || lote != null}.
+ */
+public final class CondicaoRegraFiscal {
+
+    private static final long MILIS_POR_DIA = 24 * 60 * 60 * 1000L;
+
+    private static final Map<String, Function<Contexto, Object>> CAMPOS = new HashMap<>();
+
+    static {
+        CAMPOS.put("codigoProduto", c -> c.getItem().getCodigoProduto());
+        CAMPOS.put("nomeProduto", c -> c.getItem().getNomeProduto());
+        CAMPOS.put("descricaoProduto", c -> c.getItem().getDescricaoProduto());
+        CAMPOS.put("ean", c -> c.getItem().getEan());
+        CAMPOS.put("ncm", c -> c.getItem().getNcm());
+        CAMPOS.put("cfop", c -> c.getItem().getCfop());
+        CAMPOS.put("unidadeMedida", c -> c.getItem().getUnidadeMedida());
+        CAMPOS.put("quantidade", c -> c.getItem().getQuantidade());
+        CAMPOS.put("valorUnitario", c -> c.getItem().getValorUnitario());
+        CAMPOS.put("valorTotal", c -> c.getItem().getValorTotal());
+        CAMPOS.put("lote", c -> c.getItem().getLote());
+        CAMPOS.put("dataVencimento", c -> c.getItem().getDataVencimento());
+        CAMPOS.put("farmaceutico", Contexto::isFarmaceutico);
+        CAMPOS.put("diasParaVencimento", Contexto::getDiasParaVencimento);
+    }
+
+    private final String texto;
+    private final Predicate<Contexto> predicado;
+
+    private CondicaoRegraFiscal(String texto, Predicate<Contexto> predicado) {
+        this.texto = texto;
+        this.predicado = predicado;
+    }
+
+    public static CondicaoRegraFiscal compilar(String texto) {
+        if (texto == null || texto.trim().isEmpty()) {
+            throw new RuntimeException("Condição da regra não informada");
+        }
+        Analisador analisador = new Analisador(texto);
+        Predicate<Contexto> predicado = analisador.condicao();
+        return new CondicaoRegraFiscal(texto, predicado);
+    }
+
+    public boolean avaliar(Contexto contexto) {
+        return predicado.test(contexto);
+    }
+
+    public String getTexto() {
+        return texto;
+    }
+
+    /**
+     * Acessor de um campo do item, usado também para montar as mensagens das regras.
+     */
+    static Function<Contexto, Object> campo(String nome) {
+        Function<Contexto, Object> acessor = CAMPOS.get(nome);
+        if (acessor == null) {
+            throw new RuntimeException("Campo desconhecido: " + nome);
+        }
+        return acessor;
+    }
+
+    static boolean validarGtin(String ean) {
+        if (ean == null || ean.length() != 13) {
+            return false;
+        }
+
+        int soma = 0;
+        for (int i = 0; i < 12; i++) {
+            int digito = Character.digit(ean.charAt(i), 10);
+            if (digito < 0) {
+                return false;
+            }
+            soma += (i % 2 == 0) ? digito : digito * 3;
+        }
+
+        int verificador = (10 - (soma % 10)) % 10;
+        return verificador == Character.digit(ean.charAt(12), 10);
+    }
+
+    private static boolean iguais(Object a, Object b) {
+        if (a == null || b == null) {
+            return a == b;
+        }
+        BigDecimal x = numero(a);
+        BigDecimal y = numero(b);
+        if (x != null && y != null) {
+            return x.compareTo(y) == 0;
+        }
+        return a.toString().equals(b.toString());
+    }
+
+    private static BigDecimal numero(Object valor) {
+        if (valor instanceof BigDecimal) {
+            return (BigDecimal) valor;
+        }
+        if (valor instanceof Number) {
+            return new BigDecimal(valor.toString());
+        }
+        if (valor instanceof String) {
+            try {
+                return new BigDecimal(((String) valor).trim());
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Item em avaliação. Os campos derivados são calculados no máximo uma vez por item,
+     * mesmo que várias regras os usem.
+     */
+    public static class Contexto {
+        private final NFeXmlData.ItemNFeDados item;
+        private final Date referencia;
+        private Boolean farmaceutico;
+
+        public Contexto(NFeXmlData.ItemNFeDados item, Date referencia) {
+            this.item = item;
+            this.referencia = referencia;
+        }
+
+        public NFeXmlData.ItemNFeDados getItem() {
+            return item;
+        }
+
+        public boolean isFarmaceutico() {
+            if (farmaceutico == null) {
+                farmaceutico = isProdutoFarmaceutico(item);
+            }
+            return farmaceutico;
+        }
+
+        public Long getDiasParaVencimento() {
+            if (item.getDataVencimento() == null) {
+                return null;
+            }
+            return (item.getDataVencimento().getTime() - referencia.getTime()) / MILIS_POR_DIA;
+        }
+
+        private static boolean isProdutoFarmaceutico(NFeXmlData.ItemNFeDados item) {
+            if (item.getNcm() != null && item.getNcm().startsWith("30")) {
+                return true;
+            }
+
+            String nome = item.getNomeProduto() != null ? item.getNomeProduto().toLowerCase() : "";
+            return nome.contains("medicament") || nome.contains("remedio") ||
+                   nome.contains("farmaco") || nome.contains("comprimido") ||
+                   nome.contains("capsula") || nome.contains("xarope") ||
+                   nome.contains("pomada") || nome.contains("creme");
+        }
+    }
+
+    private enum TipoToken { CAMPO, NUMERO, TEXTO, SIMBOLO, FIM }
+
+    private static class Token {
+        final TipoToken tipo;
+        final String valor;
+        final int posicao;
+
+        Token(TipoToken tipo, String valor, int posicao) {
+            this.tipo = tipo;
+            this.valor = valor;
+            this.posicao = posicao;
+        }
+
+        boolean is(String simbolo) {
+            return tipo == TipoToken.SIMBOLO && valor.equals(simbolo);
+        }
+    }
+
+    /**
+     * Operando de uma comparação: um campo do item ou um literal.
+     */
+    private static class Operando {
+        final Function<Contexto, Object> valor;
+        final boolean literal;
+        final Object constante;
+
+        Operando(Function<Contexto, Object> valor) {
+            this.valor = valor;
+            this.literal = false;
+            this.constante = null;
+        }
+
+        Operando(Object constante) {
+            this.valor = c -> constante;
+            this.literal = true;
+            this.constante = constante;
+        }
+    }
+
+    /**
+     * Analisador descendente recursivo: ou := e ("||" e)*, e := nao ("&&" nao)*,
+     * nao := "!" nao | primario.
+     */
+    private static class Analisador {
+        private final String texto;
+        private final List<Token> tokens;
+        private int atual;
+
+        Analisador(String texto) {
+            this.texto = texto;
+            this.tokens = tokenizar(texto);
+        }
+
+        Predicate<Contexto> condicao() {
+            Predicate<Contexto> predicado = ou();
+            if (proximo().tipo != TipoToken.FIM) {
+                throw erro("trecho inesperado '" + proximo().valor + "'", proximo());
+            }
+            return predicado;
+        }
+
+        private Predicate<Contexto> ou() {
+            Predicate<Contexto> predicado = e();
+            while (proximo().is("||")) {
+                atual++;
+                predicado = predicado.or(e());
+            }
+            return predicado;
+        }
+
+        private Predicate<Contexto> e() {
+            Predicate<Contexto> predicado = nao();
+            while (proximo().is("&&")) {
+                atual++;
+                predicado = predicado.and(nao());
+            }
+            return predicado;
+        }
+
+        private Predicate<Contexto> nao() {
+            if (proximo().is("!")) {
+                atual++;
+                return nao().negate();
+            }
+            return primario();
+        }
+
+        private Predicate<Contexto> primario() {
+            Token token = proximo();
+            if (token.is("(")) {
+                atual++;
+                Predicate<Contexto> predicado = ou();
+                esperar(")");
+                return predicado;
+            }
+            if (token.tipo == TipoToken.CAMPO && tokens.get(atual + 1).is("(")) {
+                return funcao();
+            }
+            if (token.tipo == TipoToken.CAMPO && (token.valor.equals("true") || token.valor.equals("false"))) {
+                atual++;
+                boolean constante = Boolean.parseBoolean(token.valor);
+                return c -> constante;
+            }
+
+            Operando esquerda = operando();
+            Token operador = proximo();
+            if (operador.is("~")) {
+                atual++;
+                Pattern padrao = expressaoRegular(operando(), operador);
+                return c -> {
+                    Object valor = esquerda.valor.apply(c);
+                    return valor != null && padrao.matcher(valor.toString()).matches();
+                };
+            }
+            if (operador.tipo == TipoToken.SIMBOLO && isComparacao(operador.valor)) {
+                atual++;
+                return comparacao(esquerda, operador.valor, operando());
+            }
+            if (esquerda.literal) {
+                throw erro("esperado um operador de comparação", operador);
+            }
+            // Campo isolado: usado como valor lógico (ex.: farmaceutico)
+            return c -> Boolean.TRUE.equals(esquerda.valor.apply(c));
+        }
+
+        private Predicate<Contexto> funcao() {
+            Token nome = tokens.get(atual);
+            atual += 2;
+            Function<Contexto, Object> argumento = operando().valor;
+            Predicate<Contexto> predicado;
+            switch (nome.valor) {
+                case "gtin":
+                    predicado = c -> {
+                        Object valor = argumento.apply(c);
+                        return valor != null && validarGtin(valor.toString());
+                    };
+                    break;
+                case "preenchido":
+                    predicado = c -> {
+                        Object valor = argumento.apply(c);
+                        return valor != null && !valor.toString().trim().isEmpty();
+                    };
+                    break;
+                case "comecaCom":
+                case "contem":
+                    esperar(",");
+                    String trecho = textoLiteral(nome);
+                    boolean inicio = nome.valor.equals("comecaCom");
+                    predicado = c -> {
+                        Object valor = argumento.apply(c);
+                        return valor != null && (inicio ? valor.toString().startsWith(trecho) : valor.toString().contains(trecho));
+                    };
+                    break;
+                default:
+                    throw erro("função desconhecida '" + nome.valor + "'", nome);
+            }
+            esperar(")");
+            return predicado;
+        }
+
+        private Operando operando() {
+            Token token = proximo();
+            atual++;
+            switch (token.tipo) {
+                case NUMERO:
+                    return new Operando(new BigDecimal(token.valor));
+                case TEXTO:
+                    return new Operando(token.valor);
+                case CAMPO:
+                    if (token.valor.equals("null")) {
+                        return new Operando((Object) null);
+                    }
+                    if (!CAMPOS.containsKey(token.valor)) {
+                        throw erro("campo desconhecido '" + token.valor + "'", token);
+                    }
+                    return new Operando(CAMPOS.get(token.valor));
+                default:
+                    throw erro("esperado um campo ou valor", token);
+            }
+        }
+
+        private Pattern expressaoRegular(Operando operando, Token operador) {
+            if (!operando.literal || !(operando.constante instanceof String)) {
+                throw erro("o operador ~ exige uma expressão regular entre aspas", operador);
+            }
+            try {
+                return Pattern.compile((String) operando.constante);
+            } catch (PatternSyntaxException e) {
+                throw erro("expressão regular inválida: " + e.getDescription(), operador);
+            }
+        }
+
+        private String textoLiteral(Token funcao) {
+            Token token = proximo();
+            if (token.tipo != TipoToken.TEXTO) {
+                throw erro("a função " + funcao.valor + " exige um texto entre aspas", token);
+            }
+            atual++;
+            return token.valor;
+        }
+
+        private Predicate<Contexto> comparacao(Operando esquerda, String operador, Operando direita) {
+            switch (operador) {
+                case "==":
+                    return c -> iguais(esquerda.valor.apply(c), direita.valor.apply(c));
+                case "!=":
+                    return c -> !iguais(esquerda.valor.apply(c), direita.valor.apply(c));
+                default:
+                    return c -> {
+                        BigDecimal x = numero(esquerda.valor.apply(c));
+                        BigDecimal y = numero(direita.valor.apply(c));
+                        if (x == null || y == null) {
+                            return false;
+                        }
+                        int resultado = x.compareTo(y);
+                        switch (operador) {
+                            case ">": return resultado > 0;
+                            case ">=": return resultado >= 0;
+                            case "<": return resultado < 0;
+                            default: return resultado <= 0;
+                        }
+                    };
+            }
+        }
+
+        private static boolean isComparacao(String simbolo) {
+            switch (simbolo) {
+                case "==":
+                case "!=":
+                case ">":
+                case ">=":
+                case "<":
+                case "<=":
+                    return true;
+                default:
+                    return false;
+            }
+        }
+
+        private Token proximo() {
+            return tokens.get(atual);
+        }
+
+        private void esperar(String simbolo) {
+            if (!proximo().is(simbolo)) {
+                throw erro("esperado '" + simbolo + "'", proximo());
+            }
+            atual++;
+        }
+
+        private RuntimeException erro(String mensagem, Token token) {
+            return new RuntimeException("Condição inválida (posição " + (token.posicao + 1) + "): " +
+                mensagem + " em \"" + texto + "\"");
+        }
+
+        private static List<Token> tokenizar(String texto) {
+            List<Token> tokens = new ArrayList<>();
+            int i = 0;
+            while (i < texto.length()) {
+                char c = texto.charAt(i);
+                if (Character.isWhitespace(c)) {
+                    i++;
+                } else if (Character.isLetter(c) || c == '_') {
+                    int inicio = i;
+                    while (i < texto.length() && (Character.isLetterOrDigit(texto.charAt(i)) || texto.charAt(i) == '_')) {
+                        i++;
+                    }
+                    tokens.add(new Token(TipoToken.CAMPO, texto.substring(inicio, i), inicio));
+                } else if (Character.isDigit(c) || (c == '-' && i + 1 < texto.length() && Character.isDigit(texto.charAt(i + 1)))) {
+                    int inicio = i++;
+                    while (i < texto.length() && (Character.isDigit(texto.charAt(i)) || texto.charAt(i) == '.')) {
+                        i++;
+                    }
+                    tokens.add(new Token(TipoToken.NUMERO, texto.substring(inicio, i), inicio));
+                } else if (c == '"' || c == '\'') {
+                    int inicio = i++;
+                    StringBuilder valor = new StringBuilder();
+                    while (i < texto.length() && texto.charAt(i) != c) {
+                        // Só a própria aspa é escapada; as barras das expressões regulares são mantidas
+                        if (texto.charAt(i) == '\\' && i + 1 < texto.length() && texto.charAt(i + 1) == c) {
+                            i++;
+                        }
+                        valor.append(texto.charAt(i++));
+                    }
+                    if (i >= texto.length()) {
+                        throw new RuntimeException("Condição inválida (posição " + (inicio + 1) +
+                            "): texto sem aspas de fechamento em \"" + texto + "\"");
+                    }
+                    i++;
+                    tokens.add(new Token(TipoToken.TEXTO, valor.toString(), inicio));
+                } else {
+                    String dois = i + 1 < texto.length() ? texto.substring(i, i + 2) : "";
+                    if (dois.equals("&&") || dois.equals("||") || dois.equals("==") || dois.equals("!=")
+                            || dois.equals(">=") || dois.equals("<=")) {
+                        tokens.add(new Token(TipoToken.SIMBOLO, dois, i));
+                        i += 2;
+                    } else if ("!<>~(),".indexOf(c) >= 0) {
+                        tokens.add(new Token(TipoToken.SIMBOLO, String.valueOf(c), i));
+                        i++;
+                    } else {
+                        throw new RuntimeException("Condição inválida (posição " + (i + 1) +
+                            "): caractere inesperado '" + c + "' em \"" + texto + "\"");
+                    }
+                }
+            }
+            tokens.add(new Token(TipoToken.FIM, "", texto.length()));
+            return tokens;
+        }
+    }
+}
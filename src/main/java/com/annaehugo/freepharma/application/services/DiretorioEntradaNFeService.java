@@ -0,0 +1,376 @@
+package com.annaehugo.freepharma.application.services;
+
+import com.annaehugo.freepharma.domain.entity.administrativo.Unidade;
+import com.annaehugo.freepharma.domain.entity.fiscal.ImportacaoNFe;
+import com.annaehugo.freepharma.domain.entity.fiscal.LoteProcessamento;
+import com.annaehugo.freepharma.domain.entity.fiscal.StatusImportacao;
+import com.annaehugo.freepharma.domain.repository.administrativo.UnidadeRepository;
+import com.annaehugo.freepharma.domain.repository.fiscal.ImportacaoNFeRepository;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.core.annotation.Order;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Importa os arquivos de NFe deixados em {@code freepharma.nfe.entrada.diretorio}, como a exportação
+ * noturna do ERP. A pasta é observada e também varrida a cada {@code freepharma.nfe.entrada.intervalo};
+ * arquivos modificados há menos de {@code freepharma.nfe.entrada.estabilidade} podem estar sendo gravados
+ * e ficam para a varredura seguinte.
+ *
+ * Cada arquivo novo é reservado com uma movimentação atômica para {@code processando/}, registrado por
+ * {@link ImportacaoNFeService#registrarArquivoNFe} e renomeado para {@code importacao-<id>__<nome>}. Os
+ * arquivos de uma varredura formam um lote de {@link ExecucaoLoteService}, com até
+ * {@code freepharma.nfe.entrada.particoes} partições processadas em paralelo. Quando a importação termina,
+ * o arquivo vai para {@code processados/} ou {@code falhas/}; um arquivo que nem pôde ser registrado vai
+ * direto para {@code falhas/}, acompanhado de um {@code .erro} com o motivo. O prefixo só é aceito quando a
+ * importação com esse ID tem o nome do restante do arquivo; um arquivo deixado na pasta que já tenha essa
+ * forma é recusado, para não ser confundido com um registrado.
+ *
+ * O estado de cada arquivo está no diretório em que ele se encontra, e a aplicação pode parar a qualquer
+ * momento: um arquivo reservado e não renomeado é reconhecido pelo SHA-256 e pelo nome, e só é registrado
+ * de novo se nenhuma importação o tiver.
+ */
+@Service
+public class DiretorioEntradaNFeService {
+
+    static final String PROCESSANDO = "processando";
+    static final String PROCESSADOS = "processados";
+    static final String FALHAS = "falhas";
+    static final String EXTENSAO_ERRO = ".erro";
+    private static final String SEPARADOR = "__";
+    private static final String PREFIXO_IMPORTACAO = "importacao-";
+    private static final String[] EXTENSOES = {".xml", ".zip", ".gz"};
+
+    private final ImportacaoNFeService importacaoNFeService;
+    private final ImportacaoNFeRepository importacaoNFeRepository;
+    private final UnidadeRepository unidadeRepository;
+    private final ExecucaoLoteService execucaoLoteService;
+    private final Path entrada;
+    private final Long unidadeId;
+    private final Duration estabilidade;
+    private final Duration intervalo;
+    private final int tamanhoLote;
+    private final int particoes;
+    private volatile boolean encerrando;
+    private Thread observador;
+
+    @Autowired
+    public DiretorioEntradaNFeService(
+            ImportacaoNFeService importacaoNFeService,
+            ImportacaoNFeRepository importacaoNFeRepository,
+            UnidadeRepository unidadeRepository,
+            ExecucaoLoteService execucaoLoteService,
+            @Value("${freepharma.nfe.entrada.diretorio:}") String diretorio,
+            @Value("${freepharma.nfe.entrada.unidade-id:}") Long unidadeId,
+            @Value("${freepharma.nfe.entrada.estabilidade:10s}") Duration estabilidade,
+            @Value("${freepharma.nfe.entrada.intervalo:60s}") Duration intervalo,
+            @Value("${freepharma.nfe.entrada.tamanho-lote:500}") int tamanhoLote,
+            @Value("${freepharma.nfe.entrada.particoes:2}") int particoes) {
+        this.importacaoNFeService = importacaoNFeService;
+        this.importacaoNFeRepository = importacaoNFeRepository;
+        this.unidadeRepository = unidadeRepository;
+        this.execucaoLoteService = execucaoLoteService;
+        this.entrada = diretorio == null || diretorio.trim().isEmpty() ? null : Paths.get(diretorio.trim());
+        this.unidadeId = unidadeId;
+        this.estabilidade = estabilidade;
+        this.intervalo = intervalo;
+        this.tamanhoLote = Math.max(1, tamanhoLote);
+        this.particoes = Math.max(1, particoes);
+    }
+
+    public boolean isAtivo() {
+        return entrada != null;
+    }
+
+    /**
+     * Começa a observar o diretório, se configurado. A primeira varredura também conclui o que ficou
+     * pela metade quando a aplicação parou. Só começa depois da retomada das importações assíncronas, que
+     * tomaria como suas as importações registradas aqui e ainda sem lote.
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    @Order(ImportacaoNFeAssincronaService.ORDEM_RETOMADA + 1)
+    public synchronized void iniciar() {
+        if (entrada == null || observador != null) {
+            return;
+        }
+        observador = new Thread(this::observar, "entrada-nfe");
+        observador.setDaemon(true);
+        observador.start();
+    }
+
+    @PreDestroy
+    public synchronized void encerrar() {
+        encerrando = true;
+        if (observador != null) {
+            observador.interrupt();
+        }
+    }
+
+    /**
+     * Move para {@code processados/} ou {@code falhas/} os arquivos cujas importações terminaram, registra os
+     * arquivos novos e inicia um lote com eles. Retorna o lote criado, se havia arquivos novos.
+     */
+    public synchronized Optional<LoteProcessamento> varrer() {
+        if (entrada == null) {
+            return Optional.empty();
+        }
+        try {
+            Files.createDirectories(entrada.resolve(PROCESSANDO));
+            Files.createDirectories(entrada.resolve(PROCESSADOS));
+            Files.createDirectories(entrada.resolve(FALHAS));
+        } catch (IOException e) {
+            throw new RuntimeException("Erro ao preparar o diretório de entrada " + entrada + ": " + e.getMessage());
+        }
+
+        List<Long> importacaoIds = new ArrayList<>();
+        for (Path arquivo : listar(entrada.resolve(PROCESSANDO))) {
+            conciliar(arquivo, importacaoIds);
+        }
+        Instant limite = Instant.now().minus(estabilidade);
+        for (Path arquivo : listar(entrada)) {
+            if (importacaoIds.size() >= tamanhoLote) {
+                break;
+            }
+            if (aceito(arquivo) && modificadoAntes(arquivo, limite)) {
+                reservar(arquivo).flatMap(this::registrar).ifPresent(importacaoIds::add);
+            }
+        }
+        if (importacaoIds.isEmpty()) {
+            return Optional.empty();
+        }
+        return Optional.of(execucaoLoteService.criar(importacaoIds, particoes));
+    }
+
+    private void observar() {
+        WatchService notificacoes = null;
+        try {
+            Files.createDirectories(entrada);
+            notificacoes = entrada.getFileSystem().newWatchService();
+            entrada.register(notificacoes, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+        } catch (IOException | UnsupportedOperationException e) {
+            // Sem notificações, como em alguns compartilhamentos de rede, o diretório é só varrido a cada intervalo
+            notificacoes = null;
+        }
+        try {
+            while (!encerrando) {
+                try {
+                    varrer();
+                } catch (RuntimeException e) {
+                    // Os arquivos continuam onde estavam e a próxima varredura tenta de novo
+                }
+                if (notificacoes == null) {
+                    Thread.sleep(intervalo.toMillis());
+                    continue;
+                }
+                WatchKey chave = notificacoes.poll(intervalo.toMillis(), TimeUnit.MILLISECONDS);
+                if (chave != null) {
+                    chave.pollEvents();
+                    chave.reset();
+                    // Dá tempo para o arquivo que acabou de chegar terminar de ser gravado
+                    Thread.sleep(estabilidade.toMillis());
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            if (notificacoes != null) {
+                try {
+                    notificacoes.close();
+                } catch (IOException e) {
+                    // Encerrando de qualquer forma
+                }
+            }
+        }
+    }
+
+    /**
+     * Trata um arquivo de {@code processando/}: os já registrados saem quando a importação termina; os
+     * reservados e não renomeados são reconhecidos pelo conteúdo ou registrados agora.
+     */
+    private void conciliar(Path arquivo, List<Long> importacaoIds) {
+        String nome = arquivo.getFileName().toString();
+        Optional<ImportacaoNFe> importacao = buscarPeloNome(nome);
+        if (!importacao.isPresent()) {
+            Optional<ImportacaoNFe> registrada = buscarRegistrada(arquivo, nome);
+            if (registrada.isPresent()) {
+                renomear(arquivo, registrada.get(), nome);
+            } else {
+                registrar(arquivo).ifPresent(importacaoIds::add);
+            }
+            return;
+        }
+        StatusImportacao status = importacao.get().getStatus();
+        if (status == StatusImportacao.CONCLUIDA) {
+            mover(arquivo, entrada.resolve(PROCESSADOS), nome);
+        } else if (status == StatusImportacao.ERRO || status == StatusImportacao.CANCELADA) {
+            mover(arquivo, entrada.resolve(FALHAS), nome);
+        }
+    }
+
+    private Optional<Path> reservar(Path arquivo) {
+        Path reservado = entrada.resolve(PROCESSANDO).resolve(arquivo.getFileName());
+        try {
+            return Optional.of(Files.move(arquivo, reservado, StandardCopyOption.ATOMIC_MOVE));
+        } catch (FileAlreadyExistsException | NoSuchFileException e) {
+            // Outro arquivo com o mesmo nome ainda em processamento, ou já reservado por outra instância
+            return Optional.empty();
+        } catch (IOException e) {
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * Registra a importação de um arquivo reservado e o renomeia com o ID dela. Um arquivo recusado no
+     * registro, ou cujo nome já tem a forma dos registrados, vai para {@code falhas/}.
+     */
+    private Optional<Long> registrar(Path reservado) {
+        String nome = reservado.getFileName().toString();
+        if (importacaoId(nome) != null) {
+            falhar(reservado, nome, "Nome de arquivo reservado para importações registradas: remova o prefixo "
+                + nome.substring(0, nome.indexOf(SEPARADOR) + SEPARADOR.length()) + " e deixe o arquivo de novo");
+            return Optional.empty();
+        }
+        ImportacaoNFe importacao;
+        try (InputStream conteudo = Files.newInputStream(reservado)) {
+            importacao = importacaoNFeService.registrarArquivoNFe(conteudo, nome, unidade(), null);
+        } catch (IOException | RuntimeException e) {
+            falhar(reservado, nome, e.getMessage());
+            return Optional.empty();
+        }
+        renomear(reservado, importacao, nome);
+        return Optional.of(importacao.getId());
+    }
+
+    private void renomear(Path reservado, ImportacaoNFe importacao, String nome) {
+        try {
+            Files.move(reservado, reservado.resolveSibling(PREFIXO_IMPORTACAO + importacao.getId() + SEPARADOR + nome),
+                StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            // Continua sem o ID no nome e é reconhecido pelo conteúdo na próxima varredura
+        }
+    }
+
+    /**
+     * Importação indicada pelo prefixo do nome, desde que ela seja mesmo a do arquivo com o nome restante.
+     */
+    private Optional<ImportacaoNFe> buscarPeloNome(String nome) {
+        Long importacaoId = importacaoId(nome);
+        if (importacaoId == null) {
+            return Optional.empty();
+        }
+        String nomeOriginal = nome.substring(nome.indexOf(SEPARADOR) + SEPARADOR.length());
+        return importacaoNFeRepository.findById(importacaoId)
+            .filter(importacao -> nomeOriginal.equals(importacao.getNomeArquivo()));
+    }
+
+    private Optional<ImportacaoNFe> buscarRegistrada(Path arquivo, String nome) {
+        try {
+            List<ImportacaoNFe> registradas = importacaoNFeRepository.findByHashArquivoAndNomeArquivoOrderById(
+                ArmazenamentoImportacaoService.calcularHash(arquivo), nome);
+            return registradas.isEmpty() ? Optional.empty() : Optional.of(registradas.get(registradas.size() - 1));
+        } catch (IOException e) {
+            return Optional.empty();
+        }
+    }
+
+    private void falhar(Path arquivo, String nome, String motivo) {
+        Path falhas = entrada.resolve(FALHAS);
+        String destino = Files.exists(falhas.resolve(nome)) ? System.currentTimeMillis() + SEPARADOR + nome : nome;
+        try {
+            Files.write(falhas.resolve(destino + EXTENSAO_ERRO),
+                (motivo != null ? motivo : "Erro ao registrar o arquivo").getBytes(StandardCharsets.UTF_8));
+            Files.move(arquivo, falhas.resolve(destino), StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            // Fica em processando/ e é tentado de novo na próxima varredura
+        }
+    }
+
+    private void mover(Path arquivo, Path diretorio, String nome) {
+        try {
+            Files.move(arquivo, diretorio.resolve(nome), StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            // Fica em processando/ e é movido na próxima varredura
+        }
+    }
+
+    private Unidade unidade() {
+        return unidadeId != null ? unidadeRepository.findById(unidadeId).orElse(null) : null;
+    }
+
+    private static List<Path> listar(Path diretorio) {
+        try (Stream<Path> arquivos = Files.list(diretorio)) {
+            return arquivos
+                .filter(Files::isRegularFile)
+                .filter(arquivo -> !arquivo.getFileName().toString().startsWith("."))
+                .sorted(Comparator.comparing(Path::getFileName))
+                .collect(Collectors.toList());
+        } catch (IOException e) {
+            return new ArrayList<>();
+        }
+    }
+
+    private static boolean aceito(Path arquivo) {
+        String nome = arquivo.getFileName().toString().toLowerCase(Locale.ROOT);
+        for (String extensao : EXTENSOES) {
+            if (nome.endsWith(extensao)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean modificadoAntes(Path arquivo, Instant limite) {
+        try {
+            FileTime modificacao = Files.getLastModifiedTime(arquivo);
+            return !modificacao.toInstant().isAfter(limite);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private static Long importacaoId(String nome) {
+        int separador = nome.indexOf(SEPARADOR);
+        if (!nome.startsWith(PREFIXO_IMPORTACAO) || separador <= PREFIXO_IMPORTACAO.length()) {
+            return null;
+        }
+        String prefixo = nome.substring(PREFIXO_IMPORTACAO.length(), separador);
+        for (int i = 0; i < prefixo.length(); i++) {
+            if (!Character.isDigit(prefixo.charAt(i))) {
+                return null;
+            }
+        }
+        try {
+            return Long.valueOf(prefixo);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+}
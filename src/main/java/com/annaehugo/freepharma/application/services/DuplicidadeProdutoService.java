@@ -0,0 +1,573 @@
+package com.annaehugo.freepharma.application.services;
+
+import com.annaehugo.freepharma.application.services.UnificacaoProdutoService.ResultadoUnificacao;
+import com.annaehugo.freepharma.domain.entity.fiscal.LoteProcessamento;
+import com.annaehugo.freepharma.domain.repository.estoque.ProdutoFornecedorRepository;
+import com.annaehugo.freepharma.domain.repository.estoque.ProdutoReferenciaRepository;
+import com.annaehugo.freepharma.domain.repository.fiscal.LoteProcessamentoRepository;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PreDestroy;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntConsumer;
+
+/**
+ * Procura no catálogo inteiro produtos de referência que provavelmente são o mesmo produto, em geral
+ * criados automaticamente na importação de NFe (códigos "AUTO") a partir de grafias diferentes do nome,
+ * e monta propostas de unificação para {@link UnificacaoProdutoService}.
+ *
+ * O catálogo é lido em páginas e analisado em memória. Dois produtos vão para o mesmo grupo quando têm o
+ * mesmo EAN, o mesmo código em um mesmo fornecedor, o mesmo nome na forma de {@link NormalizadorNomeProduto}
+ * ou nomes com similaridade de trigramas de pelo menos {@code freepharma.produtos.duplicados.similaridade-minima}
+ * e as mesmas dosagens. Um grupo nunca junta EANs ou NCMs diferentes.
+ *
+ * Os pares de nomes parecidos vêm de MinHash com LSH: cada nome distinto recebe uma assinatura de
+ * {@value #QUANTIDADE_HASHES} mínimos, dividida em {@value #BANDAS} faixas; só são comparados os nomes que
+ * coincidem em alguma faixa e têm as mesmas dosagens. Assinaturas e faixas são processadas em paralelo em
+ * {@code freepharma.produtos.duplicados.threads} threads.
+ */
+@Service
+public class DuplicidadeProdutoService {
+
+    static final String TIPO_LOTE = "DUPLICIDADE_PRODUTOS";
+    static final String MOTIVO_EAN = "EAN";
+    static final String MOTIVO_CODIGO_FORNECEDOR = "CODIGO_FORNECEDOR";
+    static final String MOTIVO_NOME = "NOME";
+    static final String MOTIVO_NOME_SEMELHANTE = "NOME_SEMELHANTE";
+
+    static final int TAMANHO_PAGINA_CARGA = 10_000;
+    static final int QUANTIDADE_HASHES = 64;
+    static final int BANDAS = 16;
+    private static final int LINHAS_POR_BANDA = QUANTIDADE_HASHES / BANDAS;
+    private static final int TAMANHO_DETALHES_ERRO = 255;
+    private static final long[] SEMENTES = new long[QUANTIDADE_HASHES];
+
+    static {
+        // Sementes fixas: a mesma entrada gera sempre as mesmas propostas
+        long semente = 0x2545F4914F6CDD1DL;
+        for (int i = 0; i < QUANTIDADE_HASHES; i++) {
+            semente = misturar(semente + 0x9E3779B97F4A7C15L);
+            SEMENTES[i] = semente;
+        }
+    }
+
+    private final ProdutoReferenciaRepository produtoReferenciaRepository;
+    private final ProdutoFornecedorRepository produtoFornecedorRepository;
+    private final LoteProcessamentoRepository loteProcessamentoRepository;
+    private final UnificacaoProdutoService unificacaoProdutoService;
+    private final double similaridadeMinima;
+    private final int threads;
+    private final ExecutorService coordenador;
+    private final ExecutorService executor;
+    private final Map<Long, CompletableFuture<LoteProcessamento>> emAndamento = new ConcurrentHashMap<>();
+    private final Map<Long, List<PropostaUnificacao>> propostasPorLote = new ConcurrentHashMap<>();
+
+    @Autowired
+    public DuplicidadeProdutoService(
+            ProdutoReferenciaRepository produtoReferenciaRepository,
+            ProdutoFornecedorRepository produtoFornecedorRepository,
+            LoteProcessamentoRepository loteProcessamentoRepository,
+            UnificacaoProdutoService unificacaoProdutoService,
+            @Value("${freepharma.produtos.duplicados.similaridade-minima:0.8}") double similaridadeMinima,
+            @Value("${freepharma.produtos.duplicados.threads:4}") int threads) {
+        this.produtoReferenciaRepository = produtoReferenciaRepository;
+        this.produtoFornecedorRepository = produtoFornecedorRepository;
+        this.loteProcessamentoRepository = loteProcessamentoRepository;
+        this.unificacaoProdutoService = unificacaoProdutoService;
+        this.similaridadeMinima = similaridadeMinima;
+        this.threads = Math.max(1, threads);
+        this.coordenador = Executors.newSingleThreadExecutor(tarefa -> {
+            Thread thread = new Thread(tarefa, "duplicidade-produtos");
+            thread.setDaemon(true);
+            return thread;
+        });
+        AtomicInteger contador = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(this.threads, tarefa -> {
+            Thread thread = new Thread(tarefa, "duplicidade-produtos-" + contador.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Agenda a análise do catálogo e retorna o lote que a acompanha. As propostas ficam disponíveis em
+     * {@link #listarPropostas(Long)} até a próxima análise.
+     */
+    public synchronized LoteProcessamento iniciarAnalise() {
+        if (!emAndamento.isEmpty()) {
+            throw new RuntimeException("Já existe uma análise de produtos duplicados em andamento");
+        }
+        LoteProcessamento lote = new LoteProcessamento();
+        lote.setIdLote(UUID.randomUUID());
+        lote.setTipoLote(TIPO_LOTE);
+        lote.setStatus("PROCESSANDO");
+        lote.setDataInicio(new Date());
+        lote.setProgresso(0);
+        lote.setCreatedAt(new Date());
+        loteProcessamentoRepository.save(lote);
+
+        CompletableFuture<LoteProcessamento> conclusao = CompletableFuture
+            .supplyAsync(() -> analisar(lote), coordenador)
+            .handle((propostas, erro) -> finalizar(lote, propostas, erro));
+        emAndamento.put(lote.getId(), conclusao);
+        conclusao.whenComplete((resultado, erro) -> emAndamento.remove(lote.getId()));
+        return lote;
+    }
+
+    /**
+     * Espera a análise terminar por até {@code limite} e retorna a situação atual do lote.
+     */
+    public Optional<LoteProcessamento> aguardar(Long loteId, Duration limite) {
+        CompletableFuture<LoteProcessamento> conclusao = emAndamento.get(loteId);
+        if (conclusao != null && !limite.isZero() && !limite.isNegative()) {
+            try {
+                conclusao.get(limite.toMillis(), TimeUnit.MILLISECONDS);
+            } catch (TimeoutException | ExecutionException e) {
+                // A situação é lida do banco de qualquer forma
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        return loteProcessamentoRepository.findById(loteId);
+    }
+
+    public List<PropostaUnificacao> listarPropostas(Long loteId) {
+        List<PropostaUnificacao> propostas = propostasPorLote.get(loteId);
+        if (propostas == null) {
+            throw new RuntimeException("Propostas da análise " + loteId + " não encontradas");
+        }
+        return propostas;
+    }
+
+    /**
+     * Aplica todas as propostas da análise, cada uma na sua transação. Propostas que falham (por exemplo,
+     * porque um dos produtos já foi unificado depois da análise) são relatadas e não interrompem as demais.
+     */
+    public Map<String, Object> unificarPropostas(Long loteId) {
+        int produtosUnificados = 0;
+        int aplicadas = 0;
+        List<String> erros = new ArrayList<>();
+        for (PropostaUnificacao proposta : listarPropostas(loteId)) {
+            try {
+                ResultadoUnificacao resultado = unificacaoProdutoService.unificar(
+                    proposta.getProdutoDestinoId(), proposta.getProdutoIds());
+                produtosUnificados += resultado.getProdutosUnificados();
+                aplicadas++;
+            } catch (RuntimeException e) {
+                erros.add("Produto " + proposta.getCodigoDestino() + ": " + e.getMessage());
+            }
+        }
+        Map<String, Object> resumo = new LinkedHashMap<>();
+        resumo.put("propostasAplicadas", aplicadas);
+        resumo.put("produtosUnificados", produtosUnificados);
+        resumo.put("erros", erros);
+        return resumo;
+    }
+
+    @PreDestroy
+    public void encerrar() {
+        coordenador.shutdownNow();
+        executor.shutdownNow();
+    }
+
+    /**
+     * Lê o catálogo e agrupa os produtos duplicados, do indício mais forte para o mais fraco: EAN,
+     * código do fornecedor, nome normalizado e nome semelhante. Com {@code lote} informado o progresso
+     * é gravado a cada etapa.
+     */
+    List<PropostaUnificacao> analisar(LoteProcessamento lote) {
+        List<Produto> produtos = carregarProdutos();
+        Map<Long, Integer> posicaoPorId = new HashMap<>();
+        for (int i = 0; i < produtos.size(); i++) {
+            posicaoPorId.put(produtos.get(i).id, i);
+        }
+        Grupos grupos = new Grupos(produtos);
+        atualizarProgresso(lote, 20);
+
+        Map<String, Integer> primeiroPorEan = new HashMap<>();
+        for (int i = 0; i < produtos.size(); i++) {
+            if (produtos.get(i).ean != null) {
+                Integer primeiro = primeiroPorEan.putIfAbsent(produtos.get(i).ean, i);
+                if (primeiro != null) {
+                    grupos.unir(primeiro, i, MOTIVO_EAN);
+                }
+            }
+        }
+        agruparPorCodigoFornecedor(posicaoPorId, grupos);
+        atualizarProgresso(lote, 40);
+
+        // Nomes distintos: os produtos com o mesmo nome normalizado ficam juntos e entram uma só vez no LSH
+        Map<String, Integer> nomePorTexto = new HashMap<>();
+        List<String> nomes = new ArrayList<>();
+        List<Integer> representantes = new ArrayList<>();
+        for (int i = 0; i < produtos.size(); i++) {
+            String nome = produtos.get(i).nomeNormalizado;
+            if (nome.isEmpty()) {
+                continue;
+            }
+            Integer existente = nomePorTexto.putIfAbsent(nome, nomes.size());
+            if (existente == null) {
+                nomes.add(nome);
+                representantes.add(i);
+            } else {
+                grupos.unir(representantes.get(existente), i, MOTIVO_NOME);
+            }
+        }
+        atualizarProgresso(lote, 50);
+
+        for (ParSemelhante par : paresSemelhantes(nomes)) {
+            grupos.unir(representantes.get(par.a), representantes.get(par.b), MOTIVO_NOME_SEMELHANTE);
+        }
+        atualizarProgresso(lote, 90);
+        return grupos.propostas();
+    }
+
+    private List<Produto> carregarProdutos() {
+        List<Produto> produtos = new ArrayList<>();
+        Long ultimoId = 0L;
+        List<Object[]> pagina;
+        do {
+            pagina = produtoReferenciaRepository.findCatalogoAposId(ultimoId, UnificacaoProdutoService.STATUS_UNIFICADO,
+                PageRequest.of(0, TAMANHO_PAGINA_CARGA));
+            for (Object[] linha : pagina) {
+                ultimoId = (Long) linha[0];
+                produtos.add(new Produto(ultimoId, (String) linha[1], (String) linha[2], (String) linha[3],
+                    (String) linha[4]));
+            }
+        } while (pagina.size() == TAMANHO_PAGINA_CARGA);
+        return produtos;
+    }
+
+    private void agruparPorCodigoFornecedor(Map<Long, Integer> posicaoPorId, Grupos grupos) {
+        Map<String, Integer> primeiroPorCodigo = new HashMap<>();
+        Long ultimoId = 0L;
+        List<Object[]> pagina;
+        do {
+            pagina = produtoFornecedorRepository.findCodigosAposId(ultimoId, PageRequest.of(0, TAMANHO_PAGINA_CARGA));
+            for (Object[] linha : pagina) {
+                ultimoId = (Long) linha[0];
+                Integer posicao = posicaoPorId.get((Long) linha[1]);
+                String codigo = linha[3] != null ? ((String) linha[3]).trim().toUpperCase() : "";
+                if (posicao == null || codigo.isEmpty()) {
+                    continue;
+                }
+                Integer primeiro = primeiroPorCodigo.putIfAbsent(linha[2] + "|" + codigo, posicao);
+                if (primeiro != null) {
+                    grupos.unir(primeiro, posicao, MOTIVO_CODIGO_FORNECEDOR);
+                }
+            }
+        } while (pagina.size() == TAMANHO_PAGINA_CARGA);
+    }
+
+    /**
+     * Pares de nomes distintos com similaridade de trigramas de pelo menos a mínima e as mesmas dosagens,
+     * do mais semelhante para o menos.
+     */
+    List<ParSemelhante> paresSemelhantes(List<String> nomes) {
+        int[][] trigramas = new int[nomes.size()][];
+        String[] numeros = new String[nomes.size()];
+        long[][] assinaturas = new long[nomes.size()][];
+        int tamanhoParte = Math.max(1, (nomes.size() + threads - 1) / threads);
+        paralelo((nomes.size() + tamanhoParte - 1) / tamanhoParte, parte -> {
+            for (int i = parte * tamanhoParte; i < Math.min(nomes.size(), (parte + 1) * tamanhoParte); i++) {
+                trigramas[i] = NormalizadorNomeProduto.trigramas(nomes.get(i));
+                numeros[i] = NormalizadorNomeProduto.numeros(nomes.get(i));
+                assinaturas[i] = assinatura(trigramas[i]);
+            }
+        });
+
+        Set<Long> comparados = ConcurrentHashMap.newKeySet();
+        List<ParSemelhante> pares = Collections.synchronizedList(new ArrayList<>());
+        paralelo(BANDAS, banda -> {
+            Map<Long, List<Integer>> baldes = new HashMap<>();
+            for (int i = 0; i < nomes.size(); i++) {
+                if (trigramas[i].length > 0) {
+                    baldes.computeIfAbsent(chaveBanda(assinaturas[i], banda, numeros[i]), chave -> new ArrayList<>()).add(i);
+                }
+            }
+            for (List<Integer> balde : baldes.values()) {
+                for (int x = 0; x < balde.size(); x++) {
+                    for (int y = x + 1; y < balde.size(); y++) {
+                        int a = balde.get(x);
+                        int b = balde.get(y);
+                        if (!numeros[a].equals(numeros[b]) || !comparados.add((long) a << 32 | b)) {
+                            continue;
+                        }
+                        double similaridade = NormalizadorNomeProduto.similaridade(trigramas[a], trigramas[b]);
+                        if (similaridade >= similaridadeMinima) {
+                            pares.add(new ParSemelhante(a, b, similaridade));
+                        }
+                    }
+                }
+            }
+        });
+
+        List<ParSemelhante> ordenados = new ArrayList<>(pares);
+        ordenados.sort(Comparator.comparingDouble((ParSemelhante par) -> -par.similaridade)
+            .thenComparingInt(par -> par.a).thenComparingInt(par -> par.b));
+        return ordenados;
+    }
+
+    private void paralelo(int partes, IntConsumer tarefa) {
+        CompletableFuture<?>[] tarefas = new CompletableFuture<?>[partes];
+        for (int i = 0; i < partes; i++) {
+            int parte = i;
+            tarefas[i] = CompletableFuture.runAsync(() -> tarefa.accept(parte), executor);
+        }
+        CompletableFuture.allOf(tarefas).join();
+    }
+
+    private static long[] assinatura(int[] trigramas) {
+        long[] minimos = new long[QUANTIDADE_HASHES];
+        Arrays.fill(minimos, Long.MAX_VALUE);
+        for (int trigrama : trigramas) {
+            for (int k = 0; k < QUANTIDADE_HASHES; k++) {
+                long hash = misturar(trigrama ^ SEMENTES[k]);
+                if (hash < minimos[k]) {
+                    minimos[k] = hash;
+                }
+            }
+        }
+        return minimos;
+    }
+
+    private static long chaveBanda(long[] assinatura, int banda, String numeros) {
+        long chave = numeros.hashCode();
+        for (int k = banda * LINHAS_POR_BANDA; k < (banda + 1) * LINHAS_POR_BANDA; k++) {
+            chave = misturar(chave * 31 + assinatura[k]);
+        }
+        return chave;
+    }
+
+    /**
+     * Finalizador de 64 bits do MurmurHash3.
+     */
+    private static long misturar(long valor) {
+        valor ^= valor >>> 33;
+        valor *= 0xFF51AFD7ED558CCDL;
+        valor ^= valor >>> 33;
+        valor *= 0xC4CEB9FE1A85EC53L;
+        valor ^= valor >>> 33;
+        return valor;
+    }
+
+    private void atualizarProgresso(LoteProcessamento lote, int progresso) {
+        if (lote != null) {
+            lote.setProgresso(progresso);
+            lote.setUpdatedAt(new Date());
+            loteProcessamentoRepository.save(lote);
+        }
+    }
+
+    private LoteProcessamento finalizar(LoteProcessamento lote, List<PropostaUnificacao> propostas, Throwable erro) {
+        if (erro == null) {
+            // Só as propostas da análise mais recente ficam guardadas
+            propostasPorLote.clear();
+            propostasPorLote.put(lote.getId(), propostas);
+            lote.setStatus("CONCLUIDO");
+            lote.setDetalhesErro(propostas.size() + " propostas de unificação");
+        } else {
+            Throwable causa = erro.getCause() != null ? erro.getCause() : erro;
+            String detalhes = "Erro na análise: " + causa.getMessage();
+            lote.setStatus("ERRO");
+            lote.setDetalhesErro(detalhes.length() > TAMANHO_DETALHES_ERRO
+                ? detalhes.substring(0, TAMANHO_DETALHES_ERRO - 3) + "..." : detalhes);
+        }
+        lote.setDataFim(new Date());
+        lote.setProgresso(100);
+        lote.setUpdatedAt(new Date());
+        return loteProcessamentoRepository.save(lote);
+    }
+
+    private static String vazioComoNulo(String valor) {
+        return valor == null || valor.trim().isEmpty() ? null : valor.trim();
+    }
+
+    /**
+     * Proposta de unificar {@code produtoIds} em {@code produtoDestinoId}, com os indícios que formaram o grupo.
+     */
+    public static class PropostaUnificacao {
+        private final Long produtoDestinoId;
+        private final String codigoDestino;
+        private final String nomeDestino;
+        private final List<Long> produtoIds;
+        private final Set<String> motivos;
+
+        PropostaUnificacao(Long produtoDestinoId, String codigoDestino, String nomeDestino, List<Long> produtoIds,
+                           Set<String> motivos) {
+            this.produtoDestinoId = produtoDestinoId;
+            this.codigoDestino = codigoDestino;
+            this.nomeDestino = nomeDestino;
+            this.produtoIds = produtoIds;
+            this.motivos = motivos;
+        }
+
+        public Long getProdutoDestinoId() { return produtoDestinoId; }
+        public String getCodigoDestino() { return codigoDestino; }
+        public String getNomeDestino() { return nomeDestino; }
+        public List<Long> getProdutoIds() { return produtoIds; }
+        public Set<String> getMotivos() { return motivos; }
+    }
+
+    static class ParSemelhante {
+        final int a;
+        final int b;
+        final double similaridade;
+
+        ParSemelhante(int a, int b, double similaridade) {
+            this.a = a;
+            this.b = b;
+            this.similaridade = similaridade;
+        }
+    }
+
+    private static final class Produto {
+        final long id;
+        final String codigoInterno;
+        final String nome;
+        final String nomeNormalizado;
+        final String ean;
+        final String ncm;
+
+        Produto(long id, String codigoInterno, String nome, String ean, String ncm) {
+            this.id = id;
+            this.codigoInterno = codigoInterno;
+            this.nome = nome;
+            this.nomeNormalizado = NormalizadorNomeProduto.normalizar(nome);
+            this.ean = vazioComoNulo(ean);
+            this.ncm = vazioComoNulo(ncm);
+        }
+
+        /**
+         * Preferência para ficar como destino: código cadastrado à mão, depois com EAN, depois o mais antigo.
+         */
+        boolean preferivelA(Produto outro) {
+            boolean automatico = codigoInterno != null && codigoInterno.startsWith("AUTO");
+            boolean outroAutomatico = outro.codigoInterno != null && outro.codigoInterno.startsWith("AUTO");
+            if (automatico != outroAutomatico) {
+                return !automatico;
+            }
+            if ((ean != null) != (outro.ean != null)) {
+                return ean != null;
+            }
+            return id < outro.id;
+        }
+    }
+
+    /**
+     * Union-find dos produtos. Cada raiz guarda o EAN e o NCM do grupo e os motivos das uniões; grupos
+     * com EAN ou NCM diferentes não são unidos.
+     */
+    private static final class Grupos {
+        private final List<Produto> produtos;
+        private final int[] pai;
+        private final int[] tamanho;
+        private final String[] ean;
+        private final String[] ncm;
+        private final Map<Integer, Set<String>> motivos = new HashMap<>();
+
+        Grupos(List<Produto> produtos) {
+            this.produtos = produtos;
+            int quantidade = produtos.size();
+            pai = new int[quantidade];
+            tamanho = new int[quantidade];
+            ean = new String[quantidade];
+            ncm = new String[quantidade];
+            for (int i = 0; i < quantidade; i++) {
+                pai[i] = i;
+                tamanho[i] = 1;
+                ean[i] = produtos.get(i).ean;
+                ncm[i] = produtos.get(i).ncm;
+            }
+        }
+
+        int raiz(int i) {
+            while (pai[i] != i) {
+                pai[i] = pai[pai[i]];
+                i = pai[i];
+            }
+            return i;
+        }
+
+        void unir(int a, int b, String motivo) {
+            int ra = raiz(a);
+            int rb = raiz(b);
+            if (ra == rb || !compativeis(ean[ra], ean[rb]) || !compativeis(ncm[ra], ncm[rb])) {
+                return;
+            }
+            if (tamanho[ra] < tamanho[rb]) {
+                int troca = ra;
+                ra = rb;
+                rb = troca;
+            }
+            pai[rb] = ra;
+            tamanho[ra] += tamanho[rb];
+            ean[ra] = ean[ra] != null ? ean[ra] : ean[rb];
+            ncm[ra] = ncm[ra] != null ? ncm[ra] : ncm[rb];
+            Set<String> motivosRaiz = motivos.computeIfAbsent(ra, raiz -> new TreeSet<>());
+            Set<String> motivosUnido = motivos.remove(rb);
+            if (motivosUnido != null) {
+                motivosRaiz.addAll(motivosUnido);
+            }
+            motivosRaiz.add(motivo);
+        }
+
+        List<PropostaUnificacao> propostas() {
+            Map<Integer, List<Integer>> membrosPorRaiz = new HashMap<>();
+            for (int i = 0; i < produtos.size(); i++) {
+                if (tamanho[raiz(i)] > 1) {
+                    membrosPorRaiz.computeIfAbsent(raiz(i), raiz -> new ArrayList<>()).add(i);
+                }
+            }
+            List<PropostaUnificacao> propostas = new ArrayList<>();
+            for (Map.Entry<Integer, List<Integer>> grupo : membrosPorRaiz.entrySet()) {
+                Produto destino = null;
+                for (int membro : grupo.getValue()) {
+                    Produto produto = produtos.get(membro);
+                    if (destino == null || produto.preferivelA(destino)) {
+                        destino = produto;
+                    }
+                }
+                List<Long> produtoIds = new ArrayList<>();
+                for (int membro : grupo.getValue()) {
+                    if (produtos.get(membro) != destino) {
+                        produtoIds.add(produtos.get(membro).id);
+                    }
+                }
+                propostas.add(new PropostaUnificacao(destino.id, destino.codigoInterno, destino.nome, produtoIds,
+                    motivos.get(grupo.getKey())));
+            }
+            propostas.sort(Comparator.comparingInt((PropostaUnificacao proposta) -> -proposta.getProdutoIds().size())
+                .thenComparing(PropostaUnificacao::getProdutoDestinoId));
+            return propostas;
+        }
+
+        private static boolean compativeis(String a, String b) {
+            return a == null || b == null || a.equals(b);
+        }
+    }
+}
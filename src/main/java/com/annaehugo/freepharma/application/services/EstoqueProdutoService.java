@@ -2,6 +2,7 @@ package com.annaehugo.freepharma.application.services;
 
 import com.annaehugo.freepharma.domain.entity.estoque.EstoqueProduto;
 import com.annaehugo.freepharma.domain.entity.estoque.AjusteEstoqueProduto;
+import com.annaehugo.freepharma.domain.entity.estoque.MovimentacaoEstoque;
 import com.annaehugo.freepharma.domain.repository.estoque.EstoqueProdutoRepository;
 import com.annaehugo.freepharma.domain.repository.estoque.AjusteEstoqueRepository;
 import com.annaehugo.freepharma.domain.repository.estoque.ProdutoReferenciaRepository;
@@ -23,17 +24,20 @@ public class EstoqueProdutoService {
     private final AjusteEstoqueRepository ajusteEstoqueRepository;
     private final ProdutoReferenciaRepository produtoReferenciaRepository;
     private final UnidadeRepository unidadeRepository;
+    private final SaldoEstoqueService saldoEstoqueService;
 
     @Autowired
     public EstoqueProdutoService(
             EstoqueProdutoRepository estoqueProdutoRepository,
             AjusteEstoqueRepository ajusteEstoqueRepository,
             ProdutoReferenciaRepository produtoReferenciaRepository,
-            UnidadeRepository unidadeRepository) {
+            UnidadeRepository unidadeRepository,
+            SaldoEstoqueService saldoEstoqueService) {
         this.estoqueProdutoRepository = estoqueProdutoRepository;
         this.ajusteEstoqueRepository = ajusteEstoqueRepository;
         this.produtoReferenciaRepository = produtoReferenciaRepository;
         this.unidadeRepository = unidadeRepository;
+        this.saldoEstoqueService = saldoEstoqueService;
     }
 
     public List<EstoqueProduto> listarTodos() {
@@ -73,14 +77,32 @@ public class EstoqueProdutoService {
             produtoEstoque.setValorTotal(valorTotal);
         }
         
+        boolean novo = produtoEstoque.getId() == null;
         produtoEstoque.setDataUltimaMovimentacao(new Date());
-        return estoqueProdutoRepository.save(produtoEstoque);
+        EstoqueProduto salvo = estoqueProdutoRepository.save(produtoEstoque);
+        if (novo) {
+            saldoEstoqueService.registrarSaldoInicial(produtoEstoque);
+        }
+        return salvo;
     }
 
     public EstoqueProduto atualizar(Long id, EstoqueProduto produtoEstoqueAtualizado) {
         return estoqueProdutoRepository.findById(id)
                 .map(produtoEstoque -> {
                     produtoEstoqueAtualizado.setId(id);
+                    if (produtoEstoqueAtualizado.getVersao() == null) {
+                        produtoEstoqueAtualizado.setVersao(produtoEstoque.getVersao());
+                    }
+                    // quantidadeAtual é cópia do saldo: uma quantidade diferente da gravada vira ajuste no razão
+                    Integer quantidadeGravada = produtoEstoque.getQuantidadeAtual();
+                    Integer quantidadeInformada = produtoEstoqueAtualizado.getQuantidadeAtual();
+                    if (quantidadeInformada != null && !quantidadeInformada.equals(quantidadeGravada)) {
+                        saldoEstoqueService.abrirSaldo(produtoEstoque);
+                        int diferenca = quantidadeInformada - saldoEstoqueService.consultarSaldo(id);
+                        saldoEstoqueService.registrar(SaldoEstoqueService.novaMovimentacao(produtoEstoque,
+                                MovimentacaoEstoque.TIPO_AJUSTE, diferenca, produtoEstoqueAtualizado.getValorUnitario(),
+                                "Atualização do cadastro"));
+                    }
                     validarDadosEstoqueProduto(produtoEstoqueAtualizado);
 
                     if (produtoEstoqueAtualizado.getValorUnitario() != null && produtoEstoqueAtualizado.getQuantidadeAtual() != null) {
@@ -102,16 +124,25 @@ public class EstoqueProdutoService {
         estoqueProdutoRepository.deleteById(id);
     }
 
+    /**
+     * Registra a quantidade contada como uma movimentação de ajuste no razão, com a diferença para o saldo
+     * atual do lote. A cópia do saldo no estoque é gravada antes da leitura do saldo: o UPDATE bloqueia a
+     * linha até o fim da transação e serializa os ajustes do mesmo lote, enquanto as notas seguem apenas
+     * inserindo movimentações.
+     */
     public EstoqueProduto ajustarEstoque(Long id, Integer novaQuantidade, String motivo, Long usuarioId) {
         EstoqueProduto produtoEstoque = estoqueProdutoRepository.findById(id)
                 .orElseThrow(() -> new RuntimeException("Estoque não encontrado"));
         
-        Integer quantidadeAnterior = produtoEstoque.getQuantidadeAtual();
+        saldoEstoqueService.abrirSaldo(produtoEstoque);
+        Date agora = new Date();
+        saldoEstoqueService.copiarSaldo(produtoEstoque, novaQuantidade, agora);
+        Integer quantidadeAnterior = saldoEstoqueService.consultarSaldo(id);
         Integer quantidadeAjuste = novaQuantidade - quantidadeAnterior;
 
         AjusteEstoqueProduto ajuste = new AjusteEstoqueProduto();
         ajuste.setEstoqueProduto(produtoEstoque);
-        ajuste.setDataAjuste(new Date());
+        ajuste.setDataAjuste(agora);
         ajuste.setQuantidadeAnterior(quantidadeAnterior);
         ajuste.setQuantidadeNova(novaQuantidade);
         ajuste.setQuantidadeAjuste(quantidadeAjuste);
@@ -122,18 +153,12 @@ public class EstoqueProdutoService {
         
         ajusteEstoqueRepository.save(ajuste);
         
-        // Atualizar estoque
-        produtoEstoque.setQuantidadeAtual(novaQuantidade);
-        produtoEstoque.setDataUltimaMovimentacao(new Date());
-        
-        // Recalcular valor total
-        if (produtoEstoque.getValorUnitario() != null) {
-            BigDecimal valorTotal = produtoEstoque.getValorUnitario()
-                    .multiply(BigDecimal.valueOf(novaQuantidade));
-            produtoEstoque.setValorTotal(valorTotal);
-        }
+        MovimentacaoEstoque movimentacao = SaldoEstoqueService.novaMovimentacao(produtoEstoque,
+                MovimentacaoEstoque.TIPO_AJUSTE, quantidadeAjuste, produtoEstoque.getValorUnitario(), null);
+        movimentacao.setAjuste(ajuste);
+        saldoEstoqueService.registrar(movimentacao);
         
-        return estoqueProdutoRepository.save(produtoEstoque);
+        return produtoEstoque;
     }
 
     public EstoqueProduto bloquearEstoque(Long id, String motivo) {
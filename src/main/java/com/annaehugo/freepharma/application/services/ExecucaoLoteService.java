@@ -0,0 +1,581 @@
+package com.annaehugo.freepharma.application.services;
+
+import com.annaehugo.freepharma.application.dto.fiscal.NFeXmlData;
+import com.annaehugo.freepharma.application.services.ProcessamentoNFeService.ProcessamentoResult;
+import com.annaehugo.freepharma.application.services.ProcessamentoNFeService.ValidacaoNFe;
+import com.annaehugo.freepharma.domain.entity.administrativo.Unidade;
+import com.annaehugo.freepharma.domain.entity.fiscal.CheckpointLote;
+import com.annaehugo.freepharma.domain.entity.fiscal.ImportacaoNFe;
+import com.annaehugo.freepharma.domain.entity.fiscal.LoteProcessamento;
+import com.annaehugo.freepharma.domain.entity.fiscal.StatusImportacao;
+import com.annaehugo.freepharma.domain.repository.fiscal.CheckpointLoteRepository;
+import com.annaehugo.freepharma.domain.repository.fiscal.ImportacaoNFeRepository;
+import com.annaehugo.freepharma.domain.repository.fiscal.LoteProcessamentoRepository;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.InputStream;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Executa lotes de importação de NFe ({@value #TIPO_LOTE}) que podem ser retomados depois de uma queda.
+ * O lote é dono de um conjunto de importações registradas por {@link ImportacaoNFeService#registrarArquivoNFe}
+ * e ainda {@link StatusImportacao#PENDENTE}; elas são divididas em partições por {@link Unidade}, opcionalmente
+ * mais de uma por unidade, que rodam em paralelo em {@code freepharma.nfe.lote.threads} threads. Dentro de cada
+ * partição as importações seguem em ordem de ID.
+ *
+ * As notas de cada arquivo são gravadas em blocos de {@code freepharma.nfe.lote.tamanho-bloco} notas, um
+ * commit por bloco. Na mesma transação do bloco ficam os contadores da importação, o progresso do lote e o
+ * {@link CheckpointLote} da partição, com a importação atual e quantas notas do arquivo já foram gravadas.
+ * Um bloco que falha no commit é refeito nota a nota, para que só a nota problemática fique com erro.
+ *
+ * Lotes que ficaram {@code PROCESSANDO} quando a aplicação parou são retomados na inicialização: as
+ * importações já encerradas são puladas e o arquivo da importação atual é relido a partir do checkpoint,
+ * descartando as notas já gravadas.
+ */
+@Service
+public class ExecucaoLoteService {
+
+    static final String TIPO_LOTE = "LOTE_IMPORTACAO_NFE";
+    static final String PARTICAO_PENDENTE = "PENDENTE";
+    static final String PARTICAO_PROCESSANDO = "PROCESSANDO";
+    static final String PARTICAO_CONCLUIDA = "CONCLUIDA";
+    private static final String MENSAGEM_DUPLICADA = "NFe já importada";
+    private static final int TAMANHO_DETALHES_ERRO = 255;
+
+    private final ImportacaoNFeRepository importacaoNFeRepository;
+    private final LoteProcessamentoRepository loteProcessamentoRepository;
+    private final CheckpointLoteRepository checkpointLoteRepository;
+    private final ArmazenamentoImportacaoService armazenamentoImportacaoService;
+    private final NFeXmlParser nfeXmlParser;
+    private final ImportacaoNFeService importacaoNFeService;
+    private final ProcessamentoNFeService processamentoNFeService;
+    private final NFeDuplicidadeService nfeDuplicidadeService;
+    private final TransactionTemplate transacao;
+    private final int tamanhoBloco;
+    private final ExecutorService executor;
+    private final Map<Long, CompletableFuture<LoteProcessamento>> emAndamento = new ConcurrentHashMap<>();
+    private volatile boolean encerrando;
+
+    @Autowired
+    public ExecucaoLoteService(
+            ImportacaoNFeRepository importacaoNFeRepository,
+            LoteProcessamentoRepository loteProcessamentoRepository,
+            CheckpointLoteRepository checkpointLoteRepository,
+            ArmazenamentoImportacaoService armazenamentoImportacaoService,
+            NFeXmlParser nfeXmlParser,
+            ImportacaoNFeService importacaoNFeService,
+            ProcessamentoNFeService processamentoNFeService,
+            NFeDuplicidadeService nfeDuplicidadeService,
+            PlatformTransactionManager transactionManager,
+            @Value("${freepharma.nfe.lote.tamanho-bloco:100}") int tamanhoBloco,
+            @Value("${freepharma.nfe.lote.threads:2}") int threads) {
+        this.importacaoNFeRepository = importacaoNFeRepository;
+        this.loteProcessamentoRepository = loteProcessamentoRepository;
+        this.checkpointLoteRepository = checkpointLoteRepository;
+        this.armazenamentoImportacaoService = armazenamentoImportacaoService;
+        this.nfeXmlParser = nfeXmlParser;
+        this.importacaoNFeService = importacaoNFeService;
+        this.processamentoNFeService = processamentoNFeService;
+        this.nfeDuplicidadeService = nfeDuplicidadeService;
+        this.transacao = new TransactionTemplate(transactionManager);
+        this.tamanhoBloco = Math.max(1, tamanhoBloco);
+        AtomicInteger contador = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(Math.max(1, threads), tarefa -> {
+            Thread thread = new Thread(tarefa, "lote-nfe-" + contador.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Cria um lote com as importações informadas e inicia a execução, com uma partição por unidade.
+     */
+    public LoteProcessamento criar(Collection<Long> importacaoIds) {
+        return criar(importacaoIds, 1);
+    }
+
+    /**
+     * Cria um lote com as importações informadas e inicia a execução. Importações que não estão
+     * {@link StatusImportacao#PENDENTE} ou que já pertencem a outro lote são ignoradas. As importações de
+     * cada unidade são distribuídas, em ordem de ID, entre até {@code particoesPorUnidade} partições.
+     */
+    public LoteProcessamento criar(Collection<Long> importacaoIds, int particoesPorUnidade) {
+        if (importacaoIds == null || importacaoIds.isEmpty()) {
+            throw new RuntimeException("Informe as importações do lote");
+        }
+        LoteProcessamento lote = transacao.execute(status -> {
+            List<ImportacaoNFe> elegiveis = new ArrayList<>();
+            for (ImportacaoNFe importacao : importacaoNFeRepository.findAllById(importacaoIds)) {
+                if (importacao.getStatus() == StatusImportacao.PENDENTE && importacao.getLoteProcessamento() == null) {
+                    elegiveis.add(importacao);
+                }
+            }
+            if (elegiveis.isEmpty()) {
+                throw new RuntimeException("Nenhuma importação pendente para o lote");
+            }
+            elegiveis.sort(Comparator.comparing(ImportacaoNFe::getId));
+
+            LoteProcessamento novo = new LoteProcessamento();
+            novo.setIdLote(UUID.randomUUID());
+            novo.setTipoLote(TIPO_LOTE);
+            novo.setStatus("PROCESSANDO");
+            novo.setDataInicio(new Date());
+            novo.setProgresso(0);
+            novo.setCreatedAt(new Date());
+            novo = loteProcessamentoRepository.save(novo);
+
+            Map<Long, List<CheckpointLote>> particoes = new LinkedHashMap<>();
+            for (ImportacaoNFe importacao : elegiveis) {
+                importacao.setLoteProcessamento(novo);
+                List<CheckpointLote> daUnidade = particoes.computeIfAbsent(unidadeId(importacao.getUnidade()),
+                    id -> new ArrayList<>());
+                if (daUnidade.size() < Math.max(1, particoesPorUnidade)) {
+                    CheckpointLote particao = new CheckpointLote();
+                    particao.setLoteProcessamento(novo);
+                    particao.setUnidade(importacao.getUnidade());
+                    particao.setIndice(daUnidade.size());
+                    particao.setStatus(PARTICAO_PENDENTE);
+                    particao.setCreatedAt(new Date());
+                    daUnidade.add(particao);
+                }
+            }
+            importacaoNFeRepository.saveAll(elegiveis);
+            for (List<CheckpointLote> daUnidade : particoes.values()) {
+                checkpointLoteRepository.saveAll(daUnidade);
+            }
+            return novo;
+        });
+        iniciar(lote);
+        return lote;
+    }
+
+    /**
+     * Retoma um lote interrompido ou encerrado com erro a partir dos checkpoints das suas partições.
+     */
+    public LoteProcessamento retomar(Long loteId) {
+        LoteProcessamento lote = loteProcessamentoRepository.findById(loteId)
+            .orElseThrow(() -> new RuntimeException("Lote não encontrado"));
+        if (!TIPO_LOTE.equals(lote.getTipoLote())) {
+            throw new RuntimeException("O lote " + loteId + " não é um lote de importação de NFe");
+        }
+        if (emAndamento.containsKey(loteId)) {
+            throw new RuntimeException("O lote " + loteId + " já está em execução");
+        }
+        if (!"PROCESSANDO".equals(lote.getStatus()) && !"ERRO".equals(lote.getStatus())) {
+            throw new RuntimeException("O lote " + loteId + " já foi concluído");
+        }
+        lote.setStatus("PROCESSANDO");
+        lote.setDataFim(null);
+        lote.setDetalhesErro(null);
+        lote.setUpdatedAt(new Date());
+        lote = loteProcessamentoRepository.save(lote);
+        iniciar(lote);
+        return lote;
+    }
+
+    /**
+     * Retoma os lotes que ficaram em execução quando a aplicação foi encerrada.
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void retomarInterrompidos() {
+        for (LoteProcessamento lote : loteProcessamentoRepository.findByTipoLoteAndStatus(TIPO_LOTE, "PROCESSANDO")) {
+            try {
+                retomar(lote.getId());
+            } catch (RuntimeException e) {
+                // Um lote que não pode ser retomado não impede os demais; ele continua PROCESSANDO
+            }
+        }
+    }
+
+    /**
+     * Espera o lote terminar por até {@code limite} e retorna a situação atual.
+     */
+    public Optional<LoteProcessamento> aguardar(Long loteId, Duration limite) {
+        CompletableFuture<LoteProcessamento> conclusao = emAndamento.get(loteId);
+        if (conclusao != null && !limite.isZero() && !limite.isNegative()) {
+            try {
+                conclusao.get(limite.toMillis(), TimeUnit.MILLISECONDS);
+            } catch (TimeoutException | ExecutionException e) {
+                // A situação é lida do banco de qualquer forma
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        return loteProcessamentoRepository.findById(loteId);
+    }
+
+    public List<CheckpointLote> listarParticoes(Long loteId) {
+        return checkpointLoteRepository.findByLoteProcessamentoIdOrderById(loteId);
+    }
+
+    /**
+     * Para as partições ao fim do bloco em andamento. Os lotes continuam {@code PROCESSANDO} e são
+     * retomados na próxima inicialização.
+     */
+    @PreDestroy
+    public void encerrar() {
+        encerrando = true;
+        executor.shutdownNow();
+    }
+
+    private void iniciar(LoteProcessamento lote) {
+        List<ImportacaoNFe> importacoes = importacaoNFeRepository.findByLoteProcessamentoIdOrderById(lote.getId());
+        List<CheckpointLote> particoes = checkpointLoteRepository.findByLoteProcessamentoIdOrderById(lote.getId());
+        Map<Long, Integer> particoesPorUnidade = new LinkedHashMap<>();
+        for (CheckpointLote particao : particoes) {
+            particoesPorUnidade.merge(unidadeId(particao.getUnidade()), 1, Integer::sum);
+        }
+
+        // A distribuição depende só da ordem das importações do lote, e é a mesma em cada retomada
+        Execucao execucao = new Execucao(lote, importacoes.size());
+        Map<Long, Integer> posicaoNaUnidade = new LinkedHashMap<>();
+        Map<String, List<Long>> importacoesPorParticao = new LinkedHashMap<>();
+        for (ImportacaoNFe importacao : importacoes) {
+            Long unidadeId = unidadeId(importacao.getUnidade());
+            int posicao = posicaoNaUnidade.merge(unidadeId, 1, Integer::sum) - 1;
+            if (encerrada(importacao)) {
+                execucao.encerradas.incrementAndGet();
+            } else {
+                int indice = posicao % particoesPorUnidade.getOrDefault(unidadeId, 1);
+                importacoesPorParticao.computeIfAbsent(chaveParticao(unidadeId, indice), chave -> new ArrayList<>())
+                    .add(importacao.getId());
+            }
+        }
+
+        List<CompletableFuture<Void>> tarefas = new ArrayList<>();
+        for (CheckpointLote particao : particoes) {
+            if (PARTICAO_CONCLUIDA.equals(particao.getStatus())) {
+                continue;
+            }
+            List<Long> ids = importacoesPorParticao.getOrDefault(
+                chaveParticao(unidadeId(particao.getUnidade()), valor(particao.getIndice())), Collections.emptyList());
+            tarefas.add(CompletableFuture.runAsync(() -> processarParticao(particao.getId(), ids, execucao), executor));
+        }
+        CompletableFuture<LoteProcessamento> conclusao = CompletableFuture.allOf(tarefas.toArray(new CompletableFuture<?>[0]))
+            .handle((resultado, erro) -> finalizar(execucao));
+        emAndamento.put(lote.getId(), conclusao);
+        conclusao.whenComplete((resultado, erro) -> emAndamento.remove(lote.getId()));
+    }
+
+    /**
+     * Processa em ordem as importações ainda abertas de uma partição. Um erro fora das notas (banco
+     * indisponível, por exemplo) interrompe a partição, que fica com o último checkpoint gravado.
+     */
+    void processarParticao(Long particaoId, List<Long> importacaoIds, Execucao execucao) {
+        try {
+            for (Long importacaoId : importacaoIds) {
+                ImportacaoNFe importacao = importacaoNFeRepository.findById(importacaoId).orElse(null);
+                if (importacao == null || encerrada(importacao)) {
+                    continue;
+                }
+                if (!processarImportacao(particaoId, importacao, execucao)) {
+                    execucao.interrompida = true;
+                    return;
+                }
+            }
+            transacao.executeWithoutResult(status -> {
+                CheckpointLote particao = buscarParticao(particaoId);
+                particao.setStatus(PARTICAO_CONCLUIDA);
+                particao.setImportacao(null);
+                particao.setUpdatedAt(new Date());
+                checkpointLoteRepository.save(particao);
+            });
+        } catch (RuntimeException e) {
+            execucao.interrompida = true;
+            execucao.registrarErro("Partição " + particaoId + " interrompida: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Lê o arquivo da importação e grava as notas em blocos, pulando as que o checkpoint já registra.
+     * Retorna {@code false} se a aplicação está sendo encerrada e a importação ficou pela metade.
+     */
+    private boolean processarImportacao(Long particaoId, ImportacaoNFe importacao, Execucao execucao) {
+        CheckpointLote checkpoint = buscarParticao(particaoId);
+        boolean retomada = checkpoint.getImportacao() != null && importacao.getId().equals(checkpoint.getImportacao().getId());
+        int notasConcluidas = retomada ? checkpoint.getNotasConcluidas() : 0;
+        int errosLeitura = retomada ? checkpoint.getErrosLeitura() : 0;
+        if (!retomada) {
+            transacao.executeWithoutResult(status -> {
+                CheckpointLote particao = buscarParticao(particaoId);
+                ImportacaoNFe atual = buscarImportacao(importacao.getId());
+                atual.setStatus(StatusImportacao.PROCESSANDO);
+                atual.setDataInicioProcessamento(new Date());
+                importacaoNFeRepository.save(atual);
+                particao.setImportacao(atual);
+                particao.setNotasConcluidas(0);
+                particao.setErrosLeitura(0);
+                particao.setStatus(PARTICAO_PROCESSANDO);
+                particao.setUpdatedAt(new Date());
+                checkpointLoteRepository.save(particao);
+            });
+        }
+
+        InputStream arquivo;
+        try {
+            arquivo = armazenamentoImportacaoService.abrir(importacao);
+        } catch (RuntimeException e) {
+            transacao.executeWithoutResult(status -> {
+                ImportacaoNFe atual = buscarImportacao(importacao.getId());
+                atual.setStatus(StatusImportacao.ERRO);
+                atual.setDataFimProcessamento(new Date());
+                atual.setErrosProcessamento(anexar(atual.getErrosProcessamento(), e.getMessage(), "; "));
+                importacaoNFeRepository.save(atual);
+                avancarProgresso(execucao);
+            });
+            execucao.encerradas.incrementAndGet();
+            execucao.registrarErro("Importação " + importacao.getId() + ": " + e.getMessage());
+            return true;
+        }
+
+        try (InputStream entrada = arquivo;
+             NFeArquivoIterator notas = nfeXmlParser.lerArquivo(entrada, importacao.getNomeArquivo(), null)) {
+            // A leitura é determinística: as primeiras notas e erros do arquivo são os já gravados
+            for (int i = 0; i < notasConcluidas && notas.hasNext(); i++) {
+                notas.next();
+            }
+            List<NFeXmlData> bloco = new ArrayList<>(tamanhoBloco);
+            while (notas.hasNext()) {
+                if (encerrando) {
+                    return false;
+                }
+                bloco.add(notas.next());
+                if (bloco.size() == tamanhoBloco) {
+                    errosLeitura = gravarBloco(particaoId, importacao.getId(), bloco, notas, errosLeitura,
+                        false, execucao);
+                    bloco.clear();
+                }
+            }
+            gravarBloco(particaoId, importacao.getId(), bloco, notas, errosLeitura, true, execucao);
+        } catch (IOException e) {
+            // Falha ao fechar o arquivo depois da leitura: as notas já estão gravadas
+        }
+        return true;
+    }
+
+    /**
+     * Grava um bloco em uma transação. Se o commit falhar, cada nota é refeita na sua própria transação e
+     * a que falhar de novo é registrada como erro, junto com o avanço do checkpoint.
+     * Retorna quantos erros de leitura do arquivo já estão registrados na importação.
+     */
+    private int gravarBloco(Long particaoId, Long importacaoId, List<NFeXmlData> bloco, NFeArquivoIterator leitura,
+                            int errosRegistrados, boolean ultimo, Execucao execucao) {
+        List<String> errosArquivo = leitura.getErros();
+        int inicio = Math.min(errosRegistrados, errosArquivo.size());
+        List<String> errosLeitura = new ArrayList<>(errosArquivo.subList(inicio, errosArquivo.size()));
+        int naoLidas = leitura.contarFalhasLeitura(inicio, errosArquivo.size());
+        try {
+            transacao.executeWithoutResult(status ->
+                aplicarBloco(particaoId, importacaoId, bloco, null, errosLeitura, naoLidas, ultimo, execucao));
+        } catch (RuntimeException e) {
+            if (bloco.size() <= 1) {
+                gravarComErro(particaoId, importacaoId, bloco, e, errosLeitura, naoLidas, ultimo, execucao);
+            } else {
+                for (int i = 0; i < bloco.size(); i++) {
+                    List<NFeXmlData> nota = Collections.singletonList(bloco.get(i));
+                    List<String> erros = i == 0 ? errosLeitura : Collections.emptyList();
+                    int naoLidasNota = i == 0 ? naoLidas : 0;
+                    boolean fim = ultimo && i == bloco.size() - 1;
+                    try {
+                        transacao.executeWithoutResult(status ->
+                            aplicarBloco(particaoId, importacaoId, nota, null, erros, naoLidasNota, fim, execucao));
+                    } catch (RuntimeException erro) {
+                        gravarComErro(particaoId, importacaoId, nota, erro, erros, naoLidasNota, fim, execucao);
+                    }
+                }
+            }
+        }
+        if (ultimo) {
+            execucao.encerradas.incrementAndGet();
+        }
+        return errosRegistrados + errosLeitura.size();
+    }
+
+    private void gravarComErro(Long particaoId, Long importacaoId, List<NFeXmlData> notas, RuntimeException erro,
+                               List<String> errosLeitura, int naoLidas, boolean ultimo, Execucao execucao) {
+        String mensagem = erro.getMessage() != null ? erro.getMessage() : erro.getClass().getSimpleName();
+        transacao.executeWithoutResult(status ->
+            aplicarBloco(particaoId, importacaoId, notas, mensagem, errosLeitura, naoLidas, ultimo, execucao));
+    }
+
+    /**
+     * Grava as notas e, na mesma transação, os contadores da importação e o checkpoint da partição.
+     * Com {@code erro} as notas não são gravadas e ficam todas registradas com essa mensagem.
+     * Dos {@code errosLeitura}, {@code naoLidas} são notas do arquivo que não puderam ser lidas; os demais
+     * são falhas do arquivo e só entram na lista de erros.
+     */
+    private void aplicarBloco(Long particaoId, Long importacaoId, List<NFeXmlData> notas, String erro,
+                              List<String> errosLeitura, int naoLidas, boolean ultimo, Execucao execucao) {
+        CheckpointLote particao = buscarParticao(particaoId);
+        ImportacaoNFe importacao = buscarImportacao(importacaoId);
+        Unidade unidade = importacao.getUnidade();
+
+        int processadas = 0;
+        int inconsistencias = 0;
+        int comErro = naoLidas;
+        List<String> erros = new ArrayList<>(errosLeitura);
+        for (NFeXmlData nota : notas) {
+            String erroNota = erro;
+            if (erroNota == null) {
+                try {
+                    if (nfeDuplicidadeService.isDuplicada(nota.getChaveAcesso())) {
+                        erroNota = MENSAGEM_DUPLICADA;
+                    } else {
+                        importacaoNFeService.validarDadosNFe(nota, unidade);
+                        ValidacaoNFe validacao = processamentoNFeService.validarNFe(nota);
+                        ProcessamentoResult resultado = processamentoNFeService.processarNFe(nota, unidade, importacao, validacao);
+                        inconsistencias += resultado.getQuantidadeInconsistencias();
+                        if (!resultado.isSucesso()) {
+                            erroNota = resultado.getErros().isEmpty()
+                                ? resultado.getMensagem() : String.join("; ", resultado.getErros());
+                        }
+                    }
+                } catch (RuntimeException e) {
+                    erroNota = e.getMessage();
+                }
+            }
+            if (erroNota == null) {
+                processadas++;
+            } else {
+                comErro++;
+                erros.add((nota.getChaveAcesso() != null ? nota.getChaveAcesso() : importacao.getNomeArquivo())
+                    + ": " + erroNota);
+            }
+        }
+
+        importacao.setQuantidadeNotasArquivo(valor(importacao.getQuantidadeNotasArquivo()) + notas.size() + naoLidas);
+        importacao.setQuantidadeNotasProcessadas(valor(importacao.getQuantidadeNotasProcessadas()) + processadas);
+        importacao.setQuantidadeNotasComErro(valor(importacao.getQuantidadeNotasComErro()) + comErro);
+        importacao.setQuantidadeInconsistenciasDetectadas(
+            valor(importacao.getQuantidadeInconsistenciasDetectadas()) + inconsistencias);
+        for (String registro : erros) {
+            importacao.setErrosProcessamento(anexar(importacao.getErrosProcessamento(), registro, "; "));
+        }
+        if (ultimo) {
+            int total = valor(importacao.getQuantidadeNotasProcessadas());
+            importacao.setStatus(total > 0 ? StatusImportacao.CONCLUIDA : StatusImportacao.ERRO);
+            importacao.setDataFimProcessamento(new Date());
+            importacao.setLogProcessamento(anexar(importacao.getLogProcessamento(), total + " NFe processadas, "
+                + valor(importacao.getQuantidadeNotasComErro()) + " com erro. "
+                + valor(importacao.getQuantidadeInconsistenciasDetectadas()) + " inconsistências detectadas.", "\n"));
+        }
+        importacaoNFeRepository.save(importacao);
+
+        particao.setNotasConcluidas(valor(particao.getNotasConcluidas()) + notas.size());
+        particao.setErrosLeitura(valor(particao.getErrosLeitura()) + errosLeitura.size());
+        particao.setBlocosConcluidos(valor(particao.getBlocosConcluidos()) + 1);
+        particao.setUpdatedAt(new Date());
+        checkpointLoteRepository.save(particao);
+
+        if (ultimo) {
+            avancarProgresso(execucao);
+        }
+    }
+
+    /**
+     * Grava o progresso contando a importação que termina na transação atual.
+     */
+    private void avancarProgresso(Execucao execucao) {
+        // Só o fim do lote, em finalizar(), chega a 100%
+        int progresso = Math.min(99, (execucao.encerradas.get() + 1) * 100 / execucao.total);
+        loteProcessamentoRepository.avancarProgresso(execucao.lote.getId(), progresso, new Date());
+    }
+
+    private LoteProcessamento finalizar(Execucao execucao) {
+        LoteProcessamento lote = loteProcessamentoRepository.findById(execucao.lote.getId()).orElse(execucao.lote);
+        if (encerrando) {
+            // Fica PROCESSANDO para ser retomado na próxima inicialização
+            return lote;
+        }
+        boolean completo = !execucao.interrompida;
+        lote.setStatus(execucao.erros.isEmpty() && completo ? "CONCLUIDO" : "ERRO");
+        lote.setDataFim(new Date());
+        if (completo) {
+            lote.setProgresso(100);
+        }
+        lote.setUpdatedAt(new Date());
+        if (!execucao.erros.isEmpty()) {
+            String detalhes = String.join("; ", execucao.erros);
+            lote.setDetalhesErro(detalhes.length() > TAMANHO_DETALHES_ERRO
+                ? detalhes.substring(0, TAMANHO_DETALHES_ERRO - 3) + "..." : detalhes);
+        }
+        return loteProcessamentoRepository.save(lote);
+    }
+
+    private CheckpointLote buscarParticao(Long particaoId) {
+        return checkpointLoteRepository.findById(particaoId)
+            .orElseThrow(() -> new RuntimeException("Partição " + particaoId + " não encontrada"));
+    }
+
+    private ImportacaoNFe buscarImportacao(Long importacaoId) {
+        return importacaoNFeRepository.findById(importacaoId)
+            .orElseThrow(() -> new RuntimeException("Importação " + importacaoId + " não encontrada"));
+    }
+
+    private static boolean encerrada(ImportacaoNFe importacao) {
+        return importacao.getStatus() == StatusImportacao.CONCLUIDA || importacao.getStatus() == StatusImportacao.ERRO
+            || importacao.getStatus() == StatusImportacao.CANCELADA;
+    }
+
+    private static Long unidadeId(Unidade unidade) {
+        return unidade != null ? unidade.getId() : null;
+    }
+
+    private static String chaveParticao(Long unidadeId, int indice) {
+        return unidadeId + "/" + indice;
+    }
+
+    private static String anexar(String atual, String registro, String separador) {
+        return atual == null ? registro : atual + separador + registro;
+    }
+
+    private static int valor(Integer contador) {
+        return contador != null ? contador : 0;
+    }
+
+    /**
+     * Lote em andamento, quantas das suas importações já terminaram e os erros que o encerram com {@code ERRO}.
+     */
+    static class Execucao {
+        final LoteProcessamento lote;
+        final int total;
+        final AtomicInteger encerradas = new AtomicInteger();
+        final List<String> erros = new ArrayList<>();
+        volatile boolean interrompida;
+
+        Execucao(LoteProcessamento lote, int total) {
+            this.lote = lote;
+            this.total = Math.max(1, total);
+        }
+
+        synchronized void registrarErro(String erro) {
+            erros.add(erro);
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package com.annaehugo.freepharma.application.services;
+
+import com.annaehugo.freepharma.domain.entity.estoque.Fornecedor;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Fornecedores emitentes de NFe indexados pelo CNPJ (LRU). Como as notas vêm quase sempre dos
+ * mesmos distribuidores, o processamento reaproveita o cadastro em memória em vez de consultá-lo
+ * a cada nota. Toda gravação de fornecedor feita fora do processamento deve passar por
+ * {@link #invalidar(String)} para que a próxima nota leia o cadastro atualizado do banco.
+ */
+@Service
+public class FornecedorCacheService {
+
+    private final Map<String, Fornecedor> fornecedores;
+    private final AtomicLong acertos = new AtomicLong();
+    private final AtomicLong falhas = new AtomicLong();
+
+    @Autowired
+    public FornecedorCacheService(@Value("${freepharma.nfe.fornecedores.tamanho-cache:500}") int tamanhoCache) {
+        this.fornecedores = Collections.synchronizedMap(
+            new LinkedHashMap<String, Fornecedor>(64, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Fornecedor> maisAntigo) {
+                    return size() > tamanhoCache;
+                }
+            });
+    }
+
+    /**
+     * Fornecedor em cache para o CNPJ, ou {@code null} quando ele precisa ser lido do banco.
+     * A instância é compartilhada entre as importações e não deve ser alterada por quem a recebe.
+     */
+    public Fornecedor buscar(String cnpj) {
+        Fornecedor fornecedor = cnpj != null ? fornecedores.get(cnpj) : null;
+        if (fornecedor != null) {
+            acertos.incrementAndGet();
+        } else {
+            falhas.incrementAndGet();
+        }
+        return fornecedor;
+    }
+
+    /**
+     * Guarda o fornecedor lido ou gravado pelo processamento. Dentro de uma transação ele só entra
+     * no cache após o commit, para que um rollback não deixe em memória dados que não foram gravados.
+     */
+    public void registrar(Fornecedor fornecedor) {
+        if (fornecedor == null || fornecedor.getId() == null || fornecedor.getCnpj() == null) {
+            return;
+        }
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    fornecedores.put(fornecedor.getCnpj(), fornecedor);
+                }
+            });
+        } else {
+            fornecedores.put(fornecedor.getCnpj(), fornecedor);
+        }
+    }
+
+    /**
+     * Remove o CNPJ do cache. Dentro de uma transação a remoção é repetida após o commit, caso
+     * outra importação tenha recarregado a versão antiga enquanto a gravação não terminava.
+     */
+    public void invalidar(String cnpj) {
+        if (cnpj == null) {
+            return;
+        }
+        fornecedores.remove(cnpj);
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    fornecedores.remove(cnpj);
+                }
+            });
+        }
+    }
+
+    public void invalidarTodos() {
+        fornecedores.clear();
+    }
+
+    public long getAcertos() {
+        return acertos.get();
+    }
+
+    public long getFalhas() {
+        return falhas.get();
+    }
+
+    public int getTamanho() {
+        return fornecedores.size();
+    }
+}
@@ -14,10 +14,12 @@ import java.util.Optional;
 public class FornecedorService {
 
     private final FornecedorRepository fornecedorRepository;
+    private final FornecedorCacheService fornecedorCacheService;
 
     @Autowired
-    public FornecedorService(FornecedorRepository fornecedorRepository) {
+    public FornecedorService(FornecedorRepository fornecedorRepository, FornecedorCacheService fornecedorCacheService) {
         this.fornecedorRepository = fornecedorRepository;
+        this.fornecedorCacheService = fornecedorCacheService;
     }
 
     public List<Fornecedor> listarTodos() {
@@ -58,6 +60,7 @@ public class FornecedorService {
             fornecedor.setStatus("ATIVO");
         }
         
+        fornecedorCacheService.invalidar(fornecedor.getCnpj());
         return fornecedorRepository.save(fornecedor);
     }
 
@@ -67,6 +70,7 @@ public class FornecedorService {
                     fornecedorAtualizado.setId(id);
                     fornecedorAtualizado.setCnpj(fornecedor.getCnpj());
                     validarDadosFornecedor(fornecedorAtualizado);
+                    fornecedorCacheService.invalidar(fornecedor.getCnpj());
                     return fornecedorRepository.save(fornecedorAtualizado);
                 })
                 .orElseThrow(() -> new RuntimeException("Fornecedor não encontrado"));
@@ -81,12 +85,14 @@ public class FornecedorService {
         // TODO: Implementar verificação de integridade referencial
         
         fornecedorRepository.deleteById(id);
+        fornecedorCacheService.invalidarTodos();
     }
 
     public void ativar(Long id) {
         fornecedorRepository.findById(id)
                 .map(fornecedor -> {
                     fornecedor.setStatus("ATIVO");
+                    fornecedorCacheService.invalidar(fornecedor.getCnpj());
                     return fornecedorRepository.save(fornecedor);
                 })
                 .orElseThrow(() -> new RuntimeException("Fornecedor não encontrado"));
@@ -96,6 +102,7 @@ public class FornecedorService {
         fornecedorRepository.findById(id)
                 .map(fornecedor -> {
                     fornecedor.setStatus("INATIVO");
+                    fornecedorCacheService.invalidar(fornecedor.getCnpj());
                     return fornecedorRepository.save(fornecedor);
                 })
                 .orElseThrow(() -> new RuntimeException("Fornecedor não encontrado"));
@@ -105,6 +112,7 @@ public class FornecedorService {
         fornecedorRepository.findById(id)
                 .map(fornecedor -> {
                     fornecedor.setStatus("BLOQUEADO");
+                    fornecedorCacheService.invalidar(fornecedor.getCnpj());
                     return fornecedorRepository.save(fornecedor);
                 })
                 .orElseThrow(() -> new RuntimeException("Fornecedor não encontrado"));
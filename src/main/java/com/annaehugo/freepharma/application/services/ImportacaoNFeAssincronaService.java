@@ -0,0 +1,190 @@
+package com.annaehugo.freepharma.application.services;
+
+import com.annaehugo.freepharma.domain.entity.fiscal.ImportacaoNFe;
+import com.annaehugo.freepharma.domain.entity.fiscal.StatusImportacao;
+import com.annaehugo.freepharma.domain.repository.fiscal.ImportacaoNFeRepository;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.core.annotation.Order;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PreDestroy;
+import java.time.Duration;
+import java.util.Date;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Processa em segundo plano as importações registradas por {@link ImportacaoNFeService#registrarArquivoNFe}.
+ * A requisição só grava o arquivo e devolve o ID da importação; as notas são processadas por um pool
+ * de {@code freepharma.nfe.importacao.threads} threads com fila limitada a
+ * {@code freepharma.nfe.importacao.fila} importações, e o andamento é acompanhado pelo
+ * {@link StatusImportacao} da importação.
+ *
+ * Na inicialização, as importações sem lote que ficaram {@link StatusImportacao#PENDENTE} ou
+ * {@link StatusImportacao#PROCESSANDO} voltam para a fila. As que não cabem nela continuam pendentes e são
+ * reagendadas a cada {@code freepharma.nfe.importacao.retomada.intervalo-ms}, à medida que a fila esvazia.
+ */
+@Service
+public class ImportacaoNFeAssincronaService {
+
+    static final int ORDEM_RETOMADA = 0;
+
+    private final ImportacaoNFeService importacaoNFeService;
+    private final ImportacaoNFeRepository importacaoNFeRepository;
+    private final ThreadPoolExecutor executor;
+    private final Map<Long, CompletableFuture<ImportacaoNFe>> emAndamento = new ConcurrentHashMap<>();
+    private final Queue<ImportacaoNFe> aguardandoFila = new ConcurrentLinkedQueue<>();
+
+    @Autowired
+    public ImportacaoNFeAssincronaService(
+            ImportacaoNFeService importacaoNFeService,
+            ImportacaoNFeRepository importacaoNFeRepository,
+            @Value("${freepharma.nfe.importacao.threads:2}") int threads,
+            @Value("${freepharma.nfe.importacao.fila:50}") int tamanhoFila) {
+        this.importacaoNFeService = importacaoNFeService;
+        this.importacaoNFeRepository = importacaoNFeRepository;
+        AtomicInteger contador = new AtomicInteger();
+        ThreadFactory fabrica = tarefa -> {
+            Thread thread = new Thread(tarefa, "importacao-nfe-" + contador.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+        this.executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(tamanhoFila), fabrica, new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    /**
+     * Indica se há lugar na fila, para recusar o upload antes de gravá-lo em disco.
+     */
+    public boolean isFilaDisponivel() {
+        return executor.getQueue().remainingCapacity() > 0;
+    }
+
+    /**
+     * Coloca na fila uma importação {@link StatusImportacao#PENDENTE}. Com a fila cheia a importação
+     * é encerrada com {@link StatusImportacao#ERRO} e a chamada falha.
+     */
+    public ImportacaoNFe agendar(ImportacaoNFe importacao) {
+        if (!enfileirar(importacao)) {
+            encerrarComErro(importacao, "Fila de importação cheia, envie o arquivo novamente em alguns minutos");
+            throw new RuntimeException("Fila de importação cheia, tente novamente em alguns minutos");
+        }
+        return importacao;
+    }
+
+    public Optional<ImportacaoNFe> consultar(Long id) {
+        return importacaoNFeRepository.findById(id);
+    }
+
+    /**
+     * Espera a importação terminar por até {@code limite} e retorna a situação atual, concluída ou não.
+     */
+    public Optional<ImportacaoNFe> aguardar(Long id, Duration limite) {
+        CompletableFuture<ImportacaoNFe> conclusao = emAndamento.get(id);
+        if (conclusao != null && !limite.isZero() && !limite.isNegative()) {
+            try {
+                conclusao.get(limite.toMillis(), TimeUnit.MILLISECONDS);
+            } catch (TimeoutException | ExecutionException e) {
+                // A situação é lida do banco de qualquer forma
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        return consultar(id);
+    }
+
+    public int getImportacoesNaFila() {
+        return executor.getQueue().size() + aguardandoFila.size();
+    }
+
+    public int getImportacoesEmProcessamento() {
+        return executor.getActiveCount();
+    }
+
+    /**
+     * Reagenda as importações que estavam pendentes ou em processamento quando a aplicação foi encerrada;
+     * o arquivo de cada uma já está guardado. As que pertencem a um lote são retomadas por
+     * {@link ExecucaoLoteService}.
+     *
+     * A busca é feita uma única vez, antes de {@link DiretorioEntradaNFeService} começar a registrar arquivos:
+     * as importações que ele cria ficam pendentes e sem lote até o lote ser criado, e não podem vir para a fila.
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    @Order(ORDEM_RETOMADA)
+    public void retomarPendentes() {
+        for (StatusImportacao status : new StatusImportacao[] {StatusImportacao.PROCESSANDO, StatusImportacao.PENDENTE}) {
+            for (ImportacaoNFe importacao : importacaoNFeRepository.findByStatus(status)) {
+                if (importacao.getLoteProcessamento() == null && !emAndamento.containsKey(importacao.getId())) {
+                    aguardandoFila.add(importacao);
+                }
+            }
+        }
+        reagendarAguardando();
+    }
+
+    /**
+     * Coloca na fila, enquanto houver lugar, as importações retomadas que não couberam nela.
+     */
+    @Scheduled(fixedDelayString = "${freepharma.nfe.importacao.retomada.intervalo-ms:30000}",
+            initialDelayString = "${freepharma.nfe.importacao.retomada.intervalo-ms:30000}")
+    public void reagendarAguardando() {
+        ImportacaoNFe importacao;
+        while ((importacao = aguardandoFila.peek()) != null) {
+            if (!enfileirar(importacao)) {
+                return;
+            }
+            aguardandoFila.poll();
+        }
+    }
+
+    @PreDestroy
+    public void encerrar() {
+        executor.shutdownNow();
+    }
+
+    private boolean enfileirar(ImportacaoNFe importacao) {
+        CompletableFuture<ImportacaoNFe> conclusao = new CompletableFuture<>();
+        emAndamento.put(importacao.getId(), conclusao);
+        try {
+            executor.execute(() -> processar(importacao, conclusao));
+            return true;
+        } catch (RejectedExecutionException e) {
+            emAndamento.remove(importacao.getId());
+            return false;
+        }
+    }
+
+    private void processar(ImportacaoNFe importacao, CompletableFuture<ImportacaoNFe> conclusao) {
+        try {
+            importacaoNFeService.processarImportacao(importacao);
+        } catch (RuntimeException e) {
+            encerrarComErro(importacao, "Erro no processamento: " + e.getMessage());
+        } finally {
+            emAndamento.remove(importacao.getId());
+            conclusao.complete(importacao);
+        }
+    }
+
+    private void encerrarComErro(ImportacaoNFe importacao, String mensagem) {
+        importacao.setStatus(StatusImportacao.ERRO);
+        importacao.setDataFimProcessamento(new Date());
+        importacao.setErrosProcessamento(mensagem);
+        importacaoNFeRepository.save(importacao);
+    }
+}
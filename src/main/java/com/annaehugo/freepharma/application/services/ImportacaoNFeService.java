@@ -1,263 +1,479 @@
-//package com.annaehugo.freepharma.application.services;
-//
-//import com.annaehugo.freepharma.application.dto.fiscal.NFeXmlData;
-//import com.annaehugo.freepharma.domain.entity.administrativo.Unidade;
-//import com.annaehugo.freepharma.domain.entity.administrativo.UsuarioAdministrador;
-//import com.annaehugo.freepharma.domain.entity.fiscal.ImportacaoNFe;
-//import com.annaehugo.freepharma.domain.entity.fiscal.StatusImportacao;
-//import com.annaehugo.freepharma.domain.repository.fiscal.ImportacaoNFeRepository;
-//import org.springframework.beans.factory.annotation.Autowired;
-//import org.springframework.stereotype.Service;
-//import org.springframework.transaction.annotation.Transactional;
-//import org.springframework.web.multipart.MultipartFile;
-//
-//import java.math.BigDecimal;
-//import java.util.Date;
-//import java.util.HashMap;
-//import java.util.Map;
-//
-//@Service
-//public class ImportacaoNFeService {
-//
-//    @Autowired
-//    private NFeXmlParser nfeXmlParser;
-//    @Autowired
-//    private ProcessamentoNFeService processamentoNFeService;
-//    @Autowired
-//    private ImportacaoNFeRepository importacaoNFeRepository;
-//
-//
-//    @Transactional
-//    public Map<String, Object> importarNFeXml(MultipartFile file) {
-//        return importarNFeXml(file, null, null);
-//    }
-//
-//    @Transactional
-//    public Map<String, Object> importarNFeXmlCompleto(MultipartFile file, Unidade unidade, UsuarioAdministrador usuario) {
-//        validarArquivoNFe(file);
-//        validarPermissoesUsuario(usuario, unidade);
-//
-//        return importarNFeXml(file, unidade, usuario);
-//    }
-//
-//    @Transactional
-//    public Map<String, Object> importarNFeXml(MultipartFile file, Unidade unidade, UsuarioAdministrador usuario) {
-//        validarArquivoNFe(file);
-//
-//        // Criar registro de importação
-//        ImportacaoNFe importacao = criarRegistroImportacao(file, unidade, usuario);
-//
-//        Map<String, Object> resultado = new HashMap<>();
-//
-//        try {
-//            importacao.setDataInicioProcessamento(new Date());
-//            importacao.setStatus(StatusImportacao.PROCESSANDO);
-//            importacaoNFeRepository.save(importacao);
-//
-//            validarConteudoXml(file);
-//
-//            byte[] xmlContent = file.getBytes();
-//            NFeXmlData nfeData = nfeXmlParser.parseNFeXml(xmlContent);
-//            validarDadosNFe(nfeData, unidade);
-//            verificarNFeDuplicada(nfeData.getChaveAcesso(), unidade);
-//            ProcessamentoNFeService.ProcessamentoResult processResult =
-//                processamentoNFeService.processarNFe(nfeData, unidade, importacao);
-//
-//            int inconsistenciasDetectadas = contarInconsistencias(importacao);
-//            importacao.setQuantidadeInconsistenciasDetectadas(inconsistenciasDetectadas);
-//            importacao.setDataFimProcessamento(new Date());
-//            importacao.setQuantidadeNotasArquivo(1);
-//
-//            if (processResult.isSucesso()) {
-//                importacao.setStatus(StatusImportacao.CONCLUIDA);
-//                importacao.setQuantidadeNotasProcessadas(1);
-//                importacao.setQuantidadeNotasComErro(0);
-//                importacao.setLogProcessamento("NFe processada com sucesso. " +
-//                    inconsistenciasDetectadas + " inconsistências detectadas.");
-//
-//                resultado.put("status", "SUCESSO");
-//                resultado.put("mensagem", processResult.getMensagem());
-//                resultado.put("notaFiscalId", processResult.getNotaFiscal().getId());
-//                resultado.put("fornecedorId", processResult.getFornecedor().getId());
-//                resultado.put("itensProcessados", processResult.getItensProcessados().size());
-//                resultado.put("inconsistenciasDetectadas", inconsistenciasDetectadas);
-//
-//                if (inconsistenciasDetectadas > 0) {
-//                    resultado.put("alertas", "NFe importada com " + inconsistenciasDetectadas +
-//                        " inconsistências. Verifique o relatório de inconsistências.");
-//                }
-//            } else {
-//                importacao.setStatus(StatusImportacao.ERRO);
-//                importacao.setQuantidadeNotasProcessadas(0);
-//                importacao.setQuantidadeNotasComErro(1);
-//                importacao.setErrosProcessamento(String.join("; ", processResult.getErros()));
-//
-//                resultado.put("status", "ERRO");
-//                resultado.put("mensagem", processResult.getMensagem());
-//                resultado.put("erros", processResult.getErros());
-//            }
-//
-//            importacaoNFeRepository.save(importacao);
-//
-//        } catch (Exception e) {
-//            importacao.setStatus(StatusImportacao.ERRO);
-//            importacao.setDataFimProcessamento(new Date());
-//            importacao.setErrosProcessamento("Erro no processamento: " + e.getMessage());
-//            importacaoNFeRepository.save(importacao);
-//
-//            resultado.put("status", "ERRO");
-//            resultado.put("mensagem", "Erro no processamento: " + e.getMessage());
-//        }
-//
-//        resultado.put("importacaoId", importacao.getId());
-//        resultado.put("arquivo", file.getOriginalFilename());
-//        resultado.put("tamanho", file.getSize());
-//
-//        return resultado;
-//    }
-//
-//    private ImportacaoNFe criarRegistroImportacao(MultipartFile file, Unidade unidade, UsuarioAdministrador usuario) {
-//        ImportacaoNFe importacao = new ImportacaoNFe();
-//
-//        importacao.setNomeArquivo(file.getOriginalFilename());
-//        importacao.setCaminhoArquivo("/temp/" + file.getOriginalFilename()); // Ajustar conforme necessário
-//        importacao.setStatus(StatusImportacao.PENDENTE);
-//        importacao.setDataImportacao(new Date());
-//        importacao.setQuantidadeNotasArquivo(0);
-//        importacao.setQuantidadeNotasProcessadas(0);
-//        importacao.setQuantidadeNotasComErro(0);
-//        importacao.setQuantidadeInconsistenciasDetectadas(0);
-//
-//        if (unidade != null) {
-//            importacao.setUnidade(unidade);
-//        }
-//        if (usuario != null) {
-//            importacao.setUsuarioImportacao(usuario);
-//        }
-//
-//        importacao.setAtivo(true);
-//
-//        return importacaoNFeRepository.save(importacao);
-//    }
-//
-//    private void validarArquivoNFe(MultipartFile file) {
-//        if (file == null) {
-//            throw new RuntimeException("Arquivo é obrigatório");
-//        }
-//
-//        if (file.isEmpty()) {
-//            throw new RuntimeException("Arquivo XML não pode ser vazio");
-//        }
-//
-//        if (file.getOriginalFilename() == null || file.getOriginalFilename().trim().isEmpty()) {
-//            throw new RuntimeException("Nome do arquivo é obrigatório");
-//        }
-//
-//        if (!file.getOriginalFilename().toLowerCase().endsWith(".xml")) {
-//            throw new RuntimeException("Apenas arquivos XML são aceitos");
-//        }
-//
-//        // Validar tamanho do arquivo (máximo 10MB)
-//        long maxSize = 10 * 1024 * 1024; // 10MB em bytes
-//        if (file.getSize() > maxSize) {
-//            throw new RuntimeException("Arquivo muito grande. Tamanho máximo permitido: 10MB");
-//        }
-//
-//        String contentType = file.getContentType();
-//        if (contentType != null && !contentType.equals("text/xml") && !contentType.equals("application/xml")) {
-//            throw new RuntimeException("Tipo de arquivo inválido. Esperado: XML");
-//        }
-//    }
-//
-//    private void validarPermissoesUsuario(UsuarioAdministrador usuario, Unidade unidade) {
-//        if (usuario == null || unidade == null) {
-//            return; // Validação opcional para casos básicos
-//        }
-//
-//        if (!usuario.isAtivo()) {
-//            throw new RuntimeException("Usuário inativo não pode importar NFe");
-//        }
-//
-//        if (!unidade.isAtivo()) {
-//            throw new RuntimeException("Não é possível importar NFe para unidade inativa");
-//        }
-//    }
-//
-//    private void validarConteudoXml(MultipartFile file) {
-//        try {
-//            byte[] content = file.getBytes();
-//            String xmlContent = new String(content, "UTF-8");
-//
-//            if (!xmlContent.trim().startsWith("<?xml") && !xmlContent.contains("<NFe")) {
-//                throw new RuntimeException("Arquivo não é um XML válido de NFe");
-//            }
-//
-//            if (!xmlContent.contains("<infNFe")) {
-//                throw new RuntimeException("XML não contém estrutura de NFe válida");
-//            }
-//
-//        } catch (Exception e) {
-//            throw new RuntimeException("Erro ao validar conteúdo do XML: " + e.getMessage());
-//        }
-//    }
-//
-//    private void validarDadosNFe(NFeXmlData nfeData, Unidade unidade) {
-//        if (nfeData == null) {
-//            throw new RuntimeException("Dados da NFe não podem ser nulos");
-//        }
-//
-//        if (nfeData.getChaveAcesso() == null || nfeData.getChaveAcesso().length() != 44) {
-//            throw new RuntimeException("Chave de acesso inválida");
-//        }
-//
-//        if (nfeData.getNumero() == null || nfeData.getNumero().isEmpty()) {
-//            throw new RuntimeException("Número da NFe é obrigatório");
-//        }
-//
-//        if (nfeData.getValorTotal() == null || nfeData.getValorTotal().compareTo(BigDecimal.ZERO) <= 0) {
-//            throw new RuntimeException("Valor total da NFe deve ser maior que zero");
-//        }
-//
-//        if (nfeData.getEmitente() == null) {
-//            throw new RuntimeException("Dados do emitente são obrigatórios");
-//        }
-//
-//        if (nfeData.getItens() == null || nfeData.getItens().isEmpty()) {
-//            throw new RuntimeException("NFe deve conter pelo menos um item");
-//        }
-//        validarTipoOperacao(nfeData, unidade);
-//    }
-//
-//    private void validarTipoOperacao(NFeXmlData nfeData, Unidade unidade) {
-//        if ("VENDA".equals(nfeData.getTipoOperacao()) && unidade != null) {
-//            if (nfeData.getDestinatario() != null && unidade.getCnpj() != null) {
-//                if (!unidade.getCnpj().equals(nfeData.getDestinatario().getCnpjCpf())) {
-//                    throw new RuntimeException("NFe de venda deve ter a unidade como destinatário");
-//                }
-//            }
-//        }
-//    }
-//
-//    private void verificarNFeDuplicada(String chaveAcesso, Unidade unidade) {
-//        // Implementar verificação de duplicação
-//        // Por enquanto, apenas log da verificação
-//        if (chaveAcesso != null && !chaveAcesso.isEmpty()) {
-//            // TODO: Implementar busca por chave de acesso no repository
-//            // Optional<NotaFiscal> existente = notaFiscalRepository.findByChaveAcesso(chaveAcesso);
-//            // if (existente.isPresent()) {
-//            //     throw new RuntimeException("NFe já importada: " + chaveAcesso);
-//            // }
-//        }
-//    }
-//
-//    private int contarInconsistencias(ImportacaoNFe importacao) {
-//        // Buscar inconsistências relacionadas à importação
-//        try {
-//            // TODO: Implementar contagem via repository de inconsistências
-//            // return inconsistenciaRepository.countByImportacaoNFe(importacao);
-//            return 0; // Por enquanto retornar 0
-//        } catch (Exception e) {
-//            return 0;
-//        }
-//    }
-//}
\ No newline at end of file
+package com.annaehugo.freepharma.application.services;
+
+import com.annaehugo.freepharma.application.dto.fiscal.NFeCabecalho;
+import com.annaehugo.freepharma.application.dto.fiscal.NFeXmlData;
+import com.annaehugo.freepharma.application.services.ArmazenamentoImportacaoService.ArquivoArmazenado;
+import com.annaehugo.freepharma.domain.entity.administrativo.Unidade;
+import com.annaehugo.freepharma.domain.entity.administrativo.UsuarioAdministrador;
+import com.annaehugo.freepharma.domain.entity.fiscal.ImportacaoNFe;
+import com.annaehugo.freepharma.domain.entity.fiscal.StatusImportacao;
+import com.annaehugo.freepharma.domain.repository.fiscal.ImportacaoNFeRepository;
+import com.annaehugo.freepharma.domain.repository.fiscal.NotaFiscalRepository;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.util.unit.DataSize;
+import org.springframework.web.multipart.MultipartFile;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Predicate;
+
+/**
+ * Importação de NFe enviadas por upload. Os arquivos são lidos como stream: o conteúdo vai direto
+ * para o parser e para o armazenamento em disco, sem ser carregado inteiro em memória.
+ * As importações não abrem uma transação própria; cada nota é gravada na transação de
+ * {@link ProcessamentoNFeService#processarNFe}, para que uploads longos não retenham conexões.
+ * Arquivos com várias notas passam pelas etapas de {@link PipelineImportacaoNFeService}.
+ */
+@Service
+public class ImportacaoNFeService {
+
+    private static final Set<String> TIPOS_ACEITOS = new HashSet<>(Arrays.asList(
+        "text/xml", "application/xml",
+        "application/zip", "application/x-zip-compressed",
+        "application/gzip", "application/x-gzip",
+        "application/octet-stream"));
+
+    @Autowired
+    private NFeXmlParser nfeXmlParser;
+    @Autowired
+    private ProcessamentoNFeService processamentoNFeService;
+    @Autowired
+    private ImportacaoNFeRepository importacaoNFeRepository;
+    @Autowired
+    private NFeDuplicidadeService nfeDuplicidadeService;
+    @Autowired
+    private NotaFiscalRepository notaFiscalRepository;
+    @Autowired
+    private ArmazenamentoImportacaoService armazenamentoImportacaoService;
+    @Autowired
+    private PipelineImportacaoNFeService pipelineImportacaoNFeService;
+
+    @Value("${freepharma.nfe.importacao.tamanho-maximo:500MB}")
+    private DataSize tamanhoMaximoArquivo = DataSize.ofMegabytes(500);
+
+
+    public Map<String, Object> importarNFeXml(MultipartFile file) {
+        return importarNFeXml(file, null, null);
+    }
+
+    public Map<String, Object> importarNFeXmlCompleto(MultipartFile file, Unidade unidade, UsuarioAdministrador usuario) {
+        validarArquivoNFe(file);
+        validarPermissoesUsuario(usuario, unidade);
+
+        return importarNFeXml(file, unidade, usuario);
+    }
+
+    public Map<String, Object> importarNFeXml(MultipartFile file, Unidade unidade, UsuarioAdministrador usuario) {
+        validarArquivoNFe(file);
+
+        if (isArquivoCompactado(file.getOriginalFilename())) {
+            return importarArquivoNFe(abrirUpload(file), file.getOriginalFilename(), unidade, usuario);
+        }
+
+        // Estrutura, duplicidade, schema, parse e gravação em disco consomem o mesmo stream
+        ArquivoArmazenado arquivo = armazenamentoImportacaoService.armazenar(abrirUpload(file), file.getOriginalFilename(),
+            tamanhoMaximoArquivo.toBytes());
+        NFeXmlData nfeData;
+        try {
+            nfeData = lerNFe(arquivo);
+            validarDadosNFe(nfeData, unidade);
+            arquivo.close();
+        } catch (RuntimeException e) {
+            arquivo.descartar();
+            throw e;
+        } catch (IOException e) {
+            arquivo.descartar();
+            throw new RuntimeException("Erro ao ler o arquivo XML: " + e.getMessage());
+        }
+
+        // Criar registro de importação
+        ImportacaoNFe importacao = criarRegistroImportacao(file.getOriginalFilename(), arquivo, unidade, usuario);
+
+        Map<String, Object> resultado = new HashMap<>();
+
+        try {
+            importacao.setDataInicioProcessamento(new Date());
+            importacao.setStatus(StatusImportacao.PROCESSANDO);
+            importacaoNFeRepository.save(importacao);
+
+            ProcessamentoNFeService.ValidacaoNFe validacao = processamentoNFeService.validarNFe(nfeData);
+            ProcessamentoNFeService.ProcessamentoResult processResult =
+                processamentoNFeService.processarNFe(nfeData, unidade, importacao, validacao);
+
+            int inconsistenciasDetectadas = processResult.getQuantidadeInconsistencias();
+            importacao.setQuantidadeInconsistenciasDetectadas(inconsistenciasDetectadas);
+            importacao.setDataFimProcessamento(new Date());
+            importacao.setQuantidadeNotasArquivo(1);
+
+            if (processResult.isSucesso()) {
+                importacao.setStatus(StatusImportacao.CONCLUIDA);
+                importacao.setQuantidadeNotasProcessadas(1);
+                importacao.setQuantidadeNotasComErro(0);
+                importacao.setLogProcessamento("NFe processada com sucesso. " +
+                    inconsistenciasDetectadas + " inconsistências detectadas.");
+
+                resultado.put("status", "SUCESSO");
+                resultado.put("mensagem", processResult.getMensagem());
+                resultado.put("notaFiscalId", processResult.getNotaFiscal().getId());
+                resultado.put("fornecedorId", processResult.getFornecedor().getId());
+                resultado.put("itensProcessados", processResult.getItensProcessados().size());
+                resultado.put("inconsistenciasDetectadas", inconsistenciasDetectadas);
+
+                if (inconsistenciasDetectadas > 0) {
+                    resultado.put("alertas", "NFe importada com " + inconsistenciasDetectadas +
+                        " inconsistências. Verifique o relatório de inconsistências.");
+                }
+            } else {
+                importacao.setStatus(StatusImportacao.ERRO);
+                importacao.setQuantidadeNotasProcessadas(0);
+                importacao.setQuantidadeNotasComErro(1);
+                importacao.setErrosProcessamento(String.join("; ", processResult.getErros()));
+
+                resultado.put("status", "ERRO");
+                resultado.put("mensagem", processResult.getMensagem());
+                resultado.put("erros", processResult.getErros());
+            }
+
+            importacaoNFeRepository.save(importacao);
+
+        } catch (Exception e) {
+            importacao.setStatus(StatusImportacao.ERRO);
+            importacao.setDataFimProcessamento(new Date());
+            importacao.setErrosProcessamento("Erro no processamento: " + e.getMessage());
+            importacaoNFeRepository.save(importacao);
+
+            resultado.put("status", "ERRO");
+            resultado.put("mensagem", "Erro no processamento: " + e.getMessage());
+        }
+
+        resultado.put("importacaoId", importacao.getId());
+        resultado.put("arquivo", file.getOriginalFilename());
+        resultado.put("tamanho", file.getSize());
+
+        return resultado;
+    }
+
+    /**
+     * Importa um arquivo com uma ou várias NFe (XML avulso, envelope, ZIP ou gzip) lido de um stream,
+     * como o corpo de uma requisição. As notas são processadas uma a uma, à medida que o arquivo é lido
+     * e gravado em disco; notas inválidas ou já importadas são registradas como erro da importação.
+     */
+    public Map<String, Object> importarArquivoNFe(InputStream conteudo, String nomeArquivo,
+                                                  Unidade unidade, UsuarioAdministrador usuario) {
+        validarPermissoesUsuario(usuario, unidade);
+
+        ArquivoArmazenado arquivo = armazenamentoImportacaoService.armazenar(conteudo, nomeArquivo,
+            tamanhoMaximoArquivo.toBytes());
+        ImportacaoNFe importacao = criarRegistroImportacao(nomeArquivo, arquivo, unidade, usuario);
+        importacao.setDataInicioProcessamento(new Date());
+        importacao.setStatus(StatusImportacao.PROCESSANDO);
+        importacaoNFeRepository.save(importacao);
+
+        Map<String, Object> resultado;
+        try {
+            resultado = processarNotas(arquivo, nomeArquivo, importacao, unidade, Collections.emptySet());
+        } catch (RuntimeException | Error e) {
+            // Sem ninguém para retomá-la, a importação não pode ficar em PROCESSANDO nem o temporário no disco
+            arquivo.descartar();
+            if (arquivo.getHash() != null) {
+                registrarArquivo(importacao, arquivo);
+            }
+            String erro = nomeArquivo + ": " + (e.getMessage() != null ? e.getMessage() : e.getClass().getSimpleName());
+            importacao.setStatus(StatusImportacao.ERRO);
+            importacao.setDataFimProcessamento(new Date());
+            importacao.setErrosProcessamento(importacao.getErrosProcessamento() == null
+                ? erro : importacao.getErrosProcessamento() + "; " + erro);
+            try {
+                importacaoNFeRepository.save(importacao);
+            } catch (RuntimeException falha) {
+                e.addSuppressed(falha);
+            }
+            throw e;
+        }
+        if (arquivo.isLimiteExcedido()) {
+            // O corpo não tem tamanho declarado: as notas lidas antes do limite ficam, mas o arquivo não é guardado
+            String erro = nomeArquivo + ": " + arquivo.getMensagemLimite();
+            importacao.setStatus(StatusImportacao.ERRO);
+            importacao.setErrosProcessamento(importacao.getErrosProcessamento() == null
+                ? erro : importacao.getErrosProcessamento() + "; " + erro);
+            resultado.put("status", "ERRO");
+            resultado.put("mensagem", arquivo.getMensagemLimite());
+        }
+        // O endereço do arquivo só é conhecido depois que a leitura das notas o fecha
+        registrarArquivo(importacao, arquivo);
+        importacaoNFeRepository.save(importacao);
+        resultado.put("tamanho", arquivo.getTamanho());
+        return resultado;
+    }
+
+    /**
+     * Grava o upload inteiro em disco e registra a importação como {@link StatusImportacao#PENDENTE},
+     * sem processar as notas; o processamento fica para {@link #processarImportacao(ImportacaoNFe)}.
+     */
+    public ImportacaoNFe registrarNFeXml(MultipartFile file, Unidade unidade, UsuarioAdministrador usuario) {
+        validarArquivoNFe(file);
+        return registrarArquivoNFe(abrirUpload(file), file.getOriginalFilename(), unidade, usuario);
+    }
+
+    public ImportacaoNFe registrarArquivoNFe(InputStream conteudo, String nomeArquivo,
+                                            Unidade unidade, UsuarioAdministrador usuario) {
+        validarPermissoesUsuario(usuario, unidade);
+
+        ArquivoArmazenado arquivo = armazenamentoImportacaoService.armazenar(conteudo, nomeArquivo,
+            tamanhoMaximoArquivo.toBytes());
+        try {
+            if (arquivo.read() < 0) {
+                arquivo.descartar();
+                throw new RuntimeException("Arquivo XML não pode ser vazio");
+            }
+            // Fechar o stream copia para o disco todo o conteúdo ainda não lido
+            arquivo.close();
+        } catch (IOException e) {
+            arquivo.descartar();
+            if (arquivo.isLimiteExcedido()) {
+                throw new RuntimeException(arquivo.getMensagemLimite());
+            }
+            throw new RuntimeException("Erro ao gravar o arquivo " + nomeArquivo + ": " + e.getMessage());
+        }
+
+        return criarRegistroImportacao(nomeArquivo, arquivo, unidade, usuario);
+    }
+
+    /**
+     * Processa as notas de uma importação registrada por {@link #registrarArquivoNFe}, lendo o arquivo
+     * guardado por {@link ArmazenamentoImportacaoService}. A importação passa a {@link StatusImportacao#PROCESSANDO} e termina como
+     * {@link StatusImportacao#CONCLUIDA} ou {@link StatusImportacao#ERRO}.
+     *
+     * Uma importação que já estava {@link StatusImportacao#PROCESSANDO} foi interrompida no meio: os contadores
+     * recomeçam, as notas que ela já gravou são contadas como processadas sem serem gravadas de novo e as
+     * demais são processadas normalmente.
+     */
+    public Map<String, Object> processarImportacao(ImportacaoNFe importacao) {
+        Set<String> gravadas = Collections.emptySet();
+        if (importacao.getStatus() == StatusImportacao.PROCESSANDO) {
+            gravadas = new HashSet<>(notaFiscalRepository.findChavesAcessoByImportacaoNFeId(importacao.getId()));
+            importacao.setQuantidadeNotasArquivo(0);
+            importacao.setQuantidadeNotasProcessadas(0);
+            importacao.setQuantidadeNotasComErro(0);
+            importacao.setErrosProcessamento(null);
+        }
+        importacao.setDataInicioProcessamento(new Date());
+        importacao.setStatus(StatusImportacao.PROCESSANDO);
+        importacaoNFeRepository.save(importacao);
+
+        try (InputStream arquivo = armazenamentoImportacaoService.abrir(importacao)) {
+            Map<String, Object> resultado = processarNotas(arquivo, importacao.getNomeArquivo(),
+                importacao, importacao.getUnidade(), gravadas);
+            resultado.put("tamanho", importacao.getTamanhoArquivo());
+            return resultado;
+        } catch (IOException e) {
+            throw new RuntimeException("Erro ao ler o arquivo " + importacao.getNomeArquivo() + ": " + e.getMessage());
+        }
+    }
+
+    private Map<String, Object> processarNotas(InputStream arquivo, String nomeArquivo,
+                                               ImportacaoNFe importacao, Unidade unidade, Set<String> gravadas) {
+        List<String> erros;
+        // As notas gravadas pela própria importação não são duplicadas: o iterator as conta como processadas
+        Predicate<String> duplicada = gravadas.isEmpty() ? nfeDuplicidadeService::isDuplicada
+            : chave -> !gravadas.contains(chave) && nfeDuplicidadeService.isDuplicada(chave);
+        try (NFeArquivoIterator notas = nfeXmlParser.lerArquivo(arquivo, nomeArquivo, importacao, duplicada)
+                .ignorarGravadas(gravadas)) {
+            pipelineImportacaoNFeService.executar(notas, importacao, unidade, nfeData -> validarDadosNFe(nfeData, unidade));
+            erros = new ArrayList<>(notas.getErros());
+        }
+
+        int processadas = valor(importacao.getQuantidadeNotasProcessadas());
+        int comErro = valor(importacao.getQuantidadeNotasComErro());
+        int inconsistenciasDetectadas = valor(importacao.getQuantidadeInconsistenciasDetectadas());
+        importacao.setDataFimProcessamento(new Date());
+        importacao.setStatus(processadas > 0 ? StatusImportacao.CONCLUIDA : StatusImportacao.ERRO);
+        importacao.setLogProcessamento(processadas + " NFe processadas, " + comErro + " com erro. " +
+            inconsistenciasDetectadas + " inconsistências detectadas.");
+        importacaoNFeRepository.save(importacao);
+
+        Map<String, Object> resultado = new HashMap<>();
+        resultado.put("status", processadas > 0 ? "SUCESSO" : "ERRO");
+        resultado.put("mensagem", processadas + " de " + (processadas + comErro) + " NFe importadas");
+        resultado.put("notasProcessadas", processadas);
+        resultado.put("notasComErro", comErro);
+        resultado.put("inconsistenciasDetectadas", inconsistenciasDetectadas);
+        if (!erros.isEmpty()) {
+            resultado.put("erros", erros);
+        }
+        resultado.put("importacaoId", importacao.getId());
+        if (importacao.getLoteProcessamento() != null) {
+            resultado.put("loteProcessamentoId", importacao.getLoteProcessamento().getId());
+        }
+        resultado.put("arquivo", nomeArquivo);
+
+        return resultado;
+    }
+
+    private ImportacaoNFe criarRegistroImportacao(String nomeArquivo, ArquivoArmazenado arquivo,
+                                                  Unidade unidade, UsuarioAdministrador usuario) {
+        ImportacaoNFe importacao = new ImportacaoNFe();
+
+        importacao.setNomeArquivo(nomeArquivo);
+        registrarArquivo(importacao, arquivo);
+        importacao.setStatus(StatusImportacao.PENDENTE);
+        importacao.setDataImportacao(new Date());
+        importacao.setQuantidadeNotasArquivo(0);
+        importacao.setQuantidadeNotasProcessadas(0);
+        importacao.setQuantidadeNotasComErro(0);
+        importacao.setQuantidadeInconsistenciasDetectadas(0);
+
+        if (unidade != null) {
+            importacao.setUnidade(unidade);
+        }
+        if (usuario != null) {
+            importacao.setUsuarioImportacao(usuario);
+        }
+
+        importacao.setAtivo(true);
+
+        return importacaoNFeRepository.save(importacao);
+    }
+
+    private void registrarArquivo(ImportacaoNFe importacao, ArquivoArmazenado arquivo) {
+        importacao.setCaminhoArquivo(arquivo.getCaminho().toString());
+        importacao.setHashArquivo(arquivo.getHash());
+        importacao.setTamanhoArquivo(arquivo.getTamanho());
+    }
+
+    private void validarArquivoNFe(MultipartFile file) {
+        if (file == null) {
+            throw new RuntimeException("Arquivo é obrigatório");
+        }
+
+        if (file.isEmpty()) {
+            throw new RuntimeException("Arquivo XML não pode ser vazio");
+        }
+
+        if (file.getOriginalFilename() == null || file.getOriginalFilename().trim().isEmpty()) {
+            throw new RuntimeException("Nome do arquivo é obrigatório");
+        }
+
+        String nome = file.getOriginalFilename().toLowerCase();
+        if (!nome.endsWith(".xml") && !isArquivoCompactado(nome)) {
+            throw new RuntimeException("Apenas arquivos XML são aceitos");
+        }
+
+        // O upload é lido como stream; o limite protege apenas o disco
+        if (file.getSize() > tamanhoMaximoArquivo.toBytes()) {
+            throw new RuntimeException("Arquivo muito grande. Tamanho máximo permitido: "
+                + tamanhoMaximoArquivo.toMegabytes() + "MB");
+        }
+
+        String contentType = file.getContentType();
+        if (contentType != null && !TIPOS_ACEITOS.contains(contentType)) {
+            throw new RuntimeException("Tipo de arquivo inválido. Esperado: XML");
+        }
+    }
+
+    private void validarPermissoesUsuario(UsuarioAdministrador usuario, Unidade unidade) {
+        if (usuario == null || unidade == null) {
+            return; // Validação opcional para casos básicos
+        }
+
+        if (!usuario.isAtivo()) {
+            throw new RuntimeException("Usuário inativo não pode importar NFe");
+        }
+
+        if (!unidade.isAtivo()) {
+            throw new RuntimeException("Não é possível importar NFe para unidade inativa");
+        }
+    }
+
+    private boolean isArquivoCompactado(String nomeArquivo) {
+        String nome = nomeArquivo.toLowerCase();
+        return nome.endsWith(".zip") || nome.endsWith(".gz");
+    }
+
+    private InputStream abrirUpload(MultipartFile file) {
+        try {
+            return file.getInputStream();
+        } catch (IOException e) {
+            throw new RuntimeException("Erro ao ler o arquivo XML: " + e.getMessage());
+        }
+    }
+
+    private NFeXmlData lerNFe(InputStream arquivo) {
+        try {
+            // O início do arquivo é lido uma vez, examinado e devolvido à frente do restante do stream
+            byte[] inicio = arquivo.readNBytes(NFeXmlParser.TAMANHO_MAXIMO_CABECALHO);
+
+            NFeCabecalho cabecalho = nfeXmlParser.lerCabecalho(inicio);
+            if (cabecalho.getChaveAcesso() == null) {
+                throw new RuntimeException("XML não contém estrutura de NFe válida");
+            }
+            verificarNFeDuplicada(cabecalho.getChaveAcesso());
+
+            return nfeXmlParser.parseNFeXml(new SequenceInputStream(new ByteArrayInputStream(inicio), arquivo));
+
+        } catch (IOException e) {
+            throw new RuntimeException("Erro ao ler o arquivo XML: " + e.getMessage());
+        }
+    }
+
+    void validarDadosNFe(NFeXmlData nfeData, Unidade unidade) {
+        if (nfeData == null) {
+            throw new RuntimeException("Dados da NFe não podem ser nulos");
+        }
+
+        if (nfeData.getChaveAcesso() == null || nfeData.getChaveAcesso().length() != 44) {
+            throw new RuntimeException("Chave de acesso inválida");
+        }
+
+        if (nfeData.getNumero() == null || nfeData.getNumero().isEmpty()) {
+            throw new RuntimeException("Número da NFe é obrigatório");
+        }
+
+        if (nfeData.getValorTotal() == null || nfeData.getValorTotal().compareTo(BigDecimal.ZERO) <= 0) {
+            throw new RuntimeException("Valor total da NFe deve ser maior que zero");
+        }
+
+        if (nfeData.getEmitente() == null) {
+            throw new RuntimeException("Dados do emitente são obrigatórios");
+        }
+
+        if (nfeData.getItens() == null || nfeData.getItens().isEmpty()) {
+            throw new RuntimeException("NFe deve conter pelo menos um item");
+        }
+        validarTipoOperacao(nfeData, unidade);
+    }
+
+    private void validarTipoOperacao(NFeXmlData nfeData, Unidade unidade) {
+        if ("VENDA".equals(nfeData.getTipoOperacao()) && unidade != null) {
+            if (nfeData.getDestinatario() != null && unidade.getCnpj() != null) {
+                if (!unidade.getCnpj().equals(nfeData.getDestinatario().getCnpjCpf())) {
+                    throw new RuntimeException("NFe de venda deve ter a unidade como destinatário");
+                }
+            }
+        }
+    }
+
+    private void verificarNFeDuplicada(String chaveAcesso) {
+        if (nfeDuplicidadeService.isDuplicada(chaveAcesso)) {
+            throw new RuntimeException("NFe já importada: " + chaveAcesso);
+        }
+    }
+
+    private static int valor(Integer contador) {
+        return contador != null ? contador : 0;
+    }
+}
@@ -0,0 +1,336 @@
+package com.annaehugo.freepharma.application.services;
+
+import com.annaehugo.freepharma.domain.entity.estoque.ProdutoReferencia;
+import com.annaehugo.freepharma.domain.repository.estoque.ProdutoReferenciaRepository;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Índice em memória dos nomes de produto, usado para reconhecer o produto de um item de NFe pelo nome
+ * mesmo quando cada fornecedor o escreve de um jeito ("DIPIRONA 500MG CX20" e "Dipirona 500 mg c/20").
+ * Os nomes são comparados na forma de {@link NormalizadorNomeProduto}: primeiro pelo nome normalizado
+ * exato e, sem ele, pela similaridade de trigramas, que precisa ser de pelo menos
+ * {@code freepharma.nfe.produtos.similaridade-minima} e exige as mesmas dosagens e quantidades.
+ *
+ * A busca aproximada só examina os produtos que compartilham algum dos trigramas mais raros do nome
+ * (filtro de prefixo): um produto com similaridade suficiente tem necessariamente um deles.
+ *
+ * O índice é carregado na inicialização ({@link #carregar()}) e atualizado a cada commit por
+ * {@link #registrar(ProdutoReferencia)} e {@link #remover(Long)}. Até o fim da carga
+ * {@link #isCarregado()} é falso e quem consulta deve ir ao banco.
+ */
+@Service
+public class IndiceNomesProdutoService {
+
+    static final int TAMANHO_PAGINA_CARGA = 10_000;
+
+    private final ProdutoReferenciaRepository produtoReferenciaRepository;
+    private final double similaridadeMinima;
+
+    private final ReentrantReadWriteLock trava = new ReentrantReadWriteLock();
+    private final Map<Long, Entrada> porId = new HashMap<>();
+    private final Map<String, Set<Entrada>> porNome = new HashMap<>();
+    private final Map<Integer, Set<Entrada>> porTrigrama = new HashMap<>();
+    private Set<Long> removidosDuranteCarga;
+    private volatile boolean carregado;
+
+    private final AtomicLong buscasExatas = new AtomicLong();
+    private final AtomicLong buscasAproximadas = new AtomicLong();
+    private final AtomicLong buscasSemResultado = new AtomicLong();
+
+    @Autowired
+    public IndiceNomesProdutoService(
+            ProdutoReferenciaRepository produtoReferenciaRepository,
+            @Value("${freepharma.nfe.produtos.similaridade-minima:0.75}") double similaridadeMinima) {
+        this.produtoReferenciaRepository = produtoReferenciaRepository;
+        this.similaridadeMinima = similaridadeMinima;
+    }
+
+    /**
+     * Carrega os nomes de todos os produtos, em páginas ordenadas pelo ID. Produtos registrados ou
+     * removidos durante a carga mantêm a versão registrada.
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void carregar() {
+        trava.writeLock().lock();
+        try {
+            removidosDuranteCarga = new HashSet<>();
+        } finally {
+            trava.writeLock().unlock();
+        }
+
+        try {
+            Long ultimoId = 0L;
+            List<Object[]> pagina;
+            do {
+                pagina = produtoReferenciaRepository.findNomesAposId(ultimoId,
+                    UnificacaoProdutoService.STATUS_UNIFICADO, PageRequest.of(0, TAMANHO_PAGINA_CARGA));
+                List<Entrada> entradas = new ArrayList<>(pagina.size());
+                for (Object[] linha : pagina) {
+                    ultimoId = (Long) linha[0];
+                    entradas.add(new Entrada(ultimoId, (String) linha[1]));
+                }
+                trava.writeLock().lock();
+                try {
+                    for (Entrada entrada : entradas) {
+                        if (!porId.containsKey(entrada.id) && !removidosDuranteCarga.contains(entrada.id)) {
+                            incluir(entrada);
+                        }
+                    }
+                } finally {
+                    trava.writeLock().unlock();
+                }
+            } while (pagina.size() == TAMANHO_PAGINA_CARGA);
+            carregado = true;
+        } catch (RuntimeException e) {
+            // Sem o índice as buscas continuam indo ao banco; a próxima chamada de carregar() tenta de novo
+        } finally {
+            trava.writeLock().lock();
+            try {
+                removidosDuranteCarga = null;
+            } finally {
+                trava.writeLock().unlock();
+            }
+        }
+    }
+
+    public boolean isCarregado() {
+        return carregado;
+    }
+
+    /**
+     * ID do produto cujo nome corresponde a {@code nome}, exato após a normalização ou o mais parecido
+     * acima da similaridade mínima. Empates ficam com o produto mais antigo.
+     */
+    public Optional<Long> buscar(String nome) {
+        return Optional.ofNullable(buscarTodos(Collections.singleton(nome)).get(nome));
+    }
+
+    /**
+     * Como {@link #buscar(String)} para vários nomes de uma vez; nomes sem correspondência ficam fora do mapa.
+     */
+    public Map<String, Long> buscarTodos(Collection<String> nomes) {
+        Map<String, Long> encontrados = new HashMap<>();
+        trava.readLock().lock();
+        try {
+            for (String nome : nomes) {
+                Long id = localizar(NormalizadorNomeProduto.normalizar(nome));
+                if (id != null) {
+                    encontrados.put(nome, id);
+                }
+            }
+        } finally {
+            trava.readLock().unlock();
+        }
+        return encontrados;
+    }
+
+    /**
+     * Inclui ou atualiza o nome do produto. Dentro de uma transação a alteração só entra no índice
+     * após o commit, para que um rollback não deixe no índice um produto que não foi gravado.
+     */
+    public void registrar(ProdutoReferencia produto) {
+        if (produto == null || produto.getId() == null || produto.getNome() == null) {
+            return;
+        }
+        Entrada entrada = new Entrada(produto.getId(), produto.getNome());
+        aposCommit(() -> {
+            trava.writeLock().lock();
+            try {
+                excluir(entrada.id);
+                incluir(entrada);
+            } finally {
+                trava.writeLock().unlock();
+            }
+        });
+    }
+
+    public void remover(Long produtoId) {
+        if (produtoId == null) {
+            return;
+        }
+        aposCommit(() -> {
+            trava.writeLock().lock();
+            try {
+                excluir(produtoId);
+                if (removidosDuranteCarga != null) {
+                    removidosDuranteCarga.add(produtoId);
+                }
+            } finally {
+                trava.writeLock().unlock();
+            }
+        });
+    }
+
+    public int getQuantidadeProdutos() {
+        trava.readLock().lock();
+        try {
+            return porId.size();
+        } finally {
+            trava.readLock().unlock();
+        }
+    }
+
+    public long getBuscasExatas() {
+        return buscasExatas.get();
+    }
+
+    public long getBuscasAproximadas() {
+        return buscasAproximadas.get();
+    }
+
+    public long getBuscasSemResultado() {
+        return buscasSemResultado.get();
+    }
+
+    private Long localizar(String nomeNormalizado) {
+        if (nomeNormalizado.isEmpty()) {
+            return null;
+        }
+        Set<Entrada> exatas = porNome.get(nomeNormalizado);
+        if (exatas != null && !exatas.isEmpty()) {
+            buscasExatas.incrementAndGet();
+            return menorId(exatas);
+        }
+
+        int[] trigramas = NormalizadorNomeProduto.trigramas(nomeNormalizado);
+        String numeros = NormalizadorNomeProduto.numeros(nomeNormalizado);
+        Entrada melhor = null;
+        double melhorSimilaridade = 0;
+        for (Entrada candidata : candidatas(trigramas)) {
+            if (!numeros.equals(candidata.numeros)) {
+                continue;
+            }
+            double similaridade = NormalizadorNomeProduto.similaridade(trigramas, candidata.trigramas);
+            if (similaridade >= similaridadeMinima && (similaridade > melhorSimilaridade
+                    || similaridade == melhorSimilaridade && candidata.id < melhor.id)) {
+                melhor = candidata;
+                melhorSimilaridade = similaridade;
+            }
+        }
+        if (melhor == null) {
+            buscasSemResultado.incrementAndGet();
+            return null;
+        }
+        buscasAproximadas.incrementAndGet();
+        return melhor.id;
+    }
+
+    /**
+     * Produtos que compartilham ao menos um dos {@code n - ceil(minima * n) + 1} trigramas mais raros
+     * do nome: com menos trigramas em comum a similaridade não alcança a mínima.
+     */
+    private Set<Entrada> candidatas(int[] trigramas) {
+        if (trigramas.length == 0) {
+            return Collections.emptySet();
+        }
+        long[] porFrequencia = new long[trigramas.length];
+        for (int i = 0; i < trigramas.length; i++) {
+            Set<Entrada> entradas = porTrigrama.get(trigramas[i]);
+            porFrequencia[i] = (long) (entradas != null ? entradas.size() : 0) << 32 | i;
+        }
+        Arrays.sort(porFrequencia);
+
+        int minimoComuns = (int) Math.ceil(similaridadeMinima * trigramas.length - 1e-9);
+        int prefixo = Math.min(trigramas.length, trigramas.length - Math.max(1, minimoComuns) + 1);
+        Set<Entrada> candidatas = new HashSet<>();
+        for (int i = 0; i < prefixo; i++) {
+            Set<Entrada> entradas = porTrigrama.get(trigramas[(int) porFrequencia[i]]);
+            if (entradas != null) {
+                candidatas.addAll(entradas);
+            }
+        }
+        return candidatas;
+    }
+
+    private void incluir(Entrada entrada) {
+        if (entrada.nome.isEmpty()) {
+            return;
+        }
+        porId.put(entrada.id, entrada);
+        porNome.computeIfAbsent(entrada.nome, nome -> new HashSet<>()).add(entrada);
+        for (int trigrama : entrada.trigramas) {
+            porTrigrama.computeIfAbsent(trigrama, codigo -> new HashSet<>()).add(entrada);
+        }
+    }
+
+    private void excluir(Long id) {
+        Entrada anterior = porId.remove(id);
+        if (anterior == null) {
+            return;
+        }
+        removerDe(porNome, anterior.nome, anterior);
+        for (int trigrama : anterior.trigramas) {
+            removerDe(porTrigrama, trigrama, anterior);
+        }
+    }
+
+    private static <K> void removerDe(Map<K, Set<Entrada>> indice, K chave, Entrada entrada) {
+        Set<Entrada> entradas = indice.get(chave);
+        if (entradas != null) {
+            entradas.remove(entrada);
+            if (entradas.isEmpty()) {
+                indice.remove(chave);
+            }
+        }
+    }
+
+    private static Long menorId(Set<Entrada> entradas) {
+        Long menor = null;
+        for (Entrada entrada : entradas) {
+            if (menor == null || entrada.id < menor) {
+                menor = entrada.id;
+            }
+        }
+        return menor;
+    }
+
+    private static void aposCommit(Runnable acao) {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    acao.run();
+                }
+            });
+        } else {
+            acao.run();
+        }
+    }
+
+    /**
+     * Nome normalizado de um produto, com os trigramas e as dosagens já calculados.
+     */
+    private static final class Entrada {
+        final long id;
+        final String nome;
+        final int[] trigramas;
+        final String numeros;
+
+        Entrada(long id, String nome) {
+            this.id = id;
+            this.nome = NormalizadorNomeProduto.normalizar(nome);
+            this.trigramas = NormalizadorNomeProduto.trigramas(this.nome);
+            this.numeros = NormalizadorNomeProduto.numeros(this.nome);
+        }
+    }
+}
@@ -0,0 +1,364 @@
+package com.annaehugo.freepharma.application.services;
+
+import com.annaehugo.freepharma.application.dto.fiscal.NFeXmlData;
+import com.annaehugo.freepharma.domain.entity.fiscal.ImportacaoNFe;
+
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.function.Predicate;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Percorre as NFe de um arquivo de importação uma a uma.
+ *
+ * Envelopes XML (inclusive compactados com gzip) são lidos em uma única passada StAX.
+ * Em arquivos ZIP cada entrada é decodificada em paralelo no executor informado, com no
+ * máximo {@code paralelismo * 2} entradas em memória, e as notas são entregues na ordem do arquivo.
+ * Notas que não puderem ser decodificadas, ou cuja chave de acesso já foi importada, são contadas
+ * como notas do arquivo com erro e não interrompem a leitura. Falhas do arquivo em si, como um ZIP
+ * corrompido ou um XML sem NFe, entram na lista de erros sem contar como nota.
+ *
+ * A leitura deve ser feita por uma única thread; os métodos de registro podem ser chamados de
+ * outras threads enquanto a leitura continua.
+ */
+public class NFeArquivoIterator implements Iterator<NFeXmlData>, AutoCloseable {
+
+    private static final int TAMANHO_ASSINATURA = 4;
+    private static final String MENSAGEM_DUPLICADA = "NFe já importada";
+
+    private final NFeXmlParser parser;
+    private final String nomeArquivo;
+    private final ImportacaoNFe importacao;
+    private final Predicate<String> chaveJaImportada;
+    private final Executor executor;
+    private final int janela;
+    private final InputStream origem;
+
+    private final Deque<NFeXmlData> notasProntas = new ArrayDeque<>();
+    private final Deque<CompletableFuture<ResultadoEntrada>> entradasEmAndamento = new ArrayDeque<>();
+    private final List<String> erros = new ArrayList<>();
+    private final List<Boolean> falhasLeitura = new ArrayList<>();
+
+    private Set<String> chavesJaGravadas = Collections.emptySet();
+    private XMLStreamReader envelope;
+    private ZipInputStream zip;
+    private boolean modoZip;
+    private boolean fimArquivo;
+    private int notasLidas;
+    private int posicaoEnvelope;
+
+    NFeArquivoIterator(NFeXmlParser parser, InputStream arquivo, String nomeArquivo, ImportacaoNFe importacao,
+                       Predicate<String> chaveJaImportada, Executor executor, int paralelismo) {
+        this.parser = parser;
+        this.nomeArquivo = nomeArquivo != null ? nomeArquivo : "arquivo";
+        this.importacao = importacao;
+        this.chaveJaImportada = chaveJaImportada;
+        this.executor = executor;
+        this.janela = Math.max(1, paralelismo) * 2;
+        this.origem = arquivo;
+
+        try {
+            abrir(arquivo);
+        } catch (IOException | XMLStreamException e) {
+            registrarErroArquivo(this.nomeArquivo, "Erro ao abrir arquivo: " + e.getMessage());
+            fimArquivo = true;
+        }
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (notasProntas.isEmpty() && !fimArquivo) {
+            if (modoZip) {
+                avancarZip();
+            } else {
+                avancarEnvelope();
+            }
+        }
+        return !notasProntas.isEmpty();
+    }
+
+    @Override
+    public NFeXmlData next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        return notasProntas.poll();
+    }
+
+    /**
+     * Notas que a importação já gravou antes de ser interrompida: são contadas como processadas e não são
+     * entregues de novo. Deve ser chamado antes da leitura.
+     */
+    public NFeArquivoIterator ignorarGravadas(Set<String> chavesAcesso) {
+        this.chavesJaGravadas = chavesAcesso;
+        return this;
+    }
+
+    /**
+     * Registra na importação que uma nota entregue por este iterator foi processada com sucesso.
+     */
+    public synchronized void registrarNotaProcessada() {
+        if (importacao != null) {
+            importacao.setQuantidadeNotasProcessadas(valor(importacao.getQuantidadeNotasProcessadas()) + 1);
+        }
+    }
+
+    /**
+     * Registra na importação que uma nota entregue por este iterator falhou no processamento.
+     */
+    public synchronized void registrarNotaComErro(String chaveAcesso, String mensagem) {
+        if (importacao != null) {
+            importacao.setQuantidadeNotasComErro(valor(importacao.getQuantidadeNotasComErro()) + 1);
+        }
+        anexarErro(chaveAcesso != null ? chaveAcesso : nomeArquivo, mensagem, false);
+    }
+
+    public synchronized List<String> getErros() {
+        return Collections.unmodifiableList(new ArrayList<>(erros));
+    }
+
+    /**
+     * Quantos dos erros entre as posições {@code inicio} (inclusive) e {@code fim} de {@link #getErros()} são
+     * notas que não puderam ser lidas; os demais são falhas do arquivo ou do processamento de notas entregues.
+     */
+    public synchronized int contarFalhasLeitura(int inicio, int fim) {
+        int falhas = 0;
+        for (int i = Math.max(0, inicio); i < Math.min(fim, falhasLeitura.size()); i++) {
+            if (falhasLeitura.get(i)) {
+                falhas++;
+            }
+        }
+        return falhas;
+    }
+
+    public int getNotasLidas() {
+        return notasLidas;
+    }
+
+    @Override
+    public void close() {
+        fimArquivo = true;
+        entradasEmAndamento.forEach(entrada -> entrada.cancel(true));
+        entradasEmAndamento.clear();
+        notasProntas.clear();
+        parser.fecharReader(envelope);
+        try {
+            origem.close();
+        } catch (IOException e) {
+            // Nada a fazer: o arquivo já foi lido até onde era possível
+        }
+    }
+
+    private void abrir(InputStream arquivo) throws IOException, XMLStreamException {
+        InputStream conteudo = new BufferedInputStream(arquivo);
+        if (isGzip(conteudo)) {
+            conteudo = new BufferedInputStream(new GZIPInputStream(conteudo));
+        }
+        if (isZip(conteudo)) {
+            zip = new ZipInputStream(conteudo);
+            modoZip = true;
+        } else {
+            envelope = parser.criarXmlStreamReader(conteudo);
+        }
+    }
+
+    private void avancarEnvelope() {
+        try {
+            if (!parser.avancarAteElemento(envelope, "NFe")) {
+                if (posicaoEnvelope == 0 && erros.isEmpty()) {
+                    registrarErroArquivo(nomeArquivo, "Elemento NFe não encontrado no XML");
+                }
+                fimArquivo = true;
+                return;
+            }
+        } catch (XMLStreamException e) {
+            // XML malformado entre as notas: não há como localizar as seguintes com segurança
+            registrarErroArquivo(nomeArquivo, "Erro ao fazer parse do XML da NFe: " + e.getMessage());
+            fimArquivo = true;
+            return;
+        }
+        String origemNota = nomeArquivo + " (nota " + (++posicaoEnvelope) + ")";
+        try {
+            NFeXmlData nota = parser.readNFeElement(envelope, chaveJaImportada);
+            if (nota != null) {
+                registrarNotaLida(nota);
+            } else {
+                registrarNotaNaoLida(origemNota, MENSAGEM_DUPLICADA);
+            }
+        } catch (RuntimeException e) {
+            // A nota inválida é descartada e a leitura continua na próxima NFe do envelope
+            registrarNotaNaoLida(origemNota, e.getMessage());
+        } catch (XMLStreamException e) {
+            // XML malformado dentro da nota: ela se perde e as seguintes não podem ser localizadas
+            registrarNotaNaoLida(origemNota, "Erro ao fazer parse do XML da NFe: " + e.getMessage());
+            fimArquivo = true;
+        }
+    }
+
+    private void avancarZip() {
+        preencherJanela();
+
+        CompletableFuture<ResultadoEntrada> proxima = entradasEmAndamento.poll();
+        if (proxima == null) {
+            fimArquivo = true;
+            return;
+        }
+
+        ResultadoEntrada resultado = proxima.join();
+        resultado.notas.forEach(this::registrarNotaLida);
+        resultado.falhas.forEach(falha -> registrarNotaNaoLida(resultado.origem, falha));
+        resultado.erros.forEach(erro -> registrarErroArquivo(resultado.origem, erro));
+    }
+
+    private void preencherJanela() {
+        try {
+            while (zip != null && entradasEmAndamento.size() < janela) {
+                ZipEntry entrada = zip.getNextEntry();
+                if (entrada == null) {
+                    zip = null;
+                    return;
+                }
+                if (!isEntradaXml(entrada)) {
+                    continue;
+                }
+                String origemEntrada = nomeArquivo + "!" + entrada.getName();
+                byte[] conteudo = zip.readAllBytes();
+                entradasEmAndamento.add(CompletableFuture.supplyAsync(
+                    () -> decodificarEntrada(origemEntrada, conteudo), executor));
+            }
+        } catch (IOException e) {
+            registrarErroArquivo(nomeArquivo, "Erro ao ler arquivo ZIP: " + e.getMessage());
+            zip = null;
+        }
+    }
+
+    private ResultadoEntrada decodificarEntrada(String origem, byte[] conteudo) {
+        ResultadoEntrada resultado = new ResultadoEntrada(origem);
+        XMLStreamReader reader = null;
+        try {
+            reader = parser.criarXmlStreamReader(new ByteArrayInputStream(conteudo));
+            boolean encontrouNFe = false;
+            while (parser.avancarAteElemento(reader, "NFe")) {
+                encontrouNFe = true;
+                NFeXmlData nota = parser.readNFeElement(reader, chaveJaImportada);
+                if (nota != null) {
+                    resultado.notas.add(nota);
+                } else {
+                    resultado.falhas.add(MENSAGEM_DUPLICADA);
+                }
+            }
+            if (!encontrouNFe) {
+                resultado.erros.add("Elemento NFe não encontrado no XML");
+            }
+        } catch (Exception e) {
+            // A entrada corrompida conta como uma nota que não pôde ser lida
+            resultado.falhas.add("Erro ao fazer parse do XML da NFe: " + e.getMessage());
+        } finally {
+            parser.fecharReader(reader);
+        }
+        return resultado;
+    }
+
+    private synchronized void registrarNotaLida(NFeXmlData nota) {
+        notasLidas++;
+        if (importacao != null) {
+            importacao.setQuantidadeNotasArquivo(valor(importacao.getQuantidadeNotasArquivo()) + 1);
+        }
+        if (chavesJaGravadas.contains(nota.getChaveAcesso())) {
+            registrarNotaProcessada();
+        } else {
+            notasProntas.add(nota);
+        }
+    }
+
+    /**
+     * Nota do arquivo que não chegou a ser entregue: inválida ou já importada.
+     */
+    private synchronized void registrarNotaNaoLida(String origemErro, String mensagem) {
+        if (importacao != null) {
+            importacao.setQuantidadeNotasArquivo(valor(importacao.getQuantidadeNotasArquivo()) + 1);
+            importacao.setQuantidadeNotasComErro(valor(importacao.getQuantidadeNotasComErro()) + 1);
+        }
+        anexarErro(origemErro, mensagem, true);
+    }
+
+    /**
+     * Falha do arquivo que não corresponde a uma nota; fica registrada sem alterar os contadores.
+     */
+    private synchronized void registrarErroArquivo(String origemErro, String mensagem) {
+        anexarErro(origemErro, mensagem, false);
+    }
+
+    private void anexarErro(String origemErro, String mensagem, boolean falhaLeitura) {
+        String erro = origemErro + ": " + mensagem;
+        erros.add(erro);
+        falhasLeitura.add(falhaLeitura);
+        if (importacao != null) {
+            importacao.setErrosProcessamento(importacao.getErrosProcessamento() == null
+                ? erro : importacao.getErrosProcessamento() + "; " + erro);
+        }
+    }
+
+    private static boolean isEntradaXml(ZipEntry entrada) {
+        String nome = entrada.getName();
+        return !entrada.isDirectory()
+            && !nome.startsWith("__MACOSX/")
+            && nome.toLowerCase().endsWith(".xml");
+    }
+
+    private static boolean isGzip(InputStream conteudo) throws IOException {
+        byte[] assinatura = lerAssinatura(conteudo);
+        return (assinatura[0] & 0xFF) == 0x1F && (assinatura[1] & 0xFF) == 0x8B;
+    }
+
+    private static boolean isZip(InputStream conteudo) throws IOException {
+        byte[] assinatura = lerAssinatura(conteudo);
+        return assinatura[0] == 'P' && assinatura[1] == 'K' && assinatura[2] == 3 && assinatura[3] == 4;
+    }
+
+    private static byte[] lerAssinatura(InputStream conteudo) throws IOException {
+        byte[] assinatura = new byte[TAMANHO_ASSINATURA];
+        conteudo.mark(TAMANHO_ASSINATURA);
+        int lidos = 0;
+        while (lidos < TAMANHO_ASSINATURA) {
+            int n = conteudo.read(assinatura, lidos, TAMANHO_ASSINATURA - lidos);
+            if (n < 0) {
+                break;
+            }
+            lidos += n;
+        }
+        conteudo.reset();
+        return assinatura;
+    }
+
+    private static int valor(Integer contador) {
+        return contador != null ? contador : 0;
+    }
+
+    private static class ResultadoEntrada {
+        private final String origem;
+        private final List<NFeXmlData> notas = new ArrayList<>();
+        private final List<String> falhas = new ArrayList<>();
+        private final List<String> erros = new ArrayList<>();
+
+        ResultadoEntrada(String origem) {
+            this.origem = origem;
+        }
+    }
+}
@@ -0,0 +1,239 @@
+package com.annaehugo.freepharma.application.services;
+
+import com.annaehugo.freepharma.application.dto.fiscal.NFeCabecalho;
+import com.annaehugo.freepharma.domain.repository.fiscal.NotaFiscalRepository;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Detecta NFe já importadas antes do parse completo. Todas as chaves gravadas ficam em um filtro
+ * de Bloom carregado na inicialização ({@link #aquecer()}) e atualizado a cada commit: uma chave
+ * que o filtro não conhece é nova com certeza e é liberada sem consulta ao banco. As demais são
+ * confirmadas em {@link NotaFiscalRepository#existsByChaveAcesso}, que usa o índice único da coluna,
+ * e as duplicadas confirmadas ficam em um índice em memória (LRU), de modo que as cópias
+ * redistribuídas pela SEFAZ são rejeitadas sem nova consulta.
+ *
+ * O filtro só conhece as notas gravadas por esta instância da aplicação depois da carga; uma nota
+ * gravada por outra instância ao mesmo tempo é barrada pelo índice único ao gravar.
+ */
+@Service
+public class NFeDuplicidadeService {
+
+    static final double TAXA_FALSO_POSITIVO = 0.01;
+    static final int TAMANHO_PAGINA_CARGA = 10_000;
+
+    private final NotaFiscalRepository notaFiscalRepository;
+    private final NFeXmlParser nfeXmlParser;
+    private final Set<String> chavesImportadas;
+    private final int capacidadeFiltro;
+
+    private volatile FiltroBloom filtro;
+    private FiltroBloom filtroEmCarga;
+
+    @Autowired
+    public NFeDuplicidadeService(
+            NotaFiscalRepository notaFiscalRepository,
+            NFeXmlParser nfeXmlParser,
+            @Value("${freepharma.nfe.duplicidade.tamanho-indice:100000}") int tamanhoIndice,
+            @Value("${freepharma.nfe.duplicidade.capacidade-filtro:1000000}") int capacidadeFiltro) {
+        this.notaFiscalRepository = notaFiscalRepository;
+        this.nfeXmlParser = nfeXmlParser;
+        this.capacidadeFiltro = capacidadeFiltro;
+        this.chavesImportadas = Collections.newSetFromMap(Collections.synchronizedMap(
+            new LinkedHashMap<String, Boolean>(1024, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Boolean> maisAntiga) {
+                    return size() > tamanhoIndice;
+                }
+            }));
+    }
+
+    /**
+     * Carrega no filtro as chaves de todas as notas gravadas, em páginas ordenadas pelo ID. Até o
+     * fim da carga as verificações consultam o banco como se o filtro não existisse.
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void aquecer() {
+        try {
+            carregarFiltro();
+        } catch (RuntimeException e) {
+            // Sem o filtro as verificações continuam indo ao banco; a próxima chamada de aquecer() tenta de novo
+            synchronized (this) {
+                filtroEmCarga = null;
+            }
+        }
+    }
+
+    private void carregarFiltro() {
+        long quantidade = notaFiscalRepository.countByChaveAcessoIsNotNull();
+        FiltroBloom novo = new FiltroBloom(Math.max(capacidadeFiltro, quantidade * 2), TAXA_FALSO_POSITIVO);
+        synchronized (this) {
+            filtroEmCarga = novo;
+        }
+
+        Long ultimoId = 0L;
+        List<Object[]> pagina;
+        do {
+            pagina = notaFiscalRepository.findChavesAcessoAposId(ultimoId, PageRequest.of(0, TAMANHO_PAGINA_CARGA));
+            for (Object[] linha : pagina) {
+                ultimoId = (Long) linha[0];
+                novo.adicionar((String) linha[1]);
+            }
+        } while (pagina.size() == TAMANHO_PAGINA_CARGA);
+
+        synchronized (this) {
+            filtro = novo;
+            filtroEmCarga = null;
+        }
+    }
+
+    /**
+     * Lê apenas o cabeçalho do XML e retorna a chave e o emitente quando a NFe já foi importada.
+     */
+    public Optional<NFeCabecalho> buscarDuplicada(byte[] xmlContent) {
+        NFeCabecalho cabecalho = nfeXmlParser.lerCabecalho(xmlContent);
+        return isDuplicada(cabecalho.getChaveAcesso()) ? Optional.of(cabecalho) : Optional.empty();
+    }
+
+    public boolean isDuplicada(String chaveAcesso) {
+        if (chaveAcesso == null || chaveAcesso.isEmpty()) {
+            return false;
+        }
+        FiltroBloom atual = filtro;
+        if (atual != null && !atual.contem(chaveAcesso)) {
+            return false;
+        }
+        if (chavesImportadas.contains(chaveAcesso)) {
+            return true;
+        }
+        if (notaFiscalRepository.existsByChaveAcesso(chaveAcesso)) {
+            chavesImportadas.add(chaveAcesso);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Inclui no índice a chave de uma nota recém gravada. Dentro de uma transação a chave só entra
+     * no índice após o commit, para que um rollback não deixe a nota marcada como importada.
+     */
+    public void registrarImportada(String chaveAcesso) {
+        if (chaveAcesso == null || chaveAcesso.isEmpty()) {
+            return;
+        }
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    incluir(chaveAcesso);
+                }
+            });
+        } else {
+            incluir(chaveAcesso);
+        }
+    }
+
+    public boolean isFiltroCarregado() {
+        return filtro != null;
+    }
+
+    private synchronized void incluir(String chaveAcesso) {
+        chavesImportadas.add(chaveAcesso);
+        if (filtro != null) {
+            filtro.adicionar(chaveAcesso);
+        }
+        if (filtroEmCarga != null) {
+            filtroEmCarga.adicionar(chaveAcesso);
+        }
+    }
+
+    /**
+     * Filtro de Bloom com os bits em um {@link AtomicLongArray}: inclusões e consultas podem ocorrer
+     * em paralelo sem trava. As posições vêm de duplo hashing (h1 + i * h2) sobre um hash de 64 bits.
+     */
+    static class FiltroBloom {
+        private final AtomicLongArray bits;
+        private final long quantidadeBits;
+        private final int quantidadeHashes;
+
+        FiltroBloom(long capacidade, double taxaFalsoPositivo) {
+            long n = Math.max(1, capacidade);
+            long m = (long) Math.ceil(-n * Math.log(taxaFalsoPositivo) / (Math.log(2) * Math.log(2)));
+            this.quantidadeBits = Math.max(64, (m + 63) / 64 * 64);
+            this.quantidadeHashes = Math.max(1, (int) Math.round((double) quantidadeBits / n * Math.log(2)));
+            this.bits = new AtomicLongArray((int) (quantidadeBits / 64));
+        }
+
+        void adicionar(String chave) {
+            long hash = hash(chave);
+            long h1 = hash;
+            long h2 = misturar(hash);
+            for (int i = 0; i < quantidadeHashes; i++) {
+                long posicao = Math.floorMod(h1 + i * h2, quantidadeBits);
+                int indice = (int) (posicao >>> 6);
+                long mascara = 1L << posicao;
+                long atual;
+                do {
+                    atual = bits.get(indice);
+                    if ((atual & mascara) != 0) {
+                        break;
+                    }
+                } while (!bits.compareAndSet(indice, atual, atual | mascara));
+            }
+        }
+
+        boolean contem(String chave) {
+            long hash = hash(chave);
+            long h1 = hash;
+            long h2 = misturar(hash);
+            for (int i = 0; i < quantidadeHashes; i++) {
+                long posicao = Math.floorMod(h1 + i * h2, quantidadeBits);
+                if ((bits.get((int) (posicao >>> 6)) & (1L << posicao)) == 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        int getQuantidadeHashes() {
+            return quantidadeHashes;
+        }
+
+        long getQuantidadeBits() {
+            return quantidadeBits;
+        }
+
+        // FNV-1a de 64 bits sobre os bytes da chave
+        private static long hash(String chave) {
+            long hash = 0xcbf29ce484222325L;
+            for (byte b : chave.getBytes(StandardCharsets.UTF_8)) {
+                hash ^= (b & 0xff);
+                hash *= 0x100000001b3L;
+            }
+            return hash;
+        }
+
+        // Finalizador do SplitMix64, usado para derivar o segundo hash
+        private static long misturar(long valor) {
+            long z = valor + 0x9e3779b97f4a7c15L;
+            z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+            z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+            return (z ^ (z >>> 31)) | 1;
+        }
+    }
+}
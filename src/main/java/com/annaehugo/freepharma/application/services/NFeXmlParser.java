@@ -1,99 +1,495 @@
 package com.annaehugo.freepharma.application.services;
 
+import com.annaehugo.freepharma.application.dto.fiscal.NFeCabecalho;
 import com.annaehugo.freepharma.application.dto.fiscal.NFeXmlData;
+import com.annaehugo.freepharma.domain.entity.fiscal.ImportacaoNFe;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.DefaultResourceLoader;
+import org.springframework.core.io.Resource;
 import org.springframework.stereotype.Service;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
+import org.xml.sax.ErrorHandler;
+import org.xml.sax.SAXException;
+import org.xml.sax.SAXParseException;
 
+import javax.xml.XMLConstants;
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.transform.stream.StreamSource;
+import javax.xml.validation.Schema;
+import javax.xml.validation.SchemaFactory;
 import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.math.BigDecimal;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.OffsetDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayDeque;
 import java.util.Date;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Function;
+import java.util.function.Predicate;
 
 @Service
 public class NFeXmlParser {
     
-    private final SimpleDateFormat dateFormatter = new SimpleDateFormat("yyyy-MM-dd");
-    private final SimpleDateFormat dateTimeFormatter = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssXXX");
+    // Campos folha lidos pelo modo streaming; os demais elementos são apenas atravessados
+    private static final Set<String> CAMPOS_STREAMING = Set.of(
+        "nNF", "serie", "dhEmi", "dEmi", "vNF",
+        "CNPJ", "CPF", "xNome", "xFant", "IE", "fone", "email",
+        "xLgr", "nro", "xBairro", "xMun", "UF", "CEP",
+        "cProd", "xProd", "cEAN", "NCM", "CFOP", "uCom", "qCom", "vUnCom", "vProd", "xLote", "dVal");
+    
+    // O pré-exame do cabeçalho lê no máximo este trecho do início do XML
+    static final int TAMANHO_MAXIMO_CABECALHO = 16 * 1024;
+    
+    // Valores monetários e quantidades da NFe cabem em um long até 18 dígitos
+    private static final int DIGITOS_LONG = 18;
+    
+    // Fábricas configuradas uma única vez e compartilhadas: o parser é um singleton usado por várias requisições
+    private static final XMLInputFactory XML_INPUT_FACTORY = criarXmlInputFactory();
+    private static final DocumentBuilderFactory DOCUMENT_BUILDER_FACTORY = criarDocumentBuilderFactory(null);
+    
+    // DocumentBuilder não é thread-safe: cada thread reutiliza o seu
+    private static final ThreadLocal<DocumentBuilder> DOCUMENT_BUILDER = ThreadLocal.withInitial(() -> {
+        try {
+            return DOCUMENT_BUILDER_FACTORY.newDocumentBuilder();
+        } catch (ParserConfigurationException e) {
+            throw new IllegalStateException("Erro ao configurar o parser XML: " + e.getMessage(), e);
+        }
+    });
+    
+    // Erros de validação interrompem o parse; o padrão do JAXP apenas os imprime e segue
+    private static final ErrorHandler ERROS_SCHEMA = new ErrorHandler() {
+        @Override
+        public void warning(SAXParseException e) {
+        }
+        
+        @Override
+        public void error(SAXParseException e) throws SAXException {
+            throw new SAXException("XML não está de acordo com o schema da NFe (linha "
+                + e.getLineNumber() + "): " + e.getMessage(), e);
+        }
+        
+        @Override
+        public void fatalError(SAXParseException e) throws SAXException {
+            throw e;
+        }
+    };
+    
+    private final String localSchema;
+    
+    // Schema compilado na primeira validação e reaproveitado por todas as importações
+    private volatile DocumentBuilderFactory documentBuilderFactoryComSchema;
+    
+    private final ThreadLocal<DocumentBuilder> documentBuilderComSchema = ThreadLocal.withInitial(() -> {
+        try {
+            return getDocumentBuilderFactoryComSchema().newDocumentBuilder();
+        } catch (ParserConfigurationException e) {
+            throw new IllegalStateException("Erro ao configurar o parser XML: " + e.getMessage(), e);
+        }
+    });
+    
+    public NFeXmlParser() {
+        this("");
+    }
+    
+    /**
+     * @param localSchema XSD da NFe (leiauteNFe/nfe_v4.00.xsd), como "classpath:..." ou "file:...".
+     *                    Vazio desativa a validação por schema.
+     */
+    @Autowired
+    public NFeXmlParser(@Value("${freepharma.nfe.schema:}") String localSchema) {
+        this.localSchema = localSchema != null ? localSchema.trim() : "";
+    }
+    
+    public boolean isValidacaoSchemaAtiva() {
+        return !localSchema.isEmpty();
+    }
     
     public NFeXmlData parseNFeXml(byte[] xmlContent) {
         try {
-            DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
-            DocumentBuilder builder = factory.newDocumentBuilder();
-            Document document = builder.parse(new ByteArrayInputStream(xmlContent));
+            DocumentBuilder builder = DOCUMENT_BUILDER.get();
+            builder.reset();
+            return lerDocumento(builder.parse(new ByteArrayInputStream(xmlContent)));
             
-            document.getDocumentElement().normalize();
+        } catch (Exception e) {
+            throw new RuntimeException("Erro ao fazer parse do XML da NFe: " + e.getMessage(), e);
+        }
+    }
+    
+    /**
+     * Lê a NFe de um stream em uma única passada. Com schema configurado o XML é validado durante
+     * o próprio parse, sem compilar o XSD novamente nem reler o arquivo; sem schema é usado o modo
+     * streaming. O stream não é fechado.
+     */
+    public NFeXmlData parseNFeXml(InputStream xmlStream) {
+        if (!isValidacaoSchemaAtiva()) {
+            return parseNFeXmlStreaming(xmlStream);
+        }
+        try {
+            DocumentBuilder builder = documentBuilderComSchema.get();
+            builder.reset();
+            builder.setErrorHandler(ERROS_SCHEMA);
+            return lerDocumento(builder.parse(xmlStream));
             
-            NFeXmlData nfeData = new NFeXmlData();
+        } catch (Exception e) {
+            throw new RuntimeException("Erro ao fazer parse do XML da NFe: " + e.getMessage(), e);
+        }
+    }
+    
+    private NFeXmlData lerDocumento(Document document) {
+        document.getDocumentElement().normalize();
+        
+        NFeXmlData nfeData = new NFeXmlData();
+        
+        // Buscar elemento principal da NFe
+        Element nfeElement = getElementByTagName(document, "NFe");
+        if (nfeElement == null) {
+            throw new RuntimeException("Elemento NFe não encontrado no XML");
+        }
+        
+        Element infNFeElement = getElementByTagName(nfeElement, "infNFe");
+        if (infNFeElement == null) {
+            throw new RuntimeException("Elemento infNFe não encontrado no XML");
+        }
+        
+        // Extrair dados principais da NFe
+        extractNFeMainData(nfeData, infNFeElement);
+        
+        // Extrair dados do emitente (fornecedor)
+        extractEmitenteData(nfeData, infNFeElement);
+        
+        // Extrair dados do destinatário
+        extractDestinatarioData(nfeData, infNFeElement);
+        
+        // Extrair itens da nota
+        extractItensData(nfeData, infNFeElement);
+        
+        // Determinar tipo de operação baseado no CFOP
+        determineOperationType(nfeData);
+        
+        return nfeData;
+    }
+    
+    /**
+     * Modo streaming (StAX): preenche o NFeXmlData em uma única passada sobre o XML,
+     * sem montar a árvore DOM. Produz o mesmo resultado de {@link #parseNFeXml(byte[])}.
+     */
+    public NFeXmlData parseNFeXmlStreaming(byte[] xmlContent) {
+        return parseNFeXmlStreaming(new ByteArrayInputStream(xmlContent));
+    }
+    
+    public NFeXmlData parseNFeXmlStreaming(InputStream xmlStream) {
+        XMLStreamReader reader = null;
+        try {
+            reader = criarXmlStreamReader(xmlStream);
             
-            // Buscar elemento principal da NFe
-            Element nfeElement = getElementByTagName(document, "NFe");
-            if (nfeElement == null) {
+            if (!avancarAteElemento(reader, "NFe")) {
                 throw new RuntimeException("Elemento NFe não encontrado no XML");
             }
             
-            Element infNFeElement = getElementByTagName(nfeElement, "infNFe");
-            if (infNFeElement == null) {
-                throw new RuntimeException("Elemento infNFe não encontrado no XML");
-            }
-            
-            // Extrair dados principais da NFe
-            extractNFeMainData(nfeData, infNFeElement);
-            
-            // Extrair dados do emitente (fornecedor)
-            extractEmitenteData(nfeData, infNFeElement);
-            
-            // Extrair dados do destinatário
-            extractDestinatarioData(nfeData, infNFeElement);
+            NFeXmlData nfeData = readNFeElement(reader);
             
-            // Extrair itens da nota
-            extractItensData(nfeData, infNFeElement);
-            
-            // Determinar tipo de operação baseado no CFOP
-            determineOperationType(nfeData);
+            // Consumir o restante do documento para rejeitar XML malformado, como no modo DOM
+            while (reader.hasNext()) {
+                reader.next();
+            }
             
             return nfeData;
             
         } catch (Exception e) {
             throw new RuntimeException("Erro ao fazer parse do XML da NFe: " + e.getMessage(), e);
+        } finally {
+            fecharReader(reader);
         }
     }
     
-    private void extractNFeMainData(NFeXmlData nfeData, Element infNFeElement) {
-        // Chave de acesso
-        String chave = infNFeElement.getAttribute("Id");
-        if (chave != null && chave.startsWith("NFe")) {
-            chave = chave.substring(3); // Remove "NFe" prefix
+    /**
+     * Pré-exame do cabeçalho: lê apenas a chave de acesso (infNFe@Id) e o CNPJ do emitente,
+     * sem montar o NFeXmlData. Examina no máximo os primeiros 16 KB do XML; os campos que não
+     * aparecem nesse trecho, ou em um XML malformado, ficam nulos.
+     */
+    public NFeCabecalho lerCabecalho(byte[] xmlContent) {
+        NFeCabecalho cabecalho = new NFeCabecalho();
+        XMLStreamReader reader = null;
+        try {
+            reader = criarXmlStreamReader(new ByteArrayInputStream(xmlContent, 0,
+                Math.min(xmlContent.length, TAMANHO_MAXIMO_CABECALHO)));
+            
+            boolean dentroEmit = false;
+            while (reader.hasNext() && cabecalho.getCnpjEmitente() == null) {
+                int evento = reader.next();
+                if (evento == XMLStreamConstants.START_ELEMENT) {
+                    String nome = reader.getLocalName();
+                    if (cabecalho.getChaveAcesso() == null && "infNFe".equals(nome)) {
+                        // Sem o atributo Id a chave fica vazia, como no parse completo
+                        String id = reader.getAttributeValue(null, "Id");
+                        cabecalho.setChaveAcesso(id != null ? removerPrefixoChave(id) : "");
+                    } else if ("emit".equals(nome)) {
+                        dentroEmit = true;
+                    } else if (dentroEmit && "CNPJ".equals(nome)) {
+                        cabecalho.setCnpjEmitente(reader.getElementText());
+                    }
+                } else if (evento == XMLStreamConstants.END_ELEMENT && "emit".equals(reader.getLocalName())) {
+                    dentroEmit = false;
+                }
+            }
+        } catch (XMLStreamException e) {
+            // Fim do trecho examinado ou XML malformado: vale o que já foi lido
+        } finally {
+            fecharReader(reader);
+        }
+        return cabecalho;
+    }
+    
+    /**
+     * Abre um arquivo com uma ou várias NFe (XML avulso, envelope nfeProc/enviNFe, ZIP ou gzip)
+     * e entrega as notas uma a uma, sem carregar o arquivo inteiro em memória. Entradas de ZIP
+     * são decodificadas em paralelo; os contadores da importação são atualizados a cada nota.
+     */
+    public NFeArquivoIterator lerArquivo(InputStream arquivo, String nomeArquivo, ImportacaoNFe importacao) {
+        return lerArquivo(arquivo, nomeArquivo, importacao, null);
+    }
+    
+    /**
+     * Como {@link #lerArquivo(InputStream, String, ImportacaoNFe)}, descartando as notas cuja chave
+     * de acesso já foi importada. A chave é verificada ao abrir o infNFe e o restante da nota é
+     * apenas atravessado; cada nota descartada é registrada como erro da importação.
+     */
+    public NFeArquivoIterator lerArquivo(InputStream arquivo, String nomeArquivo, ImportacaoNFe importacao,
+                                         Predicate<String> chaveJaImportada) {
+        return new NFeArquivoIterator(this, arquivo, nomeArquivo, importacao, chaveJaImportada,
+            ForkJoinPool.commonPool(), Runtime.getRuntime().availableProcessors());
+    }
+    
+    /**
+     * Lê um elemento NFe completo a partir de um reader posicionado no seu START_ELEMENT.
+     * Ao retornar, o reader está posicionado no END_ELEMENT correspondente.
+     */
+    NFeXmlData readNFeElement(XMLStreamReader reader) throws XMLStreamException {
+        return readNFeElement(reader, null);
+    }
+    
+    /**
+     * Como {@link #readNFeElement(XMLStreamReader)}, mas retorna null sem montar o NFeXmlData
+     * quando a chave de acesso do infNFe satisfaz {@code chaveJaImportada}.
+     */
+    NFeXmlData readNFeElement(XMLStreamReader reader, Predicate<String> chaveJaImportada) throws XMLStreamException {
+        NFeXmlData nfeData = null;
+        boolean descartada = false;
+        int profundidade = 1;
+        
+        while (profundidade > 0) {
+            int evento = reader.next();
+            if (evento == XMLStreamConstants.START_ELEMENT) {
+                if (nfeData == null && !descartada && "infNFe".equals(reader.getLocalName())) {
+                    String chave = removerPrefixoChave(reader.getAttributeValue(null, "Id"));
+                    if (chaveJaImportada != null && chaveJaImportada.test(chave)) {
+                        descartada = true;
+                        profundidade++;
+                    } else {
+                        nfeData = readInfNFeElement(reader);
+                    }
+                } else {
+                    profundidade++;
+                }
+            } else if (evento == XMLStreamConstants.END_ELEMENT) {
+                profundidade--;
+            }
+        }
+        
+        if (descartada) {
+            return null;
+        }
+        if (nfeData == null) {
+            throw new RuntimeException("Elemento infNFe não encontrado no XML");
+        }
+        
+        determineOperationType(nfeData);
+        return nfeData;
+    }
+    
+    private NFeXmlData readInfNFeElement(XMLStreamReader reader) throws XMLStreamException {
+        NFeXmlData nfeData = new NFeXmlData();
+        
+        String chave = reader.getAttributeValue(null, "Id");
+        Deque<SecaoStreaming> secoesAbertas = new ArrayDeque<>();
+        Set<String> secoesLidas = new HashSet<>();
+        SecaoStreaming ide = null;
+        SecaoStreaming icmsTot = null;
+        
+        String campoAtual = null;
+        int profundidadeCampo = 0;
+        StringBuilder textoCampo = null;
+        int profundidade = 1;
+        
+        while (profundidade > 0) {
+            int evento = reader.next();
+            switch (evento) {
+                case XMLStreamConstants.START_ELEMENT: {
+                    profundidade++;
+                    String nome = reader.getLocalName();
+                    SecaoStreaming secao = abrirSecao(nome, secoesAbertas, secoesLidas, profundidade);
+                    if (secao != null) {
+                        secoesAbertas.push(secao);
+                    } else if (campoAtual == null && CAMPOS_STREAMING.contains(nome)) {
+                        campoAtual = nome;
+                        profundidadeCampo = profundidade;
+                        textoCampo = new StringBuilder();
+                    }
+                    break;
+                }
+                case XMLStreamConstants.CHARACTERS:
+                case XMLStreamConstants.CDATA:
+                case XMLStreamConstants.SPACE:
+                    if (textoCampo != null) {
+                        textoCampo.append(reader.getText());
+                    }
+                    break;
+                case XMLStreamConstants.END_ELEMENT: {
+                    if (campoAtual != null && profundidade == profundidadeCampo) {
+                        // Mesma semântica de getElementsByTagName: vale a primeira ocorrência em qualquer nível
+                        for (SecaoStreaming aberta : secoesAbertas) {
+                            aberta.campos.putIfAbsent(campoAtual, textoCampo.toString());
+                        }
+                        campoAtual = null;
+                        textoCampo = null;
+                    } else if (!secoesAbertas.isEmpty() && secoesAbertas.peek().profundidade == profundidade) {
+                        SecaoStreaming fechada = secoesAbertas.pop();
+                        switch (fechada.nome) {
+                            case "ide":
+                                ide = fechada;
+                                break;
+                            case "emit":
+                                nfeData.setEmitente(buildEmitente(fechada.campos::get,
+                                    fechada.subsecao != null ? fechada.subsecao.campos::get : null));
+                                break;
+                            case "dest":
+                                nfeData.setDestinatario(buildDestinatario(fechada.campos::get,
+                                    fechada.subsecao != null ? fechada.subsecao.campos::get : null));
+                                break;
+                            case "det":
+                                if (fechada.subsecao != null) {
+                                    nfeData.getItens().add(buildItem(fechada.subsecao.campos::get));
+                                }
+                                break;
+                            case "total":
+                                icmsTot = fechada.subsecao;
+                                break;
+                            default:
+                                break;
+                        }
+                    }
+                    profundidade--;
+                    break;
+                }
+                default:
+                    break;
+            }
         }
-        nfeData.setChaveAcesso(chave);
         
+        fillNFeMainData(nfeData, chave != null ? chave : "",
+            ide != null ? ide.campos::get : null,
+            icmsTot != null ? icmsTot.campos::get : null);
+        
+        return nfeData;
+    }
+    
+    private SecaoStreaming abrirSecao(String nome, Deque<SecaoStreaming> secoesAbertas,
+                                      Set<String> secoesLidas, int profundidade) {
+        switch (nome) {
+            case "ide":
+            case "emit":
+            case "dest":
+            case "total":
+                // Apenas a primeira ocorrência é considerada, como em getElementByTagName
+                return secoesLidas.add(nome) ? new SecaoStreaming(nome, profundidade) : null;
+            case "det":
+                return secaoAberta(secoesAbertas, "det") == null ? new SecaoStreaming(nome, profundidade) : null;
+            case "prod":
+                return abrirSubsecao(secaoAberta(secoesAbertas, "det"), nome, profundidade);
+            case "enderEmit":
+                return abrirSubsecao(secaoAberta(secoesAbertas, "emit"), nome, profundidade);
+            case "enderDest":
+                return abrirSubsecao(secaoAberta(secoesAbertas, "dest"), nome, profundidade);
+            case "ICMSTot":
+                return abrirSubsecao(secaoAberta(secoesAbertas, "total"), nome, profundidade);
+            default:
+                return null;
+        }
+    }
+    
+    private SecaoStreaming abrirSubsecao(SecaoStreaming pai, String nome, int profundidade) {
+        if (pai == null || pai.subsecao != null) {
+            return null;
+        }
+        pai.subsecao = new SecaoStreaming(nome, profundidade);
+        return pai.subsecao;
+    }
+    
+    private SecaoStreaming secaoAberta(Deque<SecaoStreaming> secoesAbertas, String nome) {
+        for (SecaoStreaming secao : secoesAbertas) {
+            if (secao.nome.equals(nome)) {
+                return secao;
+            }
+        }
+        return null;
+    }
+    
+    private void extractNFeMainData(NFeXmlData nfeData, Element infNFeElement) {
         // Dados básicos da NFe
         Element ideElement = getElementByTagName(infNFeElement, "ide");
-        if (ideElement != null) {
-            nfeData.setNumero(getTextContent(ideElement, "nNF"));
-            nfeData.setSerie(getTextContent(ideElement, "serie"));
+        
+        // Totais da NFe
+        Element icmsTotElement = null;
+        Element totalElement = getElementByTagName(infNFeElement, "total");
+        if (totalElement != null) {
+            icmsTotElement = getElementByTagName(totalElement, "ICMSTot");
+        }
+        
+        fillNFeMainData(nfeData, infNFeElement.getAttribute("Id"),
+            ideElement != null ? campoDe(ideElement) : null,
+            icmsTotElement != null ? campoDe(icmsTotElement) : null);
+    }
+    
+    private void fillNFeMainData(NFeXmlData nfeData, String chave,
+                                 Function<String, String> ide, Function<String, String> icmsTot) {
+        // Chave de acesso
+        nfeData.setChaveAcesso(removerPrefixoChave(chave));
+        
+        if (ide != null) {
+            nfeData.setNumero(ide.apply("nNF"));
+            nfeData.setSerie(ide.apply("serie"));
             
             // Data de emissão
-            String dataEmissaoStr = getTextContent(ideElement, "dhEmi");
+            String dataEmissaoStr = ide.apply("dhEmi");
             if (dataEmissaoStr == null || dataEmissaoStr.isEmpty()) {
-                dataEmissaoStr = getTextContent(ideElement, "dEmi");
+                dataEmissaoStr = ide.apply("dEmi");
             }
             nfeData.setDataEmissao(parseDate(dataEmissaoStr));
         }
         
-        // Totais da NFe
-        Element totalElement = getElementByTagName(infNFeElement, "total");
-        if (totalElement != null) {
-            Element icmsTotElement = getElementByTagName(totalElement, "ICMSTot");
-            if (icmsTotElement != null) {
-                String valorTotalStr = getTextContent(icmsTotElement, "vNF");
-                nfeData.setValorTotal(parseBigDecimal(valorTotalStr));
-            }
+        if (icmsTot != null) {
+            String valorTotalStr = icmsTot.apply("vNF");
+            nfeData.setValorTotal(parseBigDecimal(valorTotalStr));
         }
     }
     
@@ -101,59 +497,69 @@ public class NFeXmlParser {
         Element emitElement = getElementByTagName(infNFeElement, "emit");
         if (emitElement == null) return;
         
+        Element endEmitElement = getElementByTagName(emitElement, "enderEmit");
+        nfeData.setEmitente(buildEmitente(campoDe(emitElement),
+            endEmitElement != null ? campoDe(endEmitElement) : null));
+    }
+    
+    private NFeXmlData.EmitenteDados buildEmitente(Function<String, String> emit, Function<String, String> enderEmit) {
         NFeXmlData.EmitenteDados emitente = new NFeXmlData.EmitenteDados();
         
-        emitente.setCnpj(getTextContent(emitElement, "CNPJ"));
-        emitente.setRazaoSocial(getTextContent(emitElement, "xNome"));
-        emitente.setNomeFantasia(getTextContent(emitElement, "xFant"));
-        emitente.setInscricaoEstadual(getTextContent(emitElement, "IE"));
+        emitente.setCnpj(emit.apply("CNPJ"));
+        emitente.setRazaoSocial(emit.apply("xNome"));
+        emitente.setNomeFantasia(emit.apply("xFant"));
+        emitente.setInscricaoEstadual(emit.apply("IE"));
         
         // Endereço
-        Element endEmitElement = getElementByTagName(emitElement, "enderEmit");
-        if (endEmitElement != null) {
+        if (enderEmit != null) {
             StringBuilder endereco = new StringBuilder();
-            appendIfNotNull(endereco, getTextContent(endEmitElement, "xLgr"), "");
-            appendIfNotNull(endereco, getTextContent(endEmitElement, "nro"), ", ");
-            appendIfNotNull(endereco, getTextContent(endEmitElement, "xBairro"), " - ");
-            appendIfNotNull(endereco, getTextContent(endEmitElement, "xMun"), ", ");
-            appendIfNotNull(endereco, getTextContent(endEmitElement, "UF"), " - ");
-            appendIfNotNull(endereco, getTextContent(endEmitElement, "CEP"), " CEP: ");
+            appendIfNotNull(endereco, enderEmit.apply("xLgr"), "");
+            appendIfNotNull(endereco, enderEmit.apply("nro"), ", ");
+            appendIfNotNull(endereco, enderEmit.apply("xBairro"), " - ");
+            appendIfNotNull(endereco, enderEmit.apply("xMun"), ", ");
+            appendIfNotNull(endereco, enderEmit.apply("UF"), " - ");
+            appendIfNotNull(endereco, enderEmit.apply("CEP"), " CEP: ");
             emitente.setEndereco(endereco.toString());
         }
         
         // Contato
-        emitente.setTelefone(getTextContent(emitElement, "fone"));
-        emitente.setEmail(getTextContent(emitElement, "email"));
+        emitente.setTelefone(emit.apply("fone"));
+        emitente.setEmail(emit.apply("email"));
         
-        nfeData.setEmitente(emitente);
+        return emitente;
     }
     
     private void extractDestinatarioData(NFeXmlData nfeData, Element infNFeElement) {
         Element destElement = getElementByTagName(infNFeElement, "dest");
         if (destElement == null) return;
         
+        Element endDestElement = getElementByTagName(destElement, "enderDest");
+        nfeData.setDestinatario(buildDestinatario(campoDe(destElement),
+            endDestElement != null ? campoDe(endDestElement) : null));
+    }
+    
+    private NFeXmlData.DestinatarioDados buildDestinatario(Function<String, String> dest, Function<String, String> enderDest) {
         NFeXmlData.DestinatarioDados destinatario = new NFeXmlData.DestinatarioDados();
         
         // CNPJ ou CPF
-        String cnpj = getTextContent(destElement, "CNPJ");
-        String cpf = getTextContent(destElement, "CPF");
+        String cnpj = dest.apply("CNPJ");
+        String cpf = dest.apply("CPF");
         destinatario.setCnpjCpf(cnpj != null ? cnpj : cpf);
         
-        destinatario.setNome(getTextContent(destElement, "xNome"));
+        destinatario.setNome(dest.apply("xNome"));
         
         // Endereço
-        Element endDestElement = getElementByTagName(destElement, "enderDest");
-        if (endDestElement != null) {
+        if (enderDest != null) {
             StringBuilder endereco = new StringBuilder();
-            appendIfNotNull(endereco, getTextContent(endDestElement, "xLgr"), "");
-            appendIfNotNull(endereco, getTextContent(endDestElement, "nro"), ", ");
-            appendIfNotNull(endereco, getTextContent(endDestElement, "xBairro"), " - ");
-            appendIfNotNull(endereco, getTextContent(endDestElement, "xMun"), ", ");
-            appendIfNotNull(endereco, getTextContent(endDestElement, "UF"), " - ");
+            appendIfNotNull(endereco, enderDest.apply("xLgr"), "");
+            appendIfNotNull(endereco, enderDest.apply("nro"), ", ");
+            appendIfNotNull(endereco, enderDest.apply("xBairro"), " - ");
+            appendIfNotNull(endereco, enderDest.apply("xMun"), ", ");
+            appendIfNotNull(endereco, enderDest.apply("UF"), " - ");
             destinatario.setEndereco(endereco.toString());
         }
         
-        nfeData.setDestinatario(destinatario);
+        return destinatario;
     }
     
     private void extractItensData(NFeXmlData nfeData, Element infNFeElement) {
@@ -167,35 +573,39 @@ public class NFeXmlParser {
                 Element prodElement = getElementByTagName(detElement, "prod");
                 if (prodElement == null) continue;
                 
-                NFeXmlData.ItemNFeDados item = new NFeXmlData.ItemNFeDados();
-                
-                item.setCodigoProduto(getTextContent(prodElement, "cProd"));
-                item.setNomeProduto(getTextContent(prodElement, "xProd"));
-                item.setDescricaoProduto(getTextContent(prodElement, "xProd")); // Usar mesmo valor para descrição
-                item.setEan(getTextContent(prodElement, "cEAN"));
-                item.setNcm(getTextContent(prodElement, "NCM"));
-                item.setCfop(getTextContent(prodElement, "CFOP"));
-                item.setUnidadeMedida(getTextContent(prodElement, "uCom"));
-                
-                // Quantidades e valores
-                String qtdStr = getTextContent(prodElement, "qCom");
-                item.setQuantidade(qtdStr != null ? Integer.valueOf(qtdStr.split("\\.")[0]) : 0);
-                
-                item.setValorUnitario(parseBigDecimal(getTextContent(prodElement, "vUnCom")));
-                item.setValorTotal(parseBigDecimal(getTextContent(prodElement, "vProd")));
-                
-                // Dados adicionais (quando disponíveis)
-                item.setLote(getTextContent(prodElement, "xLote"));
-                String dataVencStr = getTextContent(prodElement, "dVal");
-                if (dataVencStr != null) {
-                    item.setDataVencimento(parseDate(dataVencStr));
-                }
-                
-                nfeData.getItens().add(item);
+                nfeData.getItens().add(buildItem(campoDe(prodElement)));
             }
         }
     }
     
+    private NFeXmlData.ItemNFeDados buildItem(Function<String, String> prod) {
+        NFeXmlData.ItemNFeDados item = new NFeXmlData.ItemNFeDados();
+        
+        item.setCodigoProduto(prod.apply("cProd"));
+        item.setNomeProduto(prod.apply("xProd"));
+        item.setDescricaoProduto(prod.apply("xProd")); // Usar mesmo valor para descrição
+        item.setEan(prod.apply("cEAN"));
+        item.setNcm(prod.apply("NCM"));
+        item.setCfop(prod.apply("CFOP"));
+        item.setUnidadeMedida(prod.apply("uCom"));
+        
+        // Quantidades e valores
+        String qtdStr = prod.apply("qCom");
+        item.setQuantidade(qtdStr != null ? Integer.valueOf(qtdStr.split("\\.")[0]) : 0);
+        
+        item.setValorUnitario(parseBigDecimal(prod.apply("vUnCom")));
+        item.setValorTotal(parseBigDecimal(prod.apply("vProd")));
+        
+        // Dados adicionais (quando disponíveis)
+        item.setLote(prod.apply("xLote"));
+        String dataVencStr = prod.apply("dVal");
+        if (dataVencStr != null) {
+            item.setDataVencimento(parseDate(dataVencStr));
+        }
+        
+        return item;
+    }
+    
     private void determineOperationType(NFeXmlData nfeData) {
         // Análise baseada no CFOP predominante dos itens
         // CFOPs de entrada (compra): 1xxx, 2xxx, 3xxx
@@ -235,10 +645,48 @@ public class NFeXmlParser {
         return element != null ? element.getTextContent() : null;
     }
     
+    private Function<String, String> campoDe(Element parent) {
+        return tagName -> getTextContent(parent, tagName);
+    }
+    
+    XMLStreamReader criarXmlStreamReader(InputStream xmlStream) throws XMLStreamException {
+        return XML_INPUT_FACTORY.createXMLStreamReader(xmlStream);
+    }
+    
+    boolean avancarAteElemento(XMLStreamReader reader, String localName) throws XMLStreamException {
+        while (reader.hasNext()) {
+            if (reader.next() == XMLStreamConstants.START_ELEMENT && localName.equals(reader.getLocalName())) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    void fecharReader(XMLStreamReader reader) {
+        if (reader != null) {
+            try {
+                reader.close();
+            } catch (XMLStreamException e) {
+                // Nada a fazer: o stream de origem é fechado por quem o abriu
+            }
+        }
+    }
+    
+    private static String removerPrefixoChave(String id) {
+        if (id != null && id.startsWith("NFe")) {
+            return id.substring(3); // Remove "NFe" prefix
+        }
+        return id;
+    }
+    
     private BigDecimal parseBigDecimal(String value) {
         if (value == null || value.trim().isEmpty()) {
             return BigDecimal.ZERO;
         }
+        BigDecimal decimal = parseDecimalSimples(value);
+        if (decimal != null) {
+            return decimal;
+        }
         try {
             return new BigDecimal(value);
         } catch (NumberFormatException e) {
@@ -246,19 +694,75 @@ public class NFeXmlParser {
         }
     }
     
+    /**
+     * Caminho rápido para o formato usado na NFe ("270.00", "-1.5"): monta o BigDecimal a partir
+     * de um long, com a mesma escala de {@code new BigDecimal(value)}. Retorna null para qualquer
+     * outro formato (expoente, espaços, mais de 18 dígitos), que segue pelo construtor.
+     */
+    private static BigDecimal parseDecimalSimples(String value) {
+        int inicio = value.charAt(0) == '-' || value.charAt(0) == '+' ? 1 : 0;
+        int tamanho = value.length();
+        if (inicio == tamanho) {
+            return null;
+        }
+        
+        long unscaled = 0;
+        int digitos = 0;
+        int escala = 0;
+        boolean temPonto = false;
+        for (int i = inicio; i < tamanho; i++) {
+            char c = value.charAt(i);
+            if (c >= '0' && c <= '9') {
+                if (++digitos > DIGITOS_LONG) {
+                    return null;
+                }
+                unscaled = unscaled * 10 + (c - '0');
+                if (temPonto) {
+                    escala++;
+                }
+            } else if (c == '.' && !temPonto) {
+                temPonto = true;
+            } else {
+                return null;
+            }
+        }
+        if (digitos == 0) {
+            return null;
+        }
+        return BigDecimal.valueOf(value.charAt(0) == '-' ? -unscaled : unscaled, escala);
+    }
+    
     private Date parseDate(String dateStr) {
         if (dateStr == null || dateStr.trim().isEmpty()) {
             return null;
         }
         
+        String valor = dateStr.trim();
         try {
-            // Tentar formato com timezone primeiro
-            if (dateStr.contains("T") && (dateStr.contains("+") || dateStr.contains("Z"))) {
-                return dateTimeFormatter.parse(dateStr);
+            if (valor.indexOf('T') > 0) {
+                // Data e hora com offset (dhEmi: 2024-01-15T10:00:00-03:00)
+                try {
+                    return Date.from(OffsetDateTime.parse(valor).toInstant());
+                } catch (DateTimeParseException e) {
+                    // Sem offset: horário local do servidor
+                    return Date.from(LocalDateTime.parse(valor).atZone(ZoneId.systemDefault()).toInstant());
+                }
             }
-            // Tentar formato de data simples
-            return dateFormatter.parse(dateStr);
-        } catch (ParseException e) {
+            // Data simples (dEmi, dVal)
+            return Date.from(LocalDate.parse(valor).atStartOfDay(ZoneId.systemDefault()).toInstant());
+        } catch (DateTimeParseException e) {
+            return parseSomenteData(valor);
+        }
+    }
+    
+    private Date parseSomenteData(String valor) {
+        // Formatos não reconhecidos: aproveita a data quando o valor começa com yyyy-MM-dd
+        if (valor.length() < 10) {
+            return null;
+        }
+        try {
+            return Date.from(LocalDate.parse(valor.substring(0, 10)).atStartOfDay(ZoneId.systemDefault()).toInstant());
+        } catch (DateTimeParseException e) {
             return null;
         }
     }
@@ -271,4 +775,74 @@ public class NFeXmlParser {
             sb.append(value);
         }
     }
+    
+    private static XMLInputFactory criarXmlInputFactory() {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, true);
+        return factory;
+    }
+    
+    private DocumentBuilderFactory getDocumentBuilderFactoryComSchema() {
+        DocumentBuilderFactory factory = documentBuilderFactoryComSchema;
+        if (factory == null) {
+            synchronized (this) {
+                factory = documentBuilderFactoryComSchema;
+                if (factory == null) {
+                    factory = criarDocumentBuilderFactory(compilarSchema());
+                    documentBuilderFactoryComSchema = factory;
+                }
+            }
+        }
+        return factory;
+    }
+    
+    private Schema compilarSchema() {
+        Resource recurso = new DefaultResourceLoader().getResource(localSchema);
+        try (InputStream xsd = recurso.getInputStream()) {
+            SchemaFactory schemaFactory = SchemaFactory.newInstance(XMLConstants.W3C_XML_SCHEMA_NS_URI);
+            schemaFactory.setProperty(XMLConstants.ACCESS_EXTERNAL_DTD, "");
+            // O systemId permite resolver os xs:include/xs:import relativos (tiposBasico, xmldsig)
+            return schemaFactory.newSchema(new StreamSource(xsd, recurso.getURL().toExternalForm()));
+        } catch (IOException | SAXException e) {
+            throw new IllegalStateException("Erro ao carregar o schema da NFe " + localSchema + ": " + e.getMessage(), e);
+        }
+    }
+    
+    private static DocumentBuilderFactory criarDocumentBuilderFactory(Schema schema) {
+        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+        try {
+            // NFe não usa DTD: bloquear DOCTYPE evita XXE e expansão de entidades
+            factory.setFeature("http://apache.org/xml/features/disallow-doctype-decl", true);
+            factory.setFeature("http://xml.org/sax/features/external-general-entities", false);
+            factory.setFeature("http://xml.org/sax/features/external-parameter-entities", false);
+            factory.setFeature(XMLConstants.FEATURE_SECURE_PROCESSING, true);
+        } catch (ParserConfigurationException e) {
+            throw new IllegalStateException("Erro ao configurar o parser XML: " + e.getMessage(), e);
+        }
+        factory.setXIncludeAware(false);
+        factory.setExpandEntityReferences(false);
+        if (schema != null) {
+            factory.setNamespaceAware(true);
+            factory.setSchema(schema);
+        }
+        return factory;
+    }
+    
+    /**
+     * Seção do XML (ide, emit, det, ...) aberta durante a leitura em streaming.
+     * Guarda a primeira ocorrência de cada campo folha encontrado abaixo dela.
+     */
+    private static class SecaoStreaming {
+        private final String nome;
+        private final int profundidade;
+        private final Map<String, String> campos = new HashMap<>();
+        private SecaoStreaming subsecao;
+        
+        SecaoStreaming(String nome, int profundidade) {
+            this.nome = nome;
+            this.profundidade = profundidade;
+        }
+    }
 }
\ No newline at end of file
@@ -0,0 +1,200 @@
+package com.annaehugo.freepharma.application.services;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.regex.Pattern;
+
+/**
+ * Forma canônica dos nomes de produto, para que as grafias de cada fornecedor caiam no mesmo texto:
+ * sem acentos, em maiúsculas, com a dosagem junto da unidade ("500 mg" vira {@code 500MG}), a
+ * quantidade da embalagem como {@code X20} ("CX20", "c/20", "cx 20") e as abreviações de unidade e
+ * apresentação unificadas ("comprimidos", "comp" e "cpr" viram {@code CPR}).
+ */
+public final class NormalizadorNomeProduto {
+
+    private static final Pattern MARCAS = Pattern.compile("\\p{M}+");
+    private static final Pattern VIRGULA_DECIMAL = Pattern.compile("(\\d),(\\d)");
+    private static final Pattern DIGITO_LETRA = Pattern.compile("(\\d)([A-Z])");
+    private static final Pattern LETRA_DIGITO = Pattern.compile("([A-Z])(\\d)");
+    private static final Pattern PONTO_SOLTO = Pattern.compile("(?<!\\d)\\.|\\.(?!\\d)");
+    private static final Pattern SEPARADORES = Pattern.compile("[^A-Z0-9.%]+");
+    private static final Pattern NUMERO = Pattern.compile("\\d+(\\.\\d+)?");
+
+    private static final Map<String, String> UNIDADES = new HashMap<>();
+    private static final Map<String, String> APRESENTACOES = new HashMap<>();
+    private static final Set<String> EMBALAGENS = new HashSet<>(Arrays.asList(
+        "CX", "CAIXA", "CAIXAS", "C", "COM", "CT", "EMB", "BL", "X"));
+
+    static {
+        sinonimos(UNIDADES, "MG", "MG", "MILIGRAMA", "MILIGRAMAS");
+        sinonimos(UNIDADES, "G", "G", "GR", "GRS", "GRAMA", "GRAMAS");
+        sinonimos(UNIDADES, "MCG", "MCG", "UG", "MICROGRAMA", "MICROGRAMAS");
+        sinonimos(UNIDADES, "KG", "KG", "QUILO", "QUILOS");
+        sinonimos(UNIDADES, "ML", "ML", "MILILITRO", "MILILITROS");
+        sinonimos(UNIDADES, "L", "L", "LT", "LITRO", "LITROS");
+        sinonimos(UNIDADES, "UI", "UI");
+        sinonimos(UNIDADES, "%", "%");
+
+        sinonimos(APRESENTACOES, "CPR", "CPR", "CPRS", "CP", "COMP", "COMPS", "COMPRIMIDO", "COMPRIMIDOS");
+        sinonimos(APRESENTACOES, "CAP", "CAP", "CAPS", "CAPSULA", "CAPSULAS");
+        sinonimos(APRESENTACOES, "DRG", "DRG", "DRAGEA", "DRAGEAS");
+        sinonimos(APRESENTACOES, "AMP", "AMP", "AMPOLA", "AMPOLAS");
+        sinonimos(APRESENTACOES, "ENV", "ENV", "ENVELOPE", "ENVELOPES");
+        sinonimos(APRESENTACOES, "FR", "FR", "FRS", "FRASCO", "FRASCOS");
+        sinonimos(APRESENTACOES, "UN", "UN", "UND", "UNID", "UNIDADE", "UNIDADES");
+        sinonimos(APRESENTACOES, "SACHE", "SACHE", "SACHES", "SACH");
+        sinonimos(APRESENTACOES, "GTS", "GTS", "GOTAS");
+        sinonimos(APRESENTACOES, "SOL", "SOL", "SOLUCAO");
+        sinonimos(APRESENTACOES, "SUSP", "SUSP", "SUSPENSAO");
+        sinonimos(APRESENTACOES, "XPE", "XPE", "XAROPE");
+    }
+
+    private NormalizadorNomeProduto() {
+    }
+
+    /**
+     * Nome na forma canônica, com os termos separados por um espaço; vazio para nomes nulos ou em branco.
+     */
+    public static String normalizar(String nome) {
+        if (nome == null) {
+            return "";
+        }
+        String texto = MARCAS.matcher(Normalizer.normalize(nome, Normalizer.Form.NFD)).replaceAll("")
+            .replace('µ', 'U').replace('μ', 'U')
+            .toUpperCase(Locale.ROOT);
+        texto = VIRGULA_DECIMAL.matcher(texto).replaceAll("$1.$2");
+        texto = DIGITO_LETRA.matcher(texto).replaceAll("$1 $2");
+        texto = LETRA_DIGITO.matcher(texto).replaceAll("$1 $2");
+        texto = PONTO_SOLTO.matcher(texto).replaceAll(" ");
+        texto = texto.replace("%", " % ");
+        String[] termos = SEPARADORES.split(texto.trim());
+
+        List<String> normalizados = new ArrayList<>(termos.length);
+        for (int i = 0; i < termos.length; i++) {
+            String termo = termos[i];
+            if (termo.isEmpty()) {
+                continue;
+            }
+            String proximo = i + 1 < termos.length ? termos[i + 1] : null;
+            if (NUMERO.matcher(termo).matches()) {
+                String numero = numero(termo);
+                if (proximo != null && UNIDADES.containsKey(proximo)) {
+                    normalizados.add(numero + UNIDADES.get(proximo));
+                    i++;
+                } else if (proximo != null && APRESENTACOES.containsKey(proximo)) {
+                    normalizados.add("X" + numero);
+                    normalizados.add(APRESENTACOES.get(proximo));
+                    i++;
+                } else {
+                    normalizados.add(numero);
+                }
+            } else if (EMBALAGENS.contains(termo) && proximo != null && NUMERO.matcher(proximo).matches()
+                    && (i + 2 >= termos.length || !UNIDADES.containsKey(termos[i + 2]))) {
+                // "C 1G" é a vitamina C de 1 g; "C 10" é a caixa com 10
+                normalizados.add("X" + numero(proximo));
+                i++;
+            } else if (APRESENTACOES.containsKey(termo)) {
+                normalizados.add(APRESENTACOES.get(termo));
+            } else if (UNIDADES.containsKey(termo)) {
+                normalizados.add(UNIDADES.get(termo));
+            } else {
+                normalizados.add(termo);
+            }
+        }
+        return String.join(" ", normalizados);
+    }
+
+    /**
+     * Termos do nome normalizado que contêm dígitos (dosagens e quantidades), em ordem, separados por
+     * espaço. Nomes parecidos com dosagens diferentes são produtos diferentes.
+     */
+    public static String numeros(String nomeNormalizado) {
+        Set<String> numeros = new TreeSet<>();
+        for (String termo : nomeNormalizado.split(" ")) {
+            for (int i = 0; i < termo.length(); i++) {
+                if (Character.isDigit(termo.charAt(i))) {
+                    numeros.add(termo);
+                    break;
+                }
+            }
+        }
+        return String.join(" ", numeros);
+    }
+
+    /**
+     * Trigramas do nome normalizado, como no pg_trgm: cada termo recebe dois espaços antes e um depois.
+     * Cada trigrama é codificado em um int (os caracteres normalizados são ASCII), sem repetição e
+     * em ordem crescente.
+     */
+    public static int[] trigramas(String nomeNormalizado) {
+        Set<Integer> codigos = new TreeSet<>();
+        for (String termo : nomeNormalizado.split(" ")) {
+            if (termo.isEmpty()) {
+                continue;
+            }
+            String preenchido = "  " + termo + " ";
+            for (int i = 0; i + 3 <= preenchido.length(); i++) {
+                codigos.add((preenchido.charAt(i) & 0xFF) << 16 | (preenchido.charAt(i + 1) & 0xFF) << 8
+                    | (preenchido.charAt(i + 2) & 0xFF));
+            }
+        }
+        int[] trigramas = new int[codigos.size()];
+        int i = 0;
+        for (Integer codigo : codigos) {
+            trigramas[i++] = codigo;
+        }
+        return trigramas;
+    }
+
+    /**
+     * Quantidade de trigramas em comum entre dois conjuntos ordenados.
+     */
+    public static int comuns(int[] a, int[] b) {
+        int comuns = 0;
+        for (int i = 0, j = 0; i < a.length && j < b.length; ) {
+            if (a[i] == b[j]) {
+                comuns++;
+                i++;
+                j++;
+            } else if (a[i] < b[j]) {
+                i++;
+            } else {
+                j++;
+            }
+        }
+        return comuns;
+    }
+
+    /**
+     * Similaridade de Jaccard entre dois conjuntos ordenados de trigramas, de 0 a 1.
+     */
+    public static double similaridade(int[] a, int[] b) {
+        if (a.length == 0 || b.length == 0) {
+            return 0;
+        }
+        int comuns = comuns(a, b);
+        return (double) comuns / (a.length + b.length - comuns);
+    }
+
+    private static String numero(String termo) {
+        if (termo.indexOf('.') < 0) {
+            return termo.replaceFirst("^0+(?=\\d)", "");
+        }
+        String numero = termo.replaceFirst("0+$", "");
+        return numero.endsWith(".") ? numero.substring(0, numero.length() - 1) : numero;
+    }
+
+    private static void sinonimos(Map<String, String> mapa, String canonico, String... variacoes) {
+        for (String variacao : variacoes) {
+            mapa.put(variacao, canonico);
+        }
+    }
+}
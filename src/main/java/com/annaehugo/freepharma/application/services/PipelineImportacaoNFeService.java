@@ -0,0 +1,538 @@
+package com.annaehugo.freepharma.application.services;
+
+import com.annaehugo.freepharma.application.dto.fiscal.NFeXmlData;
+import com.annaehugo.freepharma.domain.entity.administrativo.Unidade;
+import com.annaehugo.freepharma.domain.entity.fiscal.ImportacaoNFe;
+import com.annaehugo.freepharma.domain.entity.fiscal.LoteProcessamento;
+import com.annaehugo.freepharma.domain.repository.fiscal.LoteProcessamentoRepository;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Processa as notas de um arquivo de importação em etapas encadeadas por filas limitadas:
+ * leitura (identificação do formato e parse, na thread que chama), validação, gravação
+ * (fornecedor, produtos e nota, na transação de {@link ProcessamentoNFeService#processarNFe}) e
+ * pós-gravação (contadores da importação e progresso do lote). Uma fila cheia segura a etapa
+ * anterior, de modo que o parse nunca se adianta mais que {@code freepharma.nfe.pipeline.fila} notas.
+ *
+ * A validação usa {@code freepharma.nfe.pipeline.threads-validacao} threads por arquivo. A gravação
+ * é limitada a {@code freepharma.nfe.pipeline.threads-gravacao} conexões somando todas as
+ * importações em andamento, e as notas de um mesmo emitente vão sempre para a mesma thread, para
+ * que duas transações não cadastrem o mesmo fornecedor ao mesmo tempo.
+ *
+ * Cada execução é acompanhada por um {@link LoteProcessamento} cujo {@code progresso} é atualizado
+ * durante o processamento; fila, vazão e latência de cada etapa ficam em {@link #resumirMetricas()}.
+ *
+ * Falhas de uma nota ficam registradas nela. Qualquer outra falha, inclusive um {@link Error}, aborta a
+ * execução: as demais etapas param de esperar pelas filas e {@link #executar} termina com erro.
+ */
+@Service
+public class PipelineImportacaoNFeService {
+
+    static final String TIPO_LOTE = "IMPORTACAO_NFE";
+    static final long INTERVALO_PROGRESSO_MS = 1000;
+    static final long ESPERA_FILA_MS = 100;
+
+    public enum Etapa {
+        LEITURA("Identificação do formato e parse do XML"),
+        VALIDACAO("Validação dos dados e regras fiscais"),
+        GRAVACAO("Resolução de fornecedor e produtos e gravação da nota"),
+        POS_GRAVACAO("Atualização da importação e do progresso do lote");
+
+        private final String descricao;
+
+        Etapa(String descricao) {
+            this.descricao = descricao;
+        }
+
+        public String getDescricao() {
+            return descricao;
+        }
+    }
+
+    private final ProcessamentoNFeService processamentoNFeService;
+    private final LoteProcessamentoRepository loteProcessamentoRepository;
+    private final int threadsValidacao;
+    private final int threadsGravacao;
+    private final int tamanhoFila;
+    private final Semaphore conexoesGravacao;
+    private final Map<Etapa, MetricasEtapa> metricas = new EnumMap<>(Etapa.class);
+    private final Map<Long, Execucao> execucoes = new ConcurrentHashMap<>();
+    private final AtomicInteger contadorThreads = new AtomicInteger();
+    private volatile Execucao ultimaExecucao;
+
+    @Autowired
+    public PipelineImportacaoNFeService(
+            ProcessamentoNFeService processamentoNFeService,
+            LoteProcessamentoRepository loteProcessamentoRepository,
+            @Value("${freepharma.nfe.pipeline.threads-validacao:0}") int threadsValidacao,
+            @Value("${freepharma.nfe.pipeline.threads-gravacao:2}") int threadsGravacao,
+            @Value("${freepharma.nfe.pipeline.fila:64}") int tamanhoFila) {
+        this.processamentoNFeService = processamentoNFeService;
+        this.loteProcessamentoRepository = loteProcessamentoRepository;
+        this.threadsValidacao = threadsValidacao > 0 ? threadsValidacao : Runtime.getRuntime().availableProcessors();
+        this.threadsGravacao = Math.max(1, threadsGravacao);
+        this.tamanhoFila = Math.max(1, tamanhoFila);
+        this.conexoesGravacao = new Semaphore(this.threadsGravacao);
+        metricas.put(Etapa.LEITURA, new MetricasEtapa(1));
+        metricas.put(Etapa.VALIDACAO, new MetricasEtapa(this.threadsValidacao));
+        metricas.put(Etapa.GRAVACAO, new MetricasEtapa(this.threadsGravacao));
+        metricas.put(Etapa.POS_GRAVACAO, new MetricasEtapa(1));
+    }
+
+    /**
+     * Processa todas as notas do iterator e só retorna quando a última passou pela pós-gravação.
+     * {@code verificacao} roda na etapa de validação, antes das regras fiscais, e rejeita a nota
+     * lançando RuntimeException. Os resultados são registrados no próprio iterator e na importação.
+     */
+    public void executar(NFeArquivoIterator notas, ImportacaoNFe importacao, Unidade unidade,
+                         Consumer<NFeXmlData> verificacao) {
+        Execucao execucao = iniciar(importacao);
+        BlockingQueue<Tarefa> filaValidacao = new ArrayBlockingQueue<>(tamanhoFila);
+        List<BlockingQueue<Tarefa>> filasGravacao = new ArrayList<>(threadsGravacao);
+        for (int i = 0; i < threadsGravacao; i++) {
+            filasGravacao.add(new ArrayBlockingQueue<>(Math.max(1, tamanhoFila / threadsGravacao)));
+        }
+        BlockingQueue<Tarefa> filaPosGravacao = new ArrayBlockingQueue<>(tamanhoFila);
+        AtomicInteger validacoesAtivas = new AtomicInteger(threadsValidacao);
+        AtomicInteger gravacoesAtivas = new AtomicInteger(threadsGravacao);
+
+        ExecutorService threads = Executors.newFixedThreadPool(threadsValidacao + threadsGravacao + 1, tarefa -> {
+            Thread thread = new Thread(tarefa, "pipeline-nfe-" + contadorThreads.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            for (int i = 0; i < threadsValidacao; i++) {
+                threads.submit(() -> {
+                    try {
+                        validar(execucao, filaValidacao, filasGravacao, filaPosGravacao, verificacao);
+                        if (validacoesAtivas.decrementAndGet() == 0) {
+                            for (BlockingQueue<Tarefa> fila : filasGravacao) {
+                                execucao.encerrarFila(fila);
+                            }
+                        }
+                    } catch (Throwable e) {
+                        execucao.abortar(e);
+                        throw e;
+                    }
+                    return null;
+                });
+            }
+            for (BlockingQueue<Tarefa> filaGravacao : filasGravacao) {
+                threads.submit(() -> {
+                    try {
+                        gravar(execucao, filaGravacao, filaPosGravacao, unidade, importacao);
+                        if (gravacoesAtivas.decrementAndGet() == 0) {
+                            execucao.encerrarFila(filaPosGravacao);
+                        }
+                    } catch (Throwable e) {
+                        execucao.abortar(e);
+                        throw e;
+                    }
+                    return null;
+                });
+            }
+            Future<?> posGravacao = threads.submit(() -> {
+                try {
+                    concluirNotas(execucao, filaPosGravacao, notas, importacao);
+                } catch (Throwable e) {
+                    execucao.abortar(e);
+                    throw e;
+                }
+                return null;
+            });
+
+            try {
+                ler(execucao, notas, filaValidacao);
+            } catch (Throwable e) {
+                execucao.abortar(e);
+                throw e;
+            } finally {
+                for (int i = 0; i < threadsValidacao; i++) {
+                    execucao.encerrarFila(filaValidacao);
+                }
+            }
+            posGravacao.get();
+            execucao.verificarAbortada();
+            finalizar(execucao, "CONCLUIDO");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            finalizar(execucao, "ERRO");
+            throw new RuntimeException("Processamento da importação interrompido");
+        } catch (ExecutionException e) {
+            finalizar(execucao, "ERRO");
+            throw new RuntimeException("Erro no processamento das notas: " + e.getCause().getMessage());
+        } catch (RuntimeException | Error e) {
+            finalizar(execucao, "ERRO");
+            throw e;
+        } finally {
+            threads.shutdownNow();
+        }
+    }
+
+    /**
+     * Métricas acumuladas de cada etapa desde a inicialização, as execuções em andamento e a última
+     * execução concluída.
+     */
+    public Map<String, Object> resumirMetricas() {
+        Map<String, Object> resumo = new LinkedHashMap<>();
+        Map<String, Object> etapas = new LinkedHashMap<>();
+        metricas.forEach((etapa, metrica) -> etapas.put(etapa.name(), metrica.resumir(etapa, 0)));
+        resumo.put("etapas", etapas);
+        List<Map<String, Object>> emAndamento = new ArrayList<>();
+        execucoes.values().forEach(execucao -> emAndamento.add(execucao.resumir()));
+        resumo.put("execucoesEmAndamento", emAndamento);
+        Execucao ultima = ultimaExecucao;
+        if (ultima != null) {
+            resumo.put("ultimaExecucao", ultima.resumir());
+        }
+        return resumo;
+    }
+
+    /**
+     * Progresso, de 0 a 100, da importação que está passando pelas etapas neste momento.
+     */
+    public Optional<Integer> consultarProgresso(Long importacaoId) {
+        Execucao execucao = importacaoId != null ? execucoes.get(importacaoId) : null;
+        return execucao != null ? Optional.of(execucao.calcularProgresso()) : Optional.empty();
+    }
+
+    public MetricasEtapa getMetricas(Etapa etapa) {
+        return metricas.get(etapa);
+    }
+
+    private void ler(Execucao execucao, NFeArquivoIterator notas, BlockingQueue<Tarefa> filaValidacao)
+            throws InterruptedException {
+        while (true) {
+            long inicio = System.nanoTime();
+            if (!notas.hasNext()) {
+                break;
+            }
+            NFeXmlData nota = notas.next();
+            execucao.registrar(Etapa.LEITURA, System.nanoTime() - inicio, true);
+            execucao.lidas.incrementAndGet();
+            execucao.enfileirar(Etapa.VALIDACAO, filaValidacao, new Tarefa(nota));
+        }
+        execucao.leituraConcluida = true;
+    }
+
+    private void validar(Execucao execucao, BlockingQueue<Tarefa> filaValidacao,
+                         List<BlockingQueue<Tarefa>> filasGravacao, BlockingQueue<Tarefa> filaPosGravacao,
+                         Consumer<NFeXmlData> verificacao) throws InterruptedException {
+        Tarefa tarefa;
+        while ((tarefa = execucao.retirar(Etapa.VALIDACAO, filaValidacao)) != Tarefa.FIM) {
+            long inicio = System.nanoTime();
+            try {
+                verificacao.accept(tarefa.nota);
+                tarefa.validacao = processamentoNFeService.validarNFe(tarefa.nota);
+            } catch (RuntimeException e) {
+                tarefa.erro = e.getMessage();
+            }
+            execucao.registrar(Etapa.VALIDACAO, System.nanoTime() - inicio, tarefa.erro == null);
+            if (tarefa.erro != null) {
+                execucao.enfileirar(Etapa.POS_GRAVACAO, filaPosGravacao, tarefa);
+            } else {
+                execucao.enfileirar(Etapa.GRAVACAO, filasGravacao.get(particao(tarefa.nota)), tarefa);
+            }
+        }
+    }
+
+    private void gravar(Execucao execucao, BlockingQueue<Tarefa> filaGravacao, BlockingQueue<Tarefa> filaPosGravacao,
+                        Unidade unidade, ImportacaoNFe importacao) throws InterruptedException {
+        Tarefa tarefa;
+        while ((tarefa = execucao.retirar(Etapa.GRAVACAO, filaGravacao)) != Tarefa.FIM) {
+            conexoesGravacao.acquire();
+            long inicio = System.nanoTime();
+            try {
+                tarefa.resultado = processamentoNFeService.processarNFe(tarefa.nota, unidade, importacao, tarefa.validacao);
+                if (!tarefa.resultado.isSucesso()) {
+                    tarefa.erro = tarefa.resultado.getErros().isEmpty()
+                        ? tarefa.resultado.getMensagem() : String.join("; ", tarefa.resultado.getErros());
+                }
+            } catch (RuntimeException e) {
+                tarefa.erro = e.getMessage();
+            } finally {
+                conexoesGravacao.release();
+            }
+            execucao.registrar(Etapa.GRAVACAO, System.nanoTime() - inicio, tarefa.erro == null);
+            execucao.enfileirar(Etapa.POS_GRAVACAO, filaPosGravacao, tarefa);
+        }
+    }
+
+    private void concluirNotas(Execucao execucao, BlockingQueue<Tarefa> filaPosGravacao,
+                               NFeArquivoIterator notas, ImportacaoNFe importacao) throws InterruptedException {
+        Tarefa tarefa;
+        while ((tarefa = execucao.retirar(Etapa.POS_GRAVACAO, filaPosGravacao)) != Tarefa.FIM) {
+            long inicio = System.nanoTime();
+            if (tarefa.resultado != null) {
+                importacao.setQuantidadeInconsistenciasDetectadas(
+                    valor(importacao.getQuantidadeInconsistenciasDetectadas()) + tarefa.resultado.getQuantidadeInconsistencias());
+            }
+            if (tarefa.erro == null) {
+                notas.registrarNotaProcessada();
+            } else {
+                notas.registrarNotaComErro(tarefa.nota.getChaveAcesso(), tarefa.erro);
+            }
+            execucao.concluidas.incrementAndGet();
+            atualizarProgresso(execucao, false);
+            execucao.registrar(Etapa.POS_GRAVACAO, System.nanoTime() - inicio, tarefa.erro == null);
+        }
+    }
+
+    private Execucao iniciar(ImportacaoNFe importacao) {
+        LoteProcessamento lote = new LoteProcessamento();
+        lote.setIdLote(UUID.randomUUID());
+        lote.setTipoLote(TIPO_LOTE);
+        lote.setStatus("PROCESSANDO");
+        lote.setDataInicio(new Date());
+        lote.setProgresso(0);
+        lote.setCreatedAt(new Date());
+        loteProcessamentoRepository.save(lote);
+        if (importacao != null) {
+            importacao.setLoteProcessamento(lote);
+        }
+
+        Execucao execucao = new Execucao(importacao != null ? importacao.getId() : null, lote);
+        if (execucao.importacaoId != null) {
+            execucoes.put(execucao.importacaoId, execucao);
+        }
+        return execucao;
+    }
+
+    private void finalizar(Execucao execucao, String status) {
+        if (execucao.importacaoId != null) {
+            execucoes.remove(execucao.importacaoId);
+        }
+        execucao.fim = System.nanoTime();
+        execucao.lote.setStatus(status);
+        execucao.lote.setDataFim(new Date());
+        atualizarProgresso(execucao, true);
+        ultimaExecucao = execucao;
+    }
+
+    /**
+     * Grava o progresso do lote no máximo uma vez por {@link #INTERVALO_PROGRESSO_MS}. Enquanto o
+     * arquivo é lido o total de notas ainda não é conhecido, e o progresso não passa de 99%.
+     */
+    private void atualizarProgresso(Execucao execucao, boolean forcar) {
+        long agora = System.currentTimeMillis();
+        if (!forcar && agora - execucao.ultimaGravacaoProgresso < INTERVALO_PROGRESSO_MS) {
+            return;
+        }
+        execucao.ultimaGravacaoProgresso = agora;
+        LoteProcessamento lote = execucao.lote;
+        lote.setProgresso(execucao.calcularProgresso());
+        lote.setUpdatedAt(new Date());
+        try {
+            loteProcessamentoRepository.save(lote);
+        } catch (RuntimeException e) {
+            // O progresso é só informativo: uma falha ao gravá-lo não pode parar a importação
+        }
+    }
+
+    private int particao(NFeXmlData nota) {
+        String cnpj = nota.getEmitente() != null ? nota.getEmitente().getCnpj() : null;
+        return cnpj == null ? 0 : Math.floorMod(cnpj.hashCode(), threadsGravacao);
+    }
+
+    private static int valor(Integer contador) {
+        return contador != null ? contador : 0;
+    }
+
+    private static final class Tarefa {
+        static final Tarefa FIM = new Tarefa(null);
+
+        final NFeXmlData nota;
+        ProcessamentoNFeService.ValidacaoNFe validacao;
+        ProcessamentoNFeService.ProcessamentoResult resultado;
+        String erro;
+
+        Tarefa(NFeXmlData nota) {
+            this.nota = nota;
+        }
+    }
+
+    private final class Execucao {
+        final Long importacaoId;
+        final LoteProcessamento lote;
+        final long inicio = System.nanoTime();
+        final Map<Etapa, MetricasEtapa> metricasExecucao = new EnumMap<>(Etapa.class);
+        final AtomicInteger lidas = new AtomicInteger();
+        final AtomicInteger concluidas = new AtomicInteger();
+        volatile boolean leituraConcluida;
+        volatile Throwable falha;
+        volatile long fim;
+        long ultimaGravacaoProgresso;
+
+        Execucao(Long importacaoId, LoteProcessamento lote) {
+            this.importacaoId = importacaoId;
+            this.lote = lote;
+            metricas.forEach((etapa, global) -> metricasExecucao.put(etapa, new MetricasEtapa(global.threads)));
+        }
+
+        void enfileirar(Etapa etapa, BlockingQueue<Tarefa> fila, Tarefa tarefa) throws InterruptedException {
+            verificarAbortada();
+            metricasExecucao.get(etapa).emFila.incrementAndGet();
+            metricas.get(etapa).emFila.incrementAndGet();
+            while (!fila.offer(tarefa, ESPERA_FILA_MS, TimeUnit.MILLISECONDS)) {
+                verificarAbortada();
+            }
+        }
+
+        Tarefa retirar(Etapa etapa, BlockingQueue<Tarefa> fila) throws InterruptedException {
+            Tarefa tarefa;
+            while ((tarefa = fila.poll(ESPERA_FILA_MS, TimeUnit.MILLISECONDS)) == null) {
+                verificarAbortada();
+            }
+            if (tarefa != Tarefa.FIM) {
+                metricasExecucao.get(etapa).emFila.decrementAndGet();
+                metricas.get(etapa).emFila.decrementAndGet();
+            }
+            return tarefa;
+        }
+
+        /**
+         * Avisa a etapa seguinte que não há mais notas; numa execução abortada ninguém mais lê a fila.
+         */
+        void encerrarFila(BlockingQueue<Tarefa> fila) throws InterruptedException {
+            while (falha == null && !fila.offer(Tarefa.FIM, ESPERA_FILA_MS, TimeUnit.MILLISECONDS)) {
+                // Fila cheia: a etapa seguinte ainda está trabalhando
+            }
+        }
+
+        void abortar(Throwable e) {
+            if (falha == null) {
+                falha = e;
+            }
+        }
+
+        void verificarAbortada() {
+            Throwable causa = falha;
+            if (causa != null) {
+                throw new RuntimeException("Processamento das notas abortado: "
+                    + (causa.getMessage() != null ? causa.getMessage() : causa.getClass().getSimpleName()));
+            }
+        }
+
+        void registrar(Etapa etapa, long nanos, boolean sucesso) {
+            metricasExecucao.get(etapa).registrar(nanos, sucesso);
+            metricas.get(etapa).registrar(nanos, sucesso);
+        }
+
+        int calcularProgresso() {
+            int total = lidas.get();
+            if (total == 0) {
+                return leituraConcluida ? 100 : 0;
+            }
+            int progresso = (int) (100L * concluidas.get() / total);
+            return leituraConcluida ? progresso : Math.min(99, progresso);
+        }
+
+        Map<String, Object> resumir() {
+            long decorrido = (fim != 0 ? fim : System.nanoTime()) - inicio;
+            Map<String, Object> resumo = new LinkedHashMap<>();
+            resumo.put("importacaoId", importacaoId);
+            resumo.put("loteId", lote.getId());
+            resumo.put("status", lote.getStatus());
+            resumo.put("progresso", calcularProgresso());
+            resumo.put("notasLidas", lidas.get());
+            resumo.put("notasConcluidas", concluidas.get());
+            resumo.put("duracaoMs", TimeUnit.NANOSECONDS.toMillis(decorrido));
+            Map<String, Object> etapas = new LinkedHashMap<>();
+            metricasExecucao.forEach((etapa, metrica) -> etapas.put(etapa.name(), metrica.resumir(etapa, decorrido)));
+            resumo.put("etapas", etapas);
+            return resumo;
+        }
+    }
+
+    /**
+     * Contadores de uma etapa: notas aguardando na fila, notas processadas e tempo gasto em cada uma.
+     */
+    public static class MetricasEtapa {
+        private final int threads;
+        private final AtomicInteger emFila = new AtomicInteger();
+        private final AtomicLong processadas = new AtomicLong();
+        private final AtomicLong comErro = new AtomicLong();
+        private final AtomicLong tempoTotalNanos = new AtomicLong();
+        private final AtomicLong tempoMaximoNanos = new AtomicLong();
+
+        MetricasEtapa(int threads) {
+            this.threads = threads;
+        }
+
+        void registrar(long nanos, boolean sucesso) {
+            processadas.incrementAndGet();
+            if (!sucesso) {
+                comErro.incrementAndGet();
+            }
+            tempoTotalNanos.addAndGet(nanos);
+            tempoMaximoNanos.accumulateAndGet(nanos, Math::max);
+        }
+
+        public int getThreads() {
+            return threads;
+        }
+
+        public int getEmFila() {
+            return emFila.get();
+        }
+
+        public long getProcessadas() {
+            return processadas.get();
+        }
+
+        public long getComErro() {
+            return comErro.get();
+        }
+
+        public double getLatenciaMediaMs() {
+            long quantidade = processadas.get();
+            return quantidade == 0 ? 0 : tempoTotalNanos.get() / 1_000_000.0 / quantidade;
+        }
+
+        public double getLatenciaMaximaMs() {
+            return tempoMaximoNanos.get() / 1_000_000.0;
+        }
+
+        /**
+         * Com {@code decorridoNanos} maior que zero inclui a vazão da etapa no período, em notas por segundo.
+         */
+        Map<String, Object> resumir(Etapa etapa, long decorridoNanos) {
+            Map<String, Object> resumo = new LinkedHashMap<>();
+            resumo.put("descricao", etapa.getDescricao());
+            resumo.put("threads", threads);
+            resumo.put("emFila", getEmFila());
+            resumo.put("processadas", getProcessadas());
+            resumo.put("comErro", getComErro());
+            resumo.put("latenciaMediaMs", getLatenciaMediaMs());
+            resumo.put("latenciaMaximaMs", getLatenciaMaximaMs());
+            if (decorridoNanos > 0) {
+                resumo.put("notasPorSegundo", getProcessadas() * 1_000_000_000.0 / decorridoNanos);
+            }
+            return resumo;
+        }
+    }
+}
@@ -8,14 +8,25 @@ import com.annaehugo.freepharma.domain.entity.fiscal.*;
 import com.annaehugo.freepharma.domain.repository.estoque.*;
 import com.annaehugo.freepharma.domain.repository.fiscal.*;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
 import java.math.BigDecimal;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 @Service
 public class ProcessamentoNFeService {
@@ -29,6 +40,10 @@ public class ProcessamentoNFeService {
     @Autowired
     private EstoqueProdutoRepository estoqueProdutoRepository;
     @Autowired
+    private MovimentacaoEstoqueRepository movimentacaoEstoqueRepository;
+    @Autowired
+    private SnapshotEstoqueRepository snapshotEstoqueRepository;
+    @Autowired
     private NotaFiscalRepository notaFiscalRepository;
     @Autowired
     private NotaFiscalItemRepository notaFiscalItemRepository;
@@ -36,9 +51,45 @@ public class ProcessamentoNFeService {
     private InconsistenciaRepository inconsistenciaRepository;
     @Autowired
     private EstoqueProdutoService estoqueProdutoService;
-
+    @Autowired
+    private NFeDuplicidadeService nfeDuplicidadeService;
+    @Autowired
+    private RegraValidacaoFiscalService regraValidacaoFiscalService;
+    @Autowired
+    private FornecedorCacheService fornecedorCacheService;
+    @Autowired
+    private CodigoInternoService codigoInternoService;
+    @Autowired
+    private IndiceNomesProdutoService indiceNomesProdutoService;
+    
+    /**
+     * Quantidade de inconsistências acumuladas que dispara uma gravação antes do fim da nota.
+     */
+    static final int TAMANHO_LOTE_INCONSISTENCIAS = 500;
+    
+    /**
+     * Quantidade de itens a partir da qual a validação é dividida entre as threads do fork/join pool.
+     */
+    @Value("${freepharma.nfe.validacao.limiar-paralelo:2000}")
+    private int limiarValidacaoParalela = 2000;
+    
+    /**
+     * Valida e grava a nota na mesma transação. Quem controla a transação deve preferir chamar
+     * {@link #validarNFe(NFeXmlData)} antes e passar o resultado para
+     * {@link #processarNFe(NFeXmlData, Unidade, ImportacaoNFe, ValidacaoNFe)}.
+     */
     @Transactional
     public ProcessamentoResult processarNFe(NFeXmlData nfeData, Unidade unidade, ImportacaoNFe importacao) {
+        return processarNFe(nfeData, unidade, importacao, validarNFe(nfeData));
+    }
+    
+    /**
+     * Grava a nota já validada: as inconsistências encontradas na validação são associadas à nota
+     * e os itens barrados por regras bloqueantes ficam fora do estoque.
+     */
+    @Transactional
+    public ProcessamentoResult processarNFe(NFeXmlData nfeData, Unidade unidade, ImportacaoNFe importacao,
+                                            ValidacaoNFe validacao) {
         ProcessamentoResult result = new ProcessamentoResult();
         
         try {
@@ -47,30 +98,18 @@ public class ProcessamentoNFeService {
             
             NotaFiscal notaFiscal = criarNotaFiscal(nfeData, fornecedor, unidade, importacao);
             result.setNotaFiscal(notaFiscal);
+            nfeDuplicidadeService.registrarImportada(notaFiscal.getChaveAcesso());
             
-            List<NotaFiscalItem> itens = new ArrayList<>();
-            for (NFeXmlData.ItemNFeDados itemData : nfeData.getItens()) {
-                try {
-                    ProdutoFornecedor produtoFornecedor = processarProduto(itemData, fornecedor);
-                    
-                    NotaFiscalItem item = criarItemNotaFiscal(itemData, notaFiscal, produtoFornecedor);
-                    itens.add(item);
-                    
-                    atualizarEstoque(produtoFornecedor, itemData, unidade, nfeData.getTipoOperacao());
-                    
-                    result.getItensProcessados().add(item);
-                    
-                } catch (Exception e) {
-                    criarInconsistencia("ERRO_PROCESSAMENTO_ITEM",
-                        "Erro ao processar item " + itemData.getCodigoProduto() + ": " + e.getMessage(),
-                        "ALTA", notaFiscal);
-                    result.getErros().add("Item " + itemData.getCodigoProduto() + ": " + e.getMessage());
-                }
+            for (ValidacaoNFe.Achado achado : validacao.getAchados()) {
+                criarInconsistencia(achado.getTipo(), achado.getDescricao(), achado.getSeveridade(), notaFiscal, result);
             }
-            validarConsistenciaNota(nfeData, notaFiscal, result);
+            result.getErros().addAll(validacao.getErros());
+            processarItens(nfeData, itensLiberados(nfeData, validacao.getItensBloqueados()),
+                fornecedor, notaFiscal, unidade, result);
+            gravarInconsistencias(result);
             
             result.setSucesso(true);
-            result.setMensagem("NFe processada com sucesso. " + itens.size() + " itens processados.");
+            result.setMensagem("NFe processada com sucesso. " + result.getItensProcessados().size() + " itens processados.");
             
         } catch (Exception e) {
             result.setSucesso(false);
@@ -81,17 +120,34 @@ public class ProcessamentoNFeService {
         return result;
     }
     
+    /**
+     * Resolve o emitente pelo cache de fornecedores e só grava o cadastro quando ele é novo ou
+     * quando a nota traz dados diferentes dos cadastrados.
+     */
     private Fornecedor processarFornecedor(NFeXmlData.EmitenteDados emitenteData) {
+        Fornecedor fornecedorEmCache = fornecedorCacheService.buscar(emitenteData.getCnpj());
+        if (fornecedorEmCache != null && !possuiAlteracoes(fornecedorEmCache, emitenteData)) {
+            return fornecedorEmCache;
+        }
+        
         Optional<Fornecedor> fornecedorExistente = fornecedorRepository.findByCnpj(emitenteData.getCnpj());
         
         if (fornecedorExistente.isPresent()) {
             Fornecedor fornecedor = fornecedorExistente.get();
-            atualizarDadosFornecedor(fornecedor, emitenteData);
-            return fornecedorRepository.save(fornecedor);
+            if (!atualizarDadosFornecedor(fornecedor, emitenteData)) {
+                fornecedorCacheService.registrar(fornecedor);
+                return fornecedor;
+            }
+            fornecedorCacheService.invalidar(fornecedor.getCnpj());
+            Fornecedor atualizado = fornecedorRepository.save(fornecedor);
+            fornecedorCacheService.registrar(atualizado);
+            return atualizado;
         } else {
             Fornecedor novoFornecedor = new Fornecedor();
             preencherDadosFornecedor(novoFornecedor, emitenteData);
-            return fornecedorRepository.save(novoFornecedor);
+            Fornecedor criado = fornecedorRepository.save(novoFornecedor);
+            fornecedorCacheService.registrar(criado);
+            return criado;
         }
     }
     
@@ -122,70 +178,423 @@ public class ProcessamentoNFeService {
         }
     }
     
-    private void atualizarDadosFornecedor(Fornecedor fornecedor, NFeXmlData.EmitenteDados dados) {
-        if (dados.getNomeFantasia() != null && !dados.getNomeFantasia().equals(fornecedor.getNomeFantasia())) {
+    /**
+     * Aplica ao cadastro os dados do emitente que mudaram e informa se algum campo foi alterado.
+     */
+    private boolean atualizarDadosFornecedor(Fornecedor fornecedor, NFeXmlData.EmitenteDados dados) {
+        boolean alterado = false;
+        if (alterado(dados.getNomeFantasia(), fornecedor.getNomeFantasia())) {
             fornecedor.setNomeFantasia(dados.getNomeFantasia());
+            alterado = true;
         }
-        if (dados.getEndereco() != null && !dados.getEndereco().equals(fornecedor.getEndereco())) {
+        if (alterado(dados.getEndereco(), fornecedor.getEndereco())) {
             fornecedor.setEndereco(dados.getEndereco());
+            alterado = true;
         }
-        if (dados.getTelefone() != null && !dados.getTelefone().equals(fornecedor.getTelefone())) {
+        if (alterado(dados.getTelefone(), fornecedor.getTelefone())) {
             fornecedor.setTelefone(dados.getTelefone());
+            alterado = true;
         }
-        if (dados.getEmail() != null && !dados.getEmail().equals(fornecedor.getEmail())) {
+        if (alterado(dados.getEmail(), fornecedor.getEmail())) {
             fornecedor.setEmail(dados.getEmail());
+            alterado = true;
         }
+        return alterado;
     }
     
-    private ProdutoFornecedor processarProduto(NFeXmlData.ItemNFeDados itemData, Fornecedor fornecedor) {
-        ProdutoReferencia produtoReferencia = buscarOuCriarProdutoReferencia(itemData);
-        
-        Optional<ProdutoFornecedor> produtoFornecedorExistente =
-            produtoFornecedorRepository.findByProdutoReferenciaAndFornecedor(produtoReferencia, fornecedor);
+    /**
+     * Mesma comparação de {@link #atualizarDadosFornecedor}, sem alterar o fornecedor, que pode
+     * ser a instância compartilhada do cache.
+     */
+    private boolean possuiAlteracoes(Fornecedor fornecedor, NFeXmlData.EmitenteDados dados) {
+        return alterado(dados.getNomeFantasia(), fornecedor.getNomeFantasia())
+            || alterado(dados.getEndereco(), fornecedor.getEndereco())
+            || alterado(dados.getTelefone(), fornecedor.getTelefone())
+            || alterado(dados.getEmail(), fornecedor.getEmail());
+    }
+    
+    private static boolean alterado(String valorNota, String valorCadastro) {
+        return valorNota != null && !valorNota.equals(valorCadastro);
+    }
+    
+    /**
+     * Processa os itens da nota em conjunto: produtos, vínculos com o fornecedor e estoques são
+     * resolvidos com uma consulta por conjunto de chaves (EANs, nomes, produtos, lotes) e cada tipo
+     * de entidade é gravado com um único saveAll. O número de consultas não depende da quantidade de itens.
+     */
+    private void processarItens(NFeXmlData nfeData, List<NFeXmlData.ItemNFeDados> itensNota, Fornecedor fornecedor,
+                                NotaFiscal notaFiscal, Unidade unidade, ProcessamentoResult result) {
+        List<ProdutoReferencia> produtos = resolverProdutosReferencia(itensNota);
+        List<ProdutoFornecedor> produtosFornecedor = resolverProdutosFornecedor(itensNota, produtos, fornecedor);
+        Map<ProdutoFornecedor, Map<String, EstoqueProduto>> estoques = buscarEstoques(produtosFornecedor, unidade);
         
-        if (produtoFornecedorExistente.isPresent()) {
-            ProdutoFornecedor produtoFornecedor = produtoFornecedorExistente.get();
-            if (itemData.getValorUnitario() != null) {
-                produtoFornecedor.setPrecoCompra(itemData.getValorUnitario());
-                produtoFornecedor.setDataUltimaCompra(new Date());
+        GravacaoItens gravacao = new GravacaoItens();
+        for (int i = 0; i < itensNota.size(); i++) {
+            NFeXmlData.ItemNFeDados itemData = itensNota.get(i);
+            try {
+                NotaFiscalItem item = gravacao.incluir(nfeData, itemData, notaFiscal, produtosFornecedor.get(i),
+                    estoques, unidade);
+                result.getItensProcessados().add(item);
+                
+            } catch (Exception e) {
+                criarInconsistencia("ERRO_PROCESSAMENTO_ITEM", descricaoErroItem(itemData, e), "ALTA", notaFiscal, result);
+                result.getErros().add("Item " + itemData.getCodigoProduto() + ": " + e.getMessage());
             }
-            return produtoFornecedorRepository.save(produtoFornecedor);
-        } else {
-            ProdutoFornecedor novoProdutoFornecedor = new ProdutoFornecedor();
-            novoProdutoFornecedor.setProdutoReferencia(produtoReferencia);
-            novoProdutoFornecedor.setFornecedor(fornecedor);
-            novoProdutoFornecedor.setCodigoFornecedor(itemData.getCodigoProduto());
-            novoProdutoFornecedor.setNomeFornecedor(itemData.getNomeProduto());
-            novoProdutoFornecedor.setPrecoCompra(itemData.getValorUnitario() != null ? itemData.getValorUnitario() : BigDecimal.ZERO);
-            novoProdutoFornecedor.setUnidadeMedidaFornecedor(itemData.getUnidadeMedida());
-            novoProdutoFornecedor.setEanFornecedor(itemData.getEan());
-            novoProdutoFornecedor.setDataUltimaCompra(new Date());
-            novoProdutoFornecedor.setAtivo(true);
+        }
+        gravacao.gravar();
+    }
+    
+    /**
+     * Reaplica uma nota já importada gravando apenas as diferenças em relação ao que está no banco:
+     * itens incluídos, alterados ou removidos, movimentações de estoque com a diferença entre a quantidade
+     * esperada e a já lançada para cada item, e inconsistências novas. Inconsistências pendentes que não
+     * aparecem mais são dadas como resolvidas. Uma nota que não chegou a ser gravada é processada como nova.
+     */
+    @Transactional
+    public ProcessamentoResult reprocessarNFe(NFeXmlData nfeData, Unidade unidade, ImportacaoNFe importacao,
+                                              ValidacaoNFe validacao) {
+        // Sem o bloqueio, dois reprocessamentos simultâneos calculariam a diferença do estoque sobre o mesmo estado
+        Optional<NotaFiscal> gravada = notaFiscalRepository.findParaAtualizacaoByChaveAcesso(nfeData.getChaveAcesso());
+        if (!gravada.isPresent()) {
+            ProcessamentoResult result = processarNFe(nfeData, unidade, importacao, validacao);
+            if (result.isSucesso()) {
+                result.setDiferencas(new Diferencas());
+                result.getDiferencas().notaIncluida = true;
+                result.getDiferencas().itensIncluidos = result.getItensProcessados().size();
+            }
+            return result;
+        }
+        
+        ProcessamentoResult result = new ProcessamentoResult();
+        result.setDiferencas(new Diferencas());
+        try {
+            Fornecedor fornecedor = processarFornecedor(nfeData.getEmitente());
+            result.setFornecedor(fornecedor);
+            
+            NotaFiscal notaFiscal = atualizarNotaFiscal(gravada.get(), nfeData, fornecedor, result.getDiferencas());
+            result.setNotaFiscal(notaFiscal);
+            
+            List<ValidacaoNFe.Achado> achados = new ArrayList<>(validacao.getAchados());
+            result.getErros().addAll(validacao.getErros());
+            reprocessarItens(nfeData, itensLiberados(nfeData, validacao.getItensBloqueados()), fornecedor, notaFiscal,
+                notaFiscal.getUnidade() != null ? notaFiscal.getUnidade() : unidade, achados, result);
+            reconciliarInconsistencias(notaFiscal, achados, result);
+            gravarInconsistencias(result);
             
-            return produtoFornecedorRepository.save(novoProdutoFornecedor);
+            result.setSucesso(true);
+            result.setMensagem("NFe reprocessada. " + result.getDiferencas().resumir());
+            
+        } catch (Exception e) {
+            result.setSucesso(false);
+            result.setMensagem("Erro no reprocessamento: " + e.getMessage());
+            result.getErros().add(e.getMessage());
+        }
+        
+        return result;
+    }
+    
+    private NotaFiscal atualizarNotaFiscal(NotaFiscal notaFiscal, NFeXmlData nfeData, Fornecedor fornecedor,
+                                           Diferencas diferencas) {
+        boolean alterada = false;
+        if (!Objects.equals(nfeData.getNumero(), notaFiscal.getNumero())) {
+            notaFiscal.setNumero(nfeData.getNumero());
+            alterada = true;
+        }
+        if (!mesmaData(nfeData.getDataEmissao(), notaFiscal.getDataEmissao())) {
+            notaFiscal.setDataEmissao(nfeData.getDataEmissao());
+            alterada = true;
+        }
+        if (!mesmoValor(nfeData.getValorTotal(), notaFiscal.getValorTotal())) {
+            notaFiscal.setValorTotal(nfeData.getValorTotal());
+            alterada = true;
+        }
+        if (!Objects.equals(nfeData.getTipoOperacao(), notaFiscal.getTipoOperacao())) {
+            notaFiscal.setTipoOperacao(nfeData.getTipoOperacao());
+            alterada = true;
+        }
+        if (notaFiscal.getFornecedor() == null || !Objects.equals(fornecedor.getId(), notaFiscal.getFornecedor().getId())) {
+            notaFiscal.setFornecedor(fornecedor);
+            alterada = true;
+        }
+        if (!alterada) {
+            return notaFiscal;
+        }
+        diferencas.notaAlterada = true;
+        return notaFiscalRepository.save(notaFiscal);
+    }
+    
+    /**
+     * Confronta os itens liberados da nota com os itens ativos gravados. Um item gravado corresponde a um
+     * item da nota com o mesmo produto e lote; primeiro são pareados os de mesma quantidade e valor, depois
+     * os demais. Itens sem par são incluídos ou desativados, e cada item recebe no razão a diferença entre
+     * a quantidade que deveria ter movimentado e a que já movimentou.
+     */
+    private void reprocessarItens(NFeXmlData nfeData, List<NFeXmlData.ItemNFeDados> itensNota, Fornecedor fornecedor,
+                                  NotaFiscal notaFiscal, Unidade unidade, List<ValidacaoNFe.Achado> achados,
+                                  ProcessamentoResult result) {
+        List<ProdutoReferencia> produtos = resolverProdutosReferencia(itensNota);
+        List<ProdutoFornecedor> produtosFornecedor = resolverProdutosFornecedor(itensNota, produtos, fornecedor);
+        Map<ProdutoFornecedor, Map<String, EstoqueProduto>> estoques = buscarEstoques(produtosFornecedor, unidade);
+        Map<Long, List<ItemGravado>> gravadosPorProduto = buscarItensGravados(notaFiscal);
+        
+        ItemGravado[] pares = new ItemGravado[itensNota.size()];
+        for (boolean mesmoValor : new boolean[] {true, false}) {
+            for (int i = 0; i < itensNota.size(); i++) {
+                Long produtoId = produtosFornecedor.get(i).getProdutoReferencia().getId();
+                List<ItemGravado> candidatos = produtoId != null ? gravadosPorProduto.get(produtoId) : null;
+                if (pares[i] != null || candidatos == null) {
+                    continue;
+                }
+                for (Iterator<ItemGravado> iterator = candidatos.iterator(); iterator.hasNext(); ) {
+                    ItemGravado gravado = iterator.next();
+                    if (gravado.corresponde(itensNota.get(i), mesmoValor)) {
+                        pares[i] = gravado;
+                        iterator.remove();
+                        break;
+                    }
+                }
+            }
+        }
+        
+        Diferencas diferencas = result.getDiferencas();
+        String documento = "Reprocessamento NFe " + nfeData.getNumero();
+        GravacaoItens gravacao = new GravacaoItens();
+        for (int i = 0; i < itensNota.size(); i++) {
+            NFeXmlData.ItemNFeDados itemData = itensNota.get(i);
+            try {
+                if (pares[i] == null) {
+                    result.getItensProcessados().add(gravacao.incluir(nfeData, itemData, notaFiscal,
+                        produtosFornecedor.get(i), estoques, unidade));
+                    diferencas.itensIncluidos++;
+                    continue;
+                }
+                
+                ItemGravado gravado = pares[i];
+                NotaFiscalItem item = gravado.item;
+                BigDecimal quantidade = BigDecimal.valueOf(itemData.getQuantidade());
+                if (!mesmoValor(quantidade, item.getQuantidade()) || !mesmoValor(itemData.getValorUnitario(), item.getValorUnitario())) {
+                    item.setQuantidade(quantidade);
+                    item.setValorUnitario(itemData.getValorUnitario());
+                    gravacao.itens.add(item);
+                    diferencas.itensAlterados++;
+                } else {
+                    diferencas.itensInalterados++;
+                }
+                
+                int esperada = movimentaEstoque(nfeData.getTipoOperacao())
+                    ? quantidadeMovimentada(itemData, nfeData.getTipoOperacao()) : 0;
+                int diferenca = esperada - gravado.movimentada;
+                if (diferenca != 0) {
+                    EstoqueProduto estoque = gravado.estoque != null ? gravado.estoque
+                        : gravacao.registrarEstoque(atualizarEstoque(estoques, produtosFornecedor.get(i), itemData,
+                            unidade, nfeData.getTipoOperacao()));
+                    gravacao.movimentar(estoque, diferenca, itemData.getValorUnitario(), documento, item);
+                    diferencas.movimentacoes++;
+                }
+                result.getItensProcessados().add(item);
+                
+            } catch (Exception e) {
+                achados.add(new ValidacaoNFe.Achado(mapearTipoInconsistencia("ERRO_PROCESSAMENTO_ITEM"),
+                    descricaoErroItem(itemData, e), "ALTA"));
+                result.getErros().add("Item " + itemData.getCodigoProduto() + ": " + e.getMessage());
+            }
+        }
+        
+        for (List<ItemGravado> semPar : gravadosPorProduto.values()) {
+            for (ItemGravado gravado : semPar) {
+                gravado.item.setAtivo(false);
+                gravacao.itens.add(gravado.item);
+                diferencas.itensRemovidos++;
+                if (gravado.movimentada != 0) {
+                    gravacao.movimentar(gravado.estoque, -gravado.movimentada, gravado.item.getValorUnitario(),
+                        documento, gravado.item);
+                    diferencas.movimentacoes++;
+                }
+            }
+        }
+        gravacao.gravar();
+    }
+    
+    /**
+     * Itens ativos da nota indexados pelo produto, com o lote e a quantidade que já movimentaram no razão.
+     */
+    private Map<Long, List<ItemGravado>> buscarItensGravados(NotaFiscal notaFiscal) {
+        Map<Long, Integer> movimentadas = new HashMap<>();
+        Map<Long, Long> estoquePorItem = new HashMap<>();
+        for (Object[] soma : movimentacaoEstoqueRepository.somarPorNotaFiscalItem(notaFiscal.getId())) {
+            movimentadas.put((Long) soma[0], ((Number) soma[2]).intValue());
+            estoquePorItem.put((Long) soma[0], (Long) soma[1]);
+        }
+        Map<Long, EstoqueProduto> estoques = new HashMap<>();
+        if (!estoquePorItem.isEmpty()) {
+            for (EstoqueProduto estoque : estoqueProdutoRepository.findAllById(new HashSet<>(estoquePorItem.values()))) {
+                estoques.put(estoque.getId(), estoque);
+            }
+        }
+        
+        Map<Long, List<ItemGravado>> porProduto = new HashMap<>();
+        for (NotaFiscalItem item : notaFiscalItemRepository.findByNotaFiscalIdAndAtivoTrueOrderById(notaFiscal.getId())) {
+            if (item.getProdutoReferencia() == null) {
+                continue;
+            }
+            ItemGravado gravado = new ItemGravado(item, estoques.get(estoquePorItem.get(item.getId())),
+                movimentadas.getOrDefault(item.getId(), 0));
+            porProduto.computeIfAbsent(item.getProdutoReferencia().getId(), produto -> new ArrayList<>()).add(gravado);
+        }
+        return porProduto;
+    }
+    
+    /**
+     * Grava as inconsistências da validação que ainda não existem para a nota, comparando tipo e descrição,
+     * e resolve as pendentes que a validação não encontrou mais.
+     */
+    private void reconciliarInconsistencias(NotaFiscal notaFiscal, List<ValidacaoNFe.Achado> achados,
+                                            ProcessamentoResult result) {
+        Map<String, List<Inconsistencia>> existentes = new HashMap<>();
+        for (Inconsistencia inconsistencia : inconsistenciaRepository.findByNotaFiscalId(notaFiscal.getId())) {
+            existentes.computeIfAbsent(chave(inconsistencia.getTipo(), inconsistencia.getDescricao()),
+                chave -> new ArrayList<>()).add(inconsistencia);
+        }
+        
+        for (ValidacaoNFe.Achado achado : achados) {
+            List<Inconsistencia> mesmas = existentes.get(chave(achado.getTipo(), achado.getDescricao()));
+            if (mesmas != null && !mesmas.isEmpty()) {
+                mesmas.remove(0);
+            } else {
+                criarInconsistencia(achado.getTipo(), achado.getDescricao(), achado.getSeveridade(), notaFiscal, result);
+            }
+        }
+        
+        List<Inconsistencia> resolvidas = new ArrayList<>();
+        Date agora = new Date();
+        for (List<Inconsistencia> naoEncontradas : existentes.values()) {
+            for (Inconsistencia inconsistencia : naoEncontradas) {
+                if ("PENDENTE".equals(inconsistencia.getStatus()) || "REABERTA".equals(inconsistencia.getStatus())) {
+                    inconsistencia.setStatus("RESOLVIDA");
+                    inconsistencia.setDataResolucao(agora);
+                    inconsistencia.setObservacaoResolucao("Não encontrada no reprocessamento da nota");
+                    resolvidas.add(inconsistencia);
+                }
+            }
+        }
+        if (!resolvidas.isEmpty()) {
+            inconsistenciaRepository.saveAll(resolvidas);
+        }
+        result.getDiferencas().inconsistenciasIncluidas = result.getInconsistencias().size();
+        result.getDiferencas().inconsistenciasResolvidas = resolvidas.size();
+    }
+    
+    private static String chave(TipoInconsistencia tipo, String descricao) {
+        return tipo + "|" + descricao;
+    }
+    
+    private static String descricaoErroItem(NFeXmlData.ItemNFeDados itemData, Exception e) {
+        return "Erro ao processar item " + itemData.getCodigoProduto() + ": " + e.getMessage();
+    }
+    
+    private static boolean mesmoValor(BigDecimal valor, BigDecimal outro) {
+        return valor == null ? outro == null : outro != null && valor.compareTo(outro) == 0;
+    }
+    
+    private static boolean mesmaData(Date data, Date outra) {
+        return data == null ? outra == null : outra != null && data.getTime() == outra.getTime();
+    }
+    
+    private List<NFeXmlData.ItemNFeDados> itensLiberados(NFeXmlData nfeData, Set<NFeXmlData.ItemNFeDados> itensBloqueados) {
+        if (itensBloqueados.isEmpty()) {
+            return nfeData.getItens();
+        }
+        List<NFeXmlData.ItemNFeDados> liberados = new ArrayList<>();
+        for (NFeXmlData.ItemNFeDados itemData : nfeData.getItens()) {
+            if (!itensBloqueados.contains(itemData)) {
+                liberados.add(itemData);
+            }
         }
+        return liberados;
     }
     
-    private ProdutoReferencia buscarOuCriarProdutoReferencia(NFeXmlData.ItemNFeDados itemData) {
-        if (itemData.getEan() != null && !itemData.getEan().trim().isEmpty() &&
-            !itemData.getEan().equals("SEM GTIN")) {
-            Optional<ProdutoReferencia> porEan = produtoReferenciaRepository.findByEan(itemData.getEan());
-            if (porEan.isPresent()) {
-                return porEan.get();
+    /**
+     * Busca o produto de cada item pelo EAN e, sem correspondência, pelo nome no
+     * {@link IndiceNomesProdutoService}, que reconhece grafias diferentes do mesmo produto; enquanto o
+     * índice não está carregado, pelo nome exato no banco. Os produtos que não existem são criados uma
+     * única vez por nota. A lista retornada segue a ordem dos itens.
+     */
+    private List<ProdutoReferencia> resolverProdutosReferencia(List<NFeXmlData.ItemNFeDados> itensNota) {
+        Set<String> eans = new HashSet<>();
+        for (NFeXmlData.ItemNFeDados itemData : itensNota) {
+            if (possuiEan(itemData)) {
+                eans.add(itemData.getEan());
+            }
+        }
+        Map<String, ProdutoReferencia> porEan = new HashMap<>();
+        if (!eans.isEmpty()) {
+            for (ProdutoReferencia produto : produtoReferenciaRepository.findByEanIn(eans)) {
+                porEan.putIfAbsent(produto.getEan(), produto);
             }
         }
         
-        if (itemData.getNomeProduto() != null && !itemData.getNomeProduto().trim().isEmpty()) {
-            Optional<ProdutoReferencia> porNome = produtoReferenciaRepository.findFirstByNome(itemData.getNomeProduto());
-            if (porNome.isPresent()) {
-                return porNome.get();
+        Set<String> nomes = new HashSet<>();
+        for (NFeXmlData.ItemNFeDados itemData : itensNota) {
+            if (!(possuiEan(itemData) && porEan.containsKey(itemData.getEan())) && possuiNome(itemData)) {
+                nomes.add(itemData.getNomeProduto());
+            }
+        }
+        Map<String, ProdutoReferencia> porNome = new HashMap<>();
+        if (!nomes.isEmpty() && indiceNomesProdutoService.isCarregado()) {
+            Map<String, Long> encontrados = indiceNomesProdutoService.buscarTodos(nomes);
+            if (!encontrados.isEmpty()) {
+                Map<Long, ProdutoReferencia> porId = new HashMap<>();
+                for (ProdutoReferencia produto : produtoReferenciaRepository.findAllById(new HashSet<>(encontrados.values()))) {
+                    porId.put(produto.getId(), produto);
+                }
+                for (Map.Entry<String, Long> encontrado : encontrados.entrySet()) {
+                    ProdutoReferencia produto = porId.get(encontrado.getValue());
+                    if (produto != null) {
+                        porNome.putIfAbsent(NormalizadorNomeProduto.normalizar(encontrado.getKey()), produto);
+                    }
+                }
+            }
+        } else if (!nomes.isEmpty()) {
+            for (ProdutoReferencia produto : produtoReferenciaRepository.findByNomeInAndStatusNot(nomes,
+                    UnificacaoProdutoService.STATUS_UNIFICADO)) {
+                porNome.putIfAbsent(NormalizadorNomeProduto.normalizar(produto.getNome()), produto);
             }
         }
         
+        List<ProdutoReferencia> produtos = new ArrayList<>(itensNota.size());
+        List<ProdutoReferencia> novosProdutos = new ArrayList<>();
+        for (NFeXmlData.ItemNFeDados itemData : itensNota) {
+            ProdutoReferencia produto = possuiEan(itemData) ? porEan.get(itemData.getEan()) : null;
+            if (produto == null && possuiNome(itemData)) {
+                produto = porNome.get(NormalizadorNomeProduto.normalizar(itemData.getNomeProduto()));
+            }
+            if (produto == null) {
+                produto = novoProdutoReferencia(itemData);
+                novosProdutos.add(produto);
+                // Itens seguintes com o mesmo EAN ou nome usam o produto recém-criado
+                if (possuiEan(itemData)) {
+                    porEan.put(itemData.getEan(), produto);
+                }
+                if (possuiNome(itemData)) {
+                    porNome.putIfAbsent(NormalizadorNomeProduto.normalizar(itemData.getNomeProduto()), produto);
+                }
+            }
+            produtos.add(produto);
+        }
+        
+        if (!novosProdutos.isEmpty()) {
+            produtoReferenciaRepository.saveAll(novosProdutos);
+            for (ProdutoReferencia novoProduto : novosProdutos) {
+                indiceNomesProdutoService.registrar(novoProduto);
+            }
+        }
+        return produtos;
+    }
+    
+    private ProdutoReferencia novoProdutoReferencia(NFeXmlData.ItemNFeDados itemData) {
         ProdutoReferencia novoProduto = new ProdutoReferencia();
         
-        String codigoInterno = gerarCodigoInternoUnico();
-        novoProduto.setCodigoInterno(codigoInterno);
+        novoProduto.setCodigoInterno(codigoInternoService.gerar());
         
         novoProduto.setNome(itemData.getNomeProduto());
         novoProduto.setDescricao(itemData.getDescricaoProduto());
@@ -196,12 +605,71 @@ public class ProcessamentoNFeService {
         novoProduto.setValidade(itemData.getDataVencimento());
         novoProduto.setStatus("ATIVO");
         
-        return produtoReferenciaRepository.save(novoProduto);
+        return novoProduto;
+    }
+    
+    /**
+     * Busca de uma vez os vínculos do fornecedor com os produtos da nota, atualizando o preço de compra
+     * dos existentes e criando os que faltam. A lista retornada segue a ordem dos itens.
+     */
+    private List<ProdutoFornecedor> resolverProdutosFornecedor(List<NFeXmlData.ItemNFeDados> itensNota,
+                                                               List<ProdutoReferencia> produtos, Fornecedor fornecedor) {
+        Set<ProdutoReferencia> produtosExistentes = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (ProdutoReferencia produto : produtos) {
+            if (produto.getId() != null) {
+                produtosExistentes.add(produto);
+            }
+        }
+        Map<Long, ProdutoFornecedor> existentesPorProduto = new HashMap<>();
+        if (!produtosExistentes.isEmpty() && fornecedor.getId() != null) {
+            for (ProdutoFornecedor produtoFornecedor :
+                    produtoFornecedorRepository.findByFornecedorAndProdutoReferenciaIn(fornecedor, produtosExistentes)) {
+                existentesPorProduto.putIfAbsent(produtoFornecedor.getProdutoReferencia().getId(), produtoFornecedor);
+            }
+        }
+        
+        Map<ProdutoReferencia, ProdutoFornecedor> vinculos = new IdentityHashMap<>();
+        List<ProdutoFornecedor> resolvidos = new ArrayList<>(itensNota.size());
+        for (int i = 0; i < itensNota.size(); i++) {
+            NFeXmlData.ItemNFeDados itemData = itensNota.get(i);
+            ProdutoReferencia produtoReferencia = produtos.get(i);
+            
+            ProdutoFornecedor produtoFornecedor = vinculos.get(produtoReferencia);
+            if (produtoFornecedor == null && produtoReferencia.getId() != null) {
+                produtoFornecedor = existentesPorProduto.get(produtoReferencia.getId());
+            }
+            
+            if (produtoFornecedor != null) {
+                if (itemData.getValorUnitario() != null) {
+                    produtoFornecedor.setPrecoCompra(itemData.getValorUnitario());
+                    produtoFornecedor.setDataUltimaCompra(new Date());
+                }
+            } else {
+                produtoFornecedor = new ProdutoFornecedor();
+                produtoFornecedor.setProdutoReferencia(produtoReferencia);
+                produtoFornecedor.setFornecedor(fornecedor);
+                produtoFornecedor.setCodigoFornecedor(itemData.getCodigoProduto());
+                produtoFornecedor.setNomeFornecedor(itemData.getNomeProduto());
+                produtoFornecedor.setPrecoCompra(itemData.getValorUnitario() != null ? itemData.getValorUnitario() : BigDecimal.ZERO);
+                produtoFornecedor.setUnidadeMedidaFornecedor(itemData.getUnidadeMedida());
+                produtoFornecedor.setEanFornecedor(itemData.getEan());
+                produtoFornecedor.setDataUltimaCompra(new Date());
+                produtoFornecedor.setAtivo(true);
+            }
+            vinculos.put(produtoReferencia, produtoFornecedor);
+            resolvidos.add(produtoFornecedor);
+        }
+        
+        produtoFornecedorRepository.saveAll(vinculos.values());
+        return resolvidos;
     }
     
-    private String gerarCodigoInternoUnico() {
-        long timestamp = System.currentTimeMillis();
-        return "AUTO" + String.valueOf(timestamp).substring(6); // Usar últimos 7 dígitos
+    private boolean possuiEan(NFeXmlData.ItemNFeDados itemData) {
+        return itemData.getEan() != null && !itemData.getEan().trim().isEmpty() && !itemData.getEan().equals("SEM GTIN");
+    }
+    
+    private boolean possuiNome(NFeXmlData.ItemNFeDados itemData) {
+        return itemData.getNomeProduto() != null && !itemData.getNomeProduto().trim().isEmpty();
     }
     
     private NotaFiscal criarNotaFiscal(NFeXmlData nfeData, Fornecedor fornecedor, Unidade unidade, ImportacaoNFe importacao) {
@@ -217,6 +685,9 @@ public class ProcessamentoNFeService {
         notaFiscal.setUnidade(unidade);
         notaFiscal.setFarmaciaId(unidade.getFarmacia().getId());
         notaFiscal.setImportacaoNFe(importacao);
+        if (importacao != null) {
+            notaFiscal.setLoteProcessamento(importacao.getLoteProcessamento());
+        }
         notaFiscal.setAtivo(true);
         
         return notaFiscalRepository.save(notaFiscal);
@@ -231,19 +702,48 @@ public class ProcessamentoNFeService {
         item.setProdutoReferencia(produtoFornecedor.getProdutoReferencia());
         item.setAtivo(true);
         
-        return notaFiscalItemRepository.save(item);
+        return item;
     }
     
-    private void atualizarEstoque(ProdutoFornecedor produtoFornecedor, NFeXmlData.ItemNFeDados itemData, 
-                                  Unidade unidade, String tipoOperacao) {
+    /**
+     * Carrega em uma consulta os estoques da unidade para os produtos da nota, indexados por lote.
+     */
+    private Map<ProdutoFornecedor, Map<String, EstoqueProduto>> buscarEstoques(List<ProdutoFornecedor> produtosFornecedor,
+                                                                            Unidade unidade) {
+        Map<ProdutoFornecedor, Map<String, EstoqueProduto>> estoques = new IdentityHashMap<>();
+        Map<Long, ProdutoFornecedor> existentes = new HashMap<>();
+        for (ProdutoFornecedor produtoFornecedor : produtosFornecedor) {
+            estoques.putIfAbsent(produtoFornecedor, new HashMap<>());
+            if (produtoFornecedor.getId() != null) {
+                existentes.put(produtoFornecedor.getId(), produtoFornecedor);
+            }
+        }
         
-        Optional<EstoqueProduto> estoqueExistente = estoqueProdutoRepository
-            .findByProdutoFornecedorAndUnidadeAndLote(produtoFornecedor, unidade, itemData.getLote());
+        if (!existentes.isEmpty()) {
+            for (EstoqueProduto estoque :
+                    estoqueProdutoRepository.findByUnidadeAndProdutoFornecedorIn(unidade, existentes.values())) {
+                ProdutoFornecedor produtoFornecedor = existentes.get(estoque.getProdutoFornecedor().getId());
+                if (produtoFornecedor != null) {
+                    estoques.get(produtoFornecedor).putIfAbsent(estoque.getLote(), estoque);
+                }
+            }
+        }
+        return estoques;
+    }
+    
+    /**
+     * Localiza ou cria o estoque do lote. Estoques já gravados não são alterados: a quantidade entra no
+     * razão por {@link #criarMovimentacao} e a cópia em {@code quantidadeAtual} é atualizada pelo
+     * {@link SaldoEstoqueService}. Estoques novos já são inseridos com a quantidade da nota e um snapshot
+     * de abertura zerado.
+     */
+    private EstoqueProduto atualizarEstoque(Map<ProdutoFornecedor, Map<String, EstoqueProduto>> estoques,
+                                            ProdutoFornecedor produtoFornecedor, NFeXmlData.ItemNFeDados itemData,
+                                            Unidade unidade, String tipoOperacao) {
         
-        EstoqueProduto estoque;
-        if (estoqueExistente.isPresent()) {
-            estoque = estoqueExistente.get();
-        } else {
+        Map<String, EstoqueProduto> estoquesPorLote = estoques.get(produtoFornecedor);
+        EstoqueProduto estoque = estoquesPorLote.get(itemData.getLote());
+        if (estoque == null) {
             estoque = new EstoqueProduto();
             estoque.setProdutoFornecedor(produtoFornecedor);
             estoque.setProdutoReferencia(produtoFornecedor.getProdutoReferencia());
@@ -254,160 +754,198 @@ public class ProcessamentoNFeService {
             estoque.setAtivo(true);
         }
         
-        int quantidade = itemData.getQuantidade();
-        if ("COMPRA".equals(tipoOperacao)) {
-            estoque.setQuantidadeAtual(estoque.getQuantidadeAtual() + quantidade);
-        } else if ("VENDA".equals(tipoOperacao)) {
-            estoque.setQuantidadeAtual(estoque.getQuantidadeAtual() - quantidade);
+        if (estoque.getId() == null) {
+            estoque.setQuantidadeAtual(estoque.getQuantidadeAtual() + quantidadeMovimentada(itemData, tipoOperacao));
+            if (itemData.getValorUnitario() != null) {
+                estoque.setValorUnitario(itemData.getValorUnitario());
+                estoque.setValorTotal(itemData.getValorUnitario()
+                    .multiply(BigDecimal.valueOf(estoque.getQuantidadeAtual())));
+            }
+            estoque.setDataUltimaMovimentacao(new Date());
         }
-        
-        if (itemData.getValorUnitario() != null) {
-            estoque.setValorUnitario(itemData.getValorUnitario());
-            estoque.setValorTotal(itemData.getValorUnitario()
-                .multiply(BigDecimal.valueOf(estoque.getQuantidadeAtual())));
+        // Itens seguintes com o mesmo produto e lote acumulam no mesmo estoque
+        estoquesPorLote.put(itemData.getLote(), estoque);
+        return estoque;
+    }
+    
+    /**
+     * Lançamento do item no razão de estoque; notas que não são de compra nem de venda não movimentam o estoque.
+     */
+    private MovimentacaoEstoque criarMovimentacao(EstoqueProduto estoque, NotaFiscalItem item,
+                                                  NFeXmlData.ItemNFeDados itemData, NFeXmlData nfeData) {
+        String tipoOperacao = nfeData.getTipoOperacao();
+        if (!movimentaEstoque(tipoOperacao)) {
+            return null;
         }
-        
-        estoque.setDataUltimaMovimentacao(new Date());
-        estoqueProdutoRepository.save(estoque);
+        MovimentacaoEstoque movimentacao = SaldoEstoqueService.novaMovimentacao(estoque, tipoOperacao,
+            quantidadeMovimentada(itemData, tipoOperacao), itemData.getValorUnitario(), "NFe " + nfeData.getNumero());
+        movimentacao.setNotaFiscalItem(item);
+        return movimentacao;
     }
     
-    private void validarConsistenciaNota(NFeXmlData nfeData, NotaFiscal notaFiscal, ProcessamentoResult result) {
-        // Validar valor total
-        BigDecimal somaItens = nfeData.getItens().stream()
-            .map(NFeXmlData.ItemNFeDados::getValorTotal)
-            .reduce(BigDecimal.ZERO, BigDecimal::add);
+    private static boolean movimentaEstoque(String tipoOperacao) {
+        return MovimentacaoEstoque.TIPO_COMPRA.equals(tipoOperacao) || MovimentacaoEstoque.TIPO_VENDA.equals(tipoOperacao);
+    }
+    
+    private static int quantidadeMovimentada(NFeXmlData.ItemNFeDados itemData, String tipoOperacao) {
+        if (MovimentacaoEstoque.TIPO_COMPRA.equals(tipoOperacao)) {
+            return itemData.getQuantidade();
+        } else if (MovimentacaoEstoque.TIPO_VENDA.equals(tipoOperacao)) {
+            return -itemData.getQuantidade();
+        }
+        return 0;
+    }
+    
+    /**
+     * Valida a nota sem acessar o banco, para ser executada antes da transação de gravação. As regras
+     * fiscais são aplicadas a cada item; em notas a partir de {@code freepharma.nfe.validacao.limiar-paralelo}
+     * itens, os itens são divididos entre as threads do fork/join pool. Os achados seguem a ordem dos itens,
+     * seguidos dos achados da nota, qualquer que seja o modo de execução.
+     */
+    public ValidacaoNFe validarNFe(NFeXmlData nfeData) {
+        return validarNFe(nfeData, new Date());
+    }
+    
+    /**
+     * Como {@link #validarNFe(NFeXmlData)}, avaliando datas como prazos de vencimento e a idade da nota em
+     * relação a {@code hoje}; no reprocessamento, a data em que a nota foi importada.
+     */
+    public ValidacaoNFe validarNFe(NFeXmlData nfeData, Date hoje) {
+        List<RegraValidacaoFiscalService.RegraCompilada> regras = regraValidacaoFiscalService.getRegras();
+        List<NFeXmlData.ItemNFeDados> itens = nfeData.getItens();
+        
+        AvaliacaoItem[] avaliacoes = new AvaliacaoItem[itens.size()];
+        if (itens.size() >= limiarValidacaoParalela) {
+            ForkJoinPool.commonPool().invoke(new ValidacaoItens(itens, regras, hoje, avaliacoes, 0, itens.size()));
+        } else {
+            for (int i = 0; i < itens.size(); i++) {
+                avaliacoes[i] = avaliarItem(itens.get(i), regras, hoje);
+            }
+        }
+        
+        ValidacaoNFe validacao = new ValidacaoNFe();
+        BigDecimal somaItens = BigDecimal.ZERO;
+        for (int i = 0; i < itens.size(); i++) {
+            NFeXmlData.ItemNFeDados item = itens.get(i);
+            if (item.getValorTotal() != null) {
+                somaItens = somaItens.add(item.getValorTotal());
+            }
+            validacao.achados.addAll(avaliacoes[i].achados);
+            if (!avaliacoes[i].bloqueios.isEmpty()) {
+                validacao.itensBloqueados.add(item);
+                validacao.erros.addAll(avaliacoes[i].bloqueios);
+            }
+        }
         
-        if (nfeData.getValorTotal().subtract(somaItens).abs().compareTo(new BigDecimal("0.01")) > 0) {
-            criarInconsistencia("DIVERGENCIA_VALOR_TOTAL",
+        // Validar valor total
+        if (nfeData.getValorTotal() != null
+                && nfeData.getValorTotal().subtract(somaItens).abs().compareTo(new BigDecimal("0.01")) > 0) {
+            validacao.adicionar("DIVERGENCIA_VALOR_TOTAL",
                 "Valor total da nota (" + nfeData.getValorTotal() + 
                 ") diverge da soma dos itens (" + somaItens + ")",
-                "MEDIA", notaFiscal);
+                "MEDIA");
         }
         
         if (nfeData.getDataEmissao() != null) {
-            Date hoje = new Date();
             long diffEmDias = (hoje.getTime() - nfeData.getDataEmissao().getTime()) / (24 * 60 * 60 * 1000);
             
             if (diffEmDias > 30) {
-                criarInconsistencia("DATA_EMISSAO_ANTIGA",
+                validacao.adicionar("DATA_EMISSAO_ANTIGA",
                     "NFe com data de emissão superior a 30 dias: " + nfeData.getDataEmissao(),
-                    "BAIXA", notaFiscal);
+                    "BAIXA");
             }
             
             if (diffEmDias < -1) {
-                criarInconsistencia("DATA_EMISSAO_FUTURA",
+                validacao.adicionar("DATA_EMISSAO_FUTURA",
                     "NFe com data de emissão futura: " + nfeData.getDataEmissao(),
-                    "ALTA", notaFiscal);
+                    "ALTA");
             }
         }
         
-        for (NFeXmlData.ItemNFeDados item : nfeData.getItens()) {
-            validarItemNFe(item, notaFiscal);
-        }
-        
-        validarConsistenciaFarmaceutica(nfeData, notaFiscal);
+        return validacao;
     }
     
-    private void validarItemNFe(NFeXmlData.ItemNFeDados item, NotaFiscal notaFiscal) {
-        if (item.getNcm() == null || item.getNcm().length() != 8 || !item.getNcm().matches("\\d{8}")) {
-            criarInconsistencia("NCM_INVALIDO",
-                "NCM inválido para produto " + item.getNomeProduto() + ": " + item.getNcm(),
-                "ALTA", notaFiscal);
-        }
-        
-        if (item.getCfop() == null || item.getCfop().length() != 4 || !item.getCfop().matches("\\d{4}")) {
-            criarInconsistencia("CFOP_INVALIDO",
-                "CFOP inválido para produto " + item.getNomeProduto() + ": " + item.getCfop(),
-                "ALTA", notaFiscal);
-        }
-        
-        if (item.getEan() != null && !item.getEan().equals("SEM GTIN")) {
-            if (!validarEAN(item.getEan())) {
-                criarInconsistencia("EAN_INVALIDO",
-                    "EAN/GTIN inválido para produto " + item.getNomeProduto() + ": " + item.getEan(),
-                    "MEDIA", notaFiscal);
+    /**
+     * Aplica as regras fiscais a um item. Não altera estado compartilhado e pode rodar em qualquer thread.
+     */
+    AvaliacaoItem avaliarItem(NFeXmlData.ItemNFeDados item, List<RegraValidacaoFiscalService.RegraCompilada> regras,
+                              Date hoje) {
+        CondicaoRegraFiscal.Contexto contexto = new CondicaoRegraFiscal.Contexto(item, hoje);
+        AvaliacaoItem avaliacao = new AvaliacaoItem();
+        for (RegraValidacaoFiscalService.RegraCompilada regra : regras) {
+            if (!regra.isValido(contexto)) {
+                String descricao = regra.mensagem(contexto);
+                avaliacao.achados.add(new ValidacaoNFe.Achado(regra.getRegra().getTipoInconsistencia(), descricao,
+                    regra.getRegra().getSeveridade()));
+                if (regra.isBloqueante()) {
+                    avaliacao.bloqueios.add("Item " + item.getCodigoProduto() + " bloqueado pela regra " +
+                        regra.getRegra().getNome() + ": " + descricao);
+                }
             }
         }
+        return avaliacao;
+    }
+    
+    static class AvaliacaoItem {
+        final List<ValidacaoNFe.Achado> achados = new ArrayList<>(0);
+        final List<String> bloqueios = new ArrayList<>(0);
+    }
+    
+    /**
+     * Divide a faixa de itens ao meio até o tamanho do bloco; cada item tem a sua posição no array,
+     * então as threads não compartilham nada além da lista de regras, que é imutável.
+     */
+    private class ValidacaoItens extends RecursiveAction {
+        private static final int TAMANHO_BLOCO = 256;
         
-        if (item.getValorUnitario() == null || item.getValorUnitario().compareTo(BigDecimal.ZERO) <= 0) {
-            criarInconsistencia("VALOR_UNITARIO_INVALIDO",
-                "Valor unitário inválido para produto " + item.getNomeProduto(),
-                "ALTA", notaFiscal);
-        }
+        private final List<NFeXmlData.ItemNFeDados> itens;
+        private final List<RegraValidacaoFiscalService.RegraCompilada> regras;
+        private final Date hoje;
+        private final AvaliacaoItem[] avaliacoes;
+        private final int inicio;
+        private final int fim;
         
-        if (item.getQuantidade() == null || item.getQuantidade() <= 0) {
-            criarInconsistencia("QUANTIDADE_INVALIDA",
-                "Quantidade inválida para produto " + item.getNomeProduto(),
-                "ALTA", notaFiscal);
+        ValidacaoItens(List<NFeXmlData.ItemNFeDados> itens, List<RegraValidacaoFiscalService.RegraCompilada> regras,
+                       Date hoje, AvaliacaoItem[] avaliacoes, int inicio, int fim) {
+            this.itens = itens;
+            this.regras = regras;
+            this.hoje = hoje;
+            this.avaliacoes = avaliacoes;
+            this.inicio = inicio;
+            this.fim = fim;
         }
         
-        if (isProdutoFarmaceutico(item) && item.getLote() == null) {
-            criarInconsistencia("LOTE_OBRIGATORIO",
-                "Lote obrigatório para produto farmacêutico: " + item.getNomeProduto(),
-                "ALTA", notaFiscal);
-        }
-    }
-    
-    private void validarConsistenciaFarmaceutica(NFeXmlData nfeData, NotaFiscal notaFiscal) {
-        for (NFeXmlData.ItemNFeDados item : nfeData.getItens()) {
-            if (isProdutoFarmaceutico(item)) {
-                if (!item.getNcm().startsWith("30")) {
-                    criarInconsistencia("NCM_MEDICAMENTO_INCORRETO",
-                        "NCM incorreto para medicamento: " + item.getNomeProduto() + 
-                        " - NCM: " + item.getNcm(),
-                        "MEDIA", notaFiscal);
-                }
-                
-                if (item.getDataVencimento() != null) {
-                    Date hoje = new Date();
-                    long diffEmDias = (item.getDataVencimento().getTime() - hoje.getTime()) / (24 * 60 * 60 * 1000);
-                    
-                    if (diffEmDias < 180) { // Menos de 6 meses
-                        criarInconsistencia("PRODUTO_PROXIMO_VENCIMENTO",
-                            "Produto próximo ao vencimento: " + item.getNomeProduto() + 
-                            " - Validade: " + item.getDataVencimento(),
-                            "MEDIA", notaFiscal);
-                    }
+        @Override
+        protected void compute() {
+            if (fim - inicio <= TAMANHO_BLOCO) {
+                for (int i = inicio; i < fim; i++) {
+                    avaliacoes[i] = avaliarItem(itens.get(i), regras, hoje);
                 }
+                return;
             }
+            int meio = (inicio + fim) >>> 1;
+            invokeAll(new ValidacaoItens(itens, regras, hoje, avaliacoes, inicio, meio),
+                new ValidacaoItens(itens, regras, hoje, avaliacoes, meio, fim));
         }
     }
     
-    private boolean validarEAN(String ean) {
-        if (ean == null || ean.length() != 13) {
-            return false;
-        }
-        
-        try {
-            int soma = 0;
-            for (int i = 0; i < 12; i++) {
-                int digito = Character.getNumericValue(ean.charAt(i));
-                soma += (i % 2 == 0) ? digito : digito * 3;
-            }
-            
-            int verificador = (10 - (soma % 10)) % 10;
-            return verificador == Character.getNumericValue(ean.charAt(12));
-        } catch (NumberFormatException e) {
-            return false;
-        }
+    boolean validarEAN(String ean) {
+        return CondicaoRegraFiscal.validarGtin(ean);
     }
     
-    private boolean isProdutoFarmaceutico(NFeXmlData.ItemNFeDados item) {
-        if (item.getNcm() != null && item.getNcm().startsWith("30")) {
-            return true;
-        }
-        
-        String nome = item.getNomeProduto() != null ? item.getNomeProduto().toLowerCase() : "";
-        return nome.contains("medicament") || nome.contains("remedio") || 
-               nome.contains("farmaco") || nome.contains("comprimido") || 
-               nome.contains("capsula") || nome.contains("xarope") ||
-               nome.contains("pomada") || nome.contains("creme");
+    /**
+     * Acumula a inconsistência no resultado da nota; a gravação é feita em lote por
+     * {@link #gravarInconsistencias(ProcessamentoResult)} ao fim da nota ou quando o lote enche.
+     */
+    private void criarInconsistencia(String tipoString, String descricao, String severidade,
+                                     NotaFiscal notaFiscal, ProcessamentoResult result) {
+        criarInconsistencia(mapearTipoInconsistencia(tipoString), descricao, severidade, notaFiscal, result);
     }
     
-    private void criarInconsistencia(String tipoString, String descricao, String severidade, NotaFiscal notaFiscal) {
+    private void criarInconsistencia(TipoInconsistencia tipo, String descricao, String severidade,
+                                     NotaFiscal notaFiscal, ProcessamentoResult result) {
         Inconsistencia inconsistencia = new Inconsistencia();
         
-        TipoInconsistencia tipo = mapearTipoInconsistencia(tipoString);
         inconsistencia.setTipo(tipo);
         inconsistencia.setDescricao(descricao);
         inconsistencia.setSeveridade(severidade);
@@ -416,10 +954,25 @@ public class ProcessamentoNFeService {
         inconsistencia.setDataDeteccao(new Date());
         inconsistencia.setAtivo(true);
         
-        inconsistenciaRepository.save(inconsistencia);
+        result.getInconsistencias().add(inconsistencia);
+        if (result.getInconsistencias().size() - result.inconsistenciasGravadas >= TAMANHO_LOTE_INCONSISTENCIAS) {
+            gravarInconsistencias(result);
+        }
+    }
+    
+    /**
+     * Grava com um único saveAll as inconsistências acumuladas desde a última gravação.
+     */
+    void gravarInconsistencias(ProcessamentoResult result) {
+        List<Inconsistencia> inconsistencias = result.getInconsistencias();
+        if (result.inconsistenciasGravadas < inconsistencias.size()) {
+            inconsistenciaRepository.saveAll(new ArrayList<>(
+                inconsistencias.subList(result.inconsistenciasGravadas, inconsistencias.size())));
+            result.inconsistenciasGravadas = inconsistencias.size();
+        }
     }
     
-    private TipoInconsistencia mapearTipoInconsistencia(String tipoString) {
+    private static TipoInconsistencia mapearTipoInconsistencia(String tipoString) {
         switch (tipoString) {
             case "ERRO_PROCESSAMENTO_ITEM":
                 return TipoInconsistencia.PRODUTO_NAO_CADASTRADO;
@@ -447,6 +1000,154 @@ public class ProcessamentoNFeService {
         }
     }
     
+    /**
+     * Itens, estoques novos e movimentações de uma nota, gravados ao final com um saveAll por tipo de entidade.
+     */
+    private class GravacaoItens {
+        final List<NotaFiscalItem> itens = new ArrayList<>();
+        final Set<EstoqueProduto> estoquesNovos = Collections.newSetFromMap(new IdentityHashMap<>());
+        final List<MovimentacaoEstoque> movimentacoes = new ArrayList<>();
+        
+        NotaFiscalItem incluir(NFeXmlData nfeData, NFeXmlData.ItemNFeDados itemData, NotaFiscal notaFiscal,
+                               ProdutoFornecedor produtoFornecedor,
+                               Map<ProdutoFornecedor, Map<String, EstoqueProduto>> estoques, Unidade unidade) {
+            NotaFiscalItem item = criarItemNotaFiscal(itemData, notaFiscal, produtoFornecedor);
+            EstoqueProduto estoque = atualizarEstoque(estoques, produtoFornecedor, itemData,
+                unidade, nfeData.getTipoOperacao());
+            
+            itens.add(item);
+            registrarEstoque(estoque);
+            MovimentacaoEstoque movimentacao = criarMovimentacao(estoque, item, itemData, nfeData);
+            if (movimentacao != null) {
+                movimentacoes.add(movimentacao);
+            }
+            return item;
+        }
+        
+        EstoqueProduto registrarEstoque(EstoqueProduto estoque) {
+            if (estoque.getId() == null) {
+                estoquesNovos.add(estoque);
+            }
+            return estoque;
+        }
+        
+        void movimentar(EstoqueProduto estoque, int quantidade, BigDecimal valorUnitario, String documento,
+                        NotaFiscalItem item) {
+            MovimentacaoEstoque movimentacao = SaldoEstoqueService.novaMovimentacao(estoque,
+                MovimentacaoEstoque.TIPO_REPROCESSAMENTO, quantidade, valorUnitario, documento);
+            movimentacao.setNotaFiscalItem(item);
+            movimentacoes.add(movimentacao);
+        }
+        
+        void gravar() {
+            notaFiscalItemRepository.saveAll(itens);
+            estoqueProdutoRepository.saveAll(estoquesNovos);
+            List<SnapshotEstoque> saldosIniciais = new ArrayList<>();
+            for (EstoqueProduto estoque : estoquesNovos) {
+                saldosIniciais.add(SaldoEstoqueService.saldoInicial(estoque, 0));
+            }
+            snapshotEstoqueRepository.saveAll(saldosIniciais);
+            movimentacaoEstoqueRepository.saveAll(movimentacoes);
+        }
+    }
+    
+    /**
+     * Item já gravado da nota, com o estoque e a quantidade que lançou no razão (zero e sem estoque
+     * quando a nota não movimenta estoque).
+     */
+    private static class ItemGravado {
+        final NotaFiscalItem item;
+        final EstoqueProduto estoque;
+        final int movimentada;
+        
+        ItemGravado(NotaFiscalItem item, EstoqueProduto estoque, int movimentada) {
+            this.item = item;
+            this.estoque = estoque;
+            this.movimentada = movimentada;
+        }
+        
+        boolean corresponde(NFeXmlData.ItemNFeDados itemData, boolean mesmoValor) {
+            if (estoque != null && !Objects.equals(estoque.getLote(), itemData.getLote())) {
+                return false;
+            }
+            return !mesmoValor || (mesmoValor(BigDecimal.valueOf(itemData.getQuantidade()), item.getQuantidade())
+                && mesmoValor(itemData.getValorUnitario(), item.getValorUnitario()));
+        }
+    }
+    
+    /**
+     * O que o reprocessamento de uma nota alterou no banco.
+     */
+    public static class Diferencas {
+        private boolean notaIncluida;
+        private boolean notaAlterada;
+        private int itensInalterados;
+        private int itensAlterados;
+        private int itensIncluidos;
+        private int itensRemovidos;
+        private int movimentacoes;
+        private int inconsistenciasIncluidas;
+        private int inconsistenciasResolvidas;
+        
+        public boolean isNotaIncluida() { return notaIncluida; }
+        public boolean isNotaAlterada() { return notaAlterada; }
+        public int getItensInalterados() { return itensInalterados; }
+        public int getItensAlterados() { return itensAlterados; }
+        public int getItensIncluidos() { return itensIncluidos; }
+        public int getItensRemovidos() { return itensRemovidos; }
+        public int getMovimentacoes() { return movimentacoes; }
+        public int getInconsistenciasIncluidas() { return inconsistenciasIncluidas; }
+        public int getInconsistenciasResolvidas() { return inconsistenciasResolvidas; }
+        
+        public boolean isVazia() {
+            return !notaIncluida && !notaAlterada && itensAlterados == 0 && itensIncluidos == 0 && itensRemovidos == 0
+                && movimentacoes == 0 && inconsistenciasIncluidas == 0 && inconsistenciasResolvidas == 0;
+        }
+        
+        public String resumir() {
+            if (isVazia()) {
+                return "Nenhuma diferença.";
+            }
+            return itensIncluidos + " itens incluídos, " + itensAlterados + " alterados, " + itensRemovidos
+                + " removidos, " + movimentacoes + " movimentações de estoque, " + inconsistenciasIncluidas
+                + " inconsistências novas e " + inconsistenciasResolvidas + " resolvidas.";
+        }
+    }
+    
+    /**
+     * Resultado da validação de uma nota: as inconsistências encontradas, ainda sem nota fiscal
+     * associada, e os itens barrados por regras bloqueantes.
+     */
+    public static class ValidacaoNFe {
+        private final List<Achado> achados = new ArrayList<>();
+        private final Set<NFeXmlData.ItemNFeDados> itensBloqueados = Collections.newSetFromMap(new IdentityHashMap<>());
+        private final List<String> erros = new ArrayList<>();
+        
+        private void adicionar(String tipoString, String descricao, String severidade) {
+            achados.add(new Achado(mapearTipoInconsistencia(tipoString), descricao, severidade));
+        }
+        
+        public List<Achado> getAchados() { return achados; }
+        public Set<NFeXmlData.ItemNFeDados> getItensBloqueados() { return itensBloqueados; }
+        public List<String> getErros() { return erros; }
+        
+        public static class Achado {
+            private final TipoInconsistencia tipo;
+            private final String descricao;
+            private final String severidade;
+            
+            public Achado(TipoInconsistencia tipo, String descricao, String severidade) {
+                this.tipo = tipo;
+                this.descricao = descricao;
+                this.severidade = severidade;
+            }
+            
+            public TipoInconsistencia getTipo() { return tipo; }
+            public String getDescricao() { return descricao; }
+            public String getSeveridade() { return severidade; }
+        }
+    }
+    
     /**
      * Classe para retornar resultado do processamento
      */
@@ -457,6 +1158,9 @@ public class ProcessamentoNFeService {
         private NotaFiscal notaFiscal;
         private List<NotaFiscalItem> itensProcessados = new ArrayList<>();
         private List<String> erros = new ArrayList<>();
+        private List<Inconsistencia> inconsistencias = new ArrayList<>();
+        private int inconsistenciasGravadas;
+        private Diferencas diferencas;
         
         // Getters e setters
         public boolean isSucesso() { return sucesso; }
@@ -476,5 +1180,14 @@ public class ProcessamentoNFeService {
         
         public List<String> getErros() { return erros; }
         public void setErros(List<String> erros) { this.erros = erros; }
+        
+        public List<Inconsistencia> getInconsistencias() { return inconsistencias; }
+        public int getQuantidadeInconsistencias() { return inconsistencias.size(); }
+        
+        /**
+         * Preenchido apenas por {@link ProcessamentoNFeService#reprocessarNFe}.
+         */
+        public Diferencas getDiferencas() { return diferencas; }
+        public void setDiferencas(Diferencas diferencas) { this.diferencas = diferencas; }
     }
 }
\ No newline at end of file
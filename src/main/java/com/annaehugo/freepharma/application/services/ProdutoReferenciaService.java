@@ -17,13 +17,16 @@ public class ProdutoReferenciaService {
 
     private final ProdutoReferenciaRepository produtoRepository;
     private final MedicamentoRepository medicamentoRepository;
+    private final IndiceNomesProdutoService indiceNomesProdutoService;
 
     @Autowired
     public ProdutoReferenciaService(
             ProdutoReferenciaRepository produtoRepository,
-            MedicamentoRepository medicamentoRepository) {
+            MedicamentoRepository medicamentoRepository,
+            IndiceNomesProdutoService indiceNomesProdutoService) {
         this.produtoRepository = produtoRepository;
         this.medicamentoRepository = medicamentoRepository;
+        this.indiceNomesProdutoService = indiceNomesProdutoService;
     }
 
     public List<ProdutoReferencia> listarTodos() {
@@ -75,7 +78,9 @@ public class ProdutoReferenciaService {
             produto.setStatus("ATIVO");
         }
         
-        return produtoRepository.save(produto);
+        ProdutoReferencia salvo = produtoRepository.save(produto);
+        indiceNomesProdutoService.registrar(salvo);
+        return salvo;
     }
 
     public ProdutoReferencia atualizar(Long id, ProdutoReferencia produtoAtualizado) {
@@ -85,7 +90,9 @@ public class ProdutoReferenciaService {
                     // Não permitir alterar código interno
                     produtoAtualizado.setCodigoInterno(produto.getCodigoInterno());
                     validarDadosProduto(produtoAtualizado);
-                    return produtoRepository.save(produtoAtualizado);
+                    ProdutoReferencia salvo = produtoRepository.save(produtoAtualizado);
+                    indiceNomesProdutoService.registrar(salvo);
+                    return salvo;
                 })
                 .orElseThrow(() -> new RuntimeException("Produto não encontrado"));
     }
@@ -97,6 +104,7 @@ public class ProdutoReferenciaService {
         
         // TODO: Implementar verificação de integridade referencial
         produtoRepository.deleteById(id);
+        indiceNomesProdutoService.remover(id);
     }
 
     public void ativar(Long id) {
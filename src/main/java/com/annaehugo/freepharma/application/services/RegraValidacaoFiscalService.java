@@ -0,0 +1,221 @@
+package com.annaehugo.freepharma.application.services;
+
+import com.annaehugo.freepharma.domain.entity.fiscal.RegraValidacaoFiscal;
+import com.annaehugo.freepharma.domain.entity.fiscal.TipoInconsistencia;
+import com.annaehugo.freepharma.domain.repository.fiscal.RegraValidacaoFiscalRepository;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Motor das regras de validação fiscal aplicadas aos itens da NFe. As regras padrão ficam no código
+ * e as da tabela {@link RegraValidacaoFiscal} (módulo {@value #MODULO_NFE}) são somadas a elas; uma
+ * regra do banco com o mesmo nome de uma padrão a substitui, e com {@code ativo = false} a desliga.
+ *
+ * As condições são compiladas uma vez e mantidas em cache pelo texto. A tabela é relida quando a
+ * última carga passa de {@code freepharma.nfe.regras.intervalo-recarga}, e só as condições novas ou
+ * alteradas são compiladas de novo, o que permite incluir verificações sem reiniciar a aplicação.
+ */
+@Service
+public class RegraValidacaoFiscalService {
+
+    public static final String MODULO_NFE = "NFE";
+
+    private static final Pattern CAMPO_MENSAGEM = Pattern.compile("\\{(\\w+)}");
+
+    private final RegraValidacaoFiscalRepository regraValidacaoFiscalRepository;
+    private final long intervaloRecarga;
+    private final Map<String, CondicaoRegraFiscal> condicoes = new ConcurrentHashMap<>();
+
+    private volatile List<RegraCompilada> regras;
+    private volatile Map<String, String> regrasInvalidas = Collections.emptyMap();
+    private volatile long ultimaCarga;
+
+    @Autowired
+    public RegraValidacaoFiscalService(
+            RegraValidacaoFiscalRepository regraValidacaoFiscalRepository,
+            @Value("${freepharma.nfe.regras.intervalo-recarga:30s}") Duration intervaloRecarga) {
+        this.regraValidacaoFiscalRepository = regraValidacaoFiscalRepository;
+        this.intervaloRecarga = intervaloRecarga.toNanos();
+    }
+
+    /**
+     * Regras ativas em ordem de execução, recarregando-as se o intervalo de recarga já passou.
+     */
+    public List<RegraCompilada> getRegras() {
+        List<RegraCompilada> atuais = regras;
+        if (atuais == null || System.nanoTime() - ultimaCarga >= intervaloRecarga) {
+            atuais = recarregarSeExpirado();
+        }
+        return atuais;
+    }
+
+    /**
+     * Nome e erro de compilação das regras do banco que foram ignoradas na última carga.
+     */
+    public Map<String, String> getRegrasInvalidas() {
+        return regrasInvalidas;
+    }
+
+    private synchronized List<RegraCompilada> recarregarSeExpirado() {
+        if (regras != null && System.nanoTime() - ultimaCarga < intervaloRecarga) {
+            return regras;
+        }
+        try {
+            return recarregar();
+        } catch (RuntimeException e) {
+            if (regras == null) {
+                throw e;
+            }
+            // Sem acesso à tabela, mantém as regras atuais e tenta de novo no próximo intervalo
+            ultimaCarga = System.nanoTime();
+            return regras;
+        }
+    }
+
+    public synchronized List<RegraCompilada> recarregar() {
+        Map<String, RegraValidacaoFiscal> porNome = new LinkedHashMap<>();
+        for (RegraValidacaoFiscal regra : regrasPadrao()) {
+            porNome.put(regra.getNome(), regra);
+        }
+        for (RegraValidacaoFiscal regra : regraValidacaoFiscalRepository.findByModuloIgnoreCase(MODULO_NFE)) {
+            porNome.put(regra.getNome(), regra);
+        }
+
+        List<RegraCompilada> compiladas = new ArrayList<>();
+        Map<String, String> invalidas = new LinkedHashMap<>();
+        Set<String> condicoesUsadas = new HashSet<>();
+        for (RegraValidacaoFiscal regra : porNome.values()) {
+            if (!Boolean.TRUE.equals(regra.getAtivo())) {
+                continue;
+            }
+            String texto = regra.getCondicaoValidacao();
+            if (texto == null || texto.trim().isEmpty()) {
+                invalidas.put(regra.getNome(), "Condição da regra não informada");
+                continue;
+            }
+            try {
+                CondicaoRegraFiscal condicao = condicoes.computeIfAbsent(texto, CondicaoRegraFiscal::compilar);
+                compiladas.add(new RegraCompilada(regra, condicao));
+                condicoesUsadas.add(texto);
+            } catch (RuntimeException e) {
+                invalidas.put(regra.getNome(), e.getMessage());
+            }
+        }
+        compiladas.sort(Comparator.comparingInt(r -> r.getRegra().getOrdemExecucao() != null
+            ? r.getRegra().getOrdemExecucao() : 100));
+        condicoes.keySet().retainAll(condicoesUsadas);
+
+        regras = Collections.unmodifiableList(compiladas);
+        regrasInvalidas = Collections.unmodifiableMap(invalidas);
+        ultimaCarga = System.nanoTime();
+        return regras;
+    }
+
+    /**
+     * Verificações de item que antes ficavam fixas no processamento da NFe.
+     */
+    static List<RegraValidacaoFiscal> regrasPadrao() {
+        List<RegraValidacaoFiscal> padrao = new ArrayList<>();
+        padrao.add(regra("NCM_INVALIDO", 10, TipoInconsistencia.NCM_INVALIDO, "ALTA",
+            "ncm ~ \"\\d{8}\"",
+            "NCM inválido para produto {nomeProduto}: {ncm}"));
+        padrao.add(regra("CFOP_INVALIDO", 20, TipoInconsistencia.CFOP_INCORRETO, "ALTA",
+            "cfop ~ \"\\d{4}\"",
+            "CFOP inválido para produto {nomeProduto}: {cfop}"));
+        padrao.add(regra("EAN_INVALIDO", 30, TipoInconsistencia.PRODUTO_NAO_CADASTRADO, "MEDIA",
+            "ean == null || ean == \"SEM GTIN\" || gtin(ean)",
+            "EAN/GTIN inválido para produto {nomeProduto}: {ean}"));
+        padrao.add(regra("VALOR_UNITARIO_INVALIDO", 40, TipoInconsistencia.PRECO_DIVERGENTE, "ALTA",
+            "valorUnitario > 0",
+            "Valor unitário inválido para produto {nomeProduto}"));
+        padrao.add(regra("QUANTIDADE_INVALIDA", 50, TipoInconsistencia.PRODUTO_NAO_CADASTRADO, "ALTA",
+            "quantidade > 0",
+            "Quantidade inválida para produto {nomeProduto}"));
+        padrao.add(regra("LOTE_OBRIGATORIO", 60, TipoInconsistencia.PRODUTO_NAO_CADASTRADO, "ALTA",
+            "!farmaceutico || lote != null",
+            "Lote obrigatório para produto farmacêutico: {nomeProduto}"));
+        padrao.add(regra("NCM_MEDICAMENTO_INCORRETO", 70, TipoInconsistencia.NCM_INVALIDO, "MEDIA",
+            "!farmaceutico || comecaCom(ncm, \"30\")",
+            "NCM incorreto para medicamento: {nomeProduto} - NCM: {ncm}"));
+        padrao.add(regra("PRODUTO_PROXIMO_VENCIMENTO", 80, TipoInconsistencia.PRODUTO_NAO_CADASTRADO, "MEDIA",
+            "!farmaceutico || diasParaVencimento == null || diasParaVencimento >= 180",
+            "Produto próximo ao vencimento: {nomeProduto} - Validade: {dataVencimento}"));
+        return padrao;
+    }
+
+    private static RegraValidacaoFiscal regra(String nome, int ordem, TipoInconsistencia tipo, String severidade,
+                                              String condicao, String mensagem) {
+        RegraValidacaoFiscal regra = new RegraValidacaoFiscal();
+        regra.setNome(nome);
+        regra.setDescricao(mensagem);
+        regra.setModulo(MODULO_NFE);
+        regra.setTipoInconsistencia(tipo);
+        regra.setSeveridade(severidade);
+        regra.setCondicaoValidacao(condicao);
+        regra.setMensagemErro(mensagem);
+        regra.setOrdemExecucao(ordem);
+        return regra;
+    }
+
+    /**
+     * Regra pronta para execução: a condição compilada e a mensagem já separada em trechos fixos e campos.
+     */
+    public static class RegraCompilada {
+        private final RegraValidacaoFiscal regra;
+        private final CondicaoRegraFiscal condicao;
+        private final List<Function<CondicaoRegraFiscal.Contexto, Object>> mensagem = new ArrayList<>();
+
+        RegraCompilada(RegraValidacaoFiscal regra, CondicaoRegraFiscal condicao) {
+            this.regra = regra;
+            this.condicao = condicao;
+
+            String modelo = regra.getMensagemErro() != null ? regra.getMensagemErro()
+                : regra.getDescricao() != null ? regra.getDescricao() : regra.getNome();
+            Matcher matcher = CAMPO_MENSAGEM.matcher(modelo);
+            int inicio = 0;
+            while (matcher.find()) {
+                String fixo = modelo.substring(inicio, matcher.start());
+                mensagem.add(c -> fixo);
+                mensagem.add(CondicaoRegraFiscal.campo(matcher.group(1)));
+                inicio = matcher.end();
+            }
+            String fim = modelo.substring(inicio);
+            mensagem.add(c -> fim);
+        }
+
+        public RegraValidacaoFiscal getRegra() {
+            return regra;
+        }
+
+        public boolean isBloqueante() {
+            return Boolean.TRUE.equals(regra.getBloqueante());
+        }
+
+        public boolean isValido(CondicaoRegraFiscal.Contexto contexto) {
+            return condicao.avaliar(contexto);
+        }
+
+        public String mensagem(CondicaoRegraFiscal.Contexto contexto) {
+            StringBuilder texto = new StringBuilder();
+            for (Function<CondicaoRegraFiscal.Contexto, Object> parte : mensagem) {
+                texto.append(parte.apply(contexto));
+            }
+            return texto.toString();
+        }
+    }
+}
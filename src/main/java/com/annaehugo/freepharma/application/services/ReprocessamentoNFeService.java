@@ -0,0 +1,284 @@
+package com.annaehugo.freepharma.application.services;
+
+import com.annaehugo.freepharma.application.dto.fiscal.NFeXmlData;
+import com.annaehugo.freepharma.application.services.ProcessamentoNFeService.Diferencas;
+import com.annaehugo.freepharma.application.services.ProcessamentoNFeService.ProcessamentoResult;
+import com.annaehugo.freepharma.application.services.ProcessamentoNFeService.ValidacaoNFe;
+import com.annaehugo.freepharma.domain.entity.fiscal.ImportacaoNFe;
+import com.annaehugo.freepharma.domain.entity.fiscal.LoteProcessamento;
+import com.annaehugo.freepharma.domain.entity.fiscal.StatusImportacao;
+import com.annaehugo.freepharma.domain.repository.fiscal.ImportacaoNFeRepository;
+import com.annaehugo.freepharma.domain.repository.fiscal.LoteProcessamentoRepository;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.InputStream;
+import java.text.SimpleDateFormat;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Reprocessa importações já concluídas a partir do arquivo guardado por {@link ArmazenamentoImportacaoService},
+ * por exemplo depois de uma mudança nas regras fiscais. Cada nota do arquivo é validada novamente, com a data
+ * da importação como referência, e reaplicada por {@link ProcessamentoNFeService#reprocessarNFe}, que grava
+ * apenas as diferenças em relação ao que já está no banco; reprocessar duas vezes a mesma importação não
+ * altera nada na segunda vez, mesmo que as duas execuções se sobreponham, pois cada nota é bloqueada
+ * enquanto é reaplicada.
+ *
+ * As importações de um reprocessamento são distribuídas entre {@code freepharma.nfe.reprocessamento.threads}
+ * threads; as notas de um mesmo arquivo são reaplicadas em ordem pela thread que o lê. O andamento é
+ * acompanhado por um {@link LoteProcessamento} cujo {@code progresso} é a fração de importações terminadas.
+ */
+@Service
+public class ReprocessamentoNFeService {
+
+    static final String TIPO_LOTE = "REPROCESSAMENTO_NFE";
+    private static final int TAMANHO_DETALHES_ERRO = 255;
+
+    private final ImportacaoNFeRepository importacaoNFeRepository;
+    private final LoteProcessamentoRepository loteProcessamentoRepository;
+    private final ArmazenamentoImportacaoService armazenamentoImportacaoService;
+    private final NFeXmlParser nfeXmlParser;
+    private final ProcessamentoNFeService processamentoNFeService;
+    private final ExecutorService executor;
+    private final Map<Long, CompletableFuture<LoteProcessamento>> emAndamento = new ConcurrentHashMap<>();
+
+    @Autowired
+    public ReprocessamentoNFeService(
+            ImportacaoNFeRepository importacaoNFeRepository,
+            LoteProcessamentoRepository loteProcessamentoRepository,
+            ArmazenamentoImportacaoService armazenamentoImportacaoService,
+            NFeXmlParser nfeXmlParser,
+            ProcessamentoNFeService processamentoNFeService,
+            @Value("${freepharma.nfe.reprocessamento.threads:2}") int threads) {
+        this.importacaoNFeRepository = importacaoNFeRepository;
+        this.loteProcessamentoRepository = loteProcessamentoRepository;
+        this.armazenamentoImportacaoService = armazenamentoImportacaoService;
+        this.nfeXmlParser = nfeXmlParser;
+        this.processamentoNFeService = processamentoNFeService;
+        AtomicInteger contador = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(Math.max(1, threads), tarefa -> {
+            Thread thread = new Thread(tarefa, "reprocessamento-nfe-" + contador.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Agenda o reprocessamento das importações informadas e retorna o lote que o acompanha.
+     * Importações que não estão {@link StatusImportacao#CONCLUIDA} nem com {@link StatusImportacao#ERRO}
+     * são ignoradas.
+     */
+    public LoteProcessamento reprocessar(Collection<Long> importacaoIds) {
+        if (importacaoIds == null || importacaoIds.isEmpty()) {
+            throw new RuntimeException("Informe as importações a reprocessar");
+        }
+        return iniciar(importacaoNFeRepository.findAllById(importacaoIds));
+    }
+
+    /**
+     * Como {@link #reprocessar(Collection)}, para as importações feitas entre {@code inicio} e {@code fim}.
+     */
+    public LoteProcessamento reprocessarPeriodo(Date inicio, Date fim) {
+        if (inicio == null || fim == null || fim.before(inicio)) {
+            throw new RuntimeException("Período de reprocessamento inválido");
+        }
+        return iniciar(importacaoNFeRepository.findByDataImportacaoBetween(inicio, fim));
+    }
+
+    /**
+     * Espera o reprocessamento terminar por até {@code limite} e retorna a situação atual do lote.
+     */
+    public Optional<LoteProcessamento> aguardar(Long loteId, Duration limite) {
+        CompletableFuture<LoteProcessamento> conclusao = emAndamento.get(loteId);
+        if (conclusao != null && !limite.isZero() && !limite.isNegative()) {
+            try {
+                conclusao.get(limite.toMillis(), TimeUnit.MILLISECONDS);
+            } catch (TimeoutException | ExecutionException e) {
+                // A situação é lida do banco de qualquer forma
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        return loteProcessamentoRepository.findById(loteId);
+    }
+
+    @PreDestroy
+    public void encerrar() {
+        executor.shutdownNow();
+    }
+
+    private LoteProcessamento iniciar(List<ImportacaoNFe> importacoes) {
+        List<ImportacaoNFe> elegiveis = new ArrayList<>();
+        for (ImportacaoNFe importacao : importacoes) {
+            if (importacao.getStatus() == StatusImportacao.CONCLUIDA || importacao.getStatus() == StatusImportacao.ERRO) {
+                elegiveis.add(importacao);
+            }
+        }
+        if (elegiveis.isEmpty()) {
+            throw new RuntimeException("Nenhuma importação concluída para reprocessar");
+        }
+
+        LoteProcessamento lote = new LoteProcessamento();
+        lote.setIdLote(UUID.randomUUID());
+        lote.setTipoLote(TIPO_LOTE);
+        lote.setStatus("PROCESSANDO");
+        lote.setDataInicio(new Date());
+        lote.setProgresso(0);
+        lote.setCreatedAt(new Date());
+        loteProcessamentoRepository.save(lote);
+
+        Execucao execucao = new Execucao(lote, elegiveis.size());
+        CompletableFuture<?>[] tarefas = new CompletableFuture<?>[elegiveis.size()];
+        for (int i = 0; i < elegiveis.size(); i++) {
+            ImportacaoNFe importacao = elegiveis.get(i);
+            tarefas[i] = CompletableFuture.runAsync(() -> reprocessarImportacao(importacao, execucao), executor);
+        }
+        CompletableFuture<LoteProcessamento> conclusao = CompletableFuture.allOf(tarefas)
+            .handle((resultado, erro) -> finalizar(execucao));
+        emAndamento.put(lote.getId(), conclusao);
+        conclusao.whenComplete((resultado, erro) -> emAndamento.remove(lote.getId()));
+        return lote;
+    }
+
+    /**
+     * Lê o arquivo da importação e reaplica as notas uma a uma. Uma nota com erro não interrompe as
+     * demais; um arquivo que não pode ser lido encerra a importação e fica registrado no lote.
+     */
+    void reprocessarImportacao(ImportacaoNFe importacao, Execucao execucao) {
+        ResumoImportacao resumo = new ResumoImportacao();
+        try (InputStream arquivo = armazenamentoImportacaoService.abrir(importacao);
+             NFeArquivoIterator notas = nfeXmlParser.lerArquivo(arquivo, importacao.getNomeArquivo(), null)) {
+            while (notas.hasNext()) {
+                NFeXmlData nota = notas.next();
+                try {
+                    ValidacaoNFe validacao = processamentoNFeService.validarNFe(nota, importacao.getDataImportacao());
+                    resumo.registrar(processamentoNFeService.reprocessarNFe(nota, importacao.getUnidade(),
+                        importacao, validacao));
+                } catch (RuntimeException e) {
+                    resumo.comErro++;
+                }
+            }
+            resumo.comErro += notas.contarFalhasLeitura(0, notas.getErros().size());
+            registrarResumo(importacao, resumo);
+        } catch (IOException | RuntimeException e) {
+            execucao.registrarErro("Importação " + importacao.getId() + ": " + e.getMessage());
+        } finally {
+            execucao.concluirImportacao();
+        }
+    }
+
+    private void registrarResumo(ImportacaoNFe importacao, ResumoImportacao resumo) {
+        String registro = "Reprocessada em " + new SimpleDateFormat("dd/MM/yyyy HH:mm").format(new Date()) + ": "
+            + resumo.resumir();
+        importacao.setLogProcessamento(importacao.getLogProcessamento() == null
+            ? registro : importacao.getLogProcessamento() + "\n" + registro);
+        importacaoNFeRepository.save(importacao);
+    }
+
+    private LoteProcessamento finalizar(Execucao execucao) {
+        LoteProcessamento lote = execucao.lote;
+        synchronized (lote) {
+            lote.setStatus(execucao.erros.isEmpty() ? "CONCLUIDO" : "ERRO");
+            lote.setDataFim(new Date());
+            lote.setProgresso(100);
+            lote.setUpdatedAt(new Date());
+            if (!execucao.erros.isEmpty()) {
+                String detalhes = String.join("; ", execucao.erros);
+                lote.setDetalhesErro(detalhes.length() > TAMANHO_DETALHES_ERRO
+                    ? detalhes.substring(0, TAMANHO_DETALHES_ERRO - 3) + "..." : detalhes);
+            }
+            return loteProcessamentoRepository.save(lote);
+        }
+    }
+
+    /**
+     * Lote em andamento e quantas das suas importações já terminaram.
+     */
+    class Execucao {
+        final LoteProcessamento lote;
+        final int total;
+        final AtomicInteger concluidas = new AtomicInteger();
+        final List<String> erros = new ArrayList<>();
+
+        Execucao(LoteProcessamento lote, int total) {
+            this.lote = lote;
+            this.total = total;
+        }
+
+        synchronized void registrarErro(String erro) {
+            erros.add(erro);
+        }
+
+        void concluirImportacao() {
+            int progresso = concluidas.incrementAndGet() * 100 / total;
+            synchronized (lote) {
+                // A última importação deixa o progresso para finalizar(), junto com o status
+                if (progresso < 100 && progresso > lote.getProgresso()) {
+                    lote.setProgresso(progresso);
+                    lote.setUpdatedAt(new Date());
+                    loteProcessamentoRepository.save(lote);
+                }
+            }
+        }
+    }
+
+    private static class ResumoImportacao {
+        int notas;
+        int comErro;
+        int inalteradas;
+        int incluidas;
+        int itensIncluidos;
+        int itensAlterados;
+        int itensRemovidos;
+        int movimentacoes;
+        int inconsistenciasIncluidas;
+        int inconsistenciasResolvidas;
+
+        void registrar(ProcessamentoResult result) {
+            if (!result.isSucesso()) {
+                comErro++;
+                return;
+            }
+            notas++;
+            Diferencas diferencas = result.getDiferencas();
+            if (diferencas.isVazia()) {
+                inalteradas++;
+                return;
+            }
+            if (diferencas.isNotaIncluida()) {
+                incluidas++;
+            }
+            itensIncluidos += diferencas.getItensIncluidos();
+            itensAlterados += diferencas.getItensAlterados();
+            itensRemovidos += diferencas.getItensRemovidos();
+            movimentacoes += diferencas.getMovimentacoes();
+            inconsistenciasIncluidas += diferencas.getInconsistenciasIncluidas();
+            inconsistenciasResolvidas += diferencas.getInconsistenciasResolvidas();
+        }
+
+        String resumir() {
+            return notas + " NFe reprocessadas (" + inalteradas + " sem diferenças, " + incluidas + " incluídas), "
+                + comErro + " com erro. Itens: " + itensIncluidos + " incluídos, " + itensAlterados + " alterados, "
+                + itensRemovidos + " removidos; " + movimentacoes + " movimentações de estoque; "
+                + inconsistenciasIncluidas + " inconsistências novas e " + inconsistenciasResolvidas + " resolvidas.";
+        }
+    }
+}
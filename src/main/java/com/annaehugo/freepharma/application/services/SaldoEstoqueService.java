@@ -0,0 +1,206 @@
+package com.annaehugo.freepharma.application.services;
+
+import com.annaehugo.freepharma.domain.entity.estoque.EstoqueProduto;
+import com.annaehugo.freepharma.domain.entity.estoque.MovimentacaoEstoque;
+import com.annaehugo.freepharma.domain.entity.estoque.SnapshotEstoque;
+import com.annaehugo.freepharma.domain.repository.estoque.EstoqueProdutoRepository;
+import com.annaehugo.freepharma.domain.repository.estoque.MovimentacaoEstoqueRepository;
+import com.annaehugo.freepharma.domain.repository.estoque.SnapshotEstoqueRepository;
+import org.hibernate.Hibernate;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+
+import javax.persistence.EntityManager;
+import javax.persistence.LockModeType;
+import javax.persistence.PersistenceContext;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Saldo dos lotes a partir do razão de estoque. As gravações apenas inserem {@link MovimentacaoEstoque};
+ * o saldo de um lote é o seu último {@link SnapshotEstoque} mais as movimentações consolidadas depois da
+ * data de corte dele ou ainda não consolidadas. Lotes novos recebem um snapshot de abertura com saldo zero;
+ * um lote sem snapshot é anterior ao razão e parte de {@code quantidadeAtual}, até ganhar o seu na próxima
+ * consolidação.
+ *
+ * A cada {@code freepharma.estoque.snapshot.intervalo-ms} as movimentações ainda não consolidadas são
+ * marcadas com o corte, somadas em novos snapshots e o saldo é copiado para
+ * {@link EstoqueProduto#getQuantidadeAtual()}. A marcação só vê movimentações já confirmadas, então uma
+ * transação que confirma depois, com qualquer {@code dataRegistro}, entra na consolidação seguinte.
+ */
+@Service
+@Transactional
+public class SaldoEstoqueService {
+
+    private static final Date INICIO = new Date(0);
+
+    private final MovimentacaoEstoqueRepository movimentacaoEstoqueRepository;
+    private final SnapshotEstoqueRepository snapshotEstoqueRepository;
+    private final EstoqueProdutoRepository estoqueProdutoRepository;
+
+    @PersistenceContext
+    private EntityManager entityManager;
+
+    @Autowired
+    public SaldoEstoqueService(
+            MovimentacaoEstoqueRepository movimentacaoEstoqueRepository,
+            SnapshotEstoqueRepository snapshotEstoqueRepository,
+            EstoqueProdutoRepository estoqueProdutoRepository) {
+        this.movimentacaoEstoqueRepository = movimentacaoEstoqueRepository;
+        this.snapshotEstoqueRepository = snapshotEstoqueRepository;
+        this.estoqueProdutoRepository = estoqueProdutoRepository;
+    }
+
+    public static MovimentacaoEstoque novaMovimentacao(EstoqueProduto estoque, String tipo, int quantidade,
+                                                       BigDecimal valorUnitario, String documento) {
+        MovimentacaoEstoque movimentacao = new MovimentacaoEstoque();
+        movimentacao.setEstoqueProduto(estoque);
+        movimentacao.setTipo(tipo);
+        movimentacao.setQuantidade(quantidade);
+        movimentacao.setValorUnitario(valorUnitario);
+        movimentacao.setDocumento(documento);
+        movimentacao.setDataRegistro(new Date());
+        return movimentacao;
+    }
+
+    /**
+     * Snapshot de abertura de um lote: {@code quantidade} antes de qualquer movimentação.
+     */
+    public static SnapshotEstoque saldoInicial(EstoqueProduto estoque, int quantidade) {
+        SnapshotEstoque snapshot = new SnapshotEstoque();
+        snapshot.setEstoqueProduto(estoque);
+        snapshot.setQuantidade(quantidade);
+        snapshot.setDataCorte(INICIO);
+        snapshot.setDataGeracao(new Date());
+        return snapshot;
+    }
+
+    /**
+     * Garante o snapshot de abertura de um lote anterior ao razão, com a quantidade que ele tinha, antes
+     * que {@code quantidadeAtual} seja alterada fora da consolidação. O lote é relido com bloqueio de
+     * escrita, então duas aberturas simultâneas não gravam dois snapshots nem partem de uma quantidade antiga.
+     */
+    public void abrirSaldo(EstoqueProduto estoque) {
+        entityManager.refresh(estoque, LockModeType.PESSIMISTIC_WRITE);
+        if (!snapshotEstoqueRepository.existsByEstoqueProdutoId(estoque.getId())) {
+            snapshotEstoqueRepository.save(saldoInicial(estoque, estoque.getQuantidadeAtual()));
+        }
+    }
+
+    /**
+     * Abre o razão de um lote recém-criado: snapshot zerado e a quantidade cadastrada como saldo inicial.
+     */
+    public void registrarSaldoInicial(EstoqueProduto estoque) {
+        snapshotEstoqueRepository.save(saldoInicial(estoque, 0));
+        if (estoque.getQuantidadeAtual() != null && estoque.getQuantidadeAtual() != 0) {
+            registrar(novaMovimentacao(estoque, MovimentacaoEstoque.TIPO_SALDO_INICIAL, estoque.getQuantidadeAtual(),
+                    estoque.getValorUnitario(), null));
+        }
+    }
+
+    /**
+     * Grava {@code quantidade} como cópia do saldo do lote e relê apenas essa linha, sem descartar as
+     * demais entidades carregadas na transação.
+     */
+    public void copiarSaldo(EstoqueProduto estoque, int quantidade, Date data) {
+        estoqueProdutoRepository.atualizarSaldo(estoque.getId(), quantidade, data);
+        recarregar(estoque);
+    }
+
+    public MovimentacaoEstoque registrar(MovimentacaoEstoque movimentacao) {
+        if (movimentacao.getDataRegistro() == null) {
+            movimentacao.setDataRegistro(new Date());
+        }
+        return movimentacaoEstoqueRepository.save(movimentacao);
+    }
+
+    @Transactional(readOnly = true)
+    public int consultarSaldo(Long estoqueProdutoId) {
+        Optional<SnapshotEstoque> snapshot = snapshotEstoqueRepository
+                .findFirstByEstoqueProdutoIdOrderByDataCorteDesc(estoqueProdutoId);
+        int base = snapshot.isPresent() ? snapshot.get().getQuantidade() : estoqueProdutoRepository.findById(estoqueProdutoId)
+                .map(EstoqueProduto::getQuantidadeAtual)
+                .orElseThrow(() -> new RuntimeException("Estoque não encontrado"));
+        Date desde = snapshot.map(SnapshotEstoque::getDataCorte).orElse(INICIO);
+        return base + (int) movimentacaoEstoqueRepository.somarDesde(estoqueProdutoId, desde);
+    }
+
+    @Transactional(readOnly = true)
+    public List<MovimentacaoEstoque> listarMovimentacoes(Long estoqueProdutoId) {
+        return movimentacaoEstoqueRepository.findByEstoqueProdutoIdOrderByDataRegistroAscIdAsc(estoqueProdutoId);
+    }
+
+    /**
+     * Consolida as movimentações confirmadas desde a última consolidação e retorna quantos snapshots foram
+     * gerados. Todo lote consolidado tem a cópia do saldo em {@code quantidadeAtual} atualizada.
+     */
+    @Scheduled(fixedDelayString = "${freepharma.estoque.snapshot.intervalo-ms:60000}",
+            initialDelayString = "${freepharma.estoque.snapshot.intervalo-ms:60000}")
+    public int gerarSnapshots() {
+        Date agora = new Date();
+        Date desde = snapshotEstoqueRepository.buscarUltimoCorte().orElse(INICIO);
+        // O corte precisa ser posterior ao anterior para separar as movimentações de cada snapshot
+        Date corte = agora.after(desde) ? agora : new Date(desde.getTime() + 1);
+
+        if (movimentacaoEstoqueRepository.marcarConsolidadas(corte) == 0) {
+            return 0;
+        }
+        List<Object[]> somas = movimentacaoEstoqueRepository.somarConsolidadas(corte);
+        List<Long> estoqueIds = new ArrayList<>();
+        for (Object[] soma : somas) {
+            estoqueIds.add((Long) soma[0]);
+        }
+        Map<Long, Integer> saldosAnteriores = new HashMap<>();
+        for (SnapshotEstoque anterior : snapshotEstoqueRepository.buscarUltimos(estoqueIds)) {
+            saldosAnteriores.put(anterior.getEstoqueProduto().getId(), anterior.getQuantidade());
+        }
+        List<Long> semSnapshot = new ArrayList<>(estoqueIds);
+        semSnapshot.removeAll(saldosAnteriores.keySet());
+        Map<Long, EstoqueProduto> anterioresAoRazao = new HashMap<>();
+        for (EstoqueProduto estoque : estoqueProdutoRepository.findAllById(semSnapshot)) {
+            anterioresAoRazao.put(estoque.getId(), estoque);
+        }
+
+        int gerados = 0;
+        for (Object[] soma : somas) {
+            Long estoqueId = (Long) soma[0];
+            EstoqueProduto anteriorAoRazao = anterioresAoRazao.get(estoqueId);
+            int base = anteriorAoRazao != null ? anteriorAoRazao.getQuantidadeAtual() : saldosAnteriores.get(estoqueId);
+            int saldo = base + ((Number) soma[1]).intValue();
+            EstoqueProduto estoque = estoqueProdutoRepository.getById(estoqueId);
+            SnapshotEstoque snapshot = new SnapshotEstoque();
+            snapshot.setEstoqueProduto(estoque);
+            snapshot.setQuantidade(saldo);
+            snapshot.setDataCorte(corte);
+            snapshot.setDataGeracao(agora);
+            snapshotEstoqueRepository.save(snapshot);
+            gerados++;
+
+            Date ultimaMovimentacao = (Date) soma[2];
+            Optional<BigDecimal> valorUnitario = movimentacaoEstoqueRepository
+                    .findFirstByEstoqueProdutoIdAndValorUnitarioNotNullOrderByDataRegistroDescIdDesc(estoqueId)
+                    .map(MovimentacaoEstoque::getValorUnitario);
+            if (valorUnitario.isPresent()) {
+                estoqueProdutoRepository.atualizarSaldo(estoqueId, saldo, valorUnitario.get(), ultimaMovimentacao);
+            } else {
+                estoqueProdutoRepository.atualizarSaldo(estoqueId, saldo, ultimaMovimentacao);
+            }
+            recarregar(estoque);
+        }
+        return gerados;
+    }
+
+    // A atualização em lote não passa pela entidade; um lote já carregado é relido para não ficar com o saldo antigo
+    private void recarregar(EstoqueProduto estoque) {
+        if (Hibernate.isInitialized(estoque) && entityManager.contains(estoque)) {
+            entityManager.refresh(estoque);
+        }
+    }
+}
@@ -0,0 +1,243 @@
+package com.annaehugo.freepharma.application.services;
+
+import com.annaehugo.freepharma.domain.entity.estoque.EstoqueProduto;
+import com.annaehugo.freepharma.domain.entity.estoque.MovimentacaoEstoque;
+import com.annaehugo.freepharma.domain.entity.estoque.ProdutoFornecedor;
+import com.annaehugo.freepharma.domain.entity.estoque.ProdutoReferencia;
+import com.annaehugo.freepharma.domain.repository.estoque.EstoqueProdutoRepository;
+import com.annaehugo.freepharma.domain.repository.estoque.ProdutoFornecedorRepository;
+import com.annaehugo.freepharma.domain.repository.estoque.ProdutoReferenciaRepository;
+import com.annaehugo.freepharma.domain.repository.fiscal.NotaFiscalItemRepository;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Unifica produtos de referência duplicados em um produto de destino. Itens de nota, vínculos com
+ * fornecedor e estoques passam para o destino com atualizações em lote, uma por tabela; os produtos
+ * unificados não são excluídos, ficam com status {@value #STATUS_UNIFICADO} e sem EAN, preservando o
+ * histórico que ainda aponta para eles.
+ *
+ * Cada fornecedor fica com um só vínculo: o do destino ou, se ele não tiver, o mais antigo dos unificados.
+ * Os demais vínculos do mesmo fornecedor são desativados e os seus estoques passam para o vínculo mantido;
+ * quando o lote já existe lá, o saldo é transferido por movimentações {@link MovimentacaoEstoque#TIPO_UNIFICACAO}
+ * e o lote antigo fica zerado.
+ */
+@Service
+@Transactional
+public class UnificacaoProdutoService {
+
+    public static final String STATUS_UNIFICADO = "UNIFICADO";
+
+    private final ProdutoReferenciaRepository produtoReferenciaRepository;
+    private final ProdutoFornecedorRepository produtoFornecedorRepository;
+    private final EstoqueProdutoRepository estoqueProdutoRepository;
+    private final NotaFiscalItemRepository notaFiscalItemRepository;
+    private final SaldoEstoqueService saldoEstoqueService;
+    private final IndiceNomesProdutoService indiceNomesProdutoService;
+
+    @Autowired
+    public UnificacaoProdutoService(
+            ProdutoReferenciaRepository produtoReferenciaRepository,
+            ProdutoFornecedorRepository produtoFornecedorRepository,
+            EstoqueProdutoRepository estoqueProdutoRepository,
+            NotaFiscalItemRepository notaFiscalItemRepository,
+            SaldoEstoqueService saldoEstoqueService,
+            IndiceNomesProdutoService indiceNomesProdutoService) {
+        this.produtoReferenciaRepository = produtoReferenciaRepository;
+        this.produtoFornecedorRepository = produtoFornecedorRepository;
+        this.estoqueProdutoRepository = estoqueProdutoRepository;
+        this.notaFiscalItemRepository = notaFiscalItemRepository;
+        this.saldoEstoqueService = saldoEstoqueService;
+        this.indiceNomesProdutoService = indiceNomesProdutoService;
+    }
+
+    public ResultadoUnificacao unificar(Long produtoDestinoId, Collection<Long> produtoOrigemIds) {
+        Set<Long> origemIds = new LinkedHashSet<>(produtoOrigemIds != null ? produtoOrigemIds : Collections.emptySet());
+        if (origemIds.isEmpty()) {
+            throw new RuntimeException("Informe os produtos a unificar");
+        }
+        if (origemIds.contains(produtoDestinoId)) {
+            throw new RuntimeException("O produto de destino não pode estar entre os produtos unificados");
+        }
+        ProdutoReferencia destino = produtoReferenciaRepository.findById(produtoDestinoId)
+            .orElseThrow(() -> new RuntimeException("Produto de destino não encontrado"));
+        List<ProdutoReferencia> origens = produtoReferenciaRepository.findAllById(origemIds);
+        if (origens.size() != origemIds.size()) {
+            throw new RuntimeException("Produto a unificar não encontrado");
+        }
+        origens.sort(Comparator.comparing(ProdutoReferencia::getId));
+        validar(destino, origens);
+
+        ResultadoUnificacao resultado = new ResultadoUnificacao(destino.getId(), origens.size());
+
+        // Um vínculo por fornecedor: primeiro os do destino, depois os unificados em ordem de ID
+        Map<Long, ProdutoFornecedor> mantidoPorFornecedor = new HashMap<>();
+        List<Long> vinculosMovidos = new ArrayList<>();
+        Map<Long, ProdutoFornecedor> mantidoPorRepetido = new LinkedHashMap<>();
+        List<ProdutoFornecedor> vinculos = new ArrayList<>();
+        List<Long> produtoIds = new ArrayList<>(origemIds);
+        produtoIds.add(destino.getId());
+        for (ProdutoFornecedor vinculo : produtoFornecedorRepository.findByProdutoReferenciaIdInOrderById(produtoIds)) {
+            if (vinculo.getProdutoReferencia().getId().equals(destino.getId())) {
+                mantidoPorFornecedor.putIfAbsent(vinculo.getFornecedor().getId(), vinculo);
+            } else {
+                vinculos.add(vinculo);
+            }
+        }
+        for (ProdutoFornecedor vinculo : vinculos) {
+            ProdutoFornecedor mantido = mantidoPorFornecedor.putIfAbsent(vinculo.getFornecedor().getId(), vinculo);
+            if (mantido == null) {
+                vinculosMovidos.add(vinculo.getId());
+            } else {
+                mantidoPorRepetido.put(vinculo.getId(), mantido);
+            }
+        }
+
+        Map<Long, List<Long>> estoquesPorMantido = new LinkedHashMap<>();
+        Map<Long, ProdutoFornecedor> mantidos = new HashMap<>();
+        if (!mantidoPorRepetido.isEmpty()) {
+            for (ProdutoFornecedor mantido : mantidoPorRepetido.values()) {
+                mantidos.put(mantido.getId(), mantido);
+            }
+            Set<Long> vinculoIds = new LinkedHashSet<>(mantidos.keySet());
+            vinculoIds.addAll(mantidoPorRepetido.keySet());
+            List<EstoqueProduto> estoques = estoqueProdutoRepository.findByProdutoFornecedorIdIn(vinculoIds);
+            estoques.sort(Comparator.comparing(EstoqueProduto::getId));
+
+            Map<String, EstoqueProduto> lotesMantidos = new HashMap<>();
+            for (EstoqueProduto estoque : estoques) {
+                if (mantidos.containsKey(estoque.getProdutoFornecedor().getId())) {
+                    lotesMantidos.put(chaveLote(estoque.getProdutoFornecedor().getId(), estoque), estoque);
+                }
+            }
+            for (EstoqueProduto estoque : estoques) {
+                ProdutoFornecedor mantido = mantidoPorRepetido.get(estoque.getProdutoFornecedor().getId());
+                if (mantido == null) {
+                    continue;
+                }
+                String chave = chaveLote(mantido.getId(), estoque);
+                EstoqueProduto existente = lotesMantidos.putIfAbsent(chave, estoque);
+                if (existente == null) {
+                    estoquesPorMantido.computeIfAbsent(mantido.getId(), id -> new ArrayList<>()).add(estoque.getId());
+                } else if (transferirSaldo(estoque, existente)) {
+                    resultado.saldosTransferidos++;
+                }
+            }
+        }
+
+        // Gravado junto com a primeira atualização em lote, que descarta as entidades carregadas
+        for (ProdutoReferencia origem : origens) {
+            if (vazio(destino.getEan()) && !vazio(origem.getEan())) {
+                destino.setEan(origem.getEan());
+            }
+            if (vazio(destino.getNcm()) && !vazio(origem.getNcm())) {
+                destino.setNcm(origem.getNcm());
+            }
+            origem.setStatus(STATUS_UNIFICADO);
+            origem.setEan(null);
+        }
+        produtoReferenciaRepository.saveAll(origens);
+        produtoReferenciaRepository.save(destino);
+
+        resultado.itensNotaFiscal = notaFiscalItemRepository.moverParaProduto(origemIds, destino);
+        if (!vinculosMovidos.isEmpty()) {
+            resultado.vinculosMovidos = produtoFornecedorRepository.moverParaProduto(vinculosMovidos, destino);
+            resultado.estoquesMovidos += estoqueProdutoRepository.moverParaProduto(vinculosMovidos, destino);
+        }
+        for (Map.Entry<Long, List<Long>> estoquesMantido : estoquesPorMantido.entrySet()) {
+            resultado.estoquesMovidos += estoqueProdutoRepository.moverParaProdutoFornecedor(
+                estoquesMantido.getValue(), mantidos.get(estoquesMantido.getKey()), destino);
+        }
+        if (!mantidoPorRepetido.isEmpty()) {
+            resultado.vinculosDesativados = produtoFornecedorRepository.desativar(mantidoPorRepetido.keySet());
+        }
+
+        for (Long origemId : origemIds) {
+            indiceNomesProdutoService.remover(origemId);
+        }
+        return resultado;
+    }
+
+    private void validar(ProdutoReferencia destino, List<ProdutoReferencia> origens) {
+        if (STATUS_UNIFICADO.equals(destino.getStatus())) {
+            throw new RuntimeException("O produto " + destino.getCodigoInterno() + " já foi unificado em outro");
+        }
+        String ean = vazio(destino.getEan()) ? null : destino.getEan();
+        for (ProdutoReferencia origem : origens) {
+            if (STATUS_UNIFICADO.equals(origem.getStatus())) {
+                throw new RuntimeException("O produto " + origem.getCodigoInterno() + " já foi unificado em outro");
+            }
+            if (vazio(origem.getEan())) {
+                continue;
+            }
+            if (ean == null) {
+                ean = origem.getEan();
+            } else if (!ean.equals(origem.getEan())) {
+                throw new RuntimeException("Produtos com EAN diferentes não podem ser unificados: " + ean + " e "
+                    + origem.getEan());
+            }
+        }
+    }
+
+    /**
+     * Passa o saldo do lote {@code origem} para {@code destino}, do mesmo vínculo, unidade e número de lote.
+     */
+    private boolean transferirSaldo(EstoqueProduto origem, EstoqueProduto destino) {
+        int saldo = saldoEstoqueService.consultarSaldo(origem.getId());
+        if (saldo == 0) {
+            return false;
+        }
+        String documento = "Unificação de " + origem.getProdutoReferencia().getCodigoInterno();
+        saldoEstoqueService.registrar(SaldoEstoqueService.novaMovimentacao(origem, MovimentacaoEstoque.TIPO_UNIFICACAO,
+            -saldo, null, documento));
+        saldoEstoqueService.registrar(SaldoEstoqueService.novaMovimentacao(destino, MovimentacaoEstoque.TIPO_UNIFICACAO,
+            saldo, null, documento));
+        return true;
+    }
+
+    private static String chaveLote(Long produtoFornecedorId, EstoqueProduto estoque) {
+        return produtoFornecedorId + "|" + estoque.getUnidade().getId() + "|" + estoque.getLote();
+    }
+
+    private static boolean vazio(String valor) {
+        return valor == null || valor.trim().isEmpty();
+    }
+
+    /**
+     * Quantidades alteradas por uma unificação.
+     */
+    public static class ResultadoUnificacao {
+        private final Long produtoDestinoId;
+        private final int produtosUnificados;
+        private int itensNotaFiscal;
+        private int vinculosMovidos;
+        private int vinculosDesativados;
+        private int estoquesMovidos;
+        private int saldosTransferidos;
+
+        ResultadoUnificacao(Long produtoDestinoId, int produtosUnificados) {
+            this.produtoDestinoId = produtoDestinoId;
+            this.produtosUnificados = produtosUnificados;
+        }
+
+        public Long getProdutoDestinoId() { return produtoDestinoId; }
+        public int getProdutosUnificados() { return produtosUnificados; }
+        public int getItensNotaFiscal() { return itensNotaFiscal; }
+        public int getVinculosMovidos() { return vinculosMovidos; }
+        public int getVinculosDesativados() { return vinculosDesativados; }
+        public int getEstoquesMovidos() { return estoquesMovidos; }
+        public int getSaldosTransferidos() { return saldosTransferidos; }
+    }
+}
@@ -4,6 +4,7 @@ import lombok.AllArgsConstructor;
 import lombok.Getter;
 import lombok.NoArgsConstructor;
 import lombok.Setter;
+import org.hibernate.annotations.GenericGenerator;
 
 import javax.persistence.*;
 import java.util.Date;
@@ -15,7 +16,8 @@ import java.util.Date;
 @MappedSuperclass
 public abstract class EntidadeBase {
     @Id
-    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "sequencia_entidade")
+    @GenericGenerator(name = "sequencia_entidade", strategy = "com.annaehugo.freepharma.domain.entity.base.SequenciaEntidadeGenerator")
     private Long id;
     
     private Date createdAt;
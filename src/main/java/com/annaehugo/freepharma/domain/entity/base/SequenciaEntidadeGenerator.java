@@ -0,0 +1,41 @@
+package com.annaehugo.freepharma.domain.entity.base;
+
+import org.hibernate.MappingException;
+import org.hibernate.engine.config.spi.ConfigurationService;
+import org.hibernate.id.PersistentIdentifierGenerator;
+import org.hibernate.id.enhanced.SequenceStyleGenerator;
+import org.hibernate.service.ServiceRegistry;
+import org.hibernate.type.Type;
+
+import java.util.Properties;
+
+/**
+ * Gera os IDs a partir de uma sequence por tabela ({@code <tabela>_id_seq}, o mesmo nome das
+ * sequences criadas para as antigas colunas IDENTITY) com o otimizador pooled. Cada ida ao banco
+ * reserva um bloco de IDs, o que permite ao Hibernate agrupar os INSERT em lotes JDBC.
+ *
+ * O tamanho do bloco vem de {@code spring.jpa.properties.freepharma.id.tamanho-alocacao} e deve
+ * ser igual ao INCREMENT BY das sequences (ver db/migrate-id-sequences.sql).
+ */
+public class SequenciaEntidadeGenerator extends SequenceStyleGenerator {
+
+    public static final String TAMANHO_ALOCACAO = "freepharma.id.tamanho-alocacao";
+    public static final int TAMANHO_ALOCACAO_PADRAO = 50;
+    public static final String SUFIXO_SEQUENCE = "_id_seq";
+
+    @Override
+    public void configure(Type type, Properties params, ServiceRegistry serviceRegistry) throws MappingException {
+        String tabela = params.getProperty(PersistentIdentifierGenerator.TABLE);
+        if (tabela != null && !params.containsKey(SEQUENCE_PARAM)) {
+            params.setProperty(SEQUENCE_PARAM, tabela + SUFIXO_SEQUENCE);
+        }
+
+        Object tamanhoAlocacao = serviceRegistry.getService(ConfigurationService.class)
+            .getSettings().get(TAMANHO_ALOCACAO);
+        params.setProperty(INCREMENT_PARAM, tamanhoAlocacao != null
+            ? tamanhoAlocacao.toString().trim() : String.valueOf(TAMANHO_ALOCACAO_PADRAO));
+        params.setProperty(OPT_PARAM, "pooled");
+
+        super.configure(type, params, serviceRegistry);
+    }
+}
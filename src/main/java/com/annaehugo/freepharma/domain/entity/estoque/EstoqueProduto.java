@@ -69,6 +69,11 @@ public class EstoqueProduto extends EntidadeBase {
     @Temporal(TemporalType.TIMESTAMP)
     private Date dataUltimaMovimentacao;
 
+    // Recusa a gravação do cadastro inteiro (EstoqueProdutoService.atualizar) lido antes de outra alteração;
+    // as atualizações em lote do EstoqueProdutoRepository também a incrementam
+    @Version
+    private Long versao;
+
     @OneToMany(mappedBy = "estoqueProduto")
     @JsonIgnore
     private List<AjusteEstoqueProduto> ajustes;
@@ -0,0 +1,74 @@
+package com.annaehugo.freepharma.domain.entity.estoque;
+
+import com.annaehugo.freepharma.domain.entity.base.EntidadeBase;
+import com.annaehugo.freepharma.domain.entity.fiscal.NotaFiscalItem;
+import javax.persistence.*;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import lombok.AllArgsConstructor;
+import java.math.BigDecimal;
+import java.util.Date;
+
+/**
+ * Lançamento do razão de estoque: uma linha por item de NFe, ajuste ou saldo inicial de um lote,
+ * além das correções lançadas ao reprocessar uma NFe.
+ * As linhas são apenas inseridas, e a consolidação só preenche {@code dataConsolidacao}; o saldo do lote
+ * é o último {@link SnapshotEstoque} mais as movimentações consolidadas depois dele ou ainda não consolidadas.
+ */
+@Entity
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+@Table(indexes = {
+    @Index(name = "idx_movimentacao_estoque_estoque_data", columnList = "estoque_produto_id, dataRegistro"),
+    @Index(name = "idx_movimentacao_estoque_consolidacao", columnList = "dataConsolidacao")
+})
+public class MovimentacaoEstoque extends EntidadeBase {
+
+    public static final String TIPO_COMPRA = "COMPRA";
+    public static final String TIPO_VENDA = "VENDA";
+    public static final String TIPO_AJUSTE = "AJUSTE";
+    public static final String TIPO_SALDO_INICIAL = "SALDO_INICIAL";
+    // Diferença lançada pelo reprocessamento de uma NFe já importada
+    public static final String TIPO_REPROCESSAMENTO = "REPROCESSAMENTO";
+    // Saldo transferido entre lotes de produtos unificados
+    public static final String TIPO_UNIFICACAO = "UNIFICACAO";
+
+    @ManyToOne(optional = false)
+    @JoinColumn(name = "estoque_produto_id")
+    @JsonIgnore
+    private EstoqueProduto estoqueProduto;
+
+    @Column(nullable = false, length = 20)
+    private String tipo;
+
+    // Negativa nas saídas
+    @Column(nullable = false)
+    private Integer quantidade;
+
+    @Column(precision = 10, scale = 2)
+    private BigDecimal valorUnitario;
+
+    @Column(nullable = false)
+    @Temporal(TemporalType.TIMESTAMP)
+    private Date dataRegistro;
+
+    // Corte do snapshot que incluiu esta movimentação; nula até a consolidação seguinte ao commit
+    @Temporal(TemporalType.TIMESTAMP)
+    private Date dataConsolidacao;
+
+    @Column(length = 100)
+    private String documento;
+
+    @ManyToOne
+    @JoinColumn(name = "nota_fiscal_item_id")
+    @JsonIgnore
+    private NotaFiscalItem notaFiscalItem;
+
+    @ManyToOne
+    @JoinColumn(name = "ajuste_estoque_produto_id")
+    @JsonIgnore
+    private AjusteEstoqueProduto ajuste;
+}
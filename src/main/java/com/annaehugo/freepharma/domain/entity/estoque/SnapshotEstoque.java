@@ -0,0 +1,37 @@
+package com.annaehugo.freepharma.domain.entity.estoque;
+
+import com.annaehugo.freepharma.domain.entity.base.EntidadeBase;
+import javax.persistence.*;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import lombok.AllArgsConstructor;
+import java.util.Date;
+
+/**
+ * Saldo de um lote consolidado em {@code dataCorte}: inclui todas as {@link MovimentacaoEstoque} com
+ * {@code dataConsolidacao} até essa data, inclusive.
+ */
+@Entity
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+@Table(indexes = @Index(name = "idx_snapshot_estoque_estoque_corte", columnList = "estoque_produto_id, dataCorte"))
+public class SnapshotEstoque extends EntidadeBase {
+
+    @ManyToOne(optional = false)
+    @JoinColumn(name = "estoque_produto_id")
+    @JsonIgnore
+    private EstoqueProduto estoqueProduto;
+
+    @Column(nullable = false)
+    private Integer quantidade;
+
+    @Column(nullable = false)
+    @Temporal(TemporalType.TIMESTAMP)
+    private Date dataCorte;
+
+    @Temporal(TemporalType.TIMESTAMP)
+    private Date dataGeracao;
+}
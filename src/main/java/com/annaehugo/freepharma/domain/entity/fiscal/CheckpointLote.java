@@ -0,0 +1,65 @@
+package com.annaehugo.freepharma.domain.entity.fiscal;
+
+import com.annaehugo.freepharma.domain.entity.administrativo.Unidade;
+import com.annaehugo.freepharma.domain.entity.base.EntidadeBase;
+import javax.persistence.*;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import lombok.AllArgsConstructor;
+
+/**
+ * Posição de uma partição de um {@link LoteProcessamento}: a importação em andamento e quantas notas
+ * do seu arquivo já foram gravadas. É atualizado na mesma transação de cada bloco de notas, de modo
+ * que o lote pode ser retomado exatamente de onde o último commit parou.
+ */
+@Entity
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+@Table(indexes = @Index(name = "idx_checkpoint_lote_lote", columnList = "lote_processamento_id"))
+public class CheckpointLote extends EntidadeBase {
+
+    @ManyToOne(optional = false)
+    @JoinColumn(name = "lote_processamento_id")
+    @JsonIgnore
+    private LoteProcessamento loteProcessamento;
+
+    /**
+     * Unidade das importações desta partição; nula na partição das importações sem unidade.
+     */
+    @ManyToOne
+    @JoinColumn(name = "unidade_id")
+    private Unidade unidade;
+
+    /**
+     * Posição entre as partições da mesma unidade; as importações da unidade, em ordem de ID, são
+     * distribuídas entre elas em rodízio.
+     */
+    @Column(nullable = false)
+    private Integer indice = 0;
+
+    @ManyToOne
+    @JoinColumn(name = "importacao_nfe_id")
+    @JsonIgnore
+    private ImportacaoNFe importacao;
+
+    /**
+     * Notas do arquivo de {@code importacao} já gravadas, na ordem em que o arquivo as entrega.
+     */
+    @Column(nullable = false)
+    private Integer notasConcluidas = 0;
+
+    /**
+     * Erros de leitura do arquivo de {@code importacao} já registrados na importação.
+     */
+    @Column(nullable = false)
+    private Integer errosLeitura = 0;
+
+    @Column(nullable = false)
+    private Integer blocosConcluidos = 0;
+
+    @Column(nullable = false, length = 20)
+    private String status;
+}
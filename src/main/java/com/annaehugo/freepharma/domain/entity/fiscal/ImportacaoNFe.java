@@ -14,6 +14,7 @@ import java.util.List;
 @Data
 @NoArgsConstructor
 @AllArgsConstructor
+@Table(indexes = @Index(name = "idx_importacao_nfe_hash_arquivo", columnList = "hashArquivo"))
 public class ImportacaoNFe extends EntidadeBase {
     
     @Column(nullable = false, length = 500)
@@ -22,6 +23,14 @@ public class ImportacaoNFe extends EntidadeBase {
     @Column(nullable = false, length = 1000)
     private String caminhoArquivo;
     
+    /**
+     * SHA-256 do conteúdo do arquivo, que é o seu endereço no armazenamento de importações.
+     */
+    @Column(length = 64)
+    private String hashArquivo;
+    
+    private Long tamanhoArquivo;
+    
     @Column(nullable = false)
     @Enumerated(EnumType.STRING)
     private StatusImportacao status = StatusImportacao.PENDENTE;
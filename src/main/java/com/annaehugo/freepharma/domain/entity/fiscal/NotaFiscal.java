@@ -15,6 +15,7 @@ import lombok.AllArgsConstructor;
 @Data
 @NoArgsConstructor
 @AllArgsConstructor
+@Table(indexes = @Index(name = "uk_nota_fiscal_chave_acesso", columnList = "chaveAcesso", unique = true))
 public class NotaFiscal extends EntidadeBase {
     private String numero;
     private String chaveAcesso;
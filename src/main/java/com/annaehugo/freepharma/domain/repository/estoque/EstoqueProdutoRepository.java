@@ -3,9 +3,16 @@ package com.annaehugo.freepharma.domain.repository.estoque;
 import com.annaehugo.freepharma.domain.entity.administrativo.Unidade;
 import com.annaehugo.freepharma.domain.entity.estoque.EstoqueProduto;
 import com.annaehugo.freepharma.domain.entity.estoque.ProdutoFornecedor;
+import com.annaehugo.freepharma.domain.entity.estoque.ProdutoReferencia;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 
+import java.math.BigDecimal;
+import java.util.Collection;
+import java.util.Date;
 import java.util.List;
 import java.util.Optional;
 
@@ -14,7 +21,48 @@ public interface EstoqueProdutoRepository extends JpaRepository<EstoqueProduto,
     List<EstoqueProduto> findByUnidadeId(Long unidadeId);
     List<EstoqueProduto> findByProdutoFornecedorId(Long produtoFornecedorId);
     List<EstoqueProduto> findByProdutoReferenciaId(Long produtoReferenciaId);
+    List<EstoqueProduto> findByProdutoFornecedorIdIn(Collection<Long> produtoFornecedorIds);
 
     Optional<EstoqueProduto> findByProdutoFornecedorIdAndUnidadeIdAndLote(Long produtoFornecedorId, Long unidadeId, String lote);
     Optional<EstoqueProduto> findByProdutoFornecedorAndUnidadeAndLote(ProdutoFornecedor produtoFornecedor, Unidade unidade, String lote);
+    List<EstoqueProduto> findByUnidadeAndProdutoFornecedorIn(Unidade unidade, Collection<ProdutoFornecedor> produtosFornecedor);
+
+    /**
+     * Grava o saldo calculado a partir do razão de estoque em {@code quantidadeAtual}, que serve apenas
+     * de cópia para consultas e listagens.
+     */
+    @Modifying(flushAutomatically = true)
+    @Query("update EstoqueProduto e set e.quantidadeAtual = :quantidade, "
+        + "e.valorTotal = e.valorUnitario * :quantidade, "
+        + "e.dataUltimaMovimentacao = :data, e.versao = coalesce(e.versao, 0) + 1 where e.id = :id")
+    int atualizarSaldo(@Param("id") Long id, @Param("quantidade") int quantidade, @Param("data") Date data);
+
+    /**
+     * Como {@link #atualizarSaldo(Long, int, Date)}, gravando também o último valor unitário movimentado.
+     */
+    @Modifying(flushAutomatically = true)
+    @Query("update EstoqueProduto e set e.quantidadeAtual = :quantidade, "
+        + "e.valorUnitario = :valorUnitario, e.valorTotal = :valorUnitario * :quantidade, "
+        + "e.dataUltimaMovimentacao = :data, e.versao = coalesce(e.versao, 0) + 1 where e.id = :id")
+    int atualizarSaldo(@Param("id") Long id, @Param("quantidade") int quantidade,
+                       @Param("valorUnitario") BigDecimal valorUnitario, @Param("data") Date data);
+
+    /**
+     * Passa para {@code produto} os estoques dos vínculos com fornecedor informados.
+     */
+    @Modifying(flushAutomatically = true)
+    @Query("update EstoqueProduto e set e.produtoReferencia = :produto, e.versao = coalesce(e.versao, 0) + 1 "
+        + "where e.produtoFornecedor.id in :produtoFornecedorIds")
+    int moverParaProduto(@Param("produtoFornecedorIds") Collection<Long> produtoFornecedorIds,
+                         @Param("produto") ProdutoReferencia produto);
+
+    /**
+     * Passa os estoques informados para o vínculo {@code produtoFornecedor}, do produto {@code produto}.
+     */
+    @Modifying(flushAutomatically = true)
+    @Query("update EstoqueProduto e set e.produtoFornecedor = :produtoFornecedor, e.produtoReferencia = :produto, "
+        + "e.versao = coalesce(e.versao, 0) + 1 where e.id in :ids")
+    int moverParaProdutoFornecedor(@Param("ids") Collection<Long> ids,
+                                   @Param("produtoFornecedor") ProdutoFornecedor produtoFornecedor,
+                                   @Param("produto") ProdutoReferencia produto);
 }
@@ -0,0 +1,50 @@
+package com.annaehugo.freepharma.domain.repository.estoque;
+
+import com.annaehugo.freepharma.domain.entity.estoque.MovimentacaoEstoque;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+
+import java.util.Date;
+import java.util.List;
+import java.util.Optional;
+
+@Repository
+public interface MovimentacaoEstoqueRepository extends JpaRepository<MovimentacaoEstoque, Long> {
+    List<MovimentacaoEstoque> findByEstoqueProdutoIdOrderByDataRegistroAscIdAsc(Long estoqueProdutoId);
+
+    Optional<MovimentacaoEstoque> findFirstByEstoqueProdutoIdAndValorUnitarioNotNullOrderByDataRegistroDescIdDesc(Long estoqueProdutoId);
+
+    /**
+     * Soma das movimentações do estoque que ficaram fora do snapshot com corte em {@code desde}.
+     */
+    @Query("select coalesce(sum(m.quantidade), 0) from MovimentacaoEstoque m "
+        + "where m.estoqueProduto.id = :estoqueProdutoId "
+        + "and (m.dataConsolidacao is null or m.dataConsolidacao > :desde)")
+    long somarDesde(@Param("estoqueProdutoId") Long estoqueProdutoId, @Param("desde") Date desde);
+
+    /**
+     * Marca com {@code corte} as movimentações ainda não consolidadas. Só alcança as já confirmadas, e as
+     * de transações abertas ficam para a consolidação seguinte.
+     */
+    @Modifying(flushAutomatically = true)
+    @Query("update MovimentacaoEstoque m set m.dataConsolidacao = :corte where m.dataConsolidacao is null")
+    int marcarConsolidadas(@Param("corte") Date corte);
+
+    /**
+     * Movimentações marcadas com {@code corte}, agrupadas por estoque. Cada linha traz o ID do estoque,
+     * a soma e a data da última.
+     */
+    @Query("select m.estoqueProduto.id, sum(m.quantidade), max(m.dataRegistro) "
+        + "from MovimentacaoEstoque m where m.dataConsolidacao = :corte group by m.estoqueProduto.id")
+    List<Object[]> somarConsolidadas(@Param("corte") Date corte);
+
+    /**
+     * Quantidade lançada por item da nota: cada linha traz o ID do item, o ID do estoque e a soma.
+     */
+    @Query("select m.notaFiscalItem.id, m.estoqueProduto.id, sum(m.quantidade) from MovimentacaoEstoque m "
+        + "where m.notaFiscalItem.notaFiscal.id = :notaFiscalId group by m.notaFiscalItem.id, m.estoqueProduto.id")
+    List<Object[]> somarPorNotaFiscalItem(@Param("notaFiscalId") Long notaFiscalId);
+}
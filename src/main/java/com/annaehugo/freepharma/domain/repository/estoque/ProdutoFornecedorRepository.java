@@ -3,17 +3,40 @@ package com.annaehugo.freepharma.domain.repository.estoque;
 import com.annaehugo.freepharma.domain.entity.estoque.Fornecedor;
 import com.annaehugo.freepharma.domain.entity.estoque.ProdutoFornecedor;
 import com.annaehugo.freepharma.domain.entity.estoque.ProdutoReferencia;
+import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 
+import java.util.Collection;
 import java.util.List;
 import java.util.Optional;
 
 @Repository
 public interface ProdutoFornecedorRepository extends JpaRepository<ProdutoFornecedor, Long> {
     Optional<ProdutoFornecedor> findByProdutoReferenciaAndFornecedor(ProdutoReferencia produtoReferencia, Fornecedor fornecedor);
+    List<ProdutoFornecedor> findByFornecedorAndProdutoReferenciaIn(Fornecedor fornecedor, Collection<ProdutoReferencia> produtosReferencia);
     
     List<ProdutoFornecedor> findByFornecedor(Fornecedor fornecedor);
     List<ProdutoFornecedor> findByProdutoReferencia(ProdutoReferencia produtoReferencia);
     List<ProdutoFornecedor> findByAtivoTrue();
+    List<ProdutoFornecedor> findByProdutoReferenciaIdInOrderById(Collection<Long> produtoReferenciaIds);
+
+    /**
+     * Página de linhas (id, id do produto, id do fornecedor, codigoFornecedor) dos vínculos ativos com id
+     * maior que o informado, em ordem de id.
+     */
+    @Query("select pf.id, pf.produtoReferencia.id, pf.fornecedor.id, pf.codigoFornecedor from ProdutoFornecedor pf "
+        + "where pf.id > :ultimoId and pf.ativo = true order by pf.id")
+    List<Object[]> findCodigosAposId(@Param("ultimoId") Long ultimoId, Pageable pagina);
+
+    @Modifying(flushAutomatically = true, clearAutomatically = true)
+    @Query("update ProdutoFornecedor pf set pf.produtoReferencia = :produto where pf.id in :ids")
+    int moverParaProduto(@Param("ids") Collection<Long> ids, @Param("produto") ProdutoReferencia produto);
+
+    @Modifying(flushAutomatically = true, clearAutomatically = true)
+    @Query("update ProdutoFornecedor pf set pf.ativo = false where pf.id in :ids")
+    int desativar(@Param("ids") Collection<Long> ids);
 }
@@ -1,18 +1,67 @@
 package com.annaehugo.freepharma.domain.repository.estoque;
 
 import com.annaehugo.freepharma.domain.entity.estoque.ProdutoReferencia;
+import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
 
+import java.util.Collection;
 import java.util.List;
 import java.util.Optional;
 
 @Repository
 public interface ProdutoReferenciaRepository extends JpaRepository<ProdutoReferencia, Long> {
+
+    /**
+     * Quantidade de códigos internos reservados por chamada a {@link #reservarBlocoCodigoInterno()}.
+     */
+    int TAMANHO_BLOCO_CODIGO_INTERNO = 1000;
+
     List<ProdutoReferencia> findByStatus(String status);
     List<ProdutoReferencia> findByNome(String nome);
     
     Optional<ProdutoReferencia> findFirstByNome(String nome);
     Optional<ProdutoReferencia> findByCodigoInterno(String codigoInterno);
     Optional<ProdutoReferencia> findByEan(String ean);
+
+    List<ProdutoReferencia> findByEanIn(Collection<String> eans);
+    List<ProdutoReferencia> findByNomeInAndStatusNot(Collection<String> nomes, String statusIgnorado);
+
+    /**
+     * Página de pares (id, nome) dos produtos com id maior que o informado e status diferente de
+     * {@code statusIgnorado}, em ordem de id.
+     */
+    @Query("select p.id, p.nome from ProdutoReferencia p "
+        + "where p.id > :ultimoId and p.status <> :statusIgnorado order by p.id")
+    List<Object[]> findNomesAposId(@Param("ultimoId") Long ultimoId, @Param("statusIgnorado") String statusIgnorado,
+                                   Pageable pagina);
+
+    /**
+     * Página de linhas (id, codigoInterno, nome, ean, ncm) dos produtos com id maior que o informado e
+     * status diferente de {@code statusIgnorado}, em ordem de id.
+     */
+    @Query("select p.id, p.codigoInterno, p.nome, p.ean, p.ncm from ProdutoReferencia p "
+        + "where p.id > :ultimoId and p.status <> :statusIgnorado order by p.id")
+    List<Object[]> findCatalogoAposId(@Param("ultimoId") Long ultimoId, @Param("statusIgnorado") String statusIgnorado,
+                                      Pageable pagina);
+
+    /**
+     * Cria a sequence dos códigos internos automáticos, que o ddl-auto não gera por não estar ligada a um ID.
+     */
+    @Transactional(propagation = Propagation.REQUIRES_NEW)
+    @Modifying
+    @Query(value = "CREATE SEQUENCE IF NOT EXISTS produto_referencia_codigo_seq START WITH 1 INCREMENT BY "
+        + TAMANHO_BLOCO_CODIGO_INTERNO, nativeQuery = true)
+    void criarSequenceCodigoInterno();
+
+    /**
+     * Início de um bloco de {@value #TAMANHO_BLOCO_CODIGO_INTERNO} códigos que nenhuma outra chamada recebe.
+     */
+    @Query(value = "SELECT nextval('produto_referencia_codigo_seq')", nativeQuery = true)
+    Long reservarBlocoCodigoInterno();
 }
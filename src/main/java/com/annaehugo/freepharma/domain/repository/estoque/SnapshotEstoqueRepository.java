@@ -0,0 +1,25 @@
+package com.annaehugo.freepharma.domain.repository.estoque;
+
+import com.annaehugo.freepharma.domain.entity.estoque.SnapshotEstoque;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.Optional;
+
+@Repository
+public interface SnapshotEstoqueRepository extends JpaRepository<SnapshotEstoque, Long> {
+    Optional<SnapshotEstoque> findFirstByEstoqueProdutoIdOrderByDataCorteDesc(Long estoqueProdutoId);
+    boolean existsByEstoqueProdutoId(Long estoqueProdutoId);
+
+    @Query("select max(s.dataCorte) from SnapshotEstoque s")
+    Optional<Date> buscarUltimoCorte();
+
+    @Query("select s from SnapshotEstoque s where s.estoqueProduto.id in :estoqueProdutoIds and s.dataCorte = "
+        + "(select max(u.dataCorte) from SnapshotEstoque u where u.estoqueProduto = s.estoqueProduto)")
+    List<SnapshotEstoque> buscarUltimos(@Param("estoqueProdutoIds") Collection<Long> estoqueProdutoIds);
+}
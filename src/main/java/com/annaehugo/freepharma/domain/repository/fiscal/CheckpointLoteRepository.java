@@ -0,0 +1,12 @@
+package com.annaehugo.freepharma.domain.repository.fiscal;
+
+import com.annaehugo.freepharma.domain.entity.fiscal.CheckpointLote;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.stereotype.Repository;
+
+import java.util.List;
+
+@Repository
+public interface CheckpointLoteRepository extends JpaRepository<CheckpointLote, Long> {
+    List<CheckpointLote> findByLoteProcessamentoIdOrderById(Long loteProcessamentoId);
+}
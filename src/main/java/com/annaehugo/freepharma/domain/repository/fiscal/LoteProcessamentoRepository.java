@@ -2,11 +2,23 @@ package com.annaehugo.freepharma.domain.repository.fiscal;
 
 import com.annaehugo.freepharma.domain.entity.fiscal.LoteProcessamento;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
 import org.springframework.stereotype.Repository;
 
+import java.util.Date;
 import java.util.List;
 
 @Repository
 public interface LoteProcessamentoRepository extends JpaRepository<LoteProcessamento, Long> {
     List<LoteProcessamento> findByStatus(String status);
+    List<LoteProcessamento> findByTipoLoteAndStatus(String tipoLote, String status);
+
+    /**
+     * Grava o progresso apenas se ele avança, para que partições que terminam fora de ordem não o façam voltar.
+     */
+    @Modifying(flushAutomatically = true, clearAutomatically = true)
+    @Query("update LoteProcessamento l set l.progresso = :progresso, l.updatedAt = :agora " +
+           "where l.id = :id and (l.progresso is null or l.progresso < :progresso)")
+    int avancarProgresso(Long id, Integer progresso, Date agora);
 }
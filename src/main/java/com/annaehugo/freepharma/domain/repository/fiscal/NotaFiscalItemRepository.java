@@ -1,12 +1,22 @@
 package com.annaehugo.freepharma.domain.repository.fiscal;
 
+import com.annaehugo.freepharma.domain.entity.estoque.ProdutoReferencia;
 import com.annaehugo.freepharma.domain.entity.fiscal.NotaFiscalItem;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 
+import java.util.Collection;
 import java.util.List;
 
 @Repository
 public interface NotaFiscalItemRepository extends JpaRepository<NotaFiscalItem, Long> {
     List<NotaFiscalItem> findByNotaFiscalId(Long notaFiscalId);
+    List<NotaFiscalItem> findByNotaFiscalIdAndAtivoTrueOrderById(Long notaFiscalId);
+
+    @Modifying(flushAutomatically = true, clearAutomatically = true)
+    @Query("update NotaFiscalItem i set i.produtoReferencia = :produto where i.produtoReferencia.id in :produtoIds")
+    int moverParaProduto(@Param("produtoIds") Collection<Long> produtoIds, @Param("produto") ProdutoReferencia produto);
 }
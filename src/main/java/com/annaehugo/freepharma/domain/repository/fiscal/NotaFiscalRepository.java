@@ -1,9 +1,14 @@
 package com.annaehugo.freepharma.domain.repository.fiscal;
 
 import com.annaehugo.freepharma.domain.entity.fiscal.NotaFiscal;
+import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Lock;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 
+import javax.persistence.LockModeType;
 import java.util.Date;
 import java.util.List;
 import java.util.Optional;
@@ -18,6 +23,25 @@ public interface NotaFiscalRepository extends JpaRepository<NotaFiscal, Long> {
     List<NotaFiscal> findByClienteId(Long clienteId);
 
     Optional<NotaFiscal> findByChaveAcesso(String chaveAcesso);
+
+    /**
+     * Nota da chave de acesso, bloqueada para escrita até o fim da transação: dois reprocessamentos da
+     * mesma nota são aplicados um depois do outro, o segundo já vendo o que o primeiro gravou.
+     */
+    @Lock(LockModeType.PESSIMISTIC_WRITE)
+    @Query("select n from NotaFiscal n where n.chaveAcesso = :chaveAcesso")
+    Optional<NotaFiscal> findParaAtualizacaoByChaveAcesso(@Param("chaveAcesso") String chaveAcesso);
     Optional<NotaFiscal> findByNumero(String numero);
+    boolean existsByChaveAcesso(String chaveAcesso);
+    long countByChaveAcessoIsNotNull();
+
+    /**
+     * Página de pares (id, chave de acesso) com id maior que o informado, em ordem de id.
+     */
+    @Query("select n.id, n.chaveAcesso from NotaFiscal n where n.id > :ultimoId and n.chaveAcesso is not null order by n.id")
+    List<Object[]> findChavesAcessoAposId(@Param("ultimoId") Long ultimoId, Pageable pagina);
+
+    @Query("select n.chaveAcesso from NotaFiscal n where n.importacaoNFe.id = :importacaoId and n.chaveAcesso is not null")
+    List<String> findChavesAcessoByImportacaoNFeId(@Param("importacaoId") Long importacaoId);
     Long countByDataEmissaoBetween(Date dataEmissaoAfter, Date dataEmissaoBefore);
 }
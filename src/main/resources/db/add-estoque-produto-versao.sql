@@ -0,0 +1,10 @@
+-- =============================
+-- Versão de estoque_produto, usada no controle de concorrência da atualização do cadastro do lote.
+-- O ddl-auto cria a coluna sem valor nas linhas já existentes, e o Hibernate exige a versão
+-- preenchida para atualizar a entidade. Pode ser executado mais de uma vez.
+-- =============================
+
+ALTER TABLE estoque_produto ADD COLUMN IF NOT EXISTS versao BIGINT;
+UPDATE estoque_produto SET versao = 0 WHERE versao IS NULL;
+ALTER TABLE estoque_produto ALTER COLUMN versao SET DEFAULT 0;
+ALTER TABLE estoque_produto ALTER COLUMN versao SET NOT NULL;
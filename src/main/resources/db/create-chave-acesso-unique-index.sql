@@ -0,0 +1,26 @@
+-- =============================
+-- Índice único da chave de acesso das notas fiscais (uk_nota_fiscal_chave_acesso).
+-- O ddl-auto cria o índice em bancos novos, mas não consegue criá-lo enquanto houver
+-- chaves repetidas; este script lista as repetidas e só cria o índice quando não houver
+-- nenhuma. Pode ser executado mais de uma vez.
+-- =============================
+
+-- 1. Chaves de acesso gravadas mais de uma vez (devem ser resolvidas manualmente)
+SELECT chave_acesso, COUNT(*) AS quantidade, array_agg(id ORDER BY id) AS ids
+FROM nota_fiscal
+WHERE chave_acesso IS NOT NULL
+GROUP BY chave_acesso
+HAVING COUNT(*) > 1;
+
+-- 2. Cria o índice único com o mesmo nome usado no mapeamento da entidade NotaFiscal
+DO $$
+BEGIN
+    IF EXISTS (SELECT 1 FROM pg_constraint WHERE conname = 'uk_nota_fiscal_chave_acesso') THEN
+        RAISE NOTICE 'Índice uk_nota_fiscal_chave_acesso já existe';
+    ELSIF EXISTS (SELECT 1 FROM nota_fiscal WHERE chave_acesso IS NOT NULL
+                  GROUP BY chave_acesso HAVING COUNT(*) > 1) THEN
+        RAISE EXCEPTION 'Existem chaves de acesso repetidas em nota_fiscal; resolva-as antes de criar o índice';
+    ELSE
+        ALTER TABLE nota_fiscal ADD CONSTRAINT uk_nota_fiscal_chave_acesso UNIQUE (chave_acesso);
+    END IF;
+END $$;
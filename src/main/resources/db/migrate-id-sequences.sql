@@ -0,0 +1,37 @@
+-- =============================
+-- Ajusta as sequences <tabela>_id_seq para a alocação em blocos usada por
+-- SequenciaEntidadeGenerator. Executar com a aplicação parada em bancos criados
+-- antes da mudança (colunas IDENTITY/bigserial); pode ser executado mais de uma vez.
+-- =============================
+
+DO $$
+DECLARE
+    -- Deve ser igual a spring.jpa.properties.freepharma.id.tamanho-alocacao
+    tamanho_alocacao CONSTANT INTEGER := 50;
+    tabela RECORD;
+    sequencia TEXT;
+BEGIN
+    FOR tabela IN
+        SELECT c.table_name
+        FROM information_schema.columns c
+        JOIN information_schema.sequences s
+          ON s.sequence_schema = c.table_schema
+         AND s.sequence_name = c.table_name || '_id_seq'
+        WHERE c.table_schema = 'public'
+          AND c.column_name = 'id'
+    LOOP
+        sequencia := format('public.%I', tabela.table_name || '_id_seq');
+
+        -- 1. Cada nextval passa a reservar um bloco de IDs
+        EXECUTE format('ALTER SEQUENCE %s INCREMENT BY %s', sequencia, tamanho_alocacao);
+
+        -- 2. O próximo bloco começa depois do maior ID existente
+        EXECUTE format('SELECT setval(%L, GREATEST((SELECT COALESCE(MAX(id), 0) FROM public.%I), 1), true)',
+            sequencia, tabela.table_name);
+
+        -- 3. INSERTs manuais (scripts em db/) continuam usando a sequence; cada um consome um bloco inteiro
+        EXECUTE format('ALTER TABLE public.%I ALTER COLUMN id SET DEFAULT nextval(%L)', tabela.table_name, sequencia);
+
+        RAISE NOTICE 'Tabela % usando a sequence %', tabela.table_name, sequencia;
+    END LOOP;
+END $$;
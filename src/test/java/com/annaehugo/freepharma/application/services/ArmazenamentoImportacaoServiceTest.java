@@ -0,0 +1,160 @@
+package com.annaehugo.freepharma.application.services;
+
+import com.annaehugo.freepharma.application.services.ArmazenamentoImportacaoService.ArquivoArmazenado;
+import com.annaehugo.freepharma.domain.entity.fiscal.ImportacaoNFe;
+import com.annaehugo.freepharma.domain.repository.fiscal.ImportacaoNFeRepository;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+@DisplayName("ArmazenamentoImportacaoService - Armazenamento endereçado pelo conteúdo")
+class ArmazenamentoImportacaoServiceTest {
+
+    @TempDir
+    Path diretorio;
+
+    private ImportacaoNFeRepository importacaoNFeRepository;
+    private ArmazenamentoImportacaoService service;
+
+    @BeforeEach
+    void setUp() {
+        importacaoNFeRepository = mock(ImportacaoNFeRepository.class);
+        service = new ArmazenamentoImportacaoService(importacaoNFeRepository, diretorio.toString(),
+            Duration.ZERO, Duration.ofHours(1));
+    }
+
+    @Test
+    @DisplayName("Deve gravar o arquivo completo mesmo que o leitor pare antes do fim")
+    void testGravaRestanteAoFechar() throws IOException {
+        byte[] conteudo = NFeXmlParserStreamingTest.gerarNotaComItens(200).getBytes(StandardCharsets.UTF_8);
+
+        ArquivoArmazenado arquivo = service.armazenar(new ByteArrayInputStream(conteudo), "nota.xml");
+        assertEquals(100, arquivo.readNBytes(100).length);
+        assertEquals(50, arquivo.skip(50));
+        arquivo.close();
+
+        String hash = sha256(conteudo);
+        assertEquals(hash, arquivo.getHash());
+        assertEquals(diretorio.resolve("objetos").resolve(hash.substring(0, 2)).resolve(hash.substring(2, 4))
+            .resolve(hash + ".xml.gz"), arquivo.getCaminho());
+        assertEquals(conteudo.length, arquivo.getTamanho());
+        assertTrue(Files.size(arquivo.getCaminho()) < conteudo.length);
+        assertArrayEquals(conteudo, lerArquivo(arquivo));
+    }
+
+    @Test
+    @DisplayName("Arquivos idênticos devem ser guardados uma única vez")
+    void testDeduplicacao() throws IOException {
+        byte[] conteudo = NFeArquivoIteratorTest.montarEnvelope(NFeArquivoIteratorTest.notaXml("1"));
+
+        ArquivoArmazenado primeiro = service.armazenar(new ByteArrayInputStream(conteudo), "nota.xml");
+        primeiro.close();
+        ArquivoArmazenado segundo = service.armazenar(new ByteArrayInputStream(conteudo), "copia.xml");
+        segundo.close();
+
+        assertEquals(primeiro.getCaminho(), segundo.getCaminho());
+        assertEquals(1, listarArquivos().size());
+        assertArrayEquals(conteudo, lerArquivo(segundo));
+    }
+
+    @Test
+    @DisplayName("Deve remover o temporário de um upload descartado")
+    void testDescartar() throws IOException {
+        ArquivoArmazenado arquivo = service.armazenar(new ByteArrayInputStream(new byte[1024]), "rejeitado.xml");
+        arquivo.readNBytes(10);
+
+        arquivo.descartar();
+
+        assertFalse(Files.exists(arquivo.getCaminho()));
+        assertTrue(listarArquivos().isEmpty());
+    }
+
+    @Test
+    @DisplayName("Deve interromper a leitura e remover o temporário quando o arquivo passar do tamanho máximo")
+    void testTamanhoMaximo() throws IOException {
+        ArquivoArmazenado arquivo = service.armazenar(new ByteArrayInputStream(new byte[4096]), "grande.xml", 1024);
+        assertEquals(1000, arquivo.readNBytes(1000).length);
+
+        assertThrows(IOException.class, arquivo::close);
+
+        assertTrue(arquivo.isLimiteExcedido());
+        assertNull(arquivo.getHash());
+        assertThrows(IOException.class, arquivo::read);
+        assertTrue(listarArquivos().isEmpty());
+    }
+
+    @Test
+    @DisplayName("Compactação deve remover apenas arquivos antigos sem importação que os referencie")
+    void testCompactar() throws IOException {
+        Path referenciado = guardar("referenciado", true);
+        Path semReferencia = guardar("sem referência", true);
+        Path recente = guardar("recente", false);
+        String hashReferenciado = referenciado.getFileName().toString().replace(".xml.gz", "");
+        when(importacaoNFeRepository.findHashesArquivoReferenciados(anyCollection(), any()))
+            .thenReturn(Collections.singletonList(hashReferenciado));
+
+        assertEquals(1, service.compactar());
+
+        assertTrue(Files.exists(referenciado));
+        assertFalse(Files.exists(semReferencia));
+        assertFalse(Files.exists(semReferencia.getParent()));
+        assertTrue(Files.exists(recente));
+    }
+
+    private Path guardar(String conteudo, boolean antigo) throws IOException {
+        ArquivoArmazenado arquivo = service.armazenar(
+            new ByteArrayInputStream(conteudo.getBytes(StandardCharsets.UTF_8)), conteudo + ".xml");
+        arquivo.close();
+        if (antigo) {
+            Files.setLastModifiedTime(arquivo.getCaminho(), FileTime.from(Instant.now().minus(Duration.ofDays(2))));
+        }
+        return arquivo.getCaminho();
+    }
+
+    private byte[] lerArquivo(ArquivoArmazenado arquivo) throws IOException {
+        ImportacaoNFe importacao = new ImportacaoNFe();
+        importacao.setHashArquivo(arquivo.getHash());
+        try (InputStream conteudo = service.abrir(importacao)) {
+            return conteudo.readAllBytes();
+        }
+    }
+
+    private List<Path> listarArquivos() throws IOException {
+        try (Stream<Path> arquivos = Files.walk(diretorio)) {
+            return arquivos.filter(Files::isRegularFile).collect(Collectors.toList());
+        }
+    }
+
+    private static String sha256(byte[] conteudo) {
+        try {
+            StringBuilder hex = new StringBuilder();
+            for (byte b : MessageDigest.getInstance("SHA-256").digest(conteudo)) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package com.annaehugo.freepharma.application.services;
+
+import com.annaehugo.freepharma.domain.entity.estoque.ProdutoReferencia;
+import com.annaehugo.freepharma.domain.repository.estoque.ProdutoReferenciaRepository;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.jdbc.AutoConfigureTestDatabase;
+import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+
+import javax.persistence.EntityManager;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@DataJpaTest
+@AutoConfigureTestDatabase(replace = AutoConfigureTestDatabase.Replace.NONE)
+@Transactional(propagation = Propagation.NOT_SUPPORTED)
+@TestPropertySource(properties = {
+    "spring.jpa.properties.hibernate.dialect=org.hibernate.dialect.H2Dialect",
+    "spring.datasource.url=jdbc:h2:mem:codigo-interno-concorrencia;DB_CLOSE_DELAY=-1;LOCK_TIMEOUT=30000",
+    "spring.datasource.hikari.maximum-pool-size=16",
+    "spring.jpa.show-sql=false"
+})
+@DisplayName("CodigoInternoService - Produtos gravados por várias threads e instâncias")
+class CodigoInternoConcorrenciaTest {
+
+    private static final int INSTANCIAS = 2;
+    private static final int THREADS_POR_INSTANCIA = 8;
+    private static final int PRODUTOS_POR_THREAD = 200;
+
+    @Autowired
+    private ProdutoReferenciaRepository produtoReferenciaRepository;
+
+    @Autowired
+    private EntityManager entityManager;
+
+    @Test
+    @DisplayName("Códigos reservados em paralelo devem ser gravados sem repetição")
+    void testCodigosGravadosSemRepeticao() throws Exception {
+        // Cada instância reserva os próprios blocos na sequence, como dois nós da aplicação
+        List<CodigoInternoService> instancias = new ArrayList<>();
+        for (int i = 0; i < INSTANCIAS; i++) {
+            instancias.add(new CodigoInternoService(produtoReferenciaRepository));
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(INSTANCIAS * THREADS_POR_INSTANCIA);
+        CountDownLatch largada = new CountDownLatch(1);
+        List<Future<?>> resultados = new ArrayList<>();
+        try {
+            for (CodigoInternoService instancia : instancias) {
+                for (int thread = 0; thread < THREADS_POR_INSTANCIA; thread++) {
+                    resultados.add(executor.submit(() -> {
+                        largada.await();
+                        for (int i = 0; i < PRODUTOS_POR_THREAD; i++) {
+                            ProdutoReferencia produto = new ProdutoReferencia();
+                            produto.setCodigoInterno(instancia.gerar());
+                            produto.setNome("Produto importado");
+                            produtoReferenciaRepository.save(produto);
+                        }
+                        return null;
+                    }));
+                }
+            }
+            largada.countDown();
+            for (Future<?> resultado : resultados) {
+                // A coluna é única: um código repetido falharia aqui
+                resultado.get(60, TimeUnit.SECONDS);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        long gravados = INSTANCIAS * THREADS_POR_INSTANCIA * PRODUTOS_POR_THREAD;
+        assertEquals(gravados, entityManager.createQuery(
+                "select count(distinct p.codigoInterno) from ProdutoReferencia p "
+                    + "where p.codigoInterno like :prefixo", Long.class)
+            .setParameter("prefixo", CodigoInternoService.PREFIXO + "%")
+            .getSingleResult());
+    }
+}
@@ -0,0 +1,40 @@
+package com.annaehugo.freepharma.application.services;
+
+import com.annaehugo.freepharma.domain.repository.estoque.ProdutoReferenciaRepository;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+import org.springframework.context.annotation.Import;
+import org.springframework.test.context.TestPropertySource;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@DataJpaTest
+@Import(CodigoInternoService.class)
+@TestPropertySource(properties = "spring.jpa.properties.hibernate.dialect=org.hibernate.dialect.H2Dialect")
+@DisplayName("CodigoInternoService - Sequence dos códigos internos no banco")
+class CodigoInternoSequenceTest {
+
+    @Autowired
+    private ProdutoReferenciaRepository produtoReferenciaRepository;
+
+    @Autowired
+    private CodigoInternoService codigoInternoService;
+
+    @Test
+    @DisplayName("Deve criar a sequence na primeira geração e reservar blocos sem sobreposição")
+    void testSequence() {
+        String primeiro = codigoInternoService.gerar();
+        long proximoBloco = produtoReferenciaRepository.reservarBlocoCodigoInterno();
+
+        assertTrue(primeiro.startsWith(CodigoInternoService.PREFIXO));
+        long numero = Long.parseLong(primeiro.substring(CodigoInternoService.PREFIXO.length()));
+        assertEquals(numero + ProdutoReferenciaRepository.TAMANHO_BLOCO_CODIGO_INTERNO, proximoBloco);
+
+        // Sequence já existente não deve ser recriada nem reiniciada
+        produtoReferenciaRepository.criarSequenceCodigoInterno();
+        assertEquals(proximoBloco + ProdutoReferenciaRepository.TAMANHO_BLOCO_CODIGO_INTERNO,
+            produtoReferenciaRepository.reservarBlocoCodigoInterno());
+    }
+}
@@ -0,0 +1,114 @@
+package com.annaehugo.freepharma.application.services;
+
+import com.annaehugo.freepharma.domain.entity.estoque.ProdutoReferencia;
+import com.annaehugo.freepharma.domain.repository.estoque.ProdutoReferenciaRepository;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.mockito.junit.jupiter.MockitoSettings;
+import org.mockito.quality.Strictness;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+@MockitoSettings(strictness = Strictness.LENIENT)
+@DisplayName("CodigoInternoService - Códigos internos alocados em blocos")
+class CodigoInternoServiceTest {
+
+    private static final int BLOCO = ProdutoReferenciaRepository.TAMANHO_BLOCO_CODIGO_INTERNO;
+
+    @Mock
+    private ProdutoReferenciaRepository produtoReferenciaRepository;
+
+    private CodigoInternoService service;
+    private AtomicLong sequence;
+
+    @BeforeEach
+    void setUp() {
+        // Mesmo comportamento da sequence com INCREMENT BY igual ao tamanho do bloco
+        sequence = new AtomicLong(1);
+        when(produtoReferenciaRepository.reservarBlocoCodigoInterno())
+            .thenAnswer(invocation -> sequence.getAndAdd(BLOCO));
+        service = new CodigoInternoService(produtoReferenciaRepository);
+    }
+
+    @Test
+    @DisplayName("Deve gerar códigos sequenciais com o prefixo e ir ao banco uma vez por bloco")
+    void testCodigosDoBloco() {
+        List<String> codigos = new ArrayList<>();
+        for (int i = 0; i < BLOCO + 1; i++) {
+            codigos.add(service.gerar());
+        }
+
+        assertEquals("AUTO-000000001", codigos.get(0));
+        assertEquals("AUTO-00000" + (BLOCO + 1), codigos.get(BLOCO));
+        verify(produtoReferenciaRepository, times(1)).criarSequenceCodigoInterno();
+        verify(produtoReferenciaRepository, times(2)).reservarBlocoCodigoInterno();
+    }
+
+    @Test
+    @DisplayName("Instâncias diferentes da aplicação devem receber blocos distintos")
+    void testBlocosEntreInstancias() {
+        CodigoInternoService outraInstancia = new CodigoInternoService(produtoReferenciaRepository);
+
+        assertEquals("AUTO-000000001", service.gerar());
+        assertEquals(CodigoInternoService.formatar(BLOCO + 1), outraInstancia.gerar());
+        assertEquals("AUTO-000000002", service.gerar());
+    }
+
+    @Test
+    @DisplayName("Números acima de nove dígitos não devem ser truncados")
+    void testFormatar() {
+        assertEquals("AUTO-000000042", CodigoInternoService.formatar(42));
+        assertEquals("AUTO-12345678901", CodigoInternoService.formatar(12345678901L));
+    }
+
+    @Test
+    @DisplayName("Deve criar 100 mil produtos em 16 threads sem repetir código")
+    void testConcorrencia() throws Exception {
+        int threads = 16;
+        int produtosPorThread = 100_000 / threads;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Callable<List<ProdutoReferencia>>> tarefas = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                tarefas.add(() -> {
+                    List<ProdutoReferencia> produtos = new ArrayList<>(produtosPorThread);
+                    for (int i = 0; i < produtosPorThread; i++) {
+                        ProdutoReferencia produto = new ProdutoReferencia();
+                        produto.setCodigoInterno(service.gerar());
+                        produtos.add(produto);
+                    }
+                    return produtos;
+                });
+            }
+
+            Set<String> codigos = new HashSet<>();
+            for (Future<List<ProdutoReferencia>> resultado : executor.invokeAll(tarefas)) {
+                for (ProdutoReferencia produto : resultado.get()) {
+                    assertTrue(codigos.add(produto.getCodigoInterno()), "Código repetido: " + produto.getCodigoInterno());
+                }
+            }
+
+            assertEquals(threads * produtosPorThread, codigos.size());
+            verify(produtoReferenciaRepository, times(1)).criarSequenceCodigoInterno();
+            verify(produtoReferenciaRepository, times(100_000 / BLOCO)).reservarBlocoCodigoInterno();
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package com.annaehugo.freepharma.application.services;
+
+import com.annaehugo.freepharma.application.dto.fiscal.NFeXmlData;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.math.BigDecimal;
+import java.util.Calendar;
+import java.util.Date;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@DisplayName("CondicaoRegraFiscal - Compilação e avaliação das condições")
+class CondicaoRegraFiscalTest {
+
+    private NFeXmlData.ItemNFeDados item;
+
+    @BeforeEach
+    void setUp() {
+        item = new NFeXmlData.ItemNFeDados();
+        item.setCodigoProduto("PROD001");
+        item.setNomeProduto("Dipirona 500mg comprimido");
+        item.setEan("7891000315507");
+        item.setNcm("30049099");
+        item.setCfop("1102");
+        item.setQuantidade(10);
+        item.setValorUnitario(new BigDecimal("2.50"));
+        item.setValorTotal(new BigDecimal("25.00"));
+        item.setLote("L123");
+    }
+
+    @DisplayName("Deve avaliar comparações, funções e operadores lógicos")
+    @ParameterizedTest
+    @CsvSource(delimiter = ';', value = {
+        "ncm ~ \"\\d{8}\"                                  ; true",
+        "cfop ~ \"5\\d{3}\"                                ; false",
+        "gtin(ean)                                         ; true",
+        "quantidade > 0 && valorUnitario >= 2.5            ; true",
+        "quantidade < 10                                   ; false",
+        "quantidade <= 10 && !(valorTotal != 25)           ; true",
+        "lote == null || farmaceutico                      ; true",
+        "ean == \"SEM GTIN\"                               ; false",
+        "comecaCom(ncm, \"30\") && contem(nomeProduto, \"500mg\") ; true",
+        "preenchido(descricaoProduto)                      ; false",
+        "diasParaVencimento == null                        ; true",
+        "false || (true && !false)                         ; true"
+    })
+    void testAvaliacao(String condicao, boolean esperado) {
+        assertEquals(esperado, avaliar(condicao), condicao);
+    }
+
+    @Test
+    @DisplayName("Campos nulos não devem gerar erro nas comparações")
+    void testCamposNulos() {
+        item.setNcm(null);
+        item.setQuantidade(null);
+        item.setValorUnitario(null);
+
+        assertFalse(avaliar("ncm ~ \"\\d{8}\""));
+        assertFalse(avaliar("quantidade > 0"));
+        assertFalse(avaliar("valorUnitario > 0"));
+        assertFalse(avaliar("comecaCom(ncm, \"30\")"));
+        assertTrue(avaliar("ncm == null && ncm != '30049099'"));
+    }
+
+    @Test
+    @DisplayName("Deve calcular os dias para o vencimento a partir da data de referência")
+    void testDiasParaVencimento() {
+        Calendar calendar = Calendar.getInstance();
+        Date hoje = calendar.getTime();
+        calendar.add(Calendar.DAY_OF_MONTH, 100);
+        item.setDataVencimento(calendar.getTime());
+
+        CondicaoRegraFiscal condicao = CondicaoRegraFiscal.compilar("!farmaceutico || diasParaVencimento >= 180");
+
+        assertFalse(condicao.avaliar(new CondicaoRegraFiscal.Contexto(item, hoje)));
+    }
+
+    @DisplayName("Deve rejeitar condições inválidas com mensagem clara")
+    @ParameterizedTest
+    @ValueSource(strings = {
+        "",
+        "campoInexistente > 1",
+        "ncm ~ ncm",
+        "ncm ~ \"[0-9\"",
+        "quantidade >",
+        "(quantidade > 0",
+        "funcao(ncm)",
+        "ncm == \"30",
+        "quantidade # 1",
+        "10"
+    })
+    void testCondicaoInvalida(String condicao) {
+        RuntimeException exception = assertThrows(RuntimeException.class, () -> CondicaoRegraFiscal.compilar(condicao));
+        assertTrue(exception.getMessage().startsWith("Condição"), exception.getMessage());
+    }
+
+    @DisplayName("Deve validar o dígito verificador do GTIN")
+    @ParameterizedTest
+    @CsvSource({"7891000315507,true", "7891234567895,true", "1234567890123,false", "789810017010,false", "78981001701A6,false"})
+    void testGtin(String ean, boolean esperado) {
+        assertEquals(esperado, CondicaoRegraFiscal.validarGtin(ean));
+    }
+
+    private boolean avaliar(String condicao) {
+        return CondicaoRegraFiscal.compilar(condicao).avaliar(new CondicaoRegraFiscal.Contexto(item, new Date()));
+    }
+}
@@ -0,0 +1,227 @@
+package com.annaehugo.freepharma.application.services;
+
+import com.annaehugo.freepharma.domain.entity.administrativo.Unidade;
+import com.annaehugo.freepharma.domain.entity.fiscal.ImportacaoNFe;
+import com.annaehugo.freepharma.domain.entity.fiscal.LoteProcessamento;
+import com.annaehugo.freepharma.domain.entity.fiscal.StatusImportacao;
+import com.annaehugo.freepharma.domain.repository.administrativo.UnidadeRepository;
+import com.annaehugo.freepharma.domain.repository.fiscal.ImportacaoNFeRepository;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.mockito.junit.jupiter.MockitoSettings;
+import org.mockito.quality.Strictness;
+import org.springframework.core.annotation.Order;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+@MockitoSettings(strictness = Strictness.LENIENT)
+@DisplayName("DiretorioEntradaNFeService - Importação de arquivos deixados no diretório de entrada")
+class DiretorioEntradaNFeServiceTest {
+
+    @Mock
+    private ImportacaoNFeService importacaoNFeService;
+    @Mock
+    private ImportacaoNFeRepository importacaoNFeRepository;
+    @Mock
+    private UnidadeRepository unidadeRepository;
+    @Mock
+    private ExecucaoLoteService execucaoLoteService;
+
+    @TempDir
+    Path entrada;
+
+    private DiretorioEntradaNFeService service;
+    private final Unidade unidade = new Unidade();
+    private final AtomicLong proximoId = new AtomicLong(1);
+
+    @BeforeEach
+    void setUp() throws IOException {
+        unidade.setId(7L);
+        when(unidadeRepository.findById(7L)).thenReturn(Optional.of(unidade));
+        when(importacaoNFeService.registrarArquivoNFe(any(InputStream.class), anyString(), any(), isNull()))
+            .thenAnswer(invocation -> {
+                InputStream conteudo = invocation.getArgument(0);
+                if (conteudo.read() == -1) {
+                    throw new RuntimeException("Arquivo vazio");
+                }
+                ImportacaoNFe importacao = new ImportacaoNFe();
+                importacao.setId(proximoId.getAndIncrement());
+                importacao.setNomeArquivo(invocation.getArgument(1));
+                importacao.setUnidade(invocation.getArgument(2));
+                return importacao;
+            });
+        when(execucaoLoteService.criar(anyCollection(), anyInt())).thenReturn(new LoteProcessamento());
+        service = new DiretorioEntradaNFeService(importacaoNFeService, importacaoNFeRepository, unidadeRepository,
+            execucaoLoteService, entrada.toString(), 7L, Duration.ofSeconds(10), Duration.ofSeconds(60), 500, 2);
+    }
+
+    @Test
+    @DisplayName("Deve reservar os arquivos estáveis, registrá-los e iniciar um lote com partições")
+    void testVarrer() throws IOException {
+        arquivo("a.xml", "<nfeProc/>", true);
+        arquivo("b.zip", "PK", true);
+        arquivo("gravando.xml", "<nfe", false);
+        arquivo("leia-me.txt", "texto", true);
+
+        assertTrue(service.varrer().isPresent());
+
+        verify(execucaoLoteService).criar(Arrays.asList(1L, 2L), 2);
+        verify(importacaoNFeService, times(2)).registrarArquivoNFe(any(InputStream.class), anyString(), eq(unidade), isNull());
+        assertTrue(Files.exists(entrada.resolve("processando/importacao-1__a.xml")));
+        assertTrue(Files.exists(entrada.resolve("processando/importacao-2__b.zip")));
+        assertTrue(Files.exists(entrada.resolve("gravando.xml")));
+        assertTrue(Files.exists(entrada.resolve("leia-me.txt")));
+        assertFalse(Files.exists(entrada.resolve("a.xml")));
+
+        assertFalse(service.varrer().isPresent());
+        verify(execucaoLoteService, times(1)).criar(anyCollection(), anyInt());
+    }
+
+    @Test
+    @DisplayName("Deve mover os arquivos das importações encerradas e manter os que ainda estão em andamento")
+    void testConciliar() throws IOException {
+        Files.createDirectories(entrada.resolve(DiretorioEntradaNFeService.PROCESSANDO));
+        arquivo("processando/importacao-1__a.xml", "<nfeProc/>", true);
+        arquivo("processando/importacao-2__b.xml", "<nfeProc/>", true);
+        arquivo("processando/importacao-3__c.xml", "<nfeProc/>", true);
+        arquivo("processando/importacao-4__d.xml", "<nfeProc/>", true);
+        when(importacaoNFeRepository.findById(1L)).thenReturn(Optional.of(importacao(1L, "a.xml", StatusImportacao.CONCLUIDA)));
+        when(importacaoNFeRepository.findById(2L)).thenReturn(Optional.of(importacao(2L, "b.xml", StatusImportacao.ERRO)));
+        when(importacaoNFeRepository.findById(3L)).thenReturn(Optional.of(importacao(3L, "c.xml", StatusImportacao.PROCESSANDO)));
+        when(importacaoNFeRepository.findById(4L)).thenReturn(Optional.empty());
+
+        assertFalse(service.varrer().isPresent());
+
+        assertTrue(Files.exists(entrada.resolve("processados/importacao-1__a.xml")));
+        assertTrue(Files.exists(entrada.resolve("falhas/importacao-2__b.xml")));
+        assertTrue(Files.exists(entrada.resolve("processando/importacao-3__c.xml")));
+        assertTrue(Files.exists(entrada.resolve("falhas/importacao-4__d.xml")));
+        assertTrue(Files.exists(entrada.resolve("falhas/importacao-4__d.xml" + DiretorioEntradaNFeService.EXTENSAO_ERRO)));
+        verify(execucaoLoteService, never()).criar(anyCollection(), anyInt());
+        verify(importacaoNFeService, never()).registrarArquivoNFe(any(InputStream.class), anyString(), any(), isNull());
+    }
+
+    @Test
+    @DisplayName("Um prefixo numérico do fornecedor não deve ser lido como ID, e a forma dos registrados deve ser recusada")
+    void testNomeComPrefixo() throws IOException {
+        arquivo("2024__notas.xml", "<nfeProc/>", true);
+        arquivo("importacao-9__copia.xml", "<nfeProc/>", true);
+        when(importacaoNFeRepository.findById(anyLong())).thenReturn(Optional.of(importacao(9L, "outro.xml", StatusImportacao.CONCLUIDA)));
+
+        assertTrue(service.varrer().isPresent());
+
+        verify(execucaoLoteService).criar(Collections.singletonList(1L), 2);
+        assertTrue(Files.exists(entrada.resolve("processando/importacao-1__2024__notas.xml")));
+        assertTrue(Files.exists(entrada.resolve("falhas/importacao-9__copia.xml")));
+        assertTrue(Files.exists(entrada.resolve("falhas/importacao-9__copia.xml" + DiretorioEntradaNFeService.EXTENSAO_ERRO)));
+        verify(importacaoNFeService, never()).registrarArquivoNFe(any(InputStream.class), eq("importacao-9__copia.xml"), any(), isNull());
+
+        when(importacaoNFeRepository.findById(1L)).thenReturn(Optional.of(importacao(1L, "2024__notas.xml", StatusImportacao.CONCLUIDA)));
+        assertFalse(service.varrer().isPresent());
+        assertTrue(Files.exists(entrada.resolve("processados/importacao-1__2024__notas.xml")));
+    }
+
+    @Test
+    @DisplayName("Um arquivo reservado antes de uma parada deve ser reconhecido pelo conteúdo, sem novo registro")
+    void testRetomarReservado() throws IOException {
+        Files.createDirectories(entrada.resolve(DiretorioEntradaNFeService.PROCESSANDO));
+        Path reservado = arquivo("processando/a.xml", "<nfeProc/>", true);
+        Path outro = arquivo("processando/b.xml", "<nfeProc>b</nfeProc>", true);
+        when(importacaoNFeRepository.findByHashArquivoAndNomeArquivoOrderById(
+                ArmazenamentoImportacaoService.calcularHash(reservado), "a.xml"))
+            .thenReturn(Collections.singletonList(importacao(42L, "a.xml", StatusImportacao.PROCESSANDO)));
+        when(importacaoNFeRepository.findByHashArquivoAndNomeArquivoOrderById(
+                ArmazenamentoImportacaoService.calcularHash(outro), "b.xml"))
+            .thenReturn(Collections.emptyList());
+
+        service.varrer();
+
+        assertTrue(Files.exists(entrada.resolve("processando/importacao-42__a.xml")));
+        assertTrue(Files.exists(entrada.resolve("processando/importacao-1__b.xml")));
+        verify(importacaoNFeService, times(1)).registrarArquivoNFe(any(InputStream.class), eq("b.xml"), any(), isNull());
+        verify(execucaoLoteService).criar(Collections.singletonList(1L), 2);
+    }
+
+    @Test
+    @DisplayName("Um arquivo recusado no registro deve ir para falhas com o motivo ao lado")
+    void testArquivoRecusado() throws IOException {
+        arquivo("vazio.xml", "", true);
+        Files.createDirectories(entrada.resolve(DiretorioEntradaNFeService.FALHAS));
+        arquivo("falhas/vazio.xml", "<antigo/>", true);
+
+        assertFalse(service.varrer().isPresent());
+
+        assertFalse(Files.exists(entrada.resolve("vazio.xml")));
+        assertFalse(Files.exists(entrada.resolve("processando/vazio.xml")));
+        Path[] falhas;
+        try (Stream<Path> arquivos = Files.list(entrada.resolve(DiretorioEntradaNFeService.FALHAS))) {
+            falhas = arquivos.filter(arquivo -> arquivo.getFileName().toString().endsWith(
+                "__vazio.xml" + DiretorioEntradaNFeService.EXTENSAO_ERRO)).toArray(Path[]::new);
+        }
+        assertEquals(1, falhas.length);
+        assertEquals("Arquivo vazio", new String(Files.readAllBytes(falhas[0]), StandardCharsets.UTF_8));
+        assertEquals("<antigo/>", new String(Files.readAllBytes(entrada.resolve("falhas/vazio.xml")), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    @DisplayName("Sem diretório configurado, a varredura não deve fazer nada")
+    void testDesativado() {
+        DiretorioEntradaNFeService desativado = new DiretorioEntradaNFeService(importacaoNFeService,
+            importacaoNFeRepository, unidadeRepository, execucaoLoteService, "", null, Duration.ofSeconds(10),
+            Duration.ofSeconds(60), 500, 2);
+
+        assertFalse(desativado.isAtivo());
+        assertFalse(desativado.varrer().isPresent());
+        verifyNoInteractions(importacaoNFeService, execucaoLoteService);
+    }
+
+    @Test
+    @DisplayName("A observação da pasta só deve começar depois da retomada das importações assíncronas")
+    void testOrdemDaInicializacao() throws NoSuchMethodException {
+        Order retomada = ImportacaoNFeAssincronaService.class.getMethod("retomarPendentes").getAnnotation(Order.class);
+        Order observacao = DiretorioEntradaNFeService.class.getMethod("iniciar").getAnnotation(Order.class);
+
+        // Senão a retomada pegaria como suas as importações registradas aqui antes do lote ser criado
+        assertNotNull(retomada);
+        assertNotNull(observacao);
+        assertTrue(retomada.value() < observacao.value());
+    }
+
+    private Path arquivo(String nome, String conteudo, boolean estavel) throws IOException {
+        Path arquivo = Files.write(entrada.resolve(nome), conteudo.getBytes(StandardCharsets.UTF_8));
+        if (estavel) {
+            Files.setLastModifiedTime(arquivo, FileTime.from(Instant.now().minusSeconds(60)));
+        }
+        return arquivo;
+    }
+
+    private static ImportacaoNFe importacao(Long id, String nomeArquivo, StatusImportacao status) {
+        ImportacaoNFe importacao = new ImportacaoNFe();
+        importacao.setId(id);
+        importacao.setNomeArquivo(nomeArquivo);
+        importacao.setStatus(status);
+        return importacao;
+    }
+}
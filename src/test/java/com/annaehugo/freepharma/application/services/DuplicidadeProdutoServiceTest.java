@@ -0,0 +1,148 @@
+package com.annaehugo.freepharma.application.services;
+
+import com.annaehugo.freepharma.application.services.DuplicidadeProdutoService.PropostaUnificacao;
+import com.annaehugo.freepharma.application.services.UnificacaoProdutoService.ResultadoUnificacao;
+import com.annaehugo.freepharma.domain.entity.fiscal.LoteProcessamento;
+import com.annaehugo.freepharma.domain.repository.estoque.ProdutoFornecedorRepository;
+import com.annaehugo.freepharma.domain.repository.estoque.ProdutoReferenciaRepository;
+import com.annaehugo.freepharma.domain.repository.fiscal.LoteProcessamentoRepository;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.mockito.junit.jupiter.MockitoSettings;
+import org.mockito.quality.Strictness;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+@MockitoSettings(strictness = Strictness.LENIENT)
+@DisplayName("DuplicidadeProdutoService - Agrupamento de produtos duplicados do catálogo")
+class DuplicidadeProdutoServiceTest {
+
+    @Mock
+    private ProdutoReferenciaRepository produtoReferenciaRepository;
+    @Mock
+    private ProdutoFornecedorRepository produtoFornecedorRepository;
+    @Mock
+    private LoteProcessamentoRepository loteProcessamentoRepository;
+    @Mock
+    private UnificacaoProdutoService unificacaoProdutoService;
+
+    private DuplicidadeProdutoService service;
+    private final List<Object[]> catalogo = new ArrayList<>();
+    private final List<Object[]> codigos = new ArrayList<>();
+    private final AtomicReference<LoteProcessamento> loteGravado = new AtomicReference<>();
+
+    @BeforeEach
+    void setUp() {
+        service = new DuplicidadeProdutoService(produtoReferenciaRepository, produtoFornecedorRepository,
+            loteProcessamentoRepository, unificacaoProdutoService, 0.8, 2);
+        when(produtoReferenciaRepository.findCatalogoAposId(eq(0L), eq(UnificacaoProdutoService.STATUS_UNIFICADO), any()))
+            .thenReturn(catalogo);
+        when(produtoFornecedorRepository.findCodigosAposId(eq(0L), any())).thenReturn(codigos);
+        when(loteProcessamentoRepository.save(any(LoteProcessamento.class))).thenAnswer(invocation -> {
+            LoteProcessamento lote = invocation.getArgument(0);
+            lote.setId(1L);
+            loteGravado.set(lote);
+            return lote;
+        });
+        when(loteProcessamentoRepository.findById(1L)).thenAnswer(invocation -> Optional.ofNullable(loteGravado.get()));
+    }
+
+    @AfterEach
+    void tearDown() {
+        service.encerrar();
+    }
+
+    @Test
+    @DisplayName("Deve agrupar por EAN, código do fornecedor, nome normalizado e nome semelhante")
+    void testAnalisar() {
+        produto(1L, "PRD-1", "DIPIRONA SODICA 500MG CX20", "7891000000011", "30049099");
+        produto(2L, "AUTO-000000001", "Dipirona Sódica 500 mg c/20", null, null);
+        produto(3L, "AUTO-000000002", "DIPIRONA SODIC 500MG CX 20", null, "30049099");
+        produto(4L, "AUTO-000000003", "DIPIRONA SODICA 1G CX20", null, null);
+        produto(5L, "AUTO-000000004", "AMOXICILINA 500MG", "7891000000028", null);
+        produto(6L, "AUTO-000000005", "AMOX 500MG CAPS", "7891000000028", null);
+        produto(7L, "AUTO-000000006", "LORATADINA 10MG", null, null);
+        produto(8L, "AUTO-000000007", "LORAT. 10 MG COMPR", null, null);
+        codigos.add(new Object[] {1L, 7L, 10L, "LOR10"});
+        codigos.add(new Object[] {2L, 8L, 10L, " lor10 "});
+        codigos.add(new Object[] {3L, 4L, 11L, "LOR10"});
+
+        List<PropostaUnificacao> propostas = service.analisar(null);
+
+        assertEquals(3, propostas.size());
+        PropostaUnificacao dipirona = propostas.get(0);
+        assertEquals(1L, dipirona.getProdutoDestinoId());
+        assertEquals(Arrays.asList(2L, 3L), dipirona.getProdutoIds());
+        assertEquals(new TreeSet<>(Arrays.asList("NOME", "NOME_SEMELHANTE")), dipirona.getMotivos());
+
+        assertEquals(5L, propostas.get(1).getProdutoDestinoId());
+        assertEquals(Collections.singletonList(6L), propostas.get(1).getProdutoIds());
+        assertTrue(propostas.get(1).getMotivos().contains("EAN"));
+        assertEquals(7L, propostas.get(2).getProdutoDestinoId());
+        assertEquals(Collections.singletonList(8L), propostas.get(2).getProdutoIds());
+        assertTrue(propostas.get(2).getMotivos().contains("CODIGO_FORNECEDOR"));
+    }
+
+    @Test
+    @DisplayName("Não deve agrupar produtos com EAN ou NCM diferentes, mesmo com o mesmo nome")
+    void testEanNcmDiferentes() {
+        produto(1L, "AUTO-000000001", "PARACETAMOL 750MG CX10", "7891000000011", null);
+        produto(2L, "AUTO-000000002", "Paracetamol 750 mg c/10", "7891000000028", null);
+        produto(3L, "AUTO-000000003", "PARACETAMOL 750MG CX10", null, "30049099");
+        produto(4L, "AUTO-000000004", "PARACETAMOL 750MG CX10", null, "30042099");
+
+        List<PropostaUnificacao> propostas = service.analisar(null);
+
+        // O primeiro fica com o 3; os demais têm EAN ou NCM em conflito com esse grupo
+        assertEquals(1, propostas.size());
+        assertEquals(1L, propostas.get(0).getProdutoDestinoId());
+        assertEquals(Collections.singletonList(3L), propostas.get(0).getProdutoIds());
+    }
+
+    @Test
+    @DisplayName("A análise agendada deve concluir o lote e permitir aplicar as propostas")
+    void testAnaliseAgendada() {
+        produto(1L, "PRD-1", "NIMESULIDA 100MG CX12", null, null);
+        produto(2L, "AUTO-000000001", "Nimesulida 100 mg c/12", null, null);
+        produto(3L, "AUTO-000000002", "IBUPROFENO 600MG CX10", null, null);
+        produto(4L, "AUTO-000000003", "Ibuprofeno 600mg cx 10", null, null);
+        when(unificacaoProdutoService.unificar(eq(1L), any())).thenReturn(mock(ResultadoUnificacao.class));
+        when(unificacaoProdutoService.unificar(eq(3L), any()))
+            .thenThrow(new RuntimeException("O produto AUTO-000000003 já foi unificado em outro"));
+
+        LoteProcessamento lote = service.iniciarAnalise();
+        LoteProcessamento concluido = service.aguardar(lote.getId(), Duration.ofSeconds(10)).get();
+
+        assertEquals(DuplicidadeProdutoService.TIPO_LOTE, concluido.getTipoLote());
+        assertEquals("CONCLUIDO", concluido.getStatus());
+        assertEquals(100, concluido.getProgresso());
+        assertEquals(2, service.listarPropostas(lote.getId()).size());
+
+        Map<String, Object> resumo = service.unificarPropostas(lote.getId());
+        assertEquals(1, resumo.get("propostasAplicadas"));
+        assertEquals(1, ((List<?>) resumo.get("erros")).size());
+        assertThrows(RuntimeException.class, () -> service.listarPropostas(99L));
+    }
+
+    private void produto(Long id, String codigo, String nome, String ean, String ncm) {
+        catalogo.add(new Object[] {id, codigo, nome, ean, ncm});
+    }
+}
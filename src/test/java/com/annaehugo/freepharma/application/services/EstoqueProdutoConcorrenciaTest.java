@@ -0,0 +1,274 @@
+package com.annaehugo.freepharma.application.services;
+
+import com.annaehugo.freepharma.domain.entity.administrativo.Unidade;
+import com.annaehugo.freepharma.domain.entity.estoque.AjusteEstoqueProduto;
+import com.annaehugo.freepharma.domain.entity.estoque.EstoqueProduto;
+import com.annaehugo.freepharma.domain.entity.estoque.Fornecedor;
+import com.annaehugo.freepharma.domain.entity.estoque.MovimentacaoEstoque;
+import com.annaehugo.freepharma.domain.entity.estoque.ProdutoFornecedor;
+import com.annaehugo.freepharma.domain.entity.estoque.ProdutoReferencia;
+import com.annaehugo.freepharma.domain.repository.estoque.AjusteEstoqueRepository;
+import com.annaehugo.freepharma.domain.repository.estoque.EstoqueProdutoRepository;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.jdbc.AutoConfigureTestDatabase;
+import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+import org.springframework.context.annotation.Import;
+import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.persistence.EntityManager;
+import javax.persistence.LockModeType;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@DataJpaTest
+@AutoConfigureTestDatabase(replace = AutoConfigureTestDatabase.Replace.NONE)
+@Import({EstoqueProdutoService.class, SaldoEstoqueService.class})
+@Transactional(propagation = Propagation.NOT_SUPPORTED)
+@TestPropertySource(properties = {
+    "spring.jpa.properties.hibernate.dialect=org.hibernate.dialect.H2Dialect",
+    "spring.datasource.url=jdbc:h2:mem:estoque-concorrencia;DB_CLOSE_DELAY=-1;LOCK_TIMEOUT=30000",
+    "spring.datasource.hikari.maximum-pool-size=16",
+    "spring.jpa.show-sql=false"
+})
+@DisplayName("EstoqueProduto - Movimentações simultâneas no mesmo lote")
+class EstoqueProdutoConcorrenciaTest {
+
+    private static final int ESCRITORES = 64;
+    private static final int MOVIMENTACOES_POR_ESCRITOR = 20;
+    private static final int QUANTIDADE_INICIAL = 1000;
+    private static final AtomicInteger SEQUENCIA = new AtomicInteger();
+
+    @Autowired
+    private EstoqueProdutoRepository estoqueProdutoRepository;
+
+    @Autowired
+    private AjusteEstoqueRepository ajusteEstoqueRepository;
+
+    @Autowired
+    private EstoqueProdutoService estoqueProdutoService;
+
+    @Autowired
+    private SaldoEstoqueService saldoEstoqueService;
+
+    @Autowired
+    private EntityManager entityManager;
+
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+
+    private TransactionTemplate transacao;
+
+    @BeforeEach
+    void setUp() {
+        transacao = new TransactionTemplate(transactionManager);
+    }
+
+    @Test
+    @DisplayName("64 escritores inserindo no razão devem chegar ao saldo exato")
+    void testMovimentacoesNoRazao() throws Exception {
+        EstoqueProduto estoque = criarEstoque();
+
+        executarEscritores(ESCRITORES, (escritor, i) -> registrar(estoque, delta(escritor, i)));
+
+        int esperado = QUANTIDADE_INICIAL + somaDeltas();
+        assertEquals(esperado, saldoEstoqueService.consultarSaldo(estoque.getId()));
+        assertEquals(ESCRITORES * MOVIMENTACOES_POR_ESCRITOR,
+            saldoEstoqueService.listarMovimentacoes(estoque.getId()).size());
+
+        transacao.executeWithoutResult(status -> saldoEstoqueService.gerarSnapshots());
+        assertEquals(esperado, saldoEstoqueService.consultarSaldo(estoque.getId()));
+        EstoqueProduto consolidado = estoqueProdutoRepository.findById(estoque.getId()).get();
+        assertEquals(esperado, consolidado.getQuantidadeAtual());
+        assertEquals(0, new BigDecimal("2.50").multiply(BigDecimal.valueOf(esperado))
+            .compareTo(consolidado.getValorTotal()));
+    }
+
+    @Test
+    @DisplayName("Inserção no razão e atualização com bloqueio pessimista devem chegar ao mesmo saldo")
+    void testRazaoComparadoAoBloqueioPessimista() throws Exception {
+        EstoqueProduto razao = criarEstoque();
+        Long pessimista = criarEstoque().getId();
+
+        executarEscritores(ESCRITORES, (escritor, i) -> registrar(razao, delta(escritor, i)));
+        executarEscritores(ESCRITORES, (escritor, i) -> transacao.executeWithoutResult(status ->
+            movimentarComBloqueio(pessimista, delta(escritor, i))));
+
+        int esperada = QUANTIDADE_INICIAL + somaDeltas();
+        assertEquals(esperada, saldoEstoqueService.consultarSaldo(razao.getId()));
+        assertEquals(esperada, estoqueProdutoRepository.findById(pessimista).get().getQuantidadeAtual());
+    }
+
+    @Test
+    @DisplayName("Ajustes concorrendo com movimentações não devem perder nenhuma alteração")
+    void testAjustesComMovimentacoes() throws Exception {
+        EstoqueProduto estoque = criarEstoque();
+        AtomicLong somaMovimentacoes = new AtomicLong();
+
+        executarEscritores(ESCRITORES, (escritor, i) -> {
+            if (escritor % 8 == 0) {
+                estoqueProdutoService.ajustarEstoque(estoque.getId(), 500 + escritor + i, "Inventário", null);
+            } else {
+                int delta = delta(escritor, i);
+                registrar(estoque, delta);
+                somaMovimentacoes.addAndGet(delta);
+            }
+        });
+
+        List<AjusteEstoqueProduto> ajustes = ajusteEstoqueRepository.findByEstoqueProdutoId(estoque.getId());
+        long somaAjustes = ajustes.stream().mapToLong(AjusteEstoqueProduto::getQuantidadeAjuste).sum();
+        assertEquals((ESCRITORES / 8) * MOVIMENTACOES_POR_ESCRITOR, ajustes.size());
+        assertEquals(QUANTIDADE_INICIAL + somaMovimentacoes.get() + somaAjustes,
+            (long) saldoEstoqueService.consultarSaldo(estoque.getId()));
+    }
+
+    @Test
+    @DisplayName("Ajustes simultâneos em lote anterior ao razão devem abrir um único snapshot")
+    void testAjustesEmLoteSemSnapshot() throws Exception {
+        EstoqueProduto estoque = criarEstoque(false);
+
+        executarEscritores(8, (escritor, i) ->
+            estoqueProdutoService.ajustarEstoque(estoque.getId(), 500 + escritor + i, "Inventário", null));
+
+        assertEquals(1L, entityManager.createQuery(
+                "select count(s) from SnapshotEstoque s where s.estoqueProduto.id = :id", Long.class)
+            .setParameter("id", estoque.getId())
+            .getSingleResult());
+        List<AjusteEstoqueProduto> ajustes = ajusteEstoqueRepository.findByEstoqueProdutoId(estoque.getId());
+        long somaAjustes = ajustes.stream().mapToLong(AjusteEstoqueProduto::getQuantidadeAjuste).sum();
+        assertEquals(8 * MOVIMENTACOES_POR_ESCRITOR, ajustes.size());
+        assertEquals(QUANTIDADE_INICIAL + somaAjustes, (long) saldoEstoqueService.consultarSaldo(estoque.getId()));
+    }
+
+    @Test
+    @DisplayName("Atualização do cadastro lida antes de uma consolidação deve ser recusada")
+    void testAtualizacaoComVersaoAntiga() {
+        EstoqueProduto estoque = criarEstoque();
+        EstoqueProduto editado = estoqueProdutoRepository.findById(estoque.getId()).get();
+        registrar(estoque, 3);
+        transacao.executeWithoutResult(status -> saldoEstoqueService.gerarSnapshots());
+
+        editado.setLocalizacao("Prateleira 2");
+        assertThrows(OptimisticLockingFailureException.class, () -> transacao.executeWithoutResult(status ->
+            estoqueProdutoService.atualizar(estoque.getId(), editado)));
+        assertEquals(QUANTIDADE_INICIAL + 3, estoqueProdutoRepository.findById(estoque.getId()).get().getQuantidadeAtual());
+    }
+
+    private void registrar(EstoqueProduto estoque, int delta) {
+        transacao.executeWithoutResult(status -> saldoEstoqueService.registrar(
+            SaldoEstoqueService.novaMovimentacao(estoque, MovimentacaoEstoque.TIPO_COMPRA, delta, null, null)));
+    }
+
+    private void movimentarComBloqueio(Long id, int delta) {
+        EstoqueProduto estoque = entityManager.find(EstoqueProduto.class, id, LockModeType.PESSIMISTIC_WRITE);
+        estoque.setQuantidadeAtual(estoque.getQuantidadeAtual() + delta);
+        estoque.setValorTotal(estoque.getValorUnitario().multiply(BigDecimal.valueOf(estoque.getQuantidadeAtual())));
+        estoque.setDataUltimaMovimentacao(new Date());
+    }
+
+    private static int delta(int escritor, int movimentacao) {
+        return (escritor + movimentacao) % 3 == 0 ? -2 : 3;
+    }
+
+    private static int somaDeltas() {
+        int soma = 0;
+        for (int escritor = 0; escritor < ESCRITORES; escritor++) {
+            for (int i = 0; i < MOVIMENTACOES_POR_ESCRITOR; i++) {
+                soma += delta(escritor, i);
+            }
+        }
+        return soma;
+    }
+
+    /**
+     * Dispara os escritores juntos, cada um fazendo {@link #MOVIMENTACOES_POR_ESCRITOR} operações.
+     */
+    private void executarEscritores(int escritores, Operacao operacao) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(escritores);
+        CountDownLatch largada = new CountDownLatch(1);
+        List<Future<?>> resultados = new ArrayList<>();
+        try {
+            for (int escritor = 0; escritor < escritores; escritor++) {
+                int numero = escritor;
+                resultados.add(executor.submit(() -> {
+                    largada.await();
+                    for (int i = 0; i < MOVIMENTACOES_POR_ESCRITOR; i++) {
+                        operacao.executar(numero, i);
+                    }
+                    return null;
+                }));
+            }
+            largada.countDown();
+            for (Future<?> resultado : resultados) {
+                resultado.get(60, TimeUnit.SECONDS);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private EstoqueProduto criarEstoque() {
+        return criarEstoque(true);
+    }
+
+    private EstoqueProduto criarEstoque(boolean comSnapshot) {
+        int numero = SEQUENCIA.incrementAndGet();
+        return transacao.execute(status -> {
+            Unidade unidade = new Unidade();
+            entityManager.persist(unidade);
+
+            Fornecedor fornecedor = new Fornecedor();
+            fornecedor.setRazaoSocial("Fornecedor " + numero);
+            fornecedor.setCnpj(String.format("%014d", numero));
+            entityManager.persist(fornecedor);
+
+            ProdutoReferencia produto = new ProdutoReferencia();
+            produto.setCodigoInterno("CONC" + numero);
+            produto.setNome("Produto " + numero);
+            entityManager.persist(produto);
+
+            ProdutoFornecedor produtoFornecedor = new ProdutoFornecedor();
+            produtoFornecedor.setCodigoFornecedor("P" + numero);
+            produtoFornecedor.setProdutoReferencia(produto);
+            produtoFornecedor.setFornecedor(fornecedor);
+            entityManager.persist(produtoFornecedor);
+
+            EstoqueProduto estoque = new EstoqueProduto();
+            estoque.setProdutoFornecedor(produtoFornecedor);
+            estoque.setProdutoReferencia(produto);
+            estoque.setUnidade(unidade);
+            estoque.setLote("L" + numero);
+            estoque.setQuantidadeAtual(QUANTIDADE_INICIAL);
+            estoque.setValorUnitario(new BigDecimal("2.50"));
+            estoque.setValorTotal(new BigDecimal("2500.00"));
+            entityManager.persist(estoque);
+            if (comSnapshot) {
+                entityManager.persist(SaldoEstoqueService.saldoInicial(estoque, QUANTIDADE_INICIAL));
+            }
+            return estoque;
+        });
+    }
+
+    @FunctionalInterface
+    private interface Operacao {
+        void executar(int escritor, int movimentacao) throws Exception;
+    }
+}
@@ -2,6 +2,7 @@ package com.annaehugo.freepharma.application.services;
 
 import com.annaehugo.freepharma.domain.entity.estoque.EstoqueProduto;
 import com.annaehugo.freepharma.domain.entity.estoque.AjusteEstoqueProduto;
+import com.annaehugo.freepharma.domain.entity.estoque.MovimentacaoEstoque;
 import com.annaehugo.freepharma.domain.entity.estoque.ProdutoReferencia;
 import com.annaehugo.freepharma.domain.entity.estoque.ProdutoFornecedor;
 import com.annaehugo.freepharma.domain.entity.administrativo.Unidade;
@@ -42,6 +43,9 @@ class EstoqueProdutoServiceTest {
     @Mock
     private UnidadeRepository unidadeRepository;
 
+    @Mock
+    private SaldoEstoqueService saldoEstoqueService;
+
     private EstoqueProdutoService estoqueProdutoService;
 
     private EstoqueProduto estoqueProduto;
@@ -53,7 +57,7 @@ class EstoqueProdutoServiceTest {
     void setUp() {
         estoqueProdutoService = new EstoqueProdutoService(
                 estoqueProdutoRepository, ajusteEstoqueRepository,
-            produtoReferenciaRepository, unidadeRepository
+            produtoReferenciaRepository, unidadeRepository, saldoEstoqueService
         );
 
         produtoReferencia = new ProdutoReferencia();
@@ -370,21 +374,23 @@ estoqueProduto.setProdutoReferencia(produtoReferencia);
     void shouldAdjustStockSuccessfully() {
         // Given
         when(estoqueProdutoRepository.findById(1L)).thenReturn(Optional.of(estoqueProduto));
-        when(ajusteEstoqueRepository.save(any(AjusteEstoqueProduto.class))).thenReturn(new AjusteEstoqueProduto());
-        when(estoqueProdutoRepository.save(any(EstoqueProduto.class))).thenReturn(estoqueProduto);
+        when(saldoEstoqueService.consultarSaldo(1L)).thenReturn(100);
+        when(ajusteEstoqueRepository.save(any(AjusteEstoqueProduto.class))).thenAnswer(invocation -> invocation.getArgument(0));
 
         // When
         EstoqueProduto result = estoqueProdutoService.ajustarEstoque(1L, 150, "Ajuste de inventário", 1L);
 
         // Then
-        assertThat(result).isNotNull();
-        assertThat(estoqueProduto.getQuantidadeAtual()).isEqualTo(150);
-        assertThat(estoqueProduto.getDataUltimaMovimentacao()).isNotNull();
-        assertThat(estoqueProduto.getValorTotal()).isEqualTo(BigDecimal.valueOf(1575.00));
-        
-        verify(estoqueProdutoRepository).findById(1L);
-        verify(ajusteEstoqueRepository).save(any(AjusteEstoqueProduto.class));
-        verify(estoqueProdutoRepository).save(estoqueProduto);
+        assertThat(result).isSameAs(estoqueProduto);
+        verify(saldoEstoqueService).abrirSaldo(estoqueProduto);
+        verify(saldoEstoqueService).registrar(argThat(movimentacao ->
+            movimentacao.getTipo().equals(MovimentacaoEstoque.TIPO_AJUSTE) &&
+            movimentacao.getQuantidade() == 50 &&
+            movimentacao.getEstoqueProduto() == estoqueProduto &&
+            movimentacao.getAjuste() != null
+        ));
+        verify(saldoEstoqueService).copiarSaldo(eq(estoqueProduto), eq(150), any(Date.class));
+        verify(estoqueProdutoRepository, never()).save(any());
     }
 
     @Test
@@ -392,7 +398,7 @@ estoqueProduto.setProdutoReferencia(produtoReferencia);
     void shouldCreatePositiveAdjustmentWhenIncreasingStock() {
         // Given
         when(estoqueProdutoRepository.findById(1L)).thenReturn(Optional.of(estoqueProduto));
-        when(estoqueProdutoRepository.save(any(EstoqueProduto.class))).thenReturn(estoqueProduto);
+        when(saldoEstoqueService.consultarSaldo(1L)).thenReturn(100);
 
         // When
         estoqueProdutoService.ajustarEstoque(1L, 150, "Entrada de produtos", 1L);
@@ -411,7 +417,7 @@ estoqueProduto.setProdutoReferencia(produtoReferencia);
     void shouldCreateNegativeAdjustmentWhenDecreasingStock() {
         // Given
         when(estoqueProdutoRepository.findById(1L)).thenReturn(Optional.of(estoqueProduto));
-        when(estoqueProdutoRepository.save(any(EstoqueProduto.class))).thenReturn(estoqueProduto);
+        when(saldoEstoqueService.consultarSaldo(1L)).thenReturn(100);
 
         // When
         estoqueProdutoService.ajustarEstoque(1L, 50, "Saída de produtos", 1L);
@@ -423,6 +429,68 @@ estoqueProduto.setProdutoReferencia(produtoReferencia);
             ajuste.getQuantidadeAnterior() == 100 &&
             ajuste.getQuantidadeNova() == 50
         ));
+        verify(saldoEstoqueService).registrar(argThat(movimentacao -> movimentacao.getQuantidade() == -50));
+    }
+
+    @Test
+    @DisplayName("Should open the ledger of a new stock product")
+    void shouldOpenLedgerWhenSavingNewStockProduct() {
+        // Given
+        estoqueProduto.setId(null);
+        when(unidadeRepository.existsById(1L)).thenReturn(true);
+        when(estoqueProdutoRepository.save(any(EstoqueProduto.class))).thenReturn(estoqueProduto);
+
+        // When
+        estoqueProdutoService.salvar(estoqueProduto);
+
+        // Then
+        verify(saldoEstoqueService).registrarSaldoInicial(estoqueProduto);
+    }
+
+    @Test
+    @DisplayName("Should record a changed quantity on update as a ledger adjustment")
+    void shouldRecordQuantityChangeOnUpdateAsAdjustment() {
+        // Given
+        EstoqueProduto updatedEstoque = new EstoqueProduto();
+        updatedEstoque.setProdutoFornecedor(produtoFornecedor);
+        updatedEstoque.setUnidade(unidade);
+        updatedEstoque.setQuantidadeAtual(80);
+        updatedEstoque.setEstoqueMinimo(10);
+        updatedEstoque.setEstoqueMaximo(500);
+        updatedEstoque.setValorUnitario(BigDecimal.valueOf(10.50));
+        when(estoqueProdutoRepository.findById(1L)).thenReturn(Optional.of(estoqueProduto));
+        when(saldoEstoqueService.consultarSaldo(1L)).thenReturn(95);
+        when(estoqueProdutoRepository.save(any(EstoqueProduto.class))).thenReturn(updatedEstoque);
+
+        // When
+        estoqueProdutoService.atualizar(1L, updatedEstoque);
+
+        // Then
+        verify(saldoEstoqueService).registrar(argThat(movimentacao ->
+            movimentacao.getTipo().equals(MovimentacaoEstoque.TIPO_AJUSTE) && movimentacao.getQuantidade() == -15
+        ));
+    }
+
+    @Test
+    @DisplayName("Should not touch the ledger when the update keeps the quantity")
+    void shouldNotRecordAdjustmentWhenQuantityIsUnchanged() {
+        // Given
+        estoqueProduto.setQuantidadeAtual(50);
+        EstoqueProduto updatedEstoque = new EstoqueProduto();
+        updatedEstoque.setProdutoFornecedor(produtoFornecedor);
+        updatedEstoque.setUnidade(unidade);
+        updatedEstoque.setQuantidadeAtual(50);
+        updatedEstoque.setEstoqueMinimo(30);
+        updatedEstoque.setEstoqueMaximo(500);
+        updatedEstoque.setValorUnitario(BigDecimal.valueOf(10.50));
+        when(estoqueProdutoRepository.findById(1L)).thenReturn(Optional.of(estoqueProduto));
+        when(estoqueProdutoRepository.save(any(EstoqueProduto.class))).thenReturn(updatedEstoque);
+
+        // When
+        estoqueProdutoService.atualizar(1L, updatedEstoque);
+
+        // Then
+        verify(saldoEstoqueService, never()).registrar(any());
     }
 
     @Test
@@ -438,6 +506,7 @@ estoqueProduto.setProdutoReferencia(produtoReferencia);
 
         verify(estoqueProdutoRepository).findById(999L);
         verify(ajusteEstoqueRepository, never()).save(any());
+        verify(saldoEstoqueService, never()).registrar(any());
     }
 
     @Test
@@ -0,0 +1,362 @@
+package com.annaehugo.freepharma.application.services;
+
+import com.annaehugo.freepharma.application.dto.fiscal.NFeXmlData;
+import com.annaehugo.freepharma.application.services.ProcessamentoNFeService.ProcessamentoResult;
+import com.annaehugo.freepharma.application.services.ProcessamentoNFeService.ValidacaoNFe;
+import com.annaehugo.freepharma.domain.entity.administrativo.Unidade;
+import com.annaehugo.freepharma.domain.entity.fiscal.CheckpointLote;
+import com.annaehugo.freepharma.domain.entity.fiscal.ImportacaoNFe;
+import com.annaehugo.freepharma.domain.entity.fiscal.LoteProcessamento;
+import com.annaehugo.freepharma.domain.entity.fiscal.StatusImportacao;
+import com.annaehugo.freepharma.domain.repository.fiscal.CheckpointLoteRepository;
+import com.annaehugo.freepharma.domain.repository.fiscal.ImportacaoNFeRepository;
+import com.annaehugo.freepharma.domain.repository.fiscal.LoteProcessamentoRepository;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.mockito.junit.jupiter.MockitoSettings;
+import org.mockito.quality.Strictness;
+import org.springframework.beans.BeanUtils;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.UnexpectedRollbackException;
+import org.springframework.transaction.support.SimpleTransactionStatus;
+
+import java.io.ByteArrayInputStream;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+@MockitoSettings(strictness = Strictness.LENIENT)
+@DisplayName("ExecucaoLoteService - Lotes de importação em blocos com checkpoint")
+class ExecucaoLoteServiceTest {
+
+    @Mock
+    private ImportacaoNFeRepository importacaoNFeRepository;
+    @Mock
+    private LoteProcessamentoRepository loteProcessamentoRepository;
+    @Mock
+    private CheckpointLoteRepository checkpointLoteRepository;
+    @Mock
+    private ArmazenamentoImportacaoService armazenamentoImportacaoService;
+    @Mock
+    private ImportacaoNFeService importacaoNFeService;
+    @Mock
+    private ProcessamentoNFeService processamentoNFeService;
+    @Mock
+    private NFeDuplicidadeService nfeDuplicidadeService;
+
+    private final TransacoesEmMemoria transacoes = new TransacoesEmMemoria();
+    private final Map<Long, ImportacaoNFe> importacoes = new ConcurrentHashMap<>();
+    private final Map<Long, CheckpointLote> checkpoints = new ConcurrentHashMap<>();
+    private final Map<Long, LoteProcessamento> lotes = new ConcurrentHashMap<>();
+    private final Map<Long, byte[]> arquivos = new ConcurrentHashMap<>();
+    private final List<String> chavesGravadas = Collections.synchronizedList(new ArrayList<>());
+    private final AtomicLong sequencia = new AtomicLong(100);
+    private volatile String chaveQueFalhaNoCommit;
+    private ExecucaoLoteService service;
+
+    @BeforeEach
+    void setUp() {
+        service = new ExecucaoLoteService(importacaoNFeRepository, loteProcessamentoRepository, checkpointLoteRepository,
+            armazenamentoImportacaoService, new NFeXmlParser(), importacaoNFeService, processamentoNFeService,
+            nfeDuplicidadeService, transacoes, 2, 2);
+
+        when(importacaoNFeRepository.findById(any())).thenAnswer(invocation ->
+            Optional.ofNullable(importacoes.get(invocation.<Long>getArgument(0))).map(this::copiaImportacao));
+        when(importacaoNFeRepository.findAllById(any())).thenAnswer(invocation -> invocation.<Collection<Long>>getArgument(0)
+            .stream().map(importacoes::get).map(this::copiaImportacao).collect(Collectors.toList()));
+        when(importacaoNFeRepository.findByLoteProcessamentoIdOrderById(any())).thenAnswer(invocation ->
+            importacoes.values().stream()
+                .filter(importacao -> importacao.getLoteProcessamento() != null
+                    && importacao.getLoteProcessamento().getId().equals(invocation.getArgument(0)))
+                .sorted(Comparator.comparing(ImportacaoNFe::getId)).map(this::copiaImportacao).collect(Collectors.toList()));
+        when(importacaoNFeRepository.save(any(ImportacaoNFe.class))).thenAnswer(invocation -> {
+            ImportacaoNFe importacao = copiaImportacao(invocation.getArgument(0));
+            transacoes.gravar(() -> importacoes.put(importacao.getId(), importacao));
+            return invocation.getArgument(0);
+        });
+        when(importacaoNFeRepository.saveAll(any())).thenAnswer(invocation -> {
+            List<ImportacaoNFe> gravados = new ArrayList<>();
+            invocation.<Iterable<ImportacaoNFe>>getArgument(0).forEach(gravados::add);
+            gravados.forEach(importacaoNFeRepository::save);
+            return gravados;
+        });
+
+        when(checkpointLoteRepository.findById(any())).thenAnswer(invocation ->
+            Optional.ofNullable(checkpoints.get(invocation.<Long>getArgument(0))).map(this::copiaCheckpoint));
+        when(checkpointLoteRepository.findByLoteProcessamentoIdOrderById(any())).thenAnswer(invocation ->
+            checkpoints.values().stream()
+                .filter(checkpoint -> checkpoint.getLoteProcessamento().getId().equals(invocation.getArgument(0)))
+                .sorted(Comparator.comparing(CheckpointLote::getId)).map(this::copiaCheckpoint).collect(Collectors.toList()));
+        when(checkpointLoteRepository.save(any(CheckpointLote.class))).thenAnswer(invocation -> {
+            CheckpointLote checkpoint = invocation.getArgument(0);
+            if (checkpoint.getId() == null) {
+                checkpoint.setId(sequencia.incrementAndGet());
+            }
+            CheckpointLote gravado = copiaCheckpoint(checkpoint);
+            transacoes.gravar(() -> checkpoints.put(gravado.getId(), gravado));
+            return checkpoint;
+        });
+        when(checkpointLoteRepository.saveAll(any())).thenAnswer(invocation -> {
+            List<CheckpointLote> gravados = new ArrayList<>();
+            invocation.<Iterable<CheckpointLote>>getArgument(0).forEach(gravados::add);
+            gravados.forEach(checkpointLoteRepository::save);
+            return gravados;
+        });
+
+        when(loteProcessamentoRepository.save(any(LoteProcessamento.class))).thenAnswer(invocation -> {
+            LoteProcessamento lote = invocation.getArgument(0);
+            if (lote.getId() == null) {
+                lote.setId(1L);
+            }
+            lotes.put(lote.getId(), lote);
+            return lote;
+        });
+        when(loteProcessamentoRepository.findById(any())).thenAnswer(invocation ->
+            Optional.ofNullable(lotes.get(invocation.<Long>getArgument(0))));
+        when(loteProcessamentoRepository.findByTipoLoteAndStatus(ExecucaoLoteService.TIPO_LOTE, "PROCESSANDO"))
+            .thenAnswer(invocation -> lotes.values().stream()
+                .filter(lote -> "PROCESSANDO".equals(lote.getStatus())).collect(Collectors.toList()));
+        when(loteProcessamentoRepository.avancarProgresso(any(), any(), any())).thenAnswer(invocation -> {
+            LoteProcessamento lote = lotes.get(invocation.<Long>getArgument(0));
+            synchronized (lote) {
+                lote.setProgresso(Math.max(lote.getProgresso(), invocation.<Integer>getArgument(1)));
+            }
+            return 1;
+        });
+
+        when(armazenamentoImportacaoService.abrir(any())).thenAnswer(invocation ->
+            new ByteArrayInputStream(arquivos.get(invocation.<ImportacaoNFe>getArgument(0).getId())));
+        when(processamentoNFeService.validarNFe(any(NFeXmlData.class))).thenReturn(new ValidacaoNFe());
+        when(processamentoNFeService.processarNFe(any(), any(), any(), any())).thenAnswer(invocation -> {
+            String chave = invocation.<NFeXmlData>getArgument(0).getChaveAcesso();
+            if (chave.equals(chaveQueFalhaNoCommit)) {
+                // Como uma chamada @Transactional interna que falhou e deixou a transação só para rollback
+                transacoes.marcarRollback();
+            }
+            transacoes.gravar(() -> chavesGravadas.add(chave));
+            ProcessamentoResult resultado = new ProcessamentoResult();
+            resultado.setSucesso(true);
+            return resultado;
+        });
+    }
+
+    @AfterEach
+    void tearDown() {
+        service.encerrar();
+    }
+
+    @Test
+    @DisplayName("Deve processar as unidades em partições, com um commit e um checkpoint por bloco")
+    void testExecutarEmParticoes() {
+        Unidade primeira = unidade(10L);
+        Unidade segunda = unidade(20L);
+        importacao(1L, primeira, 1, 5);
+        importacao(2L, segunda, 6, 3);
+        importacao(3L, primeira, 9, 2);
+
+        LoteProcessamento lote = service.criar(Arrays.asList(1L, 2L, 3L));
+        LoteProcessamento concluido = service.aguardar(lote.getId(), Duration.ofSeconds(10)).get();
+
+        assertEquals(ExecucaoLoteService.TIPO_LOTE, concluido.getTipoLote());
+        assertEquals("CONCLUIDO", concluido.getStatus());
+        assertEquals(100, concluido.getProgresso());
+        assertEquals(10, chavesGravadas.size());
+        assertEquals(5, importacoes.get(1L).getQuantidadeNotasProcessadas());
+        assertEquals(3, importacoes.get(2L).getQuantidadeNotasProcessadas());
+        assertEquals(StatusImportacao.CONCLUIDA, importacoes.get(3L).getStatus());
+        assertEquals(2, importacoes.get(3L).getQuantidadeNotasArquivo());
+
+        List<CheckpointLote> particoes = service.listarParticoes(lote.getId());
+        assertEquals(2, particoes.size());
+        assertTrue(particoes.stream().allMatch(particao -> ExecucaoLoteService.PARTICAO_CONCLUIDA.equals(particao.getStatus())));
+        // Unidade 10: blocos de 2, 2 e 1 nota da importação 1, mais 2 e o bloco final vazio da importação 3
+        assertEquals(5, particoes.get(0).getBlocosConcluidos());
+        assertEquals(2, particoes.get(1).getBlocosConcluidos());
+    }
+
+    @Test
+    @DisplayName("Deve distribuir as importações da mesma unidade entre as partições pedidas")
+    void testParticoesPorUnidade() {
+        Unidade unidade = unidade(10L);
+        importacao(1L, unidade, 1, 1);
+        importacao(2L, unidade, 2, 1);
+        importacao(3L, unidade, 3, 1);
+
+        LoteProcessamento lote = service.criar(Arrays.asList(1L, 2L, 3L), 2);
+        assertEquals("CONCLUIDO", service.aguardar(lote.getId(), Duration.ofSeconds(10)).get().getStatus());
+
+        List<CheckpointLote> particoes = service.listarParticoes(lote.getId());
+        assertEquals(2, particoes.size());
+        assertEquals(Arrays.asList(0, 1), particoes.stream().map(CheckpointLote::getIndice).collect(Collectors.toList()));
+        // Rodízio em ordem de ID: importações 1 e 3 na primeira partição, 2 na segunda (um bloco por importação)
+        assertEquals(2, particoes.get(0).getBlocosConcluidos());
+        assertEquals(1, particoes.get(1).getBlocosConcluidos());
+        assertEquals(3, chavesGravadas.size());
+    }
+
+    @Test
+    @DisplayName("Deve retomar do checkpoint sem regravar as notas e importações já concluídas")
+    void testRetomarDoCheckpoint() {
+        Unidade unidade = unidade(10L);
+        LoteProcessamento lote = new LoteProcessamento();
+        lote.setId(1L);
+        lote.setTipoLote(ExecucaoLoteService.TIPO_LOTE);
+        lote.setStatus("PROCESSANDO");
+        lote.setProgresso(50);
+        lotes.put(1L, lote);
+        ImportacaoNFe concluida = importacao(1L, unidade, 1, 2);
+        concluida.setStatus(StatusImportacao.CONCLUIDA);
+        concluida.setLoteProcessamento(lote);
+        ImportacaoNFe interrompida = importacao(2L, unidade, 3, 5);
+        interrompida.setStatus(StatusImportacao.PROCESSANDO);
+        interrompida.setLoteProcessamento(lote);
+        interrompida.setQuantidadeNotasArquivo(3);
+        interrompida.setQuantidadeNotasProcessadas(3);
+        CheckpointLote checkpoint = new CheckpointLote();
+        checkpoint.setId(50L);
+        checkpoint.setLoteProcessamento(lote);
+        checkpoint.setUnidade(unidade);
+        checkpoint.setImportacao(interrompida);
+        checkpoint.setNotasConcluidas(3);
+        checkpoint.setBlocosConcluidos(4);
+        checkpoint.setStatus(ExecucaoLoteService.PARTICAO_PROCESSANDO);
+        checkpoints.put(50L, checkpoint);
+
+        service.retomarInterrompidos();
+        LoteProcessamento concluido = service.aguardar(1L, Duration.ofSeconds(10)).get();
+
+        assertEquals("CONCLUIDO", concluido.getStatus());
+        assertEquals(Arrays.asList(NFeArquivoIteratorTest.chave("6"), NFeArquivoIteratorTest.chave("7")), chavesGravadas);
+        verify(armazenamentoImportacaoService, never()).abrir(argThat(importacao -> importacao.getId().equals(1L)));
+        assertEquals(5, importacoes.get(2L).getQuantidadeNotasArquivo());
+        assertEquals(5, importacoes.get(2L).getQuantidadeNotasProcessadas());
+        assertEquals(StatusImportacao.CONCLUIDA, importacoes.get(2L).getStatus());
+        assertEquals(5, checkpoints.get(50L).getNotasConcluidas());
+        assertEquals(6, checkpoints.get(50L).getBlocosConcluidos());
+    }
+
+    @Test
+    @DisplayName("Um bloco que falha no commit deve ser refeito nota a nota, com erro só na nota que falhou")
+    void testBlocoComFalhaNoCommit() {
+        importacao(1L, unidade(10L), 1, 4);
+        chaveQueFalhaNoCommit = NFeArquivoIteratorTest.chave("2");
+
+        LoteProcessamento lote = service.criar(Collections.singletonList(1L));
+        LoteProcessamento concluido = service.aguardar(lote.getId(), Duration.ofSeconds(10)).get();
+
+        assertEquals("CONCLUIDO", concluido.getStatus());
+        assertEquals(Arrays.asList(NFeArquivoIteratorTest.chave("1"), NFeArquivoIteratorTest.chave("3"),
+            NFeArquivoIteratorTest.chave("4")), chavesGravadas);
+        ImportacaoNFe importacao = importacoes.get(1L);
+        assertEquals(4, importacao.getQuantidadeNotasArquivo());
+        assertEquals(3, importacao.getQuantidadeNotasProcessadas());
+        assertEquals(1, importacao.getQuantidadeNotasComErro());
+        assertTrue(importacao.getErrosProcessamento().startsWith(NFeArquivoIteratorTest.chave("2")));
+        assertEquals(4, service.listarParticoes(lote.getId()).get(0).getNotasConcluidas());
+    }
+
+    private ImportacaoNFe importacao(Long id, Unidade unidade, int primeiraNota, int quantidade) {
+        String[] notas = new String[quantidade];
+        for (int i = 0; i < quantidade; i++) {
+            notas[i] = NFeArquivoIteratorTest.notaXml(String.valueOf(primeiraNota + i));
+        }
+        arquivos.put(id, NFeArquivoIteratorTest.montarEnvelope(notas));
+        ImportacaoNFe importacao = new ImportacaoNFe();
+        importacao.setId(id);
+        importacao.setNomeArquivo("lote-" + id + ".xml");
+        importacao.setUnidade(unidade);
+        importacao.setStatus(StatusImportacao.PENDENTE);
+        importacoes.put(id, importacao);
+        return importacao;
+    }
+
+    private static Unidade unidade(Long id) {
+        Unidade unidade = new Unidade();
+        unidade.setId(id);
+        return unidade;
+    }
+
+    private ImportacaoNFe copiaImportacao(ImportacaoNFe importacao) {
+        return copia(importacao, ImportacaoNFe::new);
+    }
+
+    private CheckpointLote copiaCheckpoint(CheckpointLote checkpoint) {
+        return copia(checkpoint, CheckpointLote::new);
+    }
+
+    private static <T> T copia(T origem, Supplier<T> nova) {
+        if (origem == null) {
+            return null;
+        }
+        T copia = nova.get();
+        BeanUtils.copyProperties(origem, copia);
+        return copia;
+    }
+
+    /**
+     * Guarda as gravações de cada thread até o commit e as descarta no rollback, como o banco faria.
+     */
+    private static final class TransacoesEmMemoria implements PlatformTransactionManager {
+        private final ThreadLocal<List<Runnable>> pendentes = new ThreadLocal<>();
+        private final ThreadLocal<Boolean> somenteRollback = new ThreadLocal<>();
+
+        void gravar(Runnable gravacao) {
+            List<Runnable> transacao = pendentes.get();
+            if (transacao != null) {
+                transacao.add(gravacao);
+            } else {
+                gravacao.run();
+            }
+        }
+
+        void marcarRollback() {
+            somenteRollback.set(true);
+        }
+
+        @Override
+        public TransactionStatus getTransaction(TransactionDefinition definicao) {
+            pendentes.set(new ArrayList<>());
+            return new SimpleTransactionStatus();
+        }
+
+        @Override
+        public void commit(TransactionStatus status) {
+            List<Runnable> gravacoes = pendentes.get();
+            boolean rollback = Boolean.TRUE.equals(somenteRollback.get());
+            pendentes.remove();
+            somenteRollback.remove();
+            if (rollback) {
+                throw new UnexpectedRollbackException("Transação marcada para rollback");
+            }
+            gravacoes.forEach(Runnable::run);
+        }
+
+        @Override
+        public void rollback(TransactionStatus status) {
+            pendentes.remove();
+            somenteRollback.remove();
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package com.annaehugo.freepharma.application.services;
+
+import com.annaehugo.freepharma.domain.entity.estoque.Fornecedor;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@DisplayName("FornecedorCacheService - Cache de fornecedores por CNPJ")
+class FornecedorCacheServiceTest {
+
+    private FornecedorCacheService service;
+
+    @BeforeEach
+    void setUp() {
+        service = new FornecedorCacheService(2);
+    }
+
+    @AfterEach
+    void tearDown() {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.clearSynchronization();
+        }
+    }
+
+    @Test
+    @DisplayName("Deve contar acertos e falhas por CNPJ")
+    void testAcertosEFalhas() {
+        Fornecedor fornecedor = fornecedor(1L, "11222333000144");
+
+        assertNull(service.buscar("11222333000144"));
+        service.registrar(fornecedor);
+
+        assertSame(fornecedor, service.buscar("11222333000144"));
+        assertSame(fornecedor, service.buscar("11222333000144"));
+        assertEquals(2, service.getAcertos());
+        assertEquals(1, service.getFalhas());
+    }
+
+    @Test
+    @DisplayName("Deve descartar o fornecedor usado há mais tempo ao atingir o tamanho máximo")
+    void testTamanhoMaximo() {
+        service.registrar(fornecedor(1L, "11111111000111"));
+        service.registrar(fornecedor(2L, "22222222000122"));
+        service.buscar("11111111000111");
+        service.registrar(fornecedor(3L, "33333333000133"));
+
+        assertEquals(2, service.getTamanho());
+        assertNotNull(service.buscar("11111111000111"));
+        assertNull(service.buscar("22222222000122"));
+    }
+
+    @Test
+    @DisplayName("Fornecedor ainda não gravado não deve entrar no cache")
+    void testFornecedorSemId() {
+        service.registrar(fornecedor(null, "11222333000144"));
+
+        assertEquals(0, service.getTamanho());
+    }
+
+    @Test
+    @DisplayName("Dentro de uma transação o fornecedor só deve entrar no cache após o commit")
+    void testRegistrarAposCommit() {
+        TransactionSynchronizationManager.initSynchronization();
+        service.registrar(fornecedor(1L, "11222333000144"));
+
+        assertEquals(0, service.getTamanho());
+
+        TransactionSynchronizationManager.getSynchronizations().forEach(TransactionSynchronization::afterCommit);
+        assertEquals(1, service.getTamanho());
+    }
+
+    @Test
+    @DisplayName("Fornecedor alterado em uma transação deve sair do cache e voltar atualizado após o commit")
+    void testInvalidar() {
+        service.registrar(fornecedor(1L, "11222333000144"));
+        Fornecedor atualizado = fornecedor(1L, "11222333000144");
+
+        TransactionSynchronizationManager.initSynchronization();
+        service.invalidar("11222333000144");
+        service.registrar(atualizado);
+        assertNull(service.buscar("11222333000144"));
+
+        TransactionSynchronizationManager.getSynchronizations().forEach(TransactionSynchronization::afterCommit);
+        assertSame(atualizado, service.buscar("11222333000144"));
+    }
+
+    private static Fornecedor fornecedor(Long id, String cnpj) {
+        Fornecedor fornecedor = new Fornecedor();
+        fornecedor.setId(id);
+        fornecedor.setCnpj(cnpj);
+        return fornecedor;
+    }
+}
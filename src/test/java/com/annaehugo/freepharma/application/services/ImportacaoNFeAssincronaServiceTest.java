@@ -0,0 +1,194 @@
+package com.annaehugo.freepharma.application.services;
+
+import com.annaehugo.freepharma.domain.entity.fiscal.ImportacaoNFe;
+import com.annaehugo.freepharma.domain.entity.fiscal.StatusImportacao;
+import com.annaehugo.freepharma.domain.repository.fiscal.ImportacaoNFeRepository;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.mockito.junit.jupiter.MockitoSettings;
+import org.mockito.quality.Strictness;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+@MockitoSettings(strictness = Strictness.LENIENT)
+@DisplayName("ImportacaoNFeAssincronaService - Importações em segundo plano")
+class ImportacaoNFeAssincronaServiceTest {
+
+    @Mock
+    private ImportacaoNFeService importacaoNFeService;
+
+    @Mock
+    private ImportacaoNFeRepository importacaoNFeRepository;
+
+    private ImportacaoNFeAssincronaService service;
+    private final Map<Long, ImportacaoNFe> banco = new ConcurrentHashMap<>();
+
+    @BeforeEach
+    void setUp() {
+        service = new ImportacaoNFeAssincronaService(importacaoNFeService, importacaoNFeRepository, 1, 1);
+        when(importacaoNFeRepository.save(any(ImportacaoNFe.class))).thenAnswer(invocation -> {
+            ImportacaoNFe importacao = invocation.getArgument(0);
+            banco.put(importacao.getId(), importacao);
+            return importacao;
+        });
+        when(importacaoNFeRepository.findById(any())).thenAnswer(invocation ->
+            Optional.ofNullable(banco.get(invocation.<Long>getArgument(0))));
+    }
+
+    @AfterEach
+    void tearDown() {
+        service.encerrar();
+    }
+
+    @Test
+    @DisplayName("Deve processar a importação fora da thread da requisição e permitir aguardar o fim")
+    void testAgendarEAguardar() {
+        CountDownLatch liberar = new CountDownLatch(1);
+        when(importacaoNFeService.processarImportacao(any())).thenAnswer(invocation -> {
+            ImportacaoNFe importacao = invocation.getArgument(0);
+            importacao.setStatus(StatusImportacao.PROCESSANDO);
+            esperar(liberar);
+            importacao.setStatus(StatusImportacao.CONCLUIDA);
+            return new HashMap<String, Object>();
+        });
+        ImportacaoNFe importacao = pendente(1L);
+
+        service.agendar(importacao);
+
+        assertNotEquals(StatusImportacao.CONCLUIDA, service.consultar(1L).get().getStatus());
+        liberar.countDown();
+        assertEquals(StatusImportacao.CONCLUIDA, service.aguardar(1L, Duration.ofSeconds(5)).get().getStatus());
+    }
+
+    @Test
+    @DisplayName("Espera deve terminar no limite mesmo com a importação em andamento")
+    void testAguardarComLimite() {
+        CountDownLatch liberar = new CountDownLatch(1);
+        when(importacaoNFeService.processarImportacao(any())).thenAnswer(invocation -> {
+            esperar(liberar);
+            return new HashMap<String, Object>();
+        });
+        service.agendar(pendente(1L));
+
+        long inicio = System.nanoTime();
+        Optional<ImportacaoNFe> situacao = service.aguardar(1L, Duration.ofMillis(100));
+
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - inicio) < 2000);
+        assertEquals(StatusImportacao.PENDENTE, situacao.get().getStatus());
+        liberar.countDown();
+    }
+
+    @Test
+    @DisplayName("Falha no processamento deve encerrar a importação com ERRO")
+    void testFalhaNoProcessamento() {
+        when(importacaoNFeService.processarImportacao(any())).thenThrow(new RuntimeException("Arquivo corrompido"));
+
+        service.agendar(pendente(1L));
+
+        ImportacaoNFe situacao = service.aguardar(1L, Duration.ofSeconds(5)).get();
+        assertEquals(StatusImportacao.ERRO, situacao.getStatus());
+        assertTrue(situacao.getErrosProcessamento().contains("Arquivo corrompido"));
+        assertNotNull(situacao.getDataFimProcessamento());
+    }
+
+    @Test
+    @DisplayName("Com a fila cheia deve recusar a importação e encerrá-la com ERRO")
+    void testFilaCheia() throws InterruptedException {
+        CountDownLatch emProcessamento = new CountDownLatch(1);
+        CountDownLatch liberar = new CountDownLatch(1);
+        when(importacaoNFeService.processarImportacao(any())).thenAnswer(invocation -> {
+            emProcessamento.countDown();
+            esperar(liberar);
+            return new HashMap<String, Object>();
+        });
+        service.agendar(pendente(1L));
+        assertTrue(emProcessamento.await(5, TimeUnit.SECONDS));
+        service.agendar(pendente(2L));
+
+        assertFalse(service.isFilaDisponivel());
+        assertThrows(RuntimeException.class, () -> service.agendar(pendente(3L)));
+        assertEquals(StatusImportacao.ERRO, banco.get(3L).getStatus());
+        liberar.countDown();
+    }
+
+    @Test
+    @DisplayName("Deve reagendar as importações pendentes ao iniciar")
+    void testRetomarPendentes() {
+        when(importacaoNFeRepository.findByStatus(StatusImportacao.PENDENTE)).thenReturn(List.of(pendente(7L)));
+        when(importacaoNFeService.processarImportacao(any())).thenAnswer(invocation -> {
+            invocation.<ImportacaoNFe>getArgument(0).setStatus(StatusImportacao.CONCLUIDA);
+            return new HashMap<String, Object>();
+        });
+
+        service.retomarPendentes();
+
+        verify(importacaoNFeService, timeout(5000)).processarImportacao(argThat(i -> i.getId().equals(7L)));
+    }
+
+    @Test
+    @DisplayName("Deve retomar as interrompidas em processamento e manter pendentes as que não cabem na fila")
+    void testRetomarAlemDaFila() throws InterruptedException {
+        CountDownLatch emProcessamento = new CountDownLatch(1);
+        CountDownLatch liberar = new CountDownLatch(1);
+        when(importacaoNFeService.processarImportacao(any())).thenAnswer(invocation -> {
+            emProcessamento.countDown();
+            esperar(liberar);
+            invocation.<ImportacaoNFe>getArgument(0).setStatus(StatusImportacao.CONCLUIDA);
+            return new HashMap<String, Object>();
+        });
+        ImportacaoNFe interrompida = pendente(6L);
+        interrompida.setStatus(StatusImportacao.PROCESSANDO);
+        when(importacaoNFeRepository.findByStatus(StatusImportacao.PROCESSANDO)).thenReturn(List.of(interrompida));
+        when(importacaoNFeRepository.findByStatus(StatusImportacao.PENDENTE)).thenReturn(List.of(pendente(7L), pendente(8L)));
+
+        service.retomarPendentes();
+        assertTrue(emProcessamento.await(5, TimeUnit.SECONDS));
+
+        // Uma em processamento, uma na fila e a terceira aguardando lugar, sem ser encerrada com erro
+        assertEquals(StatusImportacao.PENDENTE, banco.get(8L).getStatus());
+        assertEquals(2, service.getImportacoesNaFila());
+        verify(importacaoNFeService, timeout(5000)).processarImportacao(argThat(i -> i.getId().equals(6L)));
+
+        liberar.countDown();
+        assertEquals(StatusImportacao.CONCLUIDA, service.aguardar(7L, Duration.ofSeconds(5)).get().getStatus());
+        service.reagendarAguardando();
+
+        assertEquals(StatusImportacao.CONCLUIDA, service.aguardar(8L, Duration.ofSeconds(5)).get().getStatus());
+        assertEquals(0, service.getImportacoesNaFila());
+    }
+
+    // encerrar() interrompe as threads do pool; a tarefa presa no latch apenas termina
+    private static void esperar(CountDownLatch latch) {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private ImportacaoNFe pendente(Long id) {
+        ImportacaoNFe importacao = new ImportacaoNFe();
+        importacao.setId(id);
+        importacao.setNomeArquivo("nfe-" + id + ".xml");
+        importacao.setStatus(StatusImportacao.PENDENTE);
+        banco.put(id, importacao);
+        return importacao;
+    }
+}
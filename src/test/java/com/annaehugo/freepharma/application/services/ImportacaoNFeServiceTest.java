@@ -1,422 +1,781 @@
-//package com.annaehugo.freepharma.application.services;
-//
-//import com.annaehugo.freepharma.application.dto.fiscal.NFeXmlData;
-//import com.annaehugo.freepharma.domain.entity.fiscal.ImportacaoNFe;
-//import com.annaehugo.freepharma.domain.entity.fiscal.StatusImportacao;
-//import com.annaehugo.freepharma.domain.entity.fiscal.NotaFiscal;
-//import com.annaehugo.freepharma.domain.entity.estoque.Fornecedor;
-//import com.annaehugo.freepharma.domain.repository.fiscal.ImportacaoNFeRepository;
-//import org.junit.jupiter.api.BeforeEach;
-//import org.junit.jupiter.api.Test;
-//import org.junit.jupiter.api.extension.ExtendWith;
-//import org.mockito.InjectMocks;
-//import org.mockito.Mock;
-//import org.mockito.junit.jupiter.MockitoExtension;
-//import org.springframework.mock.web.MockMultipartFile;
-//import org.springframework.web.multipart.MultipartFile;
-//
-//import java.math.BigDecimal;
-//import java.util.Date;
-//import java.util.Map;
-//
-//import static org.junit.jupiter.api.Assertions.*;
-//import static org.mockito.ArgumentMatchers.*;
-//import static org.mockito.Mockito.*;
-//
-//@ExtendWith(MockitoExtension.class)
-//class ImportacaoNFeServiceTest {
-//
-//    @Mock(lenient = true)
-//    private NFeXmlParser nfeXmlParser;
-//
-//    @Mock(lenient = true)
-//    private ProcessamentoNFeService processamentoNFeService;
-//
-//    @Mock(lenient = true)
-//    private ImportacaoNFeRepository importacaoNFeRepository;
-//
-//    @InjectMocks
-//    private ImportacaoNFeService importacaoNFeService;
-//
-//    private MockMultipartFile xmlFile;
-//    private MockMultipartFile emptyFile;
-//    private MockMultipartFile nonXmlFile;
-//
-//    @BeforeEach
-//    void setUp() {
-//        // Configurar mocks
-//        ImportacaoNFe importacao = new ImportacaoNFe();
-//        importacao.setId(1L);
-//        importacao.setStatus(StatusImportacao.PENDENTE);
-//        when(importacaoNFeRepository.save(any(ImportacaoNFe.class))).thenReturn(importacao);
-//
-//        // Configurar NFe data mock
-//        NFeXmlData nfeData = new NFeXmlData();
-//        nfeData.setChaveAcesso("12345678901234567890123456789012345678901234"); // 44 caracteres
-//        nfeData.setNumero("123");
-//        nfeData.setValorTotal(new BigDecimal("100.00"));
-//        nfeData.setDataEmissao(new Date());
-//
-//        // Configurar emitente
-//        NFeXmlData.EmitenteDados emitente = new NFeXmlData.EmitenteDados();
-//        emitente.setCnpj("12345678000199");
-//        emitente.setRazaoSocial("Fornecedor Teste Ltda");
-//        nfeData.setEmitente(emitente);
-//
-//        // Configurar pelo menos um item
-//        NFeXmlData.ItemNFeDados item = new NFeXmlData.ItemNFeDados();
-//        item.setCodigoProduto("PROD001");
-//        item.setNomeProduto("Produto Teste");
-//        item.setQuantidade(1);
-//        item.setValorUnitario(new BigDecimal("100.00"));
-//        item.setValorTotal(new BigDecimal("100.00"));
-//        nfeData.getItens().add(item);
-//
-//        when(nfeXmlParser.parseNFeXml(any(byte[].class))).thenReturn(nfeData);
-//
-//        // Configurar resultado de processamento mock
-//        ProcessamentoNFeService.ProcessamentoResult resultado = new ProcessamentoNFeService.ProcessamentoResult();
-//        resultado.setSucesso(true);
-//        resultado.setMensagem("NFe processada com sucesso. 1 itens processados.");
-//
-//        // Configurar nota fiscal mock
-//        NotaFiscal notaFiscal = new NotaFiscal();
-//        notaFiscal.setId(1L);
-//        resultado.setNotaFiscal(notaFiscal);
-//
-//        // Configurar fornecedor mock
-//        Fornecedor fornecedor = new Fornecedor();
-//        fornecedor.setId(1L);
-//        resultado.setFornecedor(fornecedor);
-//
-//        when(processamentoNFeService.processarNFe(any(NFeXmlData.class), any(), any(ImportacaoNFe.class)))
-//            .thenReturn(resultado);
-//
-//        // Arquivo XML válido
-//        String xmlContent = "<?xml version=\"1.0\" encoding=\"UTF-8\"?><NFe><infNFe><ide><nNF>123</nNF></ide></infNFe></NFe>";
-//        xmlFile = new MockMultipartFile(
-//            "file",
-//            "nota_fiscal.xml",
-//            "text/xml",
-//            xmlContent.getBytes()
-//        );
-//
-//        // Arquivo vazio
-//        emptyFile = new MockMultipartFile(
-//            "file",
-//            "empty.xml",
-//            "text/xml",
-//            new byte[0]
-//        );
-//
-//        // Arquivo não XML
-//        nonXmlFile = new MockMultipartFile(
-//            "file",
-//            "documento.pdf",
-//            "application/pdf",
-//            "conteúdo não xml".getBytes()
-//        );
-//    }
-//
-//    @Test
-//    void importarNFeXml_ComArquivoXmlValido_DeveRetornarSucesso() {
-//        // When
-//        Map<String, Object> resultado = importacaoNFeService.importarNFeXml(xmlFile);
-//
-//        // Then
-//        assertNotNull(resultado);
-//        assertEquals("SUCESSO", resultado.get("status"));
-//        assertEquals("nota_fiscal.xml", resultado.get("arquivo"));
-//        assertEquals(xmlFile.getSize(), resultado.get("tamanho"));
-//        assertTrue(resultado.get("mensagem").toString().contains("processada com sucesso"));
-//    }
-//
-//    @Test
-//    void importarNFeXml_ComArquivoVazio_DeveLancarExcecao() {
-//        // When & Then
-//        RuntimeException exception = assertThrows(RuntimeException.class,
-//            () -> importacaoNFeService.importarNFeXml(emptyFile));
-//        assertEquals("Arquivo XML não pode ser vazio", exception.getMessage());
-//    }
-//
-//    @Test
-//    void importarNFeXml_ComArquivoNaoXml_DeveLancarExcecao() {
-//        // When & Then
-//        RuntimeException exception = assertThrows(RuntimeException.class,
-//            () -> importacaoNFeService.importarNFeXml(nonXmlFile));
-//        assertEquals("Apenas arquivos XML são aceitos", exception.getMessage());
-//    }
-//
-//    @Test
-//    void importarNFeXml_ComArquivoXmlMinusculo_DeveAceitarExtensao() {
-//        // Given
-//        MockMultipartFile xmlMinusculo = new MockMultipartFile(
-//            "file",
-//            "arquivo.xml",
-//            "text/xml",
-//            "<?xml version=\"1.0\"?><root></root>".getBytes()
-//        );
-//
-//        // When
-//        Map<String, Object> resultado = importacaoNFeService.importarNFeXml(xmlMinusculo);
-//
-//        // Then
-//        assertNotNull(resultado);
-//        assertEquals("SUCESSO", resultado.get("status"));
-//        assertEquals("arquivo.xml", resultado.get("arquivo"));
-//    }
-//
-//    @Test
-//    void importarNFeXml_ComArquivoXmlMaiusculo_DeveAceitarExtensao() {
-//        // Given
-//        MockMultipartFile xmlMaiusculo = new MockMultipartFile(
-//            "file",
-//            "ARQUIVO.XML",
-//            "text/xml",
-//            "<?xml version=\"1.0\"?><root></root>".getBytes()
-//        );
-//
-//        // When
-//        Map<String, Object> resultado = importacaoNFeService.importarNFeXml(xmlMaiusculo);
-//
-//        // Then
-//        assertNotNull(resultado);
-//        assertEquals("SUCESSO", resultado.get("status"));
-//        assertEquals("ARQUIVO.XML", resultado.get("arquivo"));
-//    }
-//
-//    @Test
-//    void importarNFeXml_ComArquivoSemExtensao_DeveLancarExcecao() {
-//        // Given
-//        MockMultipartFile arquivoSemExtensao = new MockMultipartFile(
-//            "file",
-//            "arquivo",
-//            "text/xml",
-//            "<?xml version=\"1.0\"?><root></root>".getBytes()
-//        );
-//
-//        // When & Then
-//        RuntimeException exception = assertThrows(RuntimeException.class,
-//            () -> importacaoNFeService.importarNFeXml(arquivoSemExtensao));
-//        assertEquals("Apenas arquivos XML são aceitos", exception.getMessage());
-//    }
-//
-//    @Test
-//    void importarNFeXml_ComExtensaoIncorreta_DeveLancarExcecao() {
-//        // Given
-//        MockMultipartFile arquivoTxt = new MockMultipartFile(
-//            "file",
-//            "arquivo.txt",
-//            "text/plain",
-//            "conteúdo texto".getBytes()
-//        );
-//
-//        // When & Then
-//        RuntimeException exception = assertThrows(RuntimeException.class,
-//            () -> importacaoNFeService.importarNFeXml(arquivoTxt));
-//        assertEquals("Apenas arquivos XML são aceitos", exception.getMessage());
-//    }
-//
-//    @Test
-//    void importarNFeXml_ComNomeArquivoNulo_DeveLancarExcecao() {
-//        // Given
-//        MockMultipartFile arquivoSemNome = new MockMultipartFile(
-//            "file",
-//            null,
-//            "text/xml",
-//            "<?xml version=\"1.0\"?><root></root>".getBytes()
-//        );
-//
-//        // When & Then
-//        RuntimeException exception = assertThrows(RuntimeException.class,
-//            () -> importacaoNFeService.importarNFeXml(arquivoSemNome));
-//        assertEquals("Nome do arquivo é obrigatório", exception.getMessage());
-//    }
-//
-//    @Test
-//    void importarNFeXml_ComArquivoMuitoGrande_DeveLancarExcecao() {
-//        // Given - arquivo de 11MB (maior que o limite de 10MB)
-//        byte[] largeContent = new byte[11 * 1024 * 1024]; // 11MB
-//        MockMultipartFile arquivoGrande = new MockMultipartFile(
-//            "file",
-//            "arquivo_grande.xml",
-//            "text/xml",
-//            largeContent
-//        );
-//
-//        // When & Then
-//        RuntimeException exception = assertThrows(RuntimeException.class,
-//            () -> importacaoNFeService.importarNFeXml(arquivoGrande));
-//        assertTrue(exception.getMessage().contains("Arquivo muito grande"));
-//    }
-//
-//    @Test
-//    void importarNFeXml_ComXmlInvalidoSemNFe_DeveLancarExcecao() {
-//        // Given
-//        String xmlInvalido = "<?xml version=\"1.0\" encoding=\"UTF-8\"?><root><data>test</data></root>";
-//        MockMultipartFile arquivoXmlInvalido = new MockMultipartFile(
-//            "file",
-//            "xml_invalido.xml",
-//            "text/xml",
-//            xmlInvalido.getBytes()
-//        );
-//
-//        // When & Then
-//        RuntimeException exception = assertThrows(RuntimeException.class,
-//            () -> importacaoNFeService.importarNFeXml(arquivoXmlInvalido));
-//        assertTrue(exception.getMessage().contains("XML não contém estrutura de NFe válida"));
-//    }
-//
-//    @Test
-//    void importarNFeXml_ComChaveAcessoInvalida_DeveLancarExcecao() {
-//        // Given - NFe com chave de acesso inválida
-//        NFeXmlData nfeDataInvalida = new NFeXmlData();
-//        nfeDataInvalida.setChaveAcesso("123"); // Menos que 44 caracteres
-//        nfeDataInvalida.setNumero("123");
-//        nfeDataInvalida.setValorTotal(new BigDecimal("100.00"));
-//
-//        when(nfeXmlParser.parseNFeXml(any(byte[].class))).thenReturn(nfeDataInvalida);
-//
-//        // When & Then
-//        RuntimeException exception = assertThrows(RuntimeException.class,
-//            () -> importacaoNFeService.importarNFeXml(xmlFile));
-//        assertEquals("Chave de acesso inválida", exception.getMessage());
-//    }
-//
-//    @Test
-//    void importarNFeXml_ComValorTotalZero_DeveLancarExcecao() {
-//        // Given - NFe com valor zero
-//        NFeXmlData nfeDataInvalida = new NFeXmlData();
-//        nfeDataInvalida.setChaveAcesso("12345678901234567890123456789012345678901234");
-//        nfeDataInvalida.setNumero("123");
-//        nfeDataInvalida.setValorTotal(BigDecimal.ZERO);
-//
-//        // Adicionar emitente obrigatório
-//        NFeXmlData.EmitenteDados emitente = new NFeXmlData.EmitenteDados();
-//        emitente.setCnpj("12345678000199");
-//        nfeDataInvalida.setEmitente(emitente);
-//
-//        when(nfeXmlParser.parseNFeXml(any(byte[].class))).thenReturn(nfeDataInvalida);
-//
-//        // When & Then
-//        RuntimeException exception = assertThrows(RuntimeException.class,
-//            () -> importacaoNFeService.importarNFeXml(xmlFile));
-//        assertEquals("Valor total da NFe deve ser maior que zero", exception.getMessage());
-//    }
-//
-//    @Test
-//    void importarNFeXml_SemEmitente_DeveLancarExcecao() {
-//        // Given - NFe sem emitente
-//        NFeXmlData nfeDataInvalida = new NFeXmlData();
-//        nfeDataInvalida.setChaveAcesso("12345678901234567890123456789012345678901234");
-//        nfeDataInvalida.setNumero("123");
-//        nfeDataInvalida.setValorTotal(new BigDecimal("100.00"));
-//        // Emitente = null
-//
-//        when(nfeXmlParser.parseNFeXml(any(byte[].class))).thenReturn(nfeDataInvalida);
-//
-//        // When & Then
-//        RuntimeException exception = assertThrows(RuntimeException.class,
-//            () -> importacaoNFeService.importarNFeXml(xmlFile));
-//        assertEquals("Dados do emitente são obrigatórios", exception.getMessage());
-//    }
-//
-//    @Test
-//    void importarNFeXml_SemItens_DeveLancarExcecao() {
-//        // Given - NFe sem itens
-//        NFeXmlData nfeDataInvalida = new NFeXmlData();
-//        nfeDataInvalida.setChaveAcesso("12345678901234567890123456789012345678901234");
-//        nfeDataInvalida.setNumero("123");
-//        nfeDataInvalida.setValorTotal(new BigDecimal("100.00"));
-//
-//        NFeXmlData.EmitenteDados emitente = new NFeXmlData.EmitenteDados();
-//        emitente.setCnpj("12345678000199");
-//        nfeDataInvalida.setEmitente(emitente);
-//        // Lista de itens vazia
-//
-//        when(nfeXmlParser.parseNFeXml(any(byte[].class))).thenReturn(nfeDataInvalida);
-//
-//        // When & Then
-//        RuntimeException exception = assertThrows(RuntimeException.class,
-//            () -> importacaoNFeService.importarNFeXml(xmlFile));
-//        assertEquals("NFe deve conter pelo menos um item", exception.getMessage());
-//    }
-//
-//    @Test
-//    void importarNFeXml_ComErroProcessamento_DeveRetornarErro() {
-//        // Given
-//        ProcessamentoNFeService.ProcessamentoResult resultadoErro = new ProcessamentoNFeService.ProcessamentoResult();
-//        resultadoErro.setSucesso(false);
-//        resultadoErro.setMensagem("Erro no processamento");
-//        resultadoErro.getErros().add("Erro específico no produto");
-//
-//        when(processamentoNFeService.processarNFe(any(NFeXmlData.class), any(), any(ImportacaoNFe.class)))
-//            .thenReturn(resultadoErro);
-//
-//        // When
-//        Map<String, Object> resultado = importacaoNFeService.importarNFeXml(xmlFile);
-//
-//        // Then
-//        assertNotNull(resultado);
-//        assertEquals("ERRO", resultado.get("status"));
-//        assertEquals("Erro no processamento", resultado.get("mensagem"));
-//        assertTrue(resultado.get("erros") != null);
-//    }
-//
-//    @Test
-//    void importarNFeXml_ComInconsistenciasDetectadas_DeveIncluirAlertas() {
-//        // Given - resultado com sucesso mas com inconsistências
-//        ProcessamentoNFeService.ProcessamentoResult resultadoComInconsistencias = new ProcessamentoNFeService.ProcessamentoResult();
-//        resultadoComInconsistencias.setSucesso(true);
-//        resultadoComInconsistencias.setMensagem("NFe processada com sucesso. 1 itens processados.");
-//
-//        when(processamentoNFeService.processarNFe(any(NFeXmlData.class), any(), any(ImportacaoNFe.class)))
-//            .thenReturn(resultadoComInconsistencias);
-//
-//        // Simular inconsistências detectadas
-//        ImportacaoNFe importacaoComInconsistencia = new ImportacaoNFe();
-//        importacaoComInconsistencia.setId(1L);
-//        importacaoComInconsistencia.setStatus(StatusImportacao.CONCLUIDA);
-//        importacaoComInconsistencia.setQuantidadeInconsistenciasDetectadas(3);
-//
-//        when(importacaoNFeRepository.save(any(ImportacaoNFe.class))).thenReturn(importacaoComInconsistencia);
-//
-//        // When
-//        Map<String, Object> resultado = importacaoNFeService.importarNFeXml(xmlFile);
-//
-//        // Then
-//        assertEquals("SUCESSO", resultado.get("status"));
-//        assertTrue(resultado.get("mensagem").toString().contains("processada com sucesso"));
-//    }
-//
-//    @Test
-//    void importarNFeXml_VerificarEstruturaDaResposta() {
-//        // When
-//        Map<String, Object> resultado = importacaoNFeService.importarNFeXml(xmlFile);
-//
-//        // Then
-//        assertNotNull(resultado);
-//        assertTrue(resultado.containsKey("status"));
-//        assertTrue(resultado.containsKey("arquivo"));
-//        assertTrue(resultado.containsKey("tamanho"));
-//        assertTrue(resultado.containsKey("mensagem"));
-//    }
-//
-//    @Test
-//    void importarNFeXml_DeveRetornarTamanhoCorreto() {
-//        // Given
-//        String conteudo = "<?xml version=\"1.0\"?><NFe><infNFe><ide><nNF>123</nNF></ide></infNFe></NFe>";
-//        MockMultipartFile arquivo = new MockMultipartFile(
-//            "file",
-//            "teste.xml",
-//            "text/xml",
-//            conteudo.getBytes()
-//        );
-//
-//        // When
-//        Map<String, Object> resultado = importacaoNFeService.importarNFeXml(arquivo);
-//
-//        // Then
-//        assertEquals((long)conteudo.getBytes().length, resultado.get("tamanho"));
-//    }
-//}
\ No newline at end of file
+package com.annaehugo.freepharma.application.services;
+
+import com.annaehugo.freepharma.application.dto.fiscal.NFeCabecalho;
+import com.annaehugo.freepharma.application.dto.fiscal.NFeXmlData;
+import com.annaehugo.freepharma.domain.entity.fiscal.ImportacaoNFe;
+import com.annaehugo.freepharma.domain.entity.fiscal.StatusImportacao;
+import com.annaehugo.freepharma.domain.entity.fiscal.NotaFiscal;
+import com.annaehugo.freepharma.domain.entity.fiscal.Inconsistencia;
+import com.annaehugo.freepharma.domain.entity.estoque.Fornecedor;
+import com.annaehugo.freepharma.domain.repository.fiscal.ImportacaoNFeRepository;
+import com.annaehugo.freepharma.domain.repository.fiscal.LoteProcessamentoRepository;
+import com.annaehugo.freepharma.domain.repository.fiscal.NotaFiscalRepository;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.InOrder;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.Spy;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.mock.web.MockMultipartFile;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.util.unit.DataSize;
+import org.springframework.web.multipart.MultipartFile;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+class ImportacaoNFeServiceTest {
+
+    @Mock(lenient = true)
+    private NFeXmlParser nfeXmlParser;
+
+    @Mock(lenient = true)
+    private ProcessamentoNFeService processamentoNFeService;
+
+    @Mock(lenient = true)
+    private ImportacaoNFeRepository importacaoNFeRepository;
+
+    @Mock(lenient = true)
+    private NFeDuplicidadeService nfeDuplicidadeService;
+
+    @Mock(lenient = true)
+    private LoteProcessamentoRepository loteProcessamentoRepository;
+
+    @Mock(lenient = true)
+    private NotaFiscalRepository notaFiscalRepository;
+
+    @TempDir
+    static Path diretorioArmazenamento;
+
+    @Spy
+    private ArmazenamentoImportacaoService armazenamentoImportacaoService =
+        new ArmazenamentoImportacaoService(mock(ImportacaoNFeRepository.class), diretorioArmazenamento.toString(),
+            Duration.ZERO, Duration.ofHours(24));
+
+    @InjectMocks
+    private ImportacaoNFeService importacaoNFeService;
+
+    private static final String CHAVE = "12345678901234567890123456789012345678901234";
+    private static final String NFE_MINIMA =
+        "<?xml version=\"1.0\"?><NFe><infNFe Id=\"NFe" + CHAVE + "\"><ide><nNF>123</nNF></ide></infNFe></NFe>";
+
+    private MockMultipartFile xmlFile;
+    private MockMultipartFile emptyFile;
+    private MockMultipartFile nonXmlFile;
+
+    @BeforeEach
+    void setUp() {
+        // Arquivos com várias notas passam pelas etapas reais, com a gravação no mock
+        ReflectionTestUtils.setField(importacaoNFeService, "pipelineImportacaoNFeService",
+            new PipelineImportacaoNFeService(processamentoNFeService, loteProcessamentoRepository, 2, 2, 8));
+
+        // Configurar mocks
+        ImportacaoNFe importacao = new ImportacaoNFe();
+        importacao.setId(1L);
+        importacao.setStatus(StatusImportacao.PENDENTE);
+        when(importacaoNFeRepository.save(any(ImportacaoNFe.class))).thenReturn(importacao);
+
+        // Configurar NFe data mock
+        NFeXmlData nfeData = new NFeXmlData();
+        nfeData.setChaveAcesso("12345678901234567890123456789012345678901234"); // 44 caracteres
+        nfeData.setNumero("123");
+        nfeData.setValorTotal(new BigDecimal("100.00"));
+        nfeData.setDataEmissao(new Date());
+
+        // Configurar emitente
+        NFeXmlData.EmitenteDados emitente = new NFeXmlData.EmitenteDados();
+        emitente.setCnpj("12345678000199");
+        emitente.setRazaoSocial("Fornecedor Teste Ltda");
+        nfeData.setEmitente(emitente);
+
+        // Configurar pelo menos um item
+        NFeXmlData.ItemNFeDados item = new NFeXmlData.ItemNFeDados();
+        item.setCodigoProduto("PROD001");
+        item.setNomeProduto("Produto Teste");
+        item.setQuantidade(1);
+        item.setValorUnitario(new BigDecimal("100.00"));
+        item.setValorTotal(new BigDecimal("100.00"));
+        nfeData.getItens().add(item);
+
+        when(nfeXmlParser.parseNFeXml(any(InputStream.class))).thenReturn(nfeData);
+        // O pré-exame do cabeçalho e a leitura de arquivos com várias notas usam o parser real
+        when(nfeXmlParser.lerCabecalho(any(byte[].class)))
+            .thenAnswer(invocation -> new NFeXmlParser().lerCabecalho(invocation.getArgument(0)));
+        when(nfeXmlParser.lerArquivo(any(InputStream.class), anyString(), any(ImportacaoNFe.class), any()))
+            .thenAnswer(invocation -> new NFeXmlParser().lerArquivo(invocation.getArgument(0),
+                invocation.getArgument(1), invocation.getArgument(2), invocation.getArgument(3)));
+
+        // Configurar resultado de processamento mock
+        ProcessamentoNFeService.ProcessamentoResult resultado = new ProcessamentoNFeService.ProcessamentoResult();
+        resultado.setSucesso(true);
+        resultado.setMensagem("NFe processada com sucesso. 1 itens processados.");
+
+        // Configurar nota fiscal mock
+        NotaFiscal notaFiscal = new NotaFiscal();
+        notaFiscal.setId(1L);
+        resultado.setNotaFiscal(notaFiscal);
+
+        // Configurar fornecedor mock
+        Fornecedor fornecedor = new Fornecedor();
+        fornecedor.setId(1L);
+        resultado.setFornecedor(fornecedor);
+
+        when(processamentoNFeService.processarNFe(any(NFeXmlData.class), any(), any(ImportacaoNFe.class), any()))
+            .thenReturn(resultado);
+
+        // Arquivo XML válido
+        String xmlContent = "<?xml version=\"1.0\" encoding=\"UTF-8\"?><NFe><infNFe Id=\"NFe12345678901234567890123456789012345678901234\"><ide><nNF>123</nNF></ide></infNFe></NFe>";
+        xmlFile = new MockMultipartFile(
+            "file",
+            "nota_fiscal.xml",
+            "text/xml",
+            xmlContent.getBytes()
+        );
+
+        // Arquivo vazio
+        emptyFile = new MockMultipartFile(
+            "file",
+            "empty.xml",
+            "text/xml",
+            new byte[0]
+        );
+
+        // Arquivo não XML
+        nonXmlFile = new MockMultipartFile(
+            "file",
+            "documento.pdf",
+            "application/pdf",
+            "conteúdo não xml".getBytes()
+        );
+    }
+
+    @Test
+    void importarNFeXml_ComArquivoXmlValido_DeveRetornarSucesso() {
+        // When
+        Map<String, Object> resultado = importacaoNFeService.importarNFeXml(xmlFile);
+
+        // Then
+        assertNotNull(resultado);
+        assertEquals("SUCESSO", resultado.get("status"));
+        assertEquals("nota_fiscal.xml", resultado.get("arquivo"));
+        assertEquals(xmlFile.getSize(), resultado.get("tamanho"));
+        assertTrue(resultado.get("mensagem").toString().contains("processada com sucesso"));
+    }
+
+    @Test
+    void importarNFeXml_ComArquivoVazio_DeveLancarExcecao() {
+        // When & Then
+        RuntimeException exception = assertThrows(RuntimeException.class,
+            () -> importacaoNFeService.importarNFeXml(emptyFile));
+        assertEquals("Arquivo XML não pode ser vazio", exception.getMessage());
+    }
+
+    @Test
+    void importarNFeXml_ComArquivoNaoXml_DeveLancarExcecao() {
+        // When & Then
+        RuntimeException exception = assertThrows(RuntimeException.class,
+            () -> importacaoNFeService.importarNFeXml(nonXmlFile));
+        assertEquals("Apenas arquivos XML são aceitos", exception.getMessage());
+    }
+
+    @Test
+    void importarNFeXml_ComArquivoXmlMinusculo_DeveAceitarExtensao() {
+        // Given
+        MockMultipartFile xmlMinusculo = new MockMultipartFile(
+            "file",
+            "arquivo.xml",
+            "text/xml",
+            NFE_MINIMA.getBytes()
+        );
+
+        // When
+        Map<String, Object> resultado = importacaoNFeService.importarNFeXml(xmlMinusculo);
+
+        // Then
+        assertNotNull(resultado);
+        assertEquals("SUCESSO", resultado.get("status"));
+        assertEquals("arquivo.xml", resultado.get("arquivo"));
+    }
+
+    @Test
+    void importarNFeXml_ComArquivoXmlMaiusculo_DeveAceitarExtensao() {
+        // Given
+        MockMultipartFile xmlMaiusculo = new MockMultipartFile(
+            "file",
+            "ARQUIVO.XML",
+            "text/xml",
+            NFE_MINIMA.getBytes()
+        );
+
+        // When
+        Map<String, Object> resultado = importacaoNFeService.importarNFeXml(xmlMaiusculo);
+
+        // Then
+        assertNotNull(resultado);
+        assertEquals("SUCESSO", resultado.get("status"));
+        assertEquals("ARQUIVO.XML", resultado.get("arquivo"));
+    }
+
+    @Test
+    void importarNFeXml_ComArquivoSemExtensao_DeveLancarExcecao() {
+        // Given
+        MockMultipartFile arquivoSemExtensao = new MockMultipartFile(
+            "file",
+            "arquivo",
+            "text/xml",
+            NFE_MINIMA.getBytes()
+        );
+
+        // When & Then
+        RuntimeException exception = assertThrows(RuntimeException.class,
+            () -> importacaoNFeService.importarNFeXml(arquivoSemExtensao));
+        assertEquals("Apenas arquivos XML são aceitos", exception.getMessage());
+    }
+
+    @Test
+    void importarNFeXml_ComExtensaoIncorreta_DeveLancarExcecao() {
+        // Given
+        MockMultipartFile arquivoTxt = new MockMultipartFile(
+            "file",
+            "arquivo.txt",
+            "text/plain",
+            "conteúdo texto".getBytes()
+        );
+
+        // When & Then
+        RuntimeException exception = assertThrows(RuntimeException.class,
+            () -> importacaoNFeService.importarNFeXml(arquivoTxt));
+        assertEquals("Apenas arquivos XML são aceitos", exception.getMessage());
+    }
+
+    @Test
+    void importarNFeXml_ComNomeArquivoNulo_DeveLancarExcecao() {
+        // Given
+        MockMultipartFile arquivoSemNome = new MockMultipartFile(
+            "file",
+            null,
+            "text/xml",
+            NFE_MINIMA.getBytes()
+        );
+
+        // When & Then
+        RuntimeException exception = assertThrows(RuntimeException.class,
+            () -> importacaoNFeService.importarNFeXml(arquivoSemNome));
+        assertEquals("Nome do arquivo é obrigatório", exception.getMessage());
+    }
+
+    @Test
+    void importarNFeXml_ComArquivoMuitoGrande_DeveLancarExcecao() throws IOException {
+        // Given - arquivo maior que o limite de 500MB
+        MultipartFile arquivoGrande = mock(MultipartFile.class);
+        when(arquivoGrande.getOriginalFilename()).thenReturn("arquivo_grande.zip");
+        when(arquivoGrande.getSize()).thenReturn(501L * 1024 * 1024);
+
+        // When & Then
+        RuntimeException exception = assertThrows(RuntimeException.class,
+            () -> importacaoNFeService.importarNFeXml(arquivoGrande));
+        assertTrue(exception.getMessage().contains("Arquivo muito grande"));
+        verify(arquivoGrande, never()).getInputStream();
+    }
+
+    @Test
+    void importarNFeXml_AcimaDoAntigoLimiteDe10MB_DeveSerAceito() {
+        // Given - nota de mais de 10MB, lida em streaming
+        byte[] conteudo = NFeXmlParserStreamingTest.gerarNotaComItens(40_000).getBytes();
+        assertTrue(conteudo.length > 10 * 1024 * 1024);
+        MockMultipartFile notaGrande = new MockMultipartFile("file", "nota_grande.xml", "text/xml", conteudo);
+
+        // When
+        Map<String, Object> resultado = importacaoNFeService.importarNFeXml(notaGrande);
+
+        // Then
+        assertEquals("SUCESSO", resultado.get("status"));
+    }
+
+    @Test
+    void importarNFeXml_ComXmlInvalidoSemNFe_DeveLancarExcecao() {
+        // Given
+        String xmlInvalido = "<?xml version=\"1.0\" encoding=\"UTF-8\"?><root><data>test</data></root>";
+        MockMultipartFile arquivoXmlInvalido = new MockMultipartFile(
+            "file",
+            "xml_invalido.xml",
+            "text/xml",
+            xmlInvalido.getBytes()
+        );
+
+        // When & Then
+        RuntimeException exception = assertThrows(RuntimeException.class,
+            () -> importacaoNFeService.importarNFeXml(arquivoXmlInvalido));
+        assertTrue(exception.getMessage().contains("XML não contém estrutura de NFe válida"));
+    }
+
+    @Test
+    void importarNFeXml_ComChaveAcessoInvalida_DeveLancarExcecao() {
+        // Given - NFe com chave de acesso inválida
+        NFeXmlData nfeDataInvalida = new NFeXmlData();
+        nfeDataInvalida.setChaveAcesso("123"); // Menos que 44 caracteres
+        nfeDataInvalida.setNumero("123");
+        nfeDataInvalida.setValorTotal(new BigDecimal("100.00"));
+
+        when(nfeXmlParser.parseNFeXml(any(InputStream.class))).thenReturn(nfeDataInvalida);
+
+        // When & Then
+        RuntimeException exception = assertThrows(RuntimeException.class,
+            () -> importacaoNFeService.importarNFeXml(xmlFile));
+        assertEquals("Chave de acesso inválida", exception.getMessage());
+    }
+
+    @Test
+    void importarNFeXml_ComValorTotalZero_DeveLancarExcecao() {
+        // Given - NFe com valor zero
+        NFeXmlData nfeDataInvalida = new NFeXmlData();
+        nfeDataInvalida.setChaveAcesso("12345678901234567890123456789012345678901234");
+        nfeDataInvalida.setNumero("123");
+        nfeDataInvalida.setValorTotal(BigDecimal.ZERO);
+
+        // Adicionar emitente obrigatório
+        NFeXmlData.EmitenteDados emitente = new NFeXmlData.EmitenteDados();
+        emitente.setCnpj("12345678000199");
+        nfeDataInvalida.setEmitente(emitente);
+
+        when(nfeXmlParser.parseNFeXml(any(InputStream.class))).thenReturn(nfeDataInvalida);
+
+        // When & Then
+        RuntimeException exception = assertThrows(RuntimeException.class,
+            () -> importacaoNFeService.importarNFeXml(xmlFile));
+        assertEquals("Valor total da NFe deve ser maior que zero", exception.getMessage());
+    }
+
+    @Test
+    void importarNFeXml_SemEmitente_DeveLancarExcecao() {
+        // Given - NFe sem emitente
+        NFeXmlData nfeDataInvalida = new NFeXmlData();
+        nfeDataInvalida.setChaveAcesso("12345678901234567890123456789012345678901234");
+        nfeDataInvalida.setNumero("123");
+        nfeDataInvalida.setValorTotal(new BigDecimal("100.00"));
+        // Emitente = null
+
+        when(nfeXmlParser.parseNFeXml(any(InputStream.class))).thenReturn(nfeDataInvalida);
+
+        // When & Then
+        RuntimeException exception = assertThrows(RuntimeException.class,
+            () -> importacaoNFeService.importarNFeXml(xmlFile));
+        assertEquals("Dados do emitente são obrigatórios", exception.getMessage());
+    }
+
+    @Test
+    void importarNFeXml_SemItens_DeveLancarExcecao() {
+        // Given - NFe sem itens
+        NFeXmlData nfeDataInvalida = new NFeXmlData();
+        nfeDataInvalida.setChaveAcesso("12345678901234567890123456789012345678901234");
+        nfeDataInvalida.setNumero("123");
+        nfeDataInvalida.setValorTotal(new BigDecimal("100.00"));
+
+        NFeXmlData.EmitenteDados emitente = new NFeXmlData.EmitenteDados();
+        emitente.setCnpj("12345678000199");
+        nfeDataInvalida.setEmitente(emitente);
+        // Lista de itens vazia
+
+        when(nfeXmlParser.parseNFeXml(any(InputStream.class))).thenReturn(nfeDataInvalida);
+
+        // When & Then
+        RuntimeException exception = assertThrows(RuntimeException.class,
+            () -> importacaoNFeService.importarNFeXml(xmlFile));
+        assertEquals("NFe deve conter pelo menos um item", exception.getMessage());
+    }
+
+    @Test
+    void importarNFeXml_ComErroProcessamento_DeveRetornarErro() {
+        // Given
+        ProcessamentoNFeService.ProcessamentoResult resultadoErro = new ProcessamentoNFeService.ProcessamentoResult();
+        resultadoErro.setSucesso(false);
+        resultadoErro.setMensagem("Erro no processamento");
+        resultadoErro.getErros().add("Erro específico no produto");
+
+        when(processamentoNFeService.processarNFe(any(NFeXmlData.class), any(), any(ImportacaoNFe.class), any()))
+            .thenReturn(resultadoErro);
+
+        // When
+        Map<String, Object> resultado = importacaoNFeService.importarNFeXml(xmlFile);
+
+        // Then
+        assertNotNull(resultado);
+        assertEquals("ERRO", resultado.get("status"));
+        assertEquals("Erro no processamento", resultado.get("mensagem"));
+        assertTrue(resultado.get("erros") != null);
+    }
+
+    @Test
+    void importarNFeXml_ComInconsistenciasDetectadas_DeveIncluirAlertas() {
+        // Given - resultado com sucesso mas com inconsistências
+        ProcessamentoNFeService.ProcessamentoResult resultadoComInconsistencias = new ProcessamentoNFeService.ProcessamentoResult();
+        resultadoComInconsistencias.setSucesso(true);
+        resultadoComInconsistencias.setMensagem("NFe processada com sucesso. 1 itens processados.");
+        NotaFiscal notaFiscal = new NotaFiscal();
+        notaFiscal.setId(2L);
+        resultadoComInconsistencias.setNotaFiscal(notaFiscal);
+        Fornecedor fornecedor = new Fornecedor();
+        fornecedor.setId(2L);
+        resultadoComInconsistencias.setFornecedor(fornecedor);
+        for (int i = 0; i < 3; i++) {
+            resultadoComInconsistencias.getInconsistencias().add(new Inconsistencia());
+        }
+
+        when(processamentoNFeService.processarNFe(any(NFeXmlData.class), any(), any(ImportacaoNFe.class), any()))
+            .thenReturn(resultadoComInconsistencias);
+
+        // Simular inconsistências detectadas
+        ImportacaoNFe importacaoComInconsistencia = new ImportacaoNFe();
+        importacaoComInconsistencia.setId(1L);
+        importacaoComInconsistencia.setStatus(StatusImportacao.CONCLUIDA);
+        importacaoComInconsistencia.setQuantidadeInconsistenciasDetectadas(3);
+
+        when(importacaoNFeRepository.save(any(ImportacaoNFe.class))).thenReturn(importacaoComInconsistencia);
+
+        // When
+        Map<String, Object> resultado = importacaoNFeService.importarNFeXml(xmlFile);
+
+        // Then
+        assertEquals("SUCESSO", resultado.get("status"));
+        assertTrue(resultado.get("mensagem").toString().contains("processada com sucesso"));
+        assertEquals(3, resultado.get("inconsistenciasDetectadas"));
+        assertNotNull(resultado.get("alertas"));
+    }
+
+    @Test
+    void importarNFeXml_VerificarEstruturaDaResposta() {
+        // When
+        Map<String, Object> resultado = importacaoNFeService.importarNFeXml(xmlFile);
+
+        // Then
+        assertNotNull(resultado);
+        assertTrue(resultado.containsKey("status"));
+        assertTrue(resultado.containsKey("arquivo"));
+        assertTrue(resultado.containsKey("tamanho"));
+        assertTrue(resultado.containsKey("mensagem"));
+    }
+
+    @Test
+    void importarNFeXml_DeveRetornarTamanhoCorreto() {
+        // Given
+        String conteudo = "<?xml version=\"1.0\"?><NFe><infNFe Id=\"NFe12345678901234567890123456789012345678901234\"><ide><nNF>123</nNF></ide></infNFe></NFe>";
+        MockMultipartFile arquivo = new MockMultipartFile(
+            "file",
+            "teste.xml",
+            "text/xml",
+            conteudo.getBytes()
+        );
+
+        // When
+        Map<String, Object> resultado = importacaoNFeService.importarNFeXml(arquivo);
+
+        // Then
+        assertEquals((long)conteudo.getBytes().length, resultado.get("tamanho"));
+    }
+
+    @Test
+    void importarNFeXml_ComNFeJaImportada_DeveRejeitarAntesDoParse() {
+        // Given
+        when(nfeDuplicidadeService.isDuplicada(CHAVE)).thenReturn(true);
+
+        // When & Then
+        RuntimeException exception = assertThrows(RuntimeException.class,
+            () -> importacaoNFeService.importarNFeXml(xmlFile));
+        assertEquals("NFe já importada: " + CHAVE, exception.getMessage());
+        verify(nfeXmlParser, never()).parseNFeXml(any(InputStream.class));
+        verifyNoInteractions(importacaoNFeRepository, processamentoNFeService);
+    }
+
+    @Test
+    void importarNFeXml_DeveLerOArquivoUmaUnicaVez() throws IOException {
+        // Given
+        MultipartFile arquivo = spy(xmlFile);
+
+        // When
+        Map<String, Object> resultado = importacaoNFeService.importarNFeXml(arquivo);
+
+        // Then
+        assertEquals("SUCESSO", resultado.get("status"));
+        verify(arquivo, times(1)).getInputStream();
+        verify(arquivo, never()).getBytes();
+    }
+
+    @Test
+    void importarNFeXml_ParserDeveReceberOArquivoCompleto() throws IOException {
+        // Given - nota maior que o trecho examinado no cabeçalho
+        byte[] conteudo = NFeXmlParserStreamingTest.gerarNotaComItens(500).getBytes();
+        assertTrue(conteudo.length > NFeXmlParser.TAMANHO_MAXIMO_CABECALHO);
+        MockMultipartFile notaGrande = new MockMultipartFile("file", "nota_grande.xml", "text/xml", conteudo);
+
+        NFeXmlParser parserReal = new NFeXmlParser();
+        when(nfeXmlParser.parseNFeXml(any(InputStream.class)))
+            .thenAnswer(invocation -> parserReal.parseNFeXml((InputStream) invocation.getArgument(0)));
+
+        // When
+        Map<String, Object> resultado = importacaoNFeService.importarNFeXml(notaGrande);
+
+        // Then
+        assertEquals("SUCESSO", resultado.get("status"));
+        verify(processamentoNFeService).processarNFe(
+            argThat(nfe -> nfe.getItens().size() == 500), any(), any(ImportacaoNFe.class), any());
+    }
+
+    @Test
+    void importarNFeXml_DeveValidarAntesDeGravar() {
+        // Given
+        ProcessamentoNFeService.ValidacaoNFe validacao = new ProcessamentoNFeService.ValidacaoNFe();
+        when(processamentoNFeService.validarNFe(any(NFeXmlData.class))).thenReturn(validacao);
+
+        // When
+        importacaoNFeService.importarNFeXml(xmlFile);
+
+        // Then - a gravação recebe os achados da validação feita fora dela
+        InOrder ordem = inOrder(processamentoNFeService);
+        ordem.verify(processamentoNFeService).validarNFe(any(NFeXmlData.class));
+        ordem.verify(processamentoNFeService).processarNFe(any(NFeXmlData.class), any(), any(ImportacaoNFe.class), same(validacao));
+    }
+
+    @Test
+    void importarNFeXml_DeveGravarOArquivoCompletoEmDisco() throws IOException {
+        // When
+        importacaoNFeService.importarNFeXml(xmlFile);
+
+        // Then - o registro aponta para o arquivo gravado enquanto era lido
+        verify(importacaoNFeRepository, atLeastOnce()).save(argThat(importacao ->
+            importacao.getCaminhoArquivo() != null && conteudoIgual(importacao.getCaminhoArquivo(), xmlFile)));
+    }
+
+    @Test
+    void importarNFeXml_Rejeitado_NaoDeveManterArquivoEmDisco() throws IOException {
+        // Given
+        when(nfeDuplicidadeService.isDuplicada(CHAVE)).thenReturn(true);
+        long arquivosAntes = contarArquivosArmazenados();
+
+        // When & Then
+        assertThrows(RuntimeException.class, () -> importacaoNFeService.importarNFeXml(xmlFile));
+        assertEquals(arquivosAntes, contarArquivosArmazenados());
+    }
+
+    @Test
+    void importarNFeXml_ComArquivoZip_DeveProcessarTodasAsNotas() throws IOException {
+        // Given
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ZipOutputStream zip = new ZipOutputStream(bytes)) {
+            for (int i = 1; i <= 3; i++) {
+                zip.putNextEntry(new ZipEntry("nfe-" + i + ".xml"));
+                zip.write(NFeArquivoIteratorTest.montarEnvelope(NFeArquivoIteratorTest.notaXml(String.valueOf(i))));
+                zip.closeEntry();
+            }
+        }
+        MockMultipartFile arquivoZip = new MockMultipartFile("file", "mensal.zip", "application/zip", bytes.toByteArray());
+
+        // When
+        Map<String, Object> resultado = importacaoNFeService.importarNFeXml(arquivoZip);
+
+        // Then
+        assertEquals("SUCESSO", resultado.get("status"));
+        assertEquals(3, resultado.get("notasProcessadas"));
+        assertEquals(0, resultado.get("notasComErro"));
+        assertEquals((long) bytes.size(), resultado.get("tamanho"));
+        verify(processamentoNFeService, times(3)).processarNFe(any(NFeXmlData.class), any(), any(ImportacaoNFe.class), any());
+    }
+
+    @Test
+    void importarArquivoNFe_ComCorpoGzip_DeveImportarERegistrarDuplicadas() throws IOException {
+        // Given - envelope compactado com gzip, como enviado com Content-Encoding: gzip
+        String chaveDuplicada = NFeArquivoIteratorTest.chave("2");
+        when(nfeDuplicidadeService.isDuplicada(chaveDuplicada)).thenReturn(true);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (GZIPOutputStream gzip = new GZIPOutputStream(bytes)) {
+            gzip.write(NFeArquivoIteratorTest.montarEnvelope(
+                NFeArquivoIteratorTest.notaXml("1"), NFeArquivoIteratorTest.notaXml("2")));
+        }
+
+        // When
+        Map<String, Object> resultado = importacaoNFeService.importarArquivoNFe(
+            new ByteArrayInputStream(bytes.toByteArray()), "lote.xml", null, null);
+
+        // Then
+        assertEquals("SUCESSO", resultado.get("status"));
+        assertEquals(1, resultado.get("notasProcessadas"));
+        assertEquals(1, resultado.get("notasComErro"));
+        assertTrue(((List<?>) resultado.get("erros")).get(0).toString().contains("NFe já importada"));
+    }
+
+    @Test
+    void registrarArquivoNFe_DeveGravarArquivoEDeixarImportacaoPendente() throws IOException {
+        // Given
+        when(importacaoNFeRepository.save(any(ImportacaoNFe.class))).thenAnswer(invocation -> invocation.getArgument(0));
+        byte[] envelope = NFeArquivoIteratorTest.montarEnvelope(
+            NFeArquivoIteratorTest.notaXml("1"), NFeArquivoIteratorTest.notaXml("2"));
+
+        // When
+        ImportacaoNFe importacao = importacaoNFeService.registrarArquivoNFe(
+            new ByteArrayInputStream(envelope), "lote.xml", null, null);
+
+        // Then - nada é processado na thread da requisição
+        assertEquals(StatusImportacao.PENDENTE, importacao.getStatus());
+        assertNotNull(importacao.getHashArquivo());
+        assertEquals((long) envelope.length, importacao.getTamanhoArquivo());
+        try (InputStream arquivo = armazenamentoImportacaoService.abrir(importacao)) {
+            assertArrayEquals(envelope, arquivo.readAllBytes());
+        }
+        verify(nfeXmlParser, never()).lerArquivo(any(InputStream.class), anyString(), any(ImportacaoNFe.class), any());
+        verify(processamentoNFeService, never()).processarNFe(any(NFeXmlData.class), any(), any(ImportacaoNFe.class), any());
+    }
+
+    @Test
+    void processarImportacao_DeveLerArquivoGravadoEConcluir() throws IOException {
+        // Given
+        when(importacaoNFeRepository.save(any(ImportacaoNFe.class))).thenAnswer(invocation -> invocation.getArgument(0));
+        byte[] envelope = NFeArquivoIteratorTest.montarEnvelope(
+            NFeArquivoIteratorTest.notaXml("1"), NFeArquivoIteratorTest.notaXml("2"));
+        ImportacaoNFe importacao = importacaoNFeService.registrarArquivoNFe(
+            new ByteArrayInputStream(envelope), "lote.xml", null, null);
+
+        // When
+        Map<String, Object> resultado = importacaoNFeService.processarImportacao(importacao);
+
+        // Then
+        assertEquals("SUCESSO", resultado.get("status"));
+        assertEquals(2, resultado.get("notasProcessadas"));
+        assertEquals((long) envelope.length, resultado.get("tamanho"));
+        assertEquals(StatusImportacao.CONCLUIDA, importacao.getStatus());
+        assertNotNull(importacao.getDataInicioProcessamento());
+        assertNotNull(importacao.getDataFimProcessamento());
+    }
+
+    @Test
+    void processarImportacao_Interrompida_NaoDeveGravarDeNovoAsNotasJaGravadas() throws IOException {
+        // Given - importação que estava em processamento quando a aplicação parou, com a nota 1 já gravada
+        when(importacaoNFeRepository.save(any(ImportacaoNFe.class))).thenAnswer(invocation -> invocation.getArgument(0));
+        ImportacaoNFe importacao = importacaoNFeService.registrarArquivoNFe(new ByteArrayInputStream(
+            NFeArquivoIteratorTest.montarEnvelope(NFeArquivoIteratorTest.notaXml("1"), NFeArquivoIteratorTest.notaXml("2"))),
+            "lote.xml", null, null);
+        importacao.setStatus(StatusImportacao.PROCESSANDO);
+        importacao.setQuantidadeNotasArquivo(1);
+        importacao.setQuantidadeNotasProcessadas(1);
+        String gravada = NFeArquivoIteratorTest.chave("1");
+        when(notaFiscalRepository.findChavesAcessoByImportacaoNFeId(importacao.getId())).thenReturn(List.of(gravada));
+        when(nfeDuplicidadeService.isDuplicada(gravada)).thenReturn(true);
+
+        // When
+        Map<String, Object> resultado = importacaoNFeService.processarImportacao(importacao);
+
+        // Then
+        assertEquals(2, resultado.get("notasProcessadas"));
+        assertEquals(0, resultado.get("notasComErro"));
+        assertEquals(2, importacao.getQuantidadeNotasArquivo());
+        assertEquals(StatusImportacao.CONCLUIDA, importacao.getStatus());
+        verify(processamentoNFeService, times(1)).processarNFe(any(NFeXmlData.class), any(), any(ImportacaoNFe.class), any());
+    }
+
+    @Test
+    void registrarArquivoNFe_ComArquivoVazio_DeveDescartarArquivo() throws IOException {
+        // Given
+        long arquivosAntes = contarArquivosArmazenados();
+
+        // When & Then
+        assertThrows(RuntimeException.class, () -> importacaoNFeService.registrarArquivoNFe(
+            new ByteArrayInputStream(new byte[0]), "vazio.xml", null, null));
+        assertEquals(arquivosAntes, contarArquivosArmazenados());
+    }
+
+    @Test
+    void registrarArquivoNFe_AcimaDoTamanhoMaximo_DeveRecusarSemGuardar() throws IOException {
+        // Given - corpo sem tamanho declarado, como um upload bruto ou um arquivo do diretório de entrada
+        ReflectionTestUtils.setField(importacaoNFeService, "tamanhoMaximoArquivo", DataSize.ofBytes(1024));
+        long arquivosAntes = contarArquivosArmazenados();
+
+        // When & Then
+        RuntimeException erro = assertThrows(RuntimeException.class, () -> importacaoNFeService.registrarArquivoNFe(
+            new ByteArrayInputStream(new byte[4096]), "grande.xml", null, null));
+        assertTrue(erro.getMessage().contains("Arquivo muito grande"));
+        assertEquals(arquivosAntes, contarArquivosArmazenados());
+        verify(importacaoNFeRepository, never()).save(any(ImportacaoNFe.class));
+    }
+
+    @Test
+    void importarArquivoNFe_AcimaDoTamanhoMaximo_DeveTerminarComErro() throws IOException {
+        // Given
+        ReflectionTestUtils.setField(importacaoNFeService, "tamanhoMaximoArquivo", DataSize.ofBytes(1024));
+        when(importacaoNFeRepository.save(any(ImportacaoNFe.class))).thenAnswer(invocation -> invocation.getArgument(0));
+        byte[] envelope = NFeArquivoIteratorTest.montarEnvelope(
+            NFeArquivoIteratorTest.notaXml("1"), NFeArquivoIteratorTest.notaXml("2"), NFeArquivoIteratorTest.notaXml("3"));
+        long arquivosAntes = contarArquivosArmazenados();
+
+        // When
+        Map<String, Object> resultado = importacaoNFeService.importarArquivoNFe(
+            new ByteArrayInputStream(envelope), "grande.xml", null, null);
+
+        // Then
+        assertEquals("ERRO", resultado.get("status"));
+        assertTrue(resultado.get("mensagem").toString().contains("Arquivo muito grande"));
+        assertEquals(arquivosAntes, contarArquivosArmazenados());
+        verify(importacaoNFeRepository, atLeastOnce()).save(argThat(importacao ->
+            importacao.getStatus() == StatusImportacao.ERRO && importacao.getHashArquivo() == null));
+    }
+
+    @Test
+    void importarArquivoNFe_ErroFatalNoProcessamento_DeveTerminarComErro() throws IOException {
+        // Given
+        when(importacaoNFeRepository.save(any(ImportacaoNFe.class))).thenAnswer(invocation -> invocation.getArgument(0));
+        when(processamentoNFeService.processarNFe(any(), any(), any(), any()))
+            .thenThrow(new OutOfMemoryError("Java heap space"));
+        byte[] envelope = NFeArquivoIteratorTest.montarEnvelope(
+            NFeArquivoIteratorTest.notaXml("71"), NFeArquivoIteratorTest.notaXml("72"));
+        long arquivosAntes = contarArquivosArmazenados();
+
+        // When
+        RuntimeException erro = assertThrows(RuntimeException.class, () -> importacaoNFeService.importarArquivoNFe(
+            new ByteArrayInputStream(envelope), "lote.xml", null, null));
+
+        // Then
+        assertTrue(erro.getMessage().contains("Java heap space"));
+        verify(importacaoNFeRepository, atLeastOnce()).save(argThat(importacao ->
+            importacao.getStatus() == StatusImportacao.ERRO && importacao.getDataFimProcessamento() != null
+                && importacao.getErrosProcessamento().contains("Java heap space")
+                && importacao.getHashArquivo() != null && Files.exists(Paths.get(importacao.getCaminhoArquivo()))));
+        // Só o arquivo guardado, sem temporário esquecido
+        assertEquals(arquivosAntes + 1, contarArquivosArmazenados());
+    }
+
+    private static boolean conteudoIgual(String caminho, MockMultipartFile arquivo) {
+        try {
+            try (InputStream conteudo = new GZIPInputStream(Files.newInputStream(Paths.get(caminho)))) {
+                return java.util.Arrays.equals(conteudo.readAllBytes(), arquivo.getBytes());
+            }
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private static long contarArquivosArmazenados() throws IOException {
+        try (Stream<Path> arquivos = Files.walk(diretorioArmazenamento)) {
+            return arquivos.filter(Files::isRegularFile).count();
+        }
+    }
+}
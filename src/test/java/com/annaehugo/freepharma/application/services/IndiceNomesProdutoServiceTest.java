@@ -0,0 +1,150 @@
+package com.annaehugo.freepharma.application.services;
+
+import com.annaehugo.freepharma.domain.entity.estoque.ProdutoReferencia;
+import com.annaehugo.freepharma.domain.repository.estoque.ProdutoReferenciaRepository;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.domain.Pageable;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+@DisplayName("IndiceNomesProdutoService - Reconhecimento de produtos pelo nome normalizado")
+class IndiceNomesProdutoServiceTest {
+
+    private ProdutoReferenciaRepository produtoReferenciaRepository;
+    private IndiceNomesProdutoService service;
+
+    @BeforeEach
+    void setUp() {
+        produtoReferenciaRepository = mock(ProdutoReferenciaRepository.class);
+        service = new IndiceNomesProdutoService(produtoReferenciaRepository, 0.75);
+    }
+
+    @AfterEach
+    void tearDown() {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.clearSynchronization();
+        }
+    }
+
+    @Test
+    @DisplayName("Grafias diferentes do mesmo produto devem ter o mesmo nome normalizado")
+    void testNormalizar() {
+        String esperado = "DIPIRONA 500MG X20";
+        assertEquals(esperado, NormalizadorNomeProduto.normalizar("DIPIRONA 500MG CX20"));
+        assertEquals(esperado, NormalizadorNomeProduto.normalizar("Dipirona 500 mg c/20"));
+        assertEquals(esperado, NormalizadorNomeProduto.normalizar("dipirona  500mg - cx 20"));
+        assertEquals("PARACETAMOL 750MG X10 CPR", NormalizadorNomeProduto.normalizar("Paracetamol 750mg 10 comprimidos"));
+        assertEquals("VITAMINA D 2.5MCG SOL", NormalizadorNomeProduto.normalizar("Vitamina D 2,50µg solução"));
+        assertEquals("VITAMINA C 1G X10", NormalizadorNomeProduto.normalizar("Vitamina C 1g c/10"));
+        assertEquals("", NormalizadorNomeProduto.normalizar("  "));
+    }
+
+    @Test
+    @DisplayName("Deve encontrar pelo nome normalizado exato e, sem ele, pela similaridade")
+    void testBuscar() {
+        carregar(produto(1L, "DIPIRONA SODICA 500MG CX20"), produto(2L, "AMOXICILINA 500MG CX21 CAPS"),
+            produto(3L, "DIPIRONA SODICA 1G CX10"));
+
+        assertEquals(Optional.of(1L), service.buscar("Dipirona Sódica 500 mg c/20"));
+        assertEquals(Optional.of(1L), service.buscar("DIPIRONA SODIC 500MG CX20"));
+        assertEquals(Optional.of(2L), service.buscar("Amoxicilina 500mg 21 cápsulas"));
+        assertEquals(2, service.getBuscasExatas());
+        assertEquals(1, service.getBuscasAproximadas());
+    }
+
+    @Test
+    @DisplayName("Nomes parecidos com outra dosagem ou pouco semelhantes não devem corresponder")
+    void testSemCorrespondencia() {
+        carregar(produto(1L, "DIPIRONA SODICA 500MG CX20"));
+
+        assertFalse(service.buscar("DIPIRONA SODICA 1G CX20").isPresent());
+        assertFalse(service.buscar("DIPIRONA SODICA 500MG CX10").isPresent());
+        assertFalse(service.buscar("IBUPROFENO 500MG CX20").isPresent());
+        assertEquals(3, service.getBuscasSemResultado());
+    }
+
+    @Test
+    @DisplayName("Deve carregar em páginas e preferir o produto mais antigo entre nomes iguais")
+    void testCarregarEmPaginas() {
+        List<Object[]> primeiraPagina = new ArrayList<>();
+        for (long id = 1; id <= IndiceNomesProdutoService.TAMANHO_PAGINA_CARGA; id++) {
+            primeiraPagina.add(new Object[] {id, "PRODUTO " + id});
+        }
+        List<Object[]> segundaPagina = new ArrayList<>();
+        segundaPagina.add(new Object[] {(long) IndiceNomesProdutoService.TAMANHO_PAGINA_CARGA + 1, "Produto 7"});
+        when(produtoReferenciaRepository.findNomesAposId(eq(0L), anyString(), any(Pageable.class))).thenReturn(primeiraPagina);
+        when(produtoReferenciaRepository.findNomesAposId(eq((long) IndiceNomesProdutoService.TAMANHO_PAGINA_CARGA),
+            anyString(), any(Pageable.class))).thenReturn(segundaPagina);
+
+        service.carregar();
+
+        assertTrue(service.isCarregado());
+        assertEquals(IndiceNomesProdutoService.TAMANHO_PAGINA_CARGA + 1, service.getQuantidadeProdutos());
+        assertEquals(Optional.of(7L), service.buscar("produto 7"));
+    }
+
+    @Test
+    @DisplayName("Alterações dentro de uma transação só devem valer após o commit")
+    void testRegistrarAposCommit() {
+        carregar(produto(1L, "DIPIRONA SODICA 500MG CX20"));
+
+        TransactionSynchronizationManager.initSynchronization();
+        service.registrar(produto(1L, "NIMESULIDA 100MG CX12"));
+        service.registrar(produto(2L, "LORATADINA 10MG CX12"));
+        assertEquals(Optional.of(1L), service.buscar("DIPIRONA SODICA 500MG CX20"));
+        assertFalse(service.buscar("LORATADINA 10MG CX12").isPresent());
+
+        List<TransactionSynchronization> sincronizacoes = TransactionSynchronizationManager.getSynchronizations();
+        TransactionSynchronizationManager.clearSynchronization();
+        sincronizacoes.forEach(TransactionSynchronization::afterCommit);
+
+        assertFalse(service.buscar("DIPIRONA SODICA 500MG CX20").isPresent());
+        assertEquals(Optional.of(1L), service.buscar("Nimesulida 100 mg c/12"));
+        assertEquals(Optional.of(2L), service.buscar("Loratadina 10mg cx 12"));
+
+        service.remover(2L);
+        assertFalse(service.buscar("LORATADINA 10MG CX12").isPresent());
+    }
+
+    @Test
+    @DisplayName("Deve buscar vários nomes de uma vez deixando de fora os que não correspondem")
+    void testBuscarTodos() {
+        carregar(produto(1L, "DIPIRONA SODICA 500MG CX20"), produto(2L, "LORATADINA 10MG CX12"));
+
+        Map<String, Long> encontrados = service.buscarTodos(Arrays.asList(
+            "Dipirona Sódica 500mg c/20", "Loratadina 10 mg cx12", "Omeprazol 20mg cx28"));
+
+        assertEquals(2, encontrados.size());
+        assertEquals(1L, encontrados.get("Dipirona Sódica 500mg c/20"));
+        assertEquals(2L, encontrados.get("Loratadina 10 mg cx12"));
+    }
+
+    private void carregar(ProdutoReferencia... produtos) {
+        List<Object[]> pagina = new ArrayList<>();
+        for (ProdutoReferencia produto : produtos) {
+            pagina.add(new Object[] {produto.getId(), produto.getNome()});
+        }
+        when(produtoReferenciaRepository.findNomesAposId(eq(0L), anyString(), any(Pageable.class))).thenReturn(pagina);
+        service.carregar();
+    }
+
+    private static ProdutoReferencia produto(Long id, String nome) {
+        ProdutoReferencia produto = new ProdutoReferencia();
+        produto.setId(id);
+        produto.setNome(nome);
+        return produto;
+    }
+}
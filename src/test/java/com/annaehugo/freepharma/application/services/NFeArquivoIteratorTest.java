@@ -0,0 +1,293 @@
+package com.annaehugo.freepharma.application.services;
+
+import com.annaehugo.freepharma.application.dto.fiscal.NFeXmlData;
+import com.annaehugo.freepharma.domain.entity.fiscal.ImportacaoNFe;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@DisplayName("NFeArquivoIterator - Leitura de envelopes, ZIP e gzip")
+class NFeArquivoIteratorTest {
+
+    private NFeXmlParser parser;
+    private ExecutorService executor;
+    private ImportacaoNFe importacao;
+
+    @BeforeEach
+    void setUp() {
+        parser = new NFeXmlParser();
+        executor = Executors.newFixedThreadPool(4);
+        importacao = new ImportacaoNFe();
+    }
+
+    @AfterEach
+    void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    @DisplayName("Deve entregar todas as NFe de um envelope XML na ordem do arquivo")
+    void testEnvelopeComVariasNotas() {
+        byte[] envelope = montarEnvelope(notaXml("1"), notaXml("2"), notaXml("3"));
+
+        List<NFeXmlData> notas = lerTodas(envelope, "lote.xml");
+
+        assertEquals(3, notas.size());
+        assertEquals("1", notas.get(0).getNumero());
+        assertEquals("3", notas.get(2).getNumero());
+        assertEquals(3, importacao.getQuantidadeNotasArquivo());
+        assertEquals(0, importacao.getQuantidadeNotasComErro());
+    }
+
+    @Test
+    @DisplayName("Deve contar notas inválidas do envelope como erro e continuar a leitura")
+    void testEnvelopeComNotaInvalida() {
+        byte[] envelope = montarEnvelope(notaXml("1"), "<NFe><semInfNFe/></NFe>", notaXml("3"));
+
+        try (NFeArquivoIterator iterator = abrir(envelope, "lote.xml")) {
+            List<NFeXmlData> notas = new ArrayList<>();
+            iterator.forEachRemaining(notas::add);
+
+            assertEquals(2, notas.size());
+            assertEquals(1, iterator.getErros().size());
+            assertTrue(iterator.getErros().get(0).contains("lote.xml (nota 2)"));
+            assertTrue(iterator.getErros().get(0).contains("Elemento infNFe não encontrado"));
+        }
+        assertEquals(3, importacao.getQuantidadeNotasArquivo());
+        assertEquals(1, importacao.getQuantidadeNotasComErro());
+        assertNotNull(importacao.getErrosProcessamento());
+    }
+
+    @Test
+    @DisplayName("Deve ler um XML avulso com o mesmo resultado do parse individual")
+    void testXmlAvulso() throws IOException {
+        byte[] xml = NFeXmlParserStreamingTest.carregarFixture("nfe-basica.xml");
+
+        List<NFeXmlData> notas = lerTodas(xml, "nfe.xml");
+
+        assertEquals(1, notas.size());
+        assertEquals(parser.parseNFeXml(xml), notas.get(0));
+    }
+
+    @Test
+    @DisplayName("Deve decodificar entradas de ZIP em paralelo mantendo a ordem")
+    void testZipComMuitasEntradas() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ZipOutputStream zip = new ZipOutputStream(bytes)) {
+            zip.putNextEntry(new ZipEntry("notas/"));
+            zip.closeEntry();
+            for (int i = 0; i < 200; i++) {
+                zip.putNextEntry(new ZipEntry("notas/nfe-" + i + ".xml"));
+                zip.write(montarEnvelope(notaXml(String.valueOf(i))));
+                zip.closeEntry();
+            }
+            zip.putNextEntry(new ZipEntry("__MACOSX/notas/._nfe-0.xml"));
+            zip.write(new byte[]{0, 5, 22, 7});
+            zip.closeEntry();
+            zip.putNextEntry(new ZipEntry("leia-me.txt"));
+            zip.write("ignorar".getBytes(StandardCharsets.UTF_8));
+            zip.closeEntry();
+        }
+
+        List<NFeXmlData> notas = lerTodas(bytes.toByteArray(), "mensal.zip");
+
+        assertEquals(200, notas.size());
+        for (int i = 0; i < 200; i++) {
+            assertEquals(String.valueOf(i), notas.get(i).getNumero());
+        }
+        assertEquals(200, importacao.getQuantidadeNotasArquivo());
+        assertEquals(0, importacao.getQuantidadeNotasComErro());
+    }
+
+    @Test
+    @DisplayName("Deve registrar entradas de ZIP corrompidas sem interromper as demais")
+    void testZipComEntradaCorrompida() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ZipOutputStream zip = new ZipOutputStream(bytes)) {
+            zip.putNextEntry(new ZipEntry("a.xml"));
+            zip.write(montarEnvelope(notaXml("1"), notaXml("2")));
+            zip.closeEntry();
+            zip.putNextEntry(new ZipEntry("b.xml"));
+            zip.write("<nfeProc><NFe><infNFe>".getBytes(StandardCharsets.UTF_8));
+            zip.closeEntry();
+            zip.putNextEntry(new ZipEntry("c.xml"));
+            zip.write(montarEnvelope(notaXml("3")));
+            zip.closeEntry();
+        }
+
+        try (NFeArquivoIterator iterator = abrir(bytes.toByteArray(), "lote.zip")) {
+            List<NFeXmlData> notas = new ArrayList<>();
+            iterator.forEachRemaining(notas::add);
+
+            assertEquals(3, notas.size());
+            assertEquals("3", notas.get(2).getNumero());
+            assertEquals(1, iterator.getErros().size());
+            assertTrue(iterator.getErros().get(0).startsWith("lote.zip!b.xml"));
+            assertEquals(1, iterator.contarFalhasLeitura(0, 1));
+        }
+        assertEquals(4, importacao.getQuantidadeNotasArquivo());
+        assertEquals(1, importacao.getQuantidadeNotasComErro());
+    }
+
+    @Test
+    @DisplayName("Deve ler envelopes e ZIPs compactados com gzip")
+    void testGzip() throws IOException {
+        byte[] envelope = montarEnvelope(notaXml("10"), notaXml("11"));
+
+        List<NFeXmlData> notas = lerTodas(gzip(envelope), "lote.xml.gz");
+
+        assertEquals(2, notas.size());
+        assertEquals("11", notas.get(1).getNumero());
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ZipOutputStream zip = new ZipOutputStream(bytes)) {
+            zip.putNextEntry(new ZipEntry("x.xml"));
+            zip.write(envelope);
+            zip.closeEntry();
+        }
+        importacao = new ImportacaoNFe();
+
+        assertEquals(2, lerTodas(gzip(bytes.toByteArray()), "lote.zip.gz").size());
+        assertEquals(2, importacao.getQuantidadeNotasArquivo());
+    }
+
+    @Test
+    @DisplayName("Deve atualizar os contadores de processamento informados pelo consumidor")
+    void testContadoresDeProcessamento() {
+        byte[] envelope = montarEnvelope(notaXml("1"), notaXml("2"), notaXml("3"));
+
+        try (NFeArquivoIterator iterator = abrir(envelope, "lote.xml")) {
+            while (iterator.hasNext()) {
+                NFeXmlData nota = iterator.next();
+                if ("2".equals(nota.getNumero())) {
+                    iterator.registrarNotaComErro(nota.getChaveAcesso(), "Fornecedor bloqueado");
+                } else {
+                    iterator.registrarNotaProcessada();
+                }
+                // Os contadores avançam junto com o stream
+                assertEquals(Integer.parseInt(nota.getNumero()), importacao.getQuantidadeNotasArquivo());
+            }
+        }
+
+        assertEquals(3, importacao.getQuantidadeNotasArquivo());
+        assertEquals(2, importacao.getQuantidadeNotasProcessadas());
+        assertEquals(1, importacao.getQuantidadeNotasComErro());
+    }
+
+    @Test
+    @DisplayName("Deve descartar notas já importadas sem decodificá-las")
+    void testDescartaNotasJaImportadas() throws IOException {
+        Set<String> importadas = Set.of(chave("2"), chave("4"));
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ZipOutputStream zip = new ZipOutputStream(bytes)) {
+            zip.putNextEntry(new ZipEntry("a.xml"));
+            zip.write(montarEnvelope(notaXml("1"), notaXml("2")));
+            zip.closeEntry();
+            zip.putNextEntry(new ZipEntry("b.xml"));
+            zip.write(montarEnvelope(notaXml("3"), notaXml("4"), notaXml("5")));
+            zip.closeEntry();
+        }
+
+        try (NFeArquivoIterator iterator = abrir(bytes.toByteArray(), "lote.zip", importadas::contains)) {
+            List<NFeXmlData> notas = new ArrayList<>();
+            iterator.forEachRemaining(notas::add);
+
+            assertEquals(List.of("1", "3", "5"), notas.stream().map(NFeXmlData::getNumero).collect(Collectors.toList()));
+            assertEquals(2, iterator.getErros().size());
+            assertTrue(iterator.getErros().get(1).startsWith("lote.zip!b.xml: NFe já importada"));
+        }
+        assertEquals(5, importacao.getQuantidadeNotasArquivo());
+        assertEquals(2, importacao.getQuantidadeNotasComErro());
+
+        importacao = new ImportacaoNFe();
+        byte[] envelope = montarEnvelope(notaXml("1"), notaXml("2"), notaXml("3"));
+        assertEquals(2, lerTodas(envelope, "lote.xml", importadas::contains).size());
+        assertEquals(3, importacao.getQuantidadeNotasArquivo());
+        assertEquals(1, importacao.getQuantidadeNotasComErro());
+    }
+
+    @Test
+    @DisplayName("Deve registrar erro do arquivo, sem contar nota, quando o arquivo não contém NFe")
+    void testArquivoSemNFe() {
+        byte[] xml = "<root><outro/></root>".getBytes(StandardCharsets.UTF_8);
+
+        try (NFeArquivoIterator iterator = abrir(xml, "vazio.xml")) {
+            assertFalse(iterator.hasNext());
+            assertEquals(1, iterator.getErros().size());
+            assertTrue(iterator.getErros().get(0).contains("Elemento NFe não encontrado"));
+            assertEquals(0, iterator.contarFalhasLeitura(0, 1));
+        }
+        assertEquals(0, importacao.getQuantidadeNotasArquivo());
+        assertEquals(0, importacao.getQuantidadeNotasComErro());
+        assertNotNull(importacao.getErrosProcessamento());
+    }
+
+    private List<NFeXmlData> lerTodas(byte[] conteudo, String nomeArquivo) {
+        return lerTodas(conteudo, nomeArquivo, null);
+    }
+
+    private List<NFeXmlData> lerTodas(byte[] conteudo, String nomeArquivo, Predicate<String> chaveJaImportada) {
+        List<NFeXmlData> notas = new ArrayList<>();
+        try (NFeArquivoIterator iterator = abrir(conteudo, nomeArquivo, chaveJaImportada)) {
+            iterator.forEachRemaining(notas::add);
+        }
+        return notas;
+    }
+
+    private NFeArquivoIterator abrir(byte[] conteudo, String nomeArquivo) {
+        return abrir(conteudo, nomeArquivo, null);
+    }
+
+    private NFeArquivoIterator abrir(byte[] conteudo, String nomeArquivo, Predicate<String> chaveJaImportada) {
+        return new NFeArquivoIterator(parser, new ByteArrayInputStream(conteudo), nomeArquivo, importacao,
+            chaveJaImportada, executor, 4);
+    }
+
+    private static byte[] gzip(byte[] conteudo) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (GZIPOutputStream gzip = new GZIPOutputStream(bytes)) {
+            gzip.write(conteudo);
+        }
+        return bytes.toByteArray();
+    }
+
+    static byte[] montarEnvelope(String... notas) {
+        StringBuilder xml = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\"?><lote xmlns=\"http://www.portalfiscal.inf.br/nfe\">");
+        for (String nota : notas) {
+            xml.append("<nfeProc versao=\"4.00\">").append(nota).append("<protNFe><infProt/></protNFe></nfeProc>");
+        }
+        return xml.append("</lote>").toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    static String chave(String numero) {
+        return "3524011122233300014455001" + String.format("%09d", Integer.parseInt(numero)) + "1234567890";
+    }
+
+    static String notaXml(String numero) {
+        return "<NFe><infNFe Id=\"NFe" + chave(numero) + "\">"
+            + "<ide><nNF>" + numero + "</nNF><serie>1</serie></ide>"
+            + "<emit><CNPJ>11222333000144</CNPJ><xNome>Fornecedor</xNome></emit>"
+            + "<dest><CNPJ>12345678000199</CNPJ><xNome>Farmacia</xNome></dest>"
+            + "<det nItem=\"1\"><prod><cProd>P" + numero + "</cProd><xProd>Produto</xProd><CFOP>1102</CFOP>"
+            + "<qCom>1</qCom><vUnCom>10.00</vUnCom><vProd>10.00</vProd></prod></det>"
+            + "<total><ICMSTot><vNF>10.00</vNF></ICMSTot></total></infNFe></NFe>";
+    }
+}
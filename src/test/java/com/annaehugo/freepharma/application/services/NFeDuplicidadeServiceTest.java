@@ -0,0 +1,218 @@
+package com.annaehugo.freepharma.application.services;
+
+import com.annaehugo.freepharma.application.dto.fiscal.NFeCabecalho;
+import com.annaehugo.freepharma.domain.repository.fiscal.NotaFiscalRepository;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+@DisplayName("NFeDuplicidadeService - Pré-exame do cabeçalho e índice de chaves")
+class NFeDuplicidadeServiceTest {
+
+    private static final String CHAVE = "35240111222333000144550010000012341234567890";
+
+    @Mock
+    private NotaFiscalRepository notaFiscalRepository;
+
+    private NFeXmlParser parser;
+    private NFeDuplicidadeService service;
+
+    @BeforeEach
+    void setUp() {
+        parser = new NFeXmlParser();
+        service = new NFeDuplicidadeService(notaFiscalRepository, parser, 100, 1000);
+    }
+
+    @Test
+    @DisplayName("Deve ler a chave de acesso e o CNPJ do emitente do cabeçalho")
+    void testLerCabecalho() throws IOException {
+        NFeCabecalho cabecalho = parser.lerCabecalho(NFeXmlParserStreamingTest.carregarFixture("nfe-basica.xml"));
+
+        assertEquals(CHAVE, cabecalho.getChaveAcesso());
+        assertEquals("11222333000144", cabecalho.getCnpjEmitente());
+    }
+
+    @Test
+    @DisplayName("Deve examinar apenas o início do arquivo, mesmo em notas grandes ou truncadas")
+    void testLerCabecalhoSomenteInicio() {
+        byte[] notaGrande = NFeXmlParserStreamingTest.gerarNotaComItens(5000).getBytes(StandardCharsets.UTF_8);
+        NFeCabecalho cabecalho = parser.lerCabecalho(notaGrande);
+        assertEquals(CHAVE, cabecalho.getChaveAcesso());
+        assertEquals("11222333000144", cabecalho.getCnpjEmitente());
+
+        byte[] truncada = "<nfeProc><NFe><infNFe Id=\"NFe123\"><ide><nNF>1</nNF>".getBytes(StandardCharsets.UTF_8);
+        NFeCabecalho parcial = parser.lerCabecalho(truncada);
+        assertEquals("123", parcial.getChaveAcesso());
+        assertNull(parcial.getCnpjEmitente());
+
+        // CNPJ do destinatário não é confundido com o do emitente
+        byte[] semEmitente = ("<NFe><infNFe Id=\"NFe123\"><dest><CNPJ>999</CNPJ></dest>"
+            + "<emit><CNPJ>111</CNPJ></emit></infNFe></NFe>").getBytes(StandardCharsets.UTF_8);
+        assertEquals("111", parser.lerCabecalho(semEmitente).getCnpjEmitente());
+    }
+
+    @Test
+    @DisplayName("Deve consultar o banco uma única vez por chave já importada")
+    void testBuscarDuplicadaUsaIndice() throws IOException {
+        byte[] xml = NFeXmlParserStreamingTest.carregarFixture("nfe-basica.xml");
+        when(notaFiscalRepository.existsByChaveAcesso(CHAVE)).thenReturn(true);
+
+        Optional<NFeCabecalho> primeira = service.buscarDuplicada(xml);
+        Optional<NFeCabecalho> segunda = service.buscarDuplicada(xml);
+
+        assertTrue(primeira.isPresent());
+        assertEquals("11222333000144", primeira.get().getCnpjEmitente());
+        assertTrue(segunda.isPresent());
+        verify(notaFiscalRepository, times(1)).existsByChaveAcesso(CHAVE);
+    }
+
+    @Test
+    @DisplayName("Não deve marcar como duplicada uma nota nova ou sem chave")
+    void testNotaNova() throws IOException {
+        when(notaFiscalRepository.existsByChaveAcesso(CHAVE)).thenReturn(false);
+
+        assertFalse(service.buscarDuplicada(NFeXmlParserStreamingTest.carregarFixture("nfe-basica.xml")).isPresent());
+        assertFalse(service.isDuplicada(null));
+        assertFalse(service.isDuplicada(""));
+        verify(notaFiscalRepository, times(1)).existsByChaveAcesso(anyString());
+    }
+
+    @Test
+    @DisplayName("Deve reconhecer notas registradas sem consultar o banco")
+    void testRegistrarImportada() {
+        service.registrarImportada(CHAVE);
+
+        assertTrue(service.isDuplicada(CHAVE));
+        verifyNoInteractions(notaFiscalRepository);
+    }
+
+    @Test
+    @DisplayName("Deve limitar o tamanho do índice em memória")
+    void testIndiceLimitado() {
+        NFeDuplicidadeService indicePequeno = new NFeDuplicidadeService(notaFiscalRepository, parser, 2, 1000);
+        when(notaFiscalRepository.existsByChaveAcesso("A")).thenReturn(false);
+        indicePequeno.registrarImportada("A");
+        indicePequeno.registrarImportada("B");
+        indicePequeno.registrarImportada("C");
+
+        assertTrue(indicePequeno.isDuplicada("C"));
+        assertFalse(indicePequeno.isDuplicada("A"));
+        verify(notaFiscalRepository).existsByChaveAcesso("A");
+    }
+
+    @Test
+    @DisplayName("Após a carga do filtro, chaves novas devem ser liberadas sem consultar o banco")
+    void testFiltroLiberaChavesNovas() {
+        List<Object[]> chaves = new ArrayList<>();
+        for (long id = 1; id <= 500; id++) {
+            chaves.add(new Object[]{id, chave(id)});
+        }
+        when(notaFiscalRepository.countByChaveAcessoIsNotNull()).thenReturn(500L);
+        when(notaFiscalRepository.findChavesAcessoAposId(anyLong(), any())).thenReturn(chaves);
+        when(notaFiscalRepository.existsByChaveAcesso(chave(42))).thenReturn(true);
+
+        service.aquecer();
+
+        assertTrue(service.isFiltroCarregado());
+        int liberadasSemConsulta = 0;
+        for (long id = 1001; id <= 2000; id++) {
+            if (!service.isDuplicada(chave(id))) {
+                liberadasSemConsulta++;
+            }
+        }
+        // Com 1% de falsos positivos, quase todas as chaves novas não chegam ao banco
+        verify(notaFiscalRepository, atMost(50)).existsByChaveAcesso(anyString());
+        assertEquals(1000, liberadasSemConsulta);
+
+        clearInvocations(notaFiscalRepository);
+        assertTrue(service.isDuplicada(chave(42)));
+        assertTrue(service.isDuplicada(chave(42)));
+        verify(notaFiscalRepository, times(1)).existsByChaveAcesso(chave(42));
+    }
+
+    @Test
+    @DisplayName("Deve ler as chaves em páginas a partir do último ID lido")
+    void testCargaPaginada() {
+        List<Object[]> primeiraPagina = new ArrayList<>();
+        for (long id = 1; id <= NFeDuplicidadeService.TAMANHO_PAGINA_CARGA; id++) {
+            primeiraPagina.add(new Object[]{id, chave(id)});
+        }
+        long ultimoId = NFeDuplicidadeService.TAMANHO_PAGINA_CARGA;
+        when(notaFiscalRepository.findChavesAcessoAposId(eq(0L), any())).thenReturn(primeiraPagina);
+        when(notaFiscalRepository.findChavesAcessoAposId(eq(ultimoId), any()))
+            .thenReturn(Collections.singletonList(new Object[]{ultimoId + 1, CHAVE}));
+        when(notaFiscalRepository.existsByChaveAcesso(CHAVE)).thenReturn(true);
+
+        service.aquecer();
+
+        assertTrue(service.isDuplicada(CHAVE));
+        verify(notaFiscalRepository, times(2)).findChavesAcessoAposId(anyLong(), any());
+    }
+
+    @Test
+    @DisplayName("Nota gravada após a carga deve entrar no filtro")
+    void testRegistrarAposCarga() {
+        when(notaFiscalRepository.findChavesAcessoAposId(anyLong(), any())).thenReturn(Collections.emptyList());
+        service.aquecer();
+
+        assertFalse(service.isDuplicada(CHAVE));
+        service.registrarImportada(CHAVE);
+
+        assertTrue(service.isDuplicada(CHAVE));
+        verify(notaFiscalRepository, never()).existsByChaveAcesso(anyString());
+    }
+
+    @Test
+    @DisplayName("Falha na carga deve manter as verificações no banco")
+    void testFalhaNaCarga() {
+        when(notaFiscalRepository.countByChaveAcessoIsNotNull()).thenThrow(new RuntimeException("Conexão recusada"));
+        when(notaFiscalRepository.existsByChaveAcesso(CHAVE)).thenReturn(true);
+
+        service.aquecer();
+
+        assertFalse(service.isFiltroCarregado());
+        assertTrue(service.isDuplicada(CHAVE));
+    }
+
+    @Test
+    @DisplayName("Filtro não deve ter falsos negativos e deve respeitar a taxa de falsos positivos")
+    void testFiltroBloom() {
+        NFeDuplicidadeService.FiltroBloom filtro = new NFeDuplicidadeService.FiltroBloom(10_000, 0.01);
+        for (long id = 0; id < 10_000; id++) {
+            filtro.adicionar(chave(id));
+        }
+
+        for (long id = 0; id < 10_000; id++) {
+            assertTrue(filtro.contem(chave(id)));
+        }
+        int falsosPositivos = 0;
+        for (long id = 10_000; id < 110_000; id++) {
+            if (filtro.contem(chave(id))) {
+                falsosPositivos++;
+            }
+        }
+        assertTrue(falsosPositivos < 2_000, "Falsos positivos: " + falsosPositivos);
+        assertEquals(7, filtro.getQuantidadeHashes());
+    }
+
+    private static String chave(long sequencial) {
+        return String.format("352401112223330001445500100000%014d", sequencial);
+    }
+}
@@ -0,0 +1,132 @@
+package com.annaehugo.freepharma.application.services;
+
+import com.annaehugo.freepharma.application.dto.fiscal.NFeXmlData;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.time.OffsetDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@DisplayName("NFeXmlParser - Uso concorrente e decodificação de datas e valores")
+class NFeXmlParserConcorrenciaTest {
+
+    private static final int THREADS = 32;
+    private static final int PARSES_POR_THREAD = 100;
+
+    private NFeXmlParser parser;
+
+    @BeforeEach
+    void setUp() {
+        parser = new NFeXmlParser();
+    }
+
+    @Test
+    @DisplayName("Deve produzir resultados corretos com 32 threads compartilhando o mesmo parser")
+    void testParsesConcorrentes() throws Exception {
+        // Cada nota tem data, offset e valores próprios: qualquer estado compartilhado corrompe o resultado
+        List<byte[]> notas = new ArrayList<>();
+        List<NFeXmlData> esperados = new ArrayList<>();
+        for (int i = 0; i < THREADS; i++) {
+            byte[] xml = notaComData(i).getBytes(StandardCharsets.UTF_8);
+            notas.add(xml);
+            esperados.add(parser.parseNFeXml(xml));
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        CountDownLatch largada = new CountDownLatch(1);
+        AtomicInteger divergencias = new AtomicInteger();
+        AtomicInteger concluidos = new AtomicInteger();
+        try {
+            List<Future<?>> tarefas = new ArrayList<>();
+            for (int t = 0; t < THREADS; t++) {
+                int indice = t;
+                tarefas.add(executor.submit(() -> {
+                    largada.await();
+                    for (int i = 0; i < PARSES_POR_THREAD; i++) {
+                        int nota = (indice + i) % THREADS;
+                        NFeXmlData resultado = i % 2 == 0
+                            ? parser.parseNFeXml(notas.get(nota))
+                            : parser.parseNFeXmlStreaming(notas.get(nota));
+                        if (!esperados.get(nota).equals(resultado)) {
+                            divergencias.incrementAndGet();
+                        }
+                        concluidos.incrementAndGet();
+                    }
+                    return null;
+                }));
+            }
+
+            largada.countDown();
+            for (Future<?> tarefa : tarefas) {
+                tarefa.get(60, TimeUnit.SECONDS);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        assertEquals(THREADS * PARSES_POR_THREAD, concluidos.get());
+        assertEquals(0, divergencias.get());
+    }
+
+    @Test
+    @DisplayName("Deve respeitar o offset negativo da data de emissão")
+    void testDataEmissaoComOffsetNegativo() {
+        NFeXmlData result = parser.parseNFeXml(notaComData(0).getBytes(StandardCharsets.UTF_8));
+
+        assertEquals(OffsetDateTime.parse("2024-01-01T10:00:00-03:00").toInstant(),
+            result.getDataEmissao().toInstant());
+    }
+
+    @Test
+    @DisplayName("Deve manter a escala dos valores decimais e aceitar formatos fora do padrão")
+    void testValoresDecimais() {
+        String xml = notaComData(1)
+            .replace("<vUnCom>2.0100</vUnCom>", "<vUnCom>1E+2</vUnCom>")
+            .replace("<vProd>20.10</vProd>", "<vProd>abc</vProd>");
+
+        NFeXmlData result = parser.parseNFeXml(xml.getBytes(StandardCharsets.UTF_8));
+
+        assertEquals(new BigDecimal("2.00"), result.getValorTotal());
+        assertEquals(2, result.getValorTotal().scale());
+        assertEquals(new BigDecimal("1E+2"), result.getItens().get(0).getValorUnitario());
+        assertEquals(BigDecimal.ZERO, result.getItens().get(0).getValorTotal());
+    }
+
+    @Test
+    @DisplayName("Deve rejeitar XML com DOCTYPE")
+    void testXmlComDoctype() {
+        String xml = "<?xml version=\"1.0\"?><!DOCTYPE NFe [<!ENTITY x SYSTEM \"file:///etc/passwd\">]>"
+            + "<NFe><infNFe Id=\"NFe1\"><ide><nNF>&x;</nNF></ide></infNFe></NFe>";
+
+        assertThrows(RuntimeException.class, () -> parser.parseNFeXml(xml.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private static String notaComData(int i) {
+        int offset = i % 5 - 3;
+        String sinal = offset < 0 ? "-" : "+";
+        return "<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+            + "<nfeProc xmlns=\"http://www.portalfiscal.inf.br/nfe\"><NFe>"
+            + "<infNFe Id=\"NFe352401112223330001445500100000" + String.format("%04d", i) + "1234567890\">"
+            + "<ide><nNF>" + i + "</nNF><serie>1</serie>"
+            + "<dhEmi>2024-01-" + String.format("%02d", i % 28 + 1) + "T10:00:00"
+            + sinal + String.format("%02d", Math.abs(offset)) + ":00</dhEmi></ide>"
+            + "<emit><CNPJ>11222333000144</CNPJ><xNome>Fornecedor " + i + "</xNome></emit>"
+            + "<dest><CNPJ>12345678000199</CNPJ><xNome>Farmacia</xNome></dest>"
+            + "<det nItem=\"1\"><prod><cProd>P" + i + "</cProd><xProd>Produto " + i + "</xProd><CFOP>1102</CFOP>"
+            + "<qCom>" + (i + 1) + ".0000</qCom><vUnCom>" + (i + 1) + ".0100</vUnCom><vProd>" + (i + 1) * 10 + ".10</vProd>"
+            + "<dVal>2026-" + String.format("%02d", i % 12 + 1) + "-15</dVal></prod></det>"
+            + "<total><ICMSTot><vNF>" + (i + 1) + ".00</vNF></ICMSTot></total></infNFe></NFe></nfeProc>";
+    }
+}
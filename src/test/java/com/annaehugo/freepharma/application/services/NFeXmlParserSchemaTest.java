@@ -0,0 +1,92 @@
+package com.annaehugo.freepharma.application.services;
+
+import com.annaehugo.freepharma.application.dto.fiscal.NFeXmlData;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@DisplayName("NFeXmlParser - Validação por schema durante o parse do stream")
+class NFeXmlParserSchemaTest {
+
+    private static final String SCHEMA_TESTE = "classpath:xsd/nfe_teste.xsd";
+
+    private NFeXmlParser parser;
+
+    @BeforeEach
+    void setUp() {
+        parser = new NFeXmlParser(SCHEMA_TESTE);
+    }
+
+    @DisplayName("Deve validar e produzir o mesmo NFeXmlData que o parse dos bytes")
+    @ParameterizedTest
+    @ValueSource(strings = {
+        "nfe-basica.xml",
+        "nfe-venda-cpf.xml",
+        "nfe-lote-vencimento.xml",
+        "nfce-venda-balcao.xml",
+        "nfe-medicamento-controlado.xml",
+        "nfe-multiplos-lotes.xml",
+        "nfe-tributos.xml"
+    })
+    void testParidadeComSchema(String fixture) throws IOException {
+        byte[] xmlBytes = NFeXmlParserStreamingTest.carregarFixture(fixture);
+
+        NFeXmlData esperado = new NFeXmlParser().parseNFeXml(xmlBytes);
+        NFeXmlData validado = parser.parseNFeXml(new ByteArrayInputStream(xmlBytes));
+
+        assertEquals(esperado, validado, "Divergência no parse validado de " + fixture);
+    }
+
+    @DisplayName("Deve rejeitar notas fora do schema")
+    @ParameterizedTest
+    @ValueSource(strings = {"nfe-sem-itens.xml", "nfe-sem-total.xml"})
+    void testRejeitaForaDoSchema(String fixture) throws IOException {
+        byte[] xmlBytes = NFeXmlParserStreamingTest.carregarFixture(fixture);
+
+        RuntimeException exception = assertThrows(RuntimeException.class,
+            () -> parser.parseNFeXml(new ByteArrayInputStream(xmlBytes)));
+        assertTrue(exception.getMessage().contains("XML não está de acordo com o schema da NFe"),
+            exception.getMessage());
+    }
+
+    @Test
+    @DisplayName("Deve rejeitar chave de acesso com formato inválido")
+    void testRejeitaChaveInvalida() throws IOException {
+        String xml = new String(NFeXmlParserStreamingTest.carregarFixture("nfe-basica.xml"), StandardCharsets.UTF_8)
+            .replace("Id=\"NFe35240111222333000144550010000012341234567890\"", "Id=\"NFe123\"");
+
+        RuntimeException exception = assertThrows(RuntimeException.class,
+            () -> parser.parseNFeXml(new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8))));
+        assertTrue(exception.getMessage().contains("schema da NFe"), exception.getMessage());
+    }
+
+    @Test
+    @DisplayName("Sem schema configurado deve usar o modo streaming e aceitar a nota")
+    void testSemSchema() throws IOException {
+        NFeXmlParser semSchema = new NFeXmlParser();
+        byte[] xmlBytes = NFeXmlParserStreamingTest.carregarFixture("nfe-sem-total.xml");
+
+        assertFalse(semSchema.isValidacaoSchemaAtiva());
+        assertTrue(parser.isValidacaoSchemaAtiva());
+        assertEquals(semSchema.parseNFeXml(xmlBytes), semSchema.parseNFeXml(new ByteArrayInputStream(xmlBytes)));
+    }
+
+    @Test
+    @DisplayName("Schema inexistente deve gerar erro claro")
+    void testSchemaInexistente() throws IOException {
+        NFeXmlParser parserSemArquivo = new NFeXmlParser("classpath:xsd/nao_existe.xsd");
+        byte[] xmlBytes = NFeXmlParserStreamingTest.carregarFixture("nfe-basica.xml");
+
+        RuntimeException exception = assertThrows(RuntimeException.class,
+            () -> parserSemArquivo.parseNFeXml(new ByteArrayInputStream(xmlBytes)));
+        assertTrue(exception.getMessage().contains("Erro ao carregar o schema da NFe"), exception.getMessage());
+    }
+}
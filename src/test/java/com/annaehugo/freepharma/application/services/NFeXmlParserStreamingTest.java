@@ -0,0 +1,258 @@
+package com.annaehugo.freepharma.application.services;
+
+import com.annaehugo.freepharma.application.dto.fiscal.NFeXmlData;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@DisplayName("NFeXmlParser - Paridade do modo streaming (StAX) com o modo DOM")
+class NFeXmlParserStreamingTest {
+
+    private NFeXmlParser parser;
+
+    @BeforeEach
+    void setUp() {
+        parser = new NFeXmlParser();
+    }
+
+    @DisplayName("Deve produzir o mesmo NFeXmlData que o modo DOM para as fixtures existentes")
+    @ParameterizedTest
+    @ValueSource(strings = {
+        "nfe-basica.xml",
+        "nfe-venda-cpf.xml",
+        "nfe-sem-itens.xml",
+        "nfe-lote-vencimento.xml",
+        "nfce-venda-balcao.xml",
+        "nfe-medicamento-controlado.xml",
+        "nfe-multiplos-lotes.xml",
+        "nfe-data-sem-timezone.xml",
+        "nfe-sem-total.xml",
+        "nfe-tributos.xml"
+    })
+    void testParidadeFixtures(String fixture) throws IOException {
+        byte[] xmlBytes = carregarFixture(fixture);
+
+        NFeXmlData esperado = parser.parseNFeXml(xmlBytes);
+        NFeXmlData streaming = parser.parseNFeXmlStreaming(xmlBytes);
+
+        assertEquals(esperado, streaming, "Divergência entre DOM e StAX em " + fixture);
+    }
+
+    @DisplayName("Deve manter a paridade na identificação de CFOPs")
+    @ParameterizedTest
+    @ValueSource(strings = {"1102", "1151", "2102", "5102", "5405", "6108", "7101"})
+    void testParidadeCfop(String cfop) throws IOException {
+        String xml = new String(carregarFixture("nfe-venda-cpf.xml"), StandardCharsets.UTF_8)
+            .replace("<CFOP>5102</CFOP>", "<CFOP>" + cfop + "</CFOP>");
+        byte[] xmlBytes = xml.getBytes(StandardCharsets.UTF_8);
+
+        NFeXmlData streaming = parser.parseNFeXmlStreaming(xmlBytes);
+
+        assertEquals(parser.parseNFeXml(xmlBytes), streaming);
+        assertEquals(cfop, streaming.getItens().get(0).getCfop());
+    }
+
+    @Test
+    @DisplayName("Deve ler campos aninhados como no leiaute real (fone em enderEmit, rastro, assinatura)")
+    void testParidadeLeiauteCompleto() {
+        String xml = """
+            <?xml version="1.0" encoding="UTF-8"?>
+            <nfeProc versao="4.00" xmlns="http://www.portalfiscal.inf.br/nfe">
+                <NFe xmlns="http://www.portalfiscal.inf.br/nfe">
+                    <infNFe versao="4.00" Id="NFe31240111222333000144550010000099991000099990">
+                        <ide>
+                            <cUF>31</cUF>
+                            <nNF>9999</nNF>
+                            <serie>2</serie>
+                            <dhEmi>2024-03-10T08:30:00+00:00</dhEmi>
+                        </ide>
+                        <emit>
+                            <CNPJ>11222333000144</CNPJ>
+                            <xNome>Distribuidora &amp; Cia</xNome>
+                            <enderEmit>
+                                <xLgr>Av. Brasil</xLgr>
+                                <nro>1000</nro>
+                                <xBairro>Centro</xBairro>
+                                <xMun>Juiz de Fora</xMun>
+                                <UF>MG</UF>
+                                <CEP>36000000</CEP>
+                                <fone>3232323232</fone>
+                            </enderEmit>
+                            <IE>0012345670012</IE>
+                        </emit>
+                        <dest>
+                            <CNPJ>12345678000199</CNPJ>
+                            <xNome><![CDATA[Farmácia Central]]></xNome>
+                            <email>compras@farmacia.com.br</email>
+                        </dest>
+                        <det nItem="1">
+                            <prod>
+                                <cProd>AMOX500</cProd>
+                                <cEAN>7891234567890</cEAN>
+                                <xProd>Amoxicilina 500mg cx 21 caps</xProd>
+                                <NCM>30042019</NCM>
+                                <CFOP>2102</CFOP>
+                                <uCom>CX</uCom>
+                                <qCom>12.0000</qCom>
+                                <vUnCom>22.5000000000</vUnCom>
+                                <vProd>270.00</vProd>
+                                <rastro>
+                                    <nLote>L2024A</nLote>
+                                    <dFab>2024-01-01</dFab>
+                                    <dVal>2026-01-01</dVal>
+                                </rastro>
+                            </prod>
+                            <imposto>
+                                <vTotTrib>10.00</vTotTrib>
+                            </imposto>
+                        </det>
+                        <det nItem="2">
+                            <imposto>
+                                <vTotTrib>0.00</vTotTrib>
+                            </imposto>
+                        </det>
+                        <total>
+                            <ICMSTot>
+                                <vProd>270.00</vProd>
+                                <vNF>270.00</vNF>
+                            </ICMSTot>
+                        </total>
+                    </infNFe>
+                    <Signature xmlns="http://www.w3.org/2000/09/xmldsig#">
+                        <SignedInfo/>
+                    </Signature>
+                </NFe>
+                <protNFe versao="4.00">
+                    <infProt>
+                        <nProt>131240000000000</nProt>
+                    </infProt>
+                </protNFe>
+            </nfeProc>
+            """;
+        byte[] xmlBytes = xml.getBytes(StandardCharsets.UTF_8);
+
+        NFeXmlData esperado = parser.parseNFeXml(xmlBytes);
+        NFeXmlData streaming = parser.parseNFeXmlStreaming(xmlBytes);
+
+        assertEquals(esperado, streaming);
+        assertEquals("3232323232", streaming.getEmitente().getTelefone());
+        assertEquals("Distribuidora & Cia", streaming.getEmitente().getRazaoSocial());
+        assertEquals("Farmácia Central", streaming.getDestinatario().getNome());
+        assertEquals(1, streaming.getItens().size());
+        assertEquals(12, streaming.getItens().get(0).getQuantidade());
+        assertNotNull(streaming.getItens().get(0).getDataVencimento());
+    }
+
+    @Test
+    @DisplayName("Deve manter a paridade em notas com milhares de itens")
+    void testParidadeNotaGrande() {
+        byte[] xmlBytes = gerarNotaComItens(3000).getBytes(StandardCharsets.UTF_8);
+
+        NFeXmlData esperado = parser.parseNFeXml(xmlBytes);
+        NFeXmlData streaming = parser.parseNFeXmlStreaming(new ByteArrayInputStream(xmlBytes));
+
+        assertEquals(3000, streaming.getItens().size());
+        assertEquals(esperado, streaming);
+        assertEquals("ITEM2999", streaming.getItens().get(2999).getCodigoProduto());
+    }
+
+    @Test
+    @DisplayName("Deve rejeitar XML sem elemento NFe com a mesma mensagem do modo DOM")
+    void testXmlSemElementoNFe() {
+        byte[] xmlBytes = "<?xml version=\"1.0\"?><root><outras>dados</outras></root>".getBytes(StandardCharsets.UTF_8);
+
+        RuntimeException exception = assertThrows(RuntimeException.class,
+            () -> parser.parseNFeXmlStreaming(xmlBytes));
+
+        assertTrue(exception.getMessage().contains("Erro ao fazer parse do XML"));
+        assertTrue(exception.getMessage().contains("Elemento NFe não encontrado"));
+    }
+
+    @Test
+    @DisplayName("Deve rejeitar NFe sem infNFe")
+    void testNFeSemInfNFe() {
+        byte[] xmlBytes = "<nfeProc><NFe><outro/></NFe></nfeProc>".getBytes(StandardCharsets.UTF_8);
+
+        RuntimeException exception = assertThrows(RuntimeException.class,
+            () -> parser.parseNFeXmlStreaming(xmlBytes));
+
+        assertTrue(exception.getMessage().contains("Elemento infNFe não encontrado"));
+    }
+
+    @Test
+    @DisplayName("Deve detectar XML malformado mesmo após o fim da NFe")
+    void testXmlCorrompido() {
+        String xml = """
+            <?xml version="1.0" encoding="UTF-8"?>
+            <nfeProc xmlns="http://www.portalfiscal.inf.br/nfe">
+                <NFe>
+                    <infNFe Id="NFe35240111222333000144550010000012341234567890">
+                        <ide><nNF>1234</nNF></ide>
+                    </infNFe>
+                </NFe>
+                <protNFe>
+            </nfeProc>
+            """;
+        byte[] xmlBytes = xml.getBytes(StandardCharsets.UTF_8);
+
+        assertThrows(RuntimeException.class, () -> parser.parseNFeXml(xmlBytes));
+        RuntimeException exception = assertThrows(RuntimeException.class,
+            () -> parser.parseNFeXmlStreaming(xmlBytes));
+
+        assertTrue(exception.getMessage().contains("Erro ao fazer parse do XML"));
+    }
+
+    @Test
+    @DisplayName("Deve extrair a chave sem o prefixo NFe e o valor total")
+    void testDadosPrincipais() throws IOException {
+        NFeXmlData result = parser.parseNFeXmlStreaming(carregarFixture("nfe-basica.xml"));
+
+        assertEquals("35240111222333000144550010000012341234567890", result.getChaveAcesso());
+        assertEquals("1234", result.getNumero());
+        assertEquals(new BigDecimal("330.00"), result.getValorTotal());
+        assertEquals(2, result.getItens().size());
+        assertEquals("COMPRA", result.getTipoOperacao());
+    }
+
+    static byte[] carregarFixture(String nome) throws IOException {
+        try (InputStream in = NFeXmlParserStreamingTest.class.getResourceAsStream("/nfe/" + nome)) {
+            assertNotNull(in, "Fixture não encontrada: " + nome);
+            return in.readAllBytes();
+        }
+    }
+
+    static String gerarNotaComItens(int quantidadeItens) {
+        StringBuilder xml = new StringBuilder();
+        xml.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>")
+            .append("<nfeProc xmlns=\"http://www.portalfiscal.inf.br/nfe\"><NFe>")
+            .append("<infNFe Id=\"NFe35240111222333000144550010000012341234567890\">")
+            .append("<ide><nNF>1234</nNF><serie>1</serie><dhEmi>2024-01-15T10:00:00+00:00</dhEmi></ide>")
+            .append("<emit><CNPJ>11222333000144</CNPJ><xNome>Fornecedor</xNome>")
+            .append("<enderEmit><xLgr>Rua A</xLgr><nro>1</nro><xMun>São Paulo</xMun><UF>SP</UF></enderEmit></emit>")
+            .append("<dest><CNPJ>12345678000199</CNPJ><xNome>Farmacia</xNome></dest>");
+        for (int i = 0; i < quantidadeItens; i++) {
+            xml.append("<det nItem=\"").append(i + 1).append("\"><prod>")
+                .append("<cProd>ITEM").append(i).append("</cProd>")
+                .append("<cEAN>7891234567890</cEAN>")
+                .append("<xProd>Produto ").append(i).append("</xProd>")
+                .append("<NCM>30049099</NCM><CFOP>1102</CFOP><uCom>UN</uCom>")
+                .append("<qCom>").append(i % 50 + 1).append(".0000</qCom>")
+                .append("<vUnCom>1.50</vUnCom><vProd>").append(new BigDecimal("1.50").multiply(BigDecimal.valueOf(i % 50 + 1))).append("</vProd>")
+                .append("<xLote>L").append(i).append("</xLote><dVal>2026-12-31</dVal>")
+                .append("</prod><imposto><vTotTrib>0.10</vTotTrib></imposto></det>");
+        }
+        xml.append("<total><ICMSTot><vNF>100.00</vNF></ICMSTot></total>")
+            .append("</infNFe></NFe></nfeProc>");
+        return xml.toString();
+    }
+}
@@ -0,0 +1,247 @@
+package com.annaehugo.freepharma.application.services;
+
+import com.annaehugo.freepharma.application.dto.fiscal.NFeXmlData;
+import com.annaehugo.freepharma.application.services.PipelineImportacaoNFeService.Etapa;
+import com.annaehugo.freepharma.domain.entity.fiscal.ImportacaoNFe;
+import com.annaehugo.freepharma.domain.entity.fiscal.LoteProcessamento;
+import com.annaehugo.freepharma.domain.repository.fiscal.LoteProcessamentoRepository;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.mockito.junit.jupiter.MockitoSettings;
+import org.mockito.quality.Strictness;
+
+import java.io.ByteArrayInputStream;
+import java.time.Duration;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+@MockitoSettings(strictness = Strictness.LENIENT)
+@DisplayName("PipelineImportacaoNFeService - Etapas do processamento de arquivos com várias notas")
+class PipelineImportacaoNFeServiceTest {
+
+    private static final String[] EMITENTES = {"11222333000144", "22333444000155", "33444555000166", "44555666000177"};
+
+    @Mock
+    private ProcessamentoNFeService processamentoNFeService;
+
+    @Mock
+    private LoteProcessamentoRepository loteProcessamentoRepository;
+
+    private final NFeXmlParser parser = new NFeXmlParser();
+    private ImportacaoNFe importacao;
+
+    @BeforeEach
+    void setUp() {
+        importacao = new ImportacaoNFe();
+        importacao.setId(10L);
+        when(processamentoNFeService.validarNFe(any())).thenReturn(new ProcessamentoNFeService.ValidacaoNFe());
+        when(processamentoNFeService.processarNFe(any(), any(), any(), any())).thenAnswer(invocation -> sucesso());
+    }
+
+    @Test
+    @DisplayName("Deve passar todas as notas pelas etapas e concluir o lote com 100% de progresso")
+    void testProcessarArquivo() {
+        PipelineImportacaoNFeService pipeline = criarPipeline(4, 2, 8);
+
+        try (NFeArquivoIterator notas = lerArquivo(40)) {
+            pipeline.executar(notas, importacao, null, nota -> { });
+        }
+
+        assertEquals(40, importacao.getQuantidadeNotasArquivo());
+        assertEquals(40, importacao.getQuantidadeNotasProcessadas());
+        assertEquals(0, importacao.getQuantidadeNotasComErro());
+        LoteProcessamento lote = importacao.getLoteProcessamento();
+        assertEquals(PipelineImportacaoNFeService.TIPO_LOTE, lote.getTipoLote());
+        assertEquals("CONCLUIDO", lote.getStatus());
+        assertEquals(100, lote.getProgresso());
+        assertNotNull(lote.getDataFim());
+        verify(loteProcessamentoRepository, atLeast(2)).save(lote);
+        for (Etapa etapa : Etapa.values()) {
+            assertEquals(40, pipeline.getMetricas(etapa).getProcessadas(), etapa.name());
+            assertEquals(0, pipeline.getMetricas(etapa).getEmFila(), etapa.name());
+        }
+    }
+
+    @Test
+    @DisplayName("Nota rejeitada na validação não deve ser gravada")
+    void testNotaRejeitadaNaValidacao() {
+        PipelineImportacaoNFeService pipeline = criarPipeline(2, 2, 8);
+        String rejeitada = NFeArquivoIteratorTest.chave("3");
+
+        try (NFeArquivoIterator notas = lerArquivo(5)) {
+            pipeline.executar(notas, importacao, null, nota -> {
+                if (rejeitada.equals(nota.getChaveAcesso())) {
+                    throw new RuntimeException("Chave de acesso inválida");
+                }
+            });
+            assertTrue(notas.getErros().get(0).contains("Chave de acesso inválida"));
+        }
+
+        assertEquals(4, importacao.getQuantidadeNotasProcessadas());
+        assertEquals(1, importacao.getQuantidadeNotasComErro());
+        verify(processamentoNFeService, times(4)).processarNFe(any(), any(), any(), any());
+        assertEquals(1, pipeline.getMetricas(Etapa.VALIDACAO).getComErro());
+        assertEquals(4, pipeline.getMetricas(Etapa.GRAVACAO).getProcessadas());
+    }
+
+    @Test
+    @DisplayName("Falha na gravação deve ser registrada como erro da nota")
+    void testFalhaNaGravacao() {
+        PipelineImportacaoNFeService pipeline = criarPipeline(2, 2, 8);
+        when(processamentoNFeService.processarNFe(any(), any(), any(), any()))
+            .thenAnswer(invocation -> sucesso())
+            .thenThrow(new RuntimeException("Conexão recusada"))
+            .thenAnswer(invocation -> sucesso());
+
+        try (NFeArquivoIterator notas = lerArquivo(3)) {
+            pipeline.executar(notas, importacao, null, nota -> { });
+        }
+
+        assertEquals(2, importacao.getQuantidadeNotasProcessadas());
+        assertEquals(1, importacao.getQuantidadeNotasComErro());
+        assertTrue(importacao.getErrosProcessamento().contains("Conexão recusada"));
+        assertEquals(1, pipeline.getMetricas(Etapa.GRAVACAO).getComErro());
+    }
+
+    @Test
+    @DisplayName("Um Error em uma etapa deve abortar a execução em vez de travar a leitura")
+    void testErroFatalNaGravacao() {
+        PipelineImportacaoNFeService pipeline = criarPipeline(1, 1, 2);
+        when(processamentoNFeService.processarNFe(any(), any(), any(), any()))
+            .thenThrow(new OutOfMemoryError("Java heap space"));
+
+        try (NFeArquivoIterator notas = lerArquivo(100)) {
+            RuntimeException erro = assertTimeoutPreemptively(Duration.ofSeconds(10), () -> assertThrows(
+                RuntimeException.class, () -> pipeline.executar(notas, importacao, null, nota -> { })));
+            assertTrue(erro.getMessage().contains("Java heap space"));
+        }
+
+        assertEquals("ERRO", importacao.getLoteProcessamento().getStatus());
+        assertFalse(pipeline.consultarProgresso(importacao.getId()).isPresent());
+    }
+
+    @Test
+    @DisplayName("Com a gravação parada o parse deve parar ao encher as filas")
+    void testContrapressao() throws Exception {
+        PipelineImportacaoNFeService pipeline = criarPipeline(1, 1, 2);
+        CountDownLatch liberar = new CountDownLatch(1);
+        when(processamentoNFeService.processarNFe(any(), any(), any(), any())).thenAnswer(invocation -> {
+            liberar.await(10, TimeUnit.SECONDS);
+            return sucesso();
+        });
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try (NFeArquivoIterator notas = lerArquivo(100)) {
+            Future<?> execucao = executor.submit(() -> pipeline.executar(notas, importacao, null, nota -> { }));
+
+            // Fila de validação (2), validação (1), fila de gravação (2) e gravação (1), mais a nota lida aguardando a fila
+            aguardar(() -> pipeline.getMetricas(Etapa.GRAVACAO).getEmFila() >= 2
+                && pipeline.getMetricas(Etapa.VALIDACAO).getEmFila() >= 2);
+            Thread.sleep(100);
+            assertTrue(importacao.getQuantidadeNotasArquivo() <= 8,
+                "Notas lidas com a gravação parada: " + importacao.getQuantidadeNotasArquivo());
+            assertTrue(pipeline.consultarProgresso(10L).get() < 100);
+
+            liberar.countDown();
+            execucao.get(30, TimeUnit.SECONDS);
+        } finally {
+            executor.shutdownNow();
+        }
+        assertEquals(100, importacao.getQuantidadeNotasProcessadas());
+        assertFalse(pipeline.consultarProgresso(10L).isPresent());
+    }
+
+    @Test
+    @DisplayName("Gravações não devem passar do limite de conexões nem repetir emitente em paralelo")
+    void testLimiteDeGravacao() {
+        PipelineImportacaoNFeService pipeline = criarPipeline(4, 2, 8);
+        AtomicInteger simultaneas = new AtomicInteger();
+        AtomicInteger maximo = new AtomicInteger();
+        Set<String> emitentesGravando = ConcurrentHashMap.newKeySet();
+        AtomicInteger emitenteRepetido = new AtomicInteger();
+        when(processamentoNFeService.processarNFe(any(), any(), any(), any())).thenAnswer(invocation -> {
+            String cnpj = invocation.<NFeXmlData>getArgument(0).getEmitente().getCnpj();
+            if (!emitentesGravando.add(cnpj)) {
+                emitenteRepetido.incrementAndGet();
+            }
+            maximo.accumulateAndGet(simultaneas.incrementAndGet(), Math::max);
+            Thread.sleep(2);
+            simultaneas.decrementAndGet();
+            emitentesGravando.remove(cnpj);
+            return sucesso();
+        });
+
+        try (NFeArquivoIterator notas = lerArquivo(80)) {
+            pipeline.executar(notas, importacao, null, nota -> { });
+        }
+
+        assertEquals(80, importacao.getQuantidadeNotasProcessadas());
+        assertTrue(maximo.get() <= 2, "Gravações simultâneas: " + maximo.get());
+        assertEquals(0, emitenteRepetido.get());
+    }
+
+    @Test
+    @DisplayName("Resumo das métricas deve trazer as etapas e a última execução")
+    void testResumirMetricas() {
+        PipelineImportacaoNFeService pipeline = criarPipeline(2, 1, 4);
+
+        try (NFeArquivoIterator notas = lerArquivo(3)) {
+            pipeline.executar(notas, importacao, null, nota -> { });
+        }
+
+        Map<String, Object> resumo = pipeline.resumirMetricas();
+        assertEquals(Etapa.values().length, ((Map<?, ?>) resumo.get("etapas")).size());
+        Map<?, ?> ultima = (Map<?, ?>) resumo.get("ultimaExecucao");
+        assertEquals(10L, ultima.get("importacaoId"));
+        assertEquals(100, ultima.get("progresso"));
+        Map<?, ?> gravacao = (Map<?, ?>) ((Map<?, ?>) ultima.get("etapas")).get(Etapa.GRAVACAO.name());
+        assertEquals(3L, gravacao.get("processadas"));
+        assertTrue(gravacao.containsKey("notasPorSegundo"));
+    }
+
+    private PipelineImportacaoNFeService criarPipeline(int threadsValidacao, int threadsGravacao, int fila) {
+        return new PipelineImportacaoNFeService(processamentoNFeService, loteProcessamentoRepository,
+            threadsValidacao, threadsGravacao, fila);
+    }
+
+    private NFeArquivoIterator lerArquivo(int quantidade) {
+        String[] notas = new String[quantidade];
+        for (int i = 0; i < quantidade; i++) {
+            notas[i] = NFeArquivoIteratorTest.notaXml(String.valueOf(i + 1))
+                .replace("<emit><CNPJ>" + EMITENTES[0], "<emit><CNPJ>" + EMITENTES[i % EMITENTES.length]);
+        }
+        return parser.lerArquivo(new ByteArrayInputStream(NFeArquivoIteratorTest.montarEnvelope(notas)),
+            "lote.xml", importacao);
+    }
+
+    private static ProcessamentoNFeService.ProcessamentoResult sucesso() {
+        ProcessamentoNFeService.ProcessamentoResult resultado = new ProcessamentoNFeService.ProcessamentoResult();
+        resultado.setSucesso(true);
+        return resultado;
+    }
+
+    private static void aguardar(BooleanSupplier condicao) throws InterruptedException {
+        long limite = System.currentTimeMillis() + 10_000;
+        while (!condicao.getAsBoolean()) {
+            assertTrue(System.currentTimeMillis() < limite, "Condição não atingida no tempo limite");
+            Thread.sleep(10);
+        }
+    }
+}
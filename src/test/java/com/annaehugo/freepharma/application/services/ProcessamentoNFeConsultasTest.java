@@ -0,0 +1,333 @@
+package com.annaehugo.freepharma.application.services;
+
+import com.annaehugo.freepharma.application.dto.fiscal.NFeXmlData;
+import com.annaehugo.freepharma.domain.entity.administrativo.Farmacia;
+import com.annaehugo.freepharma.domain.entity.administrativo.Unidade;
+import com.annaehugo.freepharma.domain.entity.estoque.*;
+import com.annaehugo.freepharma.domain.entity.fiscal.*;
+import com.annaehugo.freepharma.domain.repository.estoque.*;
+import com.annaehugo.freepharma.domain.repository.fiscal.*;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.Spy;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.mockito.junit.jupiter.MockitoSettings;
+import org.mockito.quality.Strictness;
+import org.springframework.data.jpa.repository.JpaRepository;
+
+import java.math.BigDecimal;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Optional;
+import java.util.stream.Collectors;
+import java.util.stream.StreamSupport;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+@MockitoSettings(strictness = Strictness.LENIENT)
+@DisplayName("ProcessamentoNFeService - Resolução dos itens em conjunto")
+class ProcessamentoNFeConsultasTest {
+
+    @Mock
+    private FornecedorRepository fornecedorRepository;
+    @Mock
+    private ProdutoReferenciaRepository produtoReferenciaRepository;
+    @Mock
+    private ProdutoFornecedorRepository produtoFornecedorRepository;
+    @Mock
+    private EstoqueProdutoRepository estoqueProdutoRepository;
+    @Mock
+    private MovimentacaoEstoqueRepository movimentacaoEstoqueRepository;
+    @Mock
+    private SnapshotEstoqueRepository snapshotEstoqueRepository;
+    @Mock
+    private NotaFiscalRepository notaFiscalRepository;
+    @Mock
+    private NotaFiscalItemRepository notaFiscalItemRepository;
+    @Mock
+    private InconsistenciaRepository inconsistenciaRepository;
+    @Mock
+    private EstoqueProdutoService estoqueProdutoService;
+    @Mock
+    private NFeDuplicidadeService nfeDuplicidadeService;
+    @Spy
+    private RegraValidacaoFiscalService regraValidacaoFiscalService =
+        new RegraValidacaoFiscalService(mock(RegraValidacaoFiscalRepository.class), Duration.ofMinutes(5));
+
+    @Spy
+    private FornecedorCacheService fornecedorCacheService = new FornecedorCacheService(100);
+
+    @Mock
+    private CodigoInternoService codigoInternoService;
+
+    @Mock
+    private IndiceNomesProdutoService indiceNomesProdutoService;
+
+    @InjectMocks
+    private ProcessamentoNFeService processamentoNFeService;
+
+    private Unidade unidade;
+    private Fornecedor fornecedor;
+    private ImportacaoNFe importacao;
+
+    @BeforeEach
+    void setUp() {
+        Farmacia farmacia = new Farmacia();
+        farmacia.setId(1L);
+        unidade = new Unidade();
+        unidade.setId(1L);
+        unidade.setFarmacia(farmacia);
+
+        fornecedor = new Fornecedor();
+        fornecedor.setId(1L);
+        fornecedor.setCnpj("11222333000144");
+
+        importacao = new ImportacaoNFe();
+        importacao.setId(1L);
+
+        NotaFiscal notaFiscal = new NotaFiscal();
+        notaFiscal.setId(1L);
+
+        when(fornecedorRepository.findByCnpj(anyString())).thenReturn(Optional.of(fornecedor));
+        when(fornecedorRepository.save(any(Fornecedor.class))).thenReturn(fornecedor);
+        when(notaFiscalRepository.save(any(NotaFiscal.class))).thenReturn(notaFiscal);
+    }
+
+    @Test
+    @DisplayName("Deve fazer o mesmo número de consultas para notas de 1, 30 e 300 itens")
+    void testConsultasConstantesPorNota() {
+        int consultasUmItem = contarChamadasRepositorios(1);
+        int consultasTrintaItens = contarChamadasRepositorios(30);
+        int consultasTrezentosItens = contarChamadasRepositorios(300);
+
+        assertEquals(consultasUmItem, consultasTrintaItens);
+        assertEquals(consultasUmItem, consultasTrezentosItens);
+    }
+
+    @Test
+    @DisplayName("Não deve usar as consultas por item")
+    void testSemConsultasPorItem() {
+        ProcessamentoNFeService.ProcessamentoResult result =
+            processamentoNFeService.processarNFe(criarNota(50), unidade, importacao);
+
+        assertTrue(result.isSucesso());
+        assertEquals(50, result.getItensProcessados().size());
+        verify(produtoReferenciaRepository, never()).findByEan(anyString());
+        verify(produtoReferenciaRepository, never()).findFirstByNome(anyString());
+        verify(produtoReferenciaRepository, never()).save(any());
+        verify(produtoFornecedorRepository, never()).findByProdutoReferenciaAndFornecedor(any(), any());
+        verify(produtoFornecedorRepository, never()).save(any());
+        verify(estoqueProdutoRepository, never()).findByProdutoFornecedorAndUnidadeAndLote(any(), any(), any());
+        verify(estoqueProdutoRepository, never()).save(any());
+        verify(notaFiscalItemRepository, never()).save(any());
+        verify(notaFiscalItemRepository, times(1)).saveAll(anyCollection());
+    }
+
+    @Test
+    @DisplayName("Deve reaproveitar produtos, vínculos e estoques existentes")
+    void testReaproveitaExistentes() {
+        NFeXmlData nfeData = criarNota(3);
+        ProdutoReferencia porEan = produtoReferencia(10L, nfeData.getItens().get(0).getEan(), "Outro nome");
+        ProdutoReferencia porNome = produtoReferencia(11L, null, nfeData.getItens().get(1).getNomeProduto());
+        nfeData.getItens().get(1).setEan("SEM GTIN");
+
+        ProdutoFornecedor vinculoExistente = new ProdutoFornecedor();
+        vinculoExistente.setId(20L);
+        vinculoExistente.setProdutoReferencia(porEan);
+        vinculoExistente.setFornecedor(fornecedor);
+
+        EstoqueProduto estoqueExistente = new EstoqueProduto();
+        estoqueExistente.setId(30L);
+        estoqueExistente.setProdutoFornecedor(vinculoExistente);
+        estoqueExistente.setLote(nfeData.getItens().get(0).getLote());
+        estoqueExistente.setQuantidadeAtual(5);
+
+        when(produtoReferenciaRepository.findByEanIn(anyCollection())).thenReturn(List.of(porEan));
+        when(produtoReferenciaRepository.findByNomeInAndStatusNot(anyCollection(), eq(UnificacaoProdutoService.STATUS_UNIFICADO))).thenReturn(List.of(porNome));
+        when(produtoFornecedorRepository.findByFornecedorAndProdutoReferenciaIn(eq(fornecedor), anyCollection()))
+            .thenReturn(List.of(vinculoExistente));
+        when(estoqueProdutoRepository.findByUnidadeAndProdutoFornecedorIn(eq(unidade), anyCollection()))
+            .thenReturn(List.of(estoqueExistente));
+
+        processamentoNFeService.processarNFe(nfeData, unidade, importacao);
+
+        List<ProdutoReferencia> novos = capturarSaveAll(produtoReferenciaRepository);
+        assertEquals(1, novos.size());
+        assertEquals(nfeData.getItens().get(2).getNomeProduto(), novos.get(0).getNome());
+
+        List<ProdutoFornecedor> vinculos = capturarSaveAll(produtoFornecedorRepository);
+        assertEquals(3, vinculos.size());
+        assertTrue(vinculos.contains(vinculoExistente));
+        assertEquals(nfeData.getItens().get(0).getValorUnitario(), vinculoExistente.getPrecoCompra());
+
+        // O estoque existente só recebe a movimentação no razão, sem regravar a entidade lida
+        List<EstoqueProduto> estoques = capturarSaveAll(estoqueProdutoRepository);
+        assertEquals(2, estoques.size());
+        assertFalse(estoques.contains(estoqueExistente));
+        assertEquals(5, estoqueExistente.getQuantidadeAtual());
+        assertEquals(2, capturarSaveAll(snapshotEstoqueRepository).size());
+
+        List<MovimentacaoEstoque> movimentacoes = capturarSaveAll(movimentacaoEstoqueRepository);
+        assertEquals(3, movimentacoes.size());
+        MovimentacaoEstoque movimentacao = movimentacoes.get(0);
+        assertSame(estoqueExistente, movimentacao.getEstoqueProduto());
+        assertEquals(MovimentacaoEstoque.TIPO_COMPRA, movimentacao.getTipo());
+        assertEquals(nfeData.getItens().get(0).getQuantidade(), movimentacao.getQuantidade());
+        assertEquals(nfeData.getItens().get(0).getValorUnitario(), movimentacao.getValorUnitario());
+        assertNotNull(movimentacao.getNotaFiscalItem());
+    }
+
+    @Test
+    @DisplayName("Itens repetidos na nota devem usar o mesmo produto e acumular no mesmo estoque")
+    void testItensRepetidos() {
+        NFeXmlData nfeData = criarNota(1);
+        NFeXmlData.ItemNFeDados repetido = criarItem(0);
+        repetido.setQuantidade(7);
+        nfeData.getItens().add(repetido);
+        nfeData.setValorTotal(nfeData.getItens().stream()
+            .map(NFeXmlData.ItemNFeDados::getValorTotal).reduce(BigDecimal.ZERO, BigDecimal::add));
+
+        processamentoNFeService.processarNFe(nfeData, unidade, importacao);
+
+        assertEquals(1, capturarSaveAll(produtoReferenciaRepository).size());
+        assertEquals(1, capturarSaveAll(produtoFornecedorRepository).size());
+        List<EstoqueProduto> estoques = capturarSaveAll(estoqueProdutoRepository);
+        assertEquals(1, estoques.size());
+        assertEquals(nfeData.getItens().get(0).getQuantidade() + 7, estoques.get(0).getQuantidadeAtual());
+        assertEquals(2, capturarSaveAll(movimentacaoEstoqueRepository).size());
+        assertEquals(2, capturarSaveAll(notaFiscalItemRepository).size());
+    }
+
+    @Test
+    @DisplayName("Notas seguintes do mesmo fornecedor não devem consultar nem gravar o fornecedor")
+    void testFornecedorEmCache() {
+        processamentoNFeService.processarNFe(criarNota(1), unidade, importacao);
+        clearInvocations(fornecedorRepository);
+
+        ProcessamentoNFeService.ProcessamentoResult result =
+            processamentoNFeService.processarNFe(criarNota(1), unidade, importacao);
+
+        assertTrue(result.isSucesso());
+        assertSame(fornecedor, result.getFornecedor());
+        verifyNoInteractions(fornecedorRepository);
+        assertEquals(1, fornecedorCacheService.getAcertos());
+        assertEquals(1, fornecedorCacheService.getFalhas());
+    }
+
+    @Test
+    @DisplayName("Fornecedor sem alteração de dados não deve ser gravado")
+    void testFornecedorSemAlteracao() {
+        fornecedor.setRazaoSocial("Fornecedor Teste Ltda");
+
+        processamentoNFeService.processarNFe(criarNota(1), unidade, importacao);
+
+        verify(fornecedorRepository).findByCnpj("11222333000144");
+        verify(fornecedorRepository, never()).save(any());
+    }
+
+    @Test
+    @DisplayName("Dados do emitente diferentes do cadastro em cache devem atualizar o fornecedor")
+    void testFornecedorAlterado() {
+        processamentoNFeService.processarNFe(criarNota(1), unidade, importacao);
+        NFeXmlData nfeData = criarNota(1);
+        nfeData.getEmitente().setTelefone("1133334444");
+
+        processamentoNFeService.processarNFe(nfeData, unidade, importacao);
+
+        ArgumentCaptor<Fornecedor> captor = ArgumentCaptor.forClass(Fornecedor.class);
+        verify(fornecedorRepository).save(captor.capture());
+        assertEquals("1133334444", captor.getValue().getTelefone());
+        assertEquals(1, fornecedorCacheService.getAcertos());
+    }
+
+    private int contarChamadasRepositorios(int quantidadeItens) {
+        Object[] repositorios = {fornecedorRepository, produtoReferenciaRepository, produtoFornecedorRepository,
+            estoqueProdutoRepository, movimentacaoEstoqueRepository, snapshotEstoqueRepository, notaFiscalRepository,
+            notaFiscalItemRepository, inconsistenciaRepository};
+        clearInvocations(repositorios);
+        fornecedorCacheService.invalidarTodos();
+
+        ProcessamentoNFeService.ProcessamentoResult result =
+            processamentoNFeService.processarNFe(criarNota(quantidadeItens), unidade, importacao);
+        assertTrue(result.isSucesso());
+        assertEquals(quantidadeItens, result.getItensProcessados().size());
+
+        int chamadas = 0;
+        for (Object repositorio : repositorios) {
+            chamadas += mockingDetails(repositorio).getInvocations().size();
+        }
+        return chamadas;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> List<T> capturarSaveAll(JpaRepository<T, Long> repositorio) {
+        ArgumentCaptor<Iterable<T>> captor = ArgumentCaptor.forClass(Iterable.class);
+        verify(repositorio).saveAll(captor.capture());
+        return StreamSupport.stream(captor.getValue().spliterator(), false).collect(Collectors.toList());
+    }
+
+    private static ProdutoReferencia produtoReferencia(Long id, String ean, String nome) {
+        ProdutoReferencia produto = new ProdutoReferencia();
+        produto.setId(id);
+        produto.setEan(ean);
+        produto.setNome(nome);
+        return produto;
+    }
+
+    private static NFeXmlData criarNota(int quantidadeItens) {
+        NFeXmlData nfeData = new NFeXmlData();
+        nfeData.setChaveAcesso("35240111222333000144550010000012341234567890");
+        nfeData.setNumero("1234");
+        nfeData.setDataEmissao(new Date());
+        nfeData.setTipoOperacao("COMPRA");
+
+        NFeXmlData.EmitenteDados emitente = new NFeXmlData.EmitenteDados();
+        emitente.setCnpj("11222333000144");
+        emitente.setRazaoSocial("Fornecedor Teste Ltda");
+        nfeData.setEmitente(emitente);
+
+        nfeData.setItens(new ArrayList<>());
+        BigDecimal total = BigDecimal.ZERO;
+        for (int i = 0; i < quantidadeItens; i++) {
+            NFeXmlData.ItemNFeDados item = criarItem(i);
+            nfeData.getItens().add(item);
+            total = total.add(item.getValorTotal());
+        }
+        nfeData.setValorTotal(total);
+        return nfeData;
+    }
+
+    private static NFeXmlData.ItemNFeDados criarItem(int indice) {
+        NFeXmlData.ItemNFeDados item = new NFeXmlData.ItemNFeDados();
+        item.setCodigoProduto("PROD" + indice);
+        item.setNomeProduto("Produto " + indice);
+        item.setEan(gerarEan(indice));
+        item.setNcm("30049099");
+        item.setCfop("1102");
+        item.setLote("L" + indice);
+        item.setQuantidade(2);
+        item.setValorUnitario(new BigDecimal("10.00"));
+        item.setValorTotal(new BigDecimal("20.00"));
+        return item;
+    }
+
+    private static String gerarEan(int indice) {
+        String base = String.format("789%09d", indice);
+        int soma = 0;
+        for (int i = 0; i < 12; i++) {
+            int digito = base.charAt(i) - '0';
+            soma += (i % 2 == 0) ? digito : digito * 3;
+        }
+        return base + (10 - soma % 10) % 10;
+    }
+}
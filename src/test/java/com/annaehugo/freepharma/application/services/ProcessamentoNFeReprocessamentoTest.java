@@ -0,0 +1,207 @@
+package com.annaehugo.freepharma.application.services;
+
+import com.annaehugo.freepharma.application.dto.fiscal.NFeXmlData;
+import com.annaehugo.freepharma.application.services.ProcessamentoNFeService.Diferencas;
+import com.annaehugo.freepharma.application.services.ProcessamentoNFeService.ProcessamentoResult;
+import com.annaehugo.freepharma.domain.entity.administrativo.Farmacia;
+import com.annaehugo.freepharma.domain.entity.administrativo.Unidade;
+import com.annaehugo.freepharma.domain.entity.estoque.MovimentacaoEstoque;
+import com.annaehugo.freepharma.domain.entity.fiscal.Inconsistencia;
+import com.annaehugo.freepharma.domain.entity.fiscal.NotaFiscalItem;
+import com.annaehugo.freepharma.domain.entity.fiscal.TipoInconsistencia;
+import com.annaehugo.freepharma.domain.repository.estoque.MovimentacaoEstoqueRepository;
+import com.annaehugo.freepharma.domain.repository.fiscal.InconsistenciaRepository;
+import com.annaehugo.freepharma.domain.repository.fiscal.NotaFiscalItemRepository;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+import org.springframework.boot.test.autoconfigure.orm.jpa.TestEntityManager;
+import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.context.annotation.Import;
+import org.springframework.test.context.TestPropertySource;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@DataJpaTest
+@Import({ProcessamentoNFeService.class, EstoqueProdutoService.class, SaldoEstoqueService.class,
+    RegraValidacaoFiscalService.class, FornecedorCacheService.class,
+    CodigoInternoService.class, IndiceNomesProdutoService.class})
+@TestPropertySource(properties = "spring.jpa.properties.hibernate.dialect=org.hibernate.dialect.H2Dialect")
+@DisplayName("ProcessamentoNFeService - Reprocessamento gravando apenas as diferenças")
+class ProcessamentoNFeReprocessamentoTest {
+
+    private static final String CHAVE = "35240111222333000144550010000012341234567890";
+    private static final Date EMISSAO = new Date();
+
+    @Autowired
+    private ProcessamentoNFeService processamentoNFeService;
+
+    @MockBean
+    private NFeDuplicidadeService nfeDuplicidadeService;
+
+    @Autowired
+    private NotaFiscalItemRepository notaFiscalItemRepository;
+
+    @Autowired
+    private MovimentacaoEstoqueRepository movimentacaoEstoqueRepository;
+
+    @Autowired
+    private InconsistenciaRepository inconsistenciaRepository;
+
+    @Autowired
+    private TestEntityManager entityManager;
+
+    private Unidade unidade;
+
+    @BeforeEach
+    void setUp() {
+        Farmacia farmacia = entityManager.persist(new Farmacia());
+        unidade = new Unidade();
+        unidade.setFarmacia(farmacia);
+        unidade = entityManager.persist(unidade);
+    }
+
+    @Test
+    @DisplayName("Reprocessar a mesma nota não deve gravar nada")
+    void testReprocessarSemDiferencas() {
+        NFeXmlData nota = criarNota(item(0, "L0", 10), item(1, "L1", 5));
+        assertTrue(processar(nota).isSucesso());
+        long movimentacoes = movimentacaoEstoqueRepository.count();
+
+        ProcessamentoResult result = reprocessar(criarNota(item(0, "L0", 10), item(1, "L1", 5)));
+
+        assertTrue(result.isSucesso());
+        Diferencas diferencas = result.getDiferencas();
+        assertTrue(diferencas.isVazia());
+        assertEquals(2, diferencas.getItensInalterados());
+        assertEquals(movimentacoes, movimentacaoEstoqueRepository.count());
+        assertEquals(2, notaFiscalItemRepository.findByNotaFiscalIdAndAtivoTrueOrderById(
+            result.getNotaFiscal().getId()).size());
+    }
+
+    @Test
+    @DisplayName("Deve alterar, incluir e remover itens lançando no estoque apenas a diferença")
+    void testReprocessarComDiferencas() {
+        assertTrue(processar(criarNota(item(0, "L0", 10), item(1, "L1", 5))).isSucesso());
+
+        ProcessamentoResult result = reprocessar(criarNota(item(0, "L0", 12), item(2, "L2", 3)));
+
+        assertTrue(result.isSucesso());
+        Diferencas diferencas = result.getDiferencas();
+        assertEquals(1, diferencas.getItensAlterados());
+        assertEquals(1, diferencas.getItensIncluidos());
+        assertEquals(1, diferencas.getItensRemovidos());
+
+        Long notaFiscalId = result.getNotaFiscal().getId();
+        List<NotaFiscalItem> ativos = notaFiscalItemRepository.findByNotaFiscalIdAndAtivoTrueOrderById(notaFiscalId);
+        assertEquals(2, ativos.size());
+        assertEquals(0, new BigDecimal("12").compareTo(ativos.get(0).getQuantidade()));
+
+        Map<String, Integer> saldoPorLote = new HashMap<>();
+        for (MovimentacaoEstoque movimentacao : movimentacaoEstoqueRepository.findAll()) {
+            saldoPorLote.merge(movimentacao.getEstoqueProduto().getLote(), movimentacao.getQuantidade(), Integer::sum);
+        }
+        assertEquals(12, saldoPorLote.get("L0"));
+        assertEquals(0, saldoPorLote.get("L1"));
+        assertEquals(3, saldoPorLote.get("L2"));
+        assertEquals(2, movimentacaoEstoqueRepository.findAll().stream()
+            .filter(m -> MovimentacaoEstoque.TIPO_REPROCESSAMENTO.equals(m.getTipo())).count());
+
+        // Uma segunda passada com a mesma nota já não encontra diferenças
+        assertTrue(reprocessar(criarNota(item(0, "L0", 12), item(2, "L2", 3))).getDiferencas().isVazia());
+    }
+
+    @Test
+    @DisplayName("Deve resolver a inconsistência que a nota corrigida não apresenta mais")
+    void testResolverInconsistencias() {
+        NFeXmlData divergente = criarNota(item(0, "L0", 10));
+        divergente.setValorTotal(new BigDecimal("999.00"));
+        ProcessamentoResult original = processar(divergente);
+        assertEquals(1, original.getQuantidadeInconsistencias());
+
+        NFeXmlData aindaDivergente = criarNota(item(0, "L0", 10));
+        aindaDivergente.setValorTotal(new BigDecimal("999.00"));
+        assertEquals(0, reprocessar(aindaDivergente).getDiferencas().getInconsistenciasIncluidas());
+
+        ProcessamentoResult corrigida = reprocessar(criarNota(item(0, "L0", 10)));
+
+        assertEquals(1, corrigida.getDiferencas().getInconsistenciasResolvidas());
+        List<Inconsistencia> inconsistencias = inconsistenciaRepository.findByNotaFiscalId(
+            corrigida.getNotaFiscal().getId());
+        assertEquals(1, inconsistencias.size());
+        assertEquals(TipoInconsistencia.VALOR_TOTAL_DIVERGENTE, inconsistencias.get(0).getTipo());
+        assertEquals("RESOLVIDA", inconsistencias.get(0).getStatus());
+        assertNotNull(inconsistencias.get(0).getDataResolucao());
+    }
+
+    @Test
+    @DisplayName("Nota que não foi gravada deve ser processada como nova")
+    void testReprocessarNotaNova() {
+        ProcessamentoResult result = reprocessar(criarNota(item(0, "L0", 4)));
+
+        assertTrue(result.isSucesso());
+        assertTrue(result.getDiferencas().isNotaIncluida());
+        assertEquals(1, result.getDiferencas().getItensIncluidos());
+        assertEquals(4, movimentacaoEstoqueRepository.findAll().get(0).getQuantidade());
+    }
+
+    private ProcessamentoResult processar(NFeXmlData nota) {
+        ProcessamentoResult result = processamentoNFeService.processarNFe(nota, unidade, null);
+        entityManager.flush();
+        entityManager.clear();
+        return result;
+    }
+
+    private ProcessamentoResult reprocessar(NFeXmlData nota) {
+        ProcessamentoResult result = processamentoNFeService.reprocessarNFe(nota, unidade, null,
+            processamentoNFeService.validarNFe(nota, new Date()));
+        entityManager.flush();
+        entityManager.clear();
+        return result;
+    }
+
+    private static NFeXmlData criarNota(NFeXmlData.ItemNFeDados... itens) {
+        NFeXmlData nfeData = new NFeXmlData();
+        nfeData.setChaveAcesso(CHAVE);
+        nfeData.setNumero("1234");
+        nfeData.setDataEmissao(EMISSAO);
+        nfeData.setTipoOperacao("COMPRA");
+
+        NFeXmlData.EmitenteDados emitente = new NFeXmlData.EmitenteDados();
+        emitente.setCnpj("11222333000144");
+        emitente.setRazaoSocial("Fornecedor Teste Ltda");
+        nfeData.setEmitente(emitente);
+
+        nfeData.setItens(new ArrayList<>());
+        BigDecimal total = BigDecimal.ZERO;
+        for (NFeXmlData.ItemNFeDados item : itens) {
+            nfeData.getItens().add(item);
+            total = total.add(item.getValorTotal());
+        }
+        nfeData.setValorTotal(total);
+        return nfeData;
+    }
+
+    private static NFeXmlData.ItemNFeDados item(int indice, String lote, int quantidade) {
+        NFeXmlData.ItemNFeDados item = new NFeXmlData.ItemNFeDados();
+        item.setCodigoProduto("PROD" + indice);
+        item.setNomeProduto("Produto " + indice);
+        item.setEan(String.format("789%010d", indice));
+        item.setNcm("30049099");
+        item.setCfop("1102");
+        item.setLote(lote);
+        item.setQuantidade(quantidade);
+        item.setValorUnitario(new BigDecimal("10.00"));
+        item.setValorTotal(new BigDecimal("10.00").multiply(BigDecimal.valueOf(quantidade)));
+        return item;
+    }
+}
@@ -16,10 +16,12 @@ import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
+import org.mockito.Spy;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.test.context.junit.jupiter.SpringJUnitConfig;
 
 import java.math.BigDecimal;
+import java.time.Duration;
 import java.util.Arrays;
 import java.util.Optional;
 
@@ -43,6 +45,12 @@ public class ProcessamentoNFeServiceTest {
     @Mock
     private EstoqueProdutoRepository estoqueProdutoRepository;
     
+    @Mock
+    private MovimentacaoEstoqueRepository movimentacaoEstoqueRepository;
+    
+    @Mock
+    private SnapshotEstoqueRepository snapshotEstoqueRepository;
+    
     @Mock
     private NotaFiscalRepository notaFiscalRepository;
     
@@ -55,6 +63,21 @@ public class ProcessamentoNFeServiceTest {
     @Mock
     private EstoqueProdutoService estoqueProdutoService;
     
+    @Mock
+    private NFeDuplicidadeService nfeDuplicidadeService;
+    @Spy
+    private RegraValidacaoFiscalService regraValidacaoFiscalService =
+        new RegraValidacaoFiscalService(mock(RegraValidacaoFiscalRepository.class), Duration.ofMinutes(5));
+
+    @Spy
+    private FornecedorCacheService fornecedorCacheService = new FornecedorCacheService(100);
+
+    @Mock
+    private CodigoInternoService codigoInternoService;
+
+    @Mock
+    private IndiceNomesProdutoService indiceNomesProdutoService;
+    
     @InjectMocks
     private ProcessamentoNFeService processamentoService;
     
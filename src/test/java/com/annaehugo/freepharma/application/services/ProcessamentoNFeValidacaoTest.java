@@ -12,13 +12,18 @@ import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
+import org.mockito.Spy;
 import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.test.util.ReflectionTestUtils;
 
 import java.math.BigDecimal;
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.Calendar;
+import java.util.List;
 import java.util.Optional;
+import java.util.stream.Collectors;
 
 import static org.junit.jupiter.api.Assertions.*;
 import static org.mockito.ArgumentMatchers.*;
@@ -40,6 +45,10 @@ class ProcessamentoNFeValidacaoTest {
     @Mock
     private EstoqueProdutoRepository estoqueProdutoRepository;
     @Mock
+    private MovimentacaoEstoqueRepository movimentacaoEstoqueRepository;
+    @Mock
+    private SnapshotEstoqueRepository snapshotEstoqueRepository;
+    @Mock
     private NotaFiscalRepository notaFiscalRepository;
     @Mock
     private NotaFiscalItemRepository notaFiscalItemRepository;
@@ -47,6 +56,20 @@ class ProcessamentoNFeValidacaoTest {
     private InconsistenciaRepository inconsistenciaRepository;
     @Mock
     private EstoqueProdutoService estoqueProdutoService;
+    @Mock
+    private NFeDuplicidadeService nfeDuplicidadeService;
+    @Spy
+    private RegraValidacaoFiscalService regraValidacaoFiscalService =
+        new RegraValidacaoFiscalService(mock(RegraValidacaoFiscalRepository.class), Duration.ofMinutes(5));
+
+    @Spy
+    private FornecedorCacheService fornecedorCacheService = new FornecedorCacheService(100);
+
+    @Mock
+    private CodigoInternoService codigoInternoService;
+
+    @Mock
+    private IndiceNomesProdutoService indiceNomesProdutoService;
 
     @InjectMocks
     private ProcessamentoNFeService processamentoNFeService;
@@ -116,9 +139,6 @@ class ProcessamentoNFeValidacaoTest {
         notaFiscalMock.setFornecedor(fornecedorMock);
         notaFiscalMock.setUnidade(unidade);
         
-        Inconsistencia inconsistenciaMock = new Inconsistencia();
-        inconsistenciaMock.setId(1L);
-        
         // Configurar mocks básicos
         when(fornecedorRepository.save(any(Fornecedor.class))).thenReturn(fornecedorMock);
         when(fornecedorRepository.findByCnpj(anyString())).thenReturn(Optional.empty());
@@ -131,7 +151,6 @@ class ProcessamentoNFeValidacaoTest {
         when(notaFiscalItemRepository.save(any(NotaFiscalItem.class))).thenReturn(new NotaFiscalItem());
         when(estoqueProdutoRepository.save(any(EstoqueProduto.class))).thenReturn(new EstoqueProduto());
         when(estoqueProdutoRepository.findByProdutoFornecedorAndUnidadeAndLote(any(), any(), anyString())).thenReturn(Optional.empty());
-        when(inconsistenciaRepository.save(any(Inconsistencia.class))).thenReturn(inconsistenciaMock);
     }
 
     @Test
@@ -146,7 +165,8 @@ class ProcessamentoNFeValidacaoTest {
 
         // Then
         assertTrue(result.isSucesso());
-        verify(inconsistenciaRepository, atLeastOnce()).save(any(Inconsistencia.class));
+        assertFalse(result.getInconsistencias().isEmpty());
+        verify(inconsistenciaRepository, times(1)).saveAll(result.getInconsistencias());
     }
 
     @Test
@@ -162,7 +182,8 @@ class ProcessamentoNFeValidacaoTest {
 
         // Then
         assertTrue(result.isSucesso());
-        verify(inconsistenciaRepository, atLeastOnce()).save(any(Inconsistencia.class));
+        assertFalse(result.getInconsistencias().isEmpty());
+        verify(inconsistenciaRepository, times(1)).saveAll(result.getInconsistencias());
     }
 
     @Test
@@ -178,7 +199,8 @@ class ProcessamentoNFeValidacaoTest {
 
         // Then
         assertTrue(result.isSucesso());
-        verify(inconsistenciaRepository, atLeastOnce()).save(any(Inconsistencia.class));
+        assertFalse(result.getInconsistencias().isEmpty());
+        verify(inconsistenciaRepository, times(1)).saveAll(result.getInconsistencias());
     }
 
     @Test
@@ -192,7 +214,8 @@ class ProcessamentoNFeValidacaoTest {
 
         // Then
         assertTrue(result.isSucesso());
-        verify(inconsistenciaRepository, atLeastOnce()).save(any(Inconsistencia.class));
+        assertFalse(result.getInconsistencias().isEmpty());
+        verify(inconsistenciaRepository, times(1)).saveAll(result.getInconsistencias());
     }
 
     @Test
@@ -206,7 +229,8 @@ class ProcessamentoNFeValidacaoTest {
 
         // Then
         assertTrue(result.isSucesso());
-        verify(inconsistenciaRepository, atLeastOnce()).save(any(Inconsistencia.class));
+        assertFalse(result.getInconsistencias().isEmpty());
+        verify(inconsistenciaRepository, times(1)).saveAll(result.getInconsistencias());
     }
 
     @Test
@@ -220,7 +244,8 @@ class ProcessamentoNFeValidacaoTest {
 
         // Then
         assertTrue(result.isSucesso());
-        verify(inconsistenciaRepository, atLeastOnce()).save(any(Inconsistencia.class));
+        assertFalse(result.getInconsistencias().isEmpty());
+        verify(inconsistenciaRepository, times(1)).saveAll(result.getInconsistencias());
     }
 
     @Test
@@ -234,7 +259,8 @@ class ProcessamentoNFeValidacaoTest {
 
         // Then
         assertTrue(result.isSucesso());
-        verify(inconsistenciaRepository, atLeastOnce()).save(any(Inconsistencia.class));
+        assertFalse(result.getInconsistencias().isEmpty());
+        verify(inconsistenciaRepository, times(1)).saveAll(result.getInconsistencias());
     }
 
     @Test
@@ -248,7 +274,8 @@ class ProcessamentoNFeValidacaoTest {
 
         // Then
         assertTrue(result.isSucesso());
-        verify(inconsistenciaRepository, atLeastOnce()).save(any(Inconsistencia.class));
+        assertFalse(result.getInconsistencias().isEmpty());
+        verify(inconsistenciaRepository, times(1)).saveAll(result.getInconsistencias());
     }
 
     @Test
@@ -265,7 +292,8 @@ class ProcessamentoNFeValidacaoTest {
 
         // Then
         assertTrue(result.isSucesso());
-        verify(inconsistenciaRepository, atLeastOnce()).save(any(Inconsistencia.class));
+        assertFalse(result.getInconsistencias().isEmpty());
+        verify(inconsistenciaRepository, times(1)).saveAll(result.getInconsistencias());
     }
 
     @Test
@@ -282,7 +310,8 @@ class ProcessamentoNFeValidacaoTest {
 
         // Then
         assertTrue(result.isSucesso());
-        verify(inconsistenciaRepository, atLeastOnce()).save(any(Inconsistencia.class));
+        assertFalse(result.getInconsistencias().isEmpty());
+        verify(inconsistenciaRepository, times(1)).saveAll(result.getInconsistencias());
     }
 
     @Test
@@ -303,7 +332,134 @@ class ProcessamentoNFeValidacaoTest {
 
         // Then
         assertTrue(result.isSucesso());
-        verify(inconsistenciaRepository, atLeastOnce()).save(any(Inconsistencia.class));
+        assertFalse(result.getInconsistencias().isEmpty());
+        verify(inconsistenciaRepository, times(1)).saveAll(result.getInconsistencias());
+    }
+
+    @Test
+    void processarNFe_ComVariasInconsistencias_DeveGravarEmUmUnicoLote() {
+        // Given - item com NCM, CFOP e valor unitário inválidos e total divergente
+        NFeXmlData.ItemNFeDados item = nfeData.getItens().get(0);
+        item.setNcm("ABCD1234");
+        item.setCfop("ABCD");
+        item.setValorUnitario(BigDecimal.ZERO);
+        nfeData.setValorTotal(new BigDecimal("150.00"));
+
+        // When
+        ProcessamentoNFeService.ProcessamentoResult result =
+            processamentoNFeService.processarNFe(nfeData, unidade, importacao);
+
+        // Then
+        assertTrue(result.isSucesso());
+        assertEquals(4, result.getQuantidadeInconsistencias());
+        verify(inconsistenciaRepository, times(1)).saveAll(result.getInconsistencias());
+        verify(inconsistenciaRepository, never()).save(any());
+    }
+
+    @Test
+    void processarNFe_ComMuitasInconsistencias_DeveGravarPorLote() {
+        // Given - itens suficientes para encher dois lotes e sobrar uma parte
+        int quantidadeItens = ProcessamentoNFeService.TAMANHO_LOTE_INCONSISTENCIAS * 2 + 10;
+        NFeXmlData.ItemNFeDados modelo = nfeData.getItens().get(0);
+        nfeData.getItens().clear();
+        for (int i = 0; i < quantidadeItens; i++) {
+            NFeXmlData.ItemNFeDados item = new NFeXmlData.ItemNFeDados();
+            item.setCodigoProduto("PROD" + i);
+            item.setNomeProduto("Produto Teste " + i);
+            item.setQuantidade(1);
+            item.setValorUnitario(modelo.getValorUnitario());
+            item.setValorTotal(modelo.getValorTotal());
+            item.setNcm(modelo.getNcm());
+            item.setCfop("ABCD");
+            nfeData.getItens().add(item);
+        }
+        nfeData.setValorTotal(modelo.getValorTotal().multiply(BigDecimal.valueOf(quantidadeItens)));
+
+        // When
+        ProcessamentoNFeService.ProcessamentoResult result =
+            processamentoNFeService.processarNFe(nfeData, unidade, importacao);
+
+        // Then
+        assertTrue(result.isSucesso());
+        assertEquals(quantidadeItens, result.getQuantidadeInconsistencias());
+        verify(inconsistenciaRepository, times(3)).saveAll(anyList());
+        verify(inconsistenciaRepository, times(1))
+            .saveAll(result.getInconsistencias().subList(quantidadeItens - 10, quantidadeItens));
+    }
+
+    @Test
+    void processarNFe_ComRegraBloqueante_NaoDeveProcessarItem() {
+        // Given - regra bloqueante que limita a quantidade por item
+        RegraValidacaoFiscal regra = new RegraValidacaoFiscal();
+        regra.setNome("QUANTIDADE_MAXIMA");
+        regra.setTipoInconsistencia(TipoInconsistencia.ESTOQUE_INSUFICIENTE);
+        regra.setSeveridade("ALTA");
+        regra.setBloqueante(true);
+        regra.setMensagemErro("Quantidade acima do permitido para {codigoProduto}: {quantidade}");
+        doReturn(List.of(new RegraValidacaoFiscalService.RegraCompilada(regra, CondicaoRegraFiscal.compilar("quantidade <= 100"))))
+            .when(regraValidacaoFiscalService).getRegras();
+        nfeData.getItens().get(0).setQuantidade(500);
+
+        // When
+        ProcessamentoNFeService.ProcessamentoResult result =
+            processamentoNFeService.processarNFe(nfeData, unidade, importacao);
+
+        // Then
+        assertTrue(result.isSucesso());
+        assertTrue(result.getItensProcessados().isEmpty());
+        assertEquals(1, result.getQuantidadeInconsistencias());
+        assertEquals("Quantidade acima do permitido para PROD001: 500", result.getInconsistencias().get(0).getDescricao());
+        assertEquals(TipoInconsistencia.ESTOQUE_INSUFICIENTE, result.getInconsistencias().get(0).getTipo());
+        assertTrue(result.getErros().get(0).contains("bloqueado pela regra QUANTIDADE_MAXIMA"));
+    }
+
+    @Test
+    void validarNFe_NaoDeveAcessarOBanco() {
+        // Given - nota com inconsistências de item e de total
+        nfeData.getItens().get(0).setNcm("ABCD1234");
+        nfeData.setValorTotal(new BigDecimal("150.00"));
+
+        // When
+        ProcessamentoNFeService.ValidacaoNFe validacao = processamentoNFeService.validarNFe(nfeData);
+
+        // Then
+        assertEquals(2, validacao.getAchados().size());
+        verifyNoInteractions(fornecedorRepository, produtoReferenciaRepository, produtoFornecedorRepository,
+            estoqueProdutoRepository, notaFiscalRepository, notaFiscalItemRepository, inconsistenciaRepository);
+    }
+
+    @Test
+    void validarNFe_EmParalelo_DeveManterAOrdemDosAchados() {
+        // Given - nota grande com itens inválidos de formas diferentes
+        NFeXmlData.ItemNFeDados modelo = nfeData.getItens().get(0);
+        nfeData.getItens().clear();
+        for (int i = 0; i < 3000; i++) {
+            NFeXmlData.ItemNFeDados item = new NFeXmlData.ItemNFeDados();
+            item.setCodigoProduto("PROD" + i);
+            item.setNomeProduto(i % 7 == 0 ? "Xarope " + i : "Produto Teste " + i);
+            item.setQuantidade(i % 5 == 0 ? 0 : 1);
+            item.setValorUnitario(modelo.getValorUnitario());
+            item.setValorTotal(modelo.getValorTotal());
+            item.setNcm(i % 3 == 0 ? "ABC" : modelo.getNcm());
+            item.setCfop(i % 4 == 0 ? "X1" : modelo.getCfop());
+            nfeData.getItens().add(item);
+        }
+
+        // When
+        ReflectionTestUtils.setField(processamentoNFeService, "limiarValidacaoParalela", Integer.MAX_VALUE);
+        ProcessamentoNFeService.ValidacaoNFe sequencial = processamentoNFeService.validarNFe(nfeData);
+        ReflectionTestUtils.setField(processamentoNFeService, "limiarValidacaoParalela", 1);
+        ProcessamentoNFeService.ValidacaoNFe paralela = processamentoNFeService.validarNFe(nfeData);
+
+        // Then
+        assertTrue(sequencial.getAchados().size() > 3000);
+        assertEquals(descricoes(sequencial), descricoes(paralela));
+    }
+
+    private static List<String> descricoes(ProcessamentoNFeService.ValidacaoNFe validacao) {
+        return validacao.getAchados().stream()
+            .map(achado -> achado.getTipo() + " " + achado.getSeveridade() + " " + achado.getDescricao())
+            .collect(Collectors.toList());
     }
 
     @Test
@@ -0,0 +1,153 @@
+package com.annaehugo.freepharma.application.services;
+
+import com.annaehugo.freepharma.application.dto.fiscal.NFeXmlData;
+import com.annaehugo.freepharma.domain.entity.fiscal.RegraValidacaoFiscal;
+import com.annaehugo.freepharma.domain.entity.fiscal.TipoInconsistencia;
+import com.annaehugo.freepharma.domain.repository.fiscal.RegraValidacaoFiscalRepository;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.mockito.junit.jupiter.MockitoSettings;
+import org.mockito.quality.Strictness;
+
+import java.math.BigDecimal;
+import java.time.Duration;
+import java.util.Date;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+@MockitoSettings(strictness = Strictness.LENIENT)
+@DisplayName("RegraValidacaoFiscalService - Regras compiladas e recarga")
+class RegraValidacaoFiscalServiceTest {
+
+    @Mock
+    private RegraValidacaoFiscalRepository regraValidacaoFiscalRepository;
+
+    private RegraValidacaoFiscalService service;
+
+    @BeforeEach
+    void setUp() {
+        service = new RegraValidacaoFiscalService(regraValidacaoFiscalRepository, Duration.ofMinutes(5));
+        when(regraValidacaoFiscalRepository.findByModuloIgnoreCase(RegraValidacaoFiscalService.MODULO_NFE))
+            .thenReturn(List.of());
+    }
+
+    @Test
+    @DisplayName("Sem regras no banco deve usar as regras padrão em ordem de execução")
+    void testRegrasPadrao() {
+        List<String> nomes = nomes(service.getRegras());
+
+        assertEquals(List.of("NCM_INVALIDO", "CFOP_INVALIDO", "EAN_INVALIDO", "VALOR_UNITARIO_INVALIDO",
+            "QUANTIDADE_INVALIDA", "LOTE_OBRIGATORIO", "NCM_MEDICAMENTO_INCORRETO", "PRODUTO_PROXIMO_VENCIMENTO"), nomes);
+        assertTrue(service.getRegrasInvalidas().isEmpty());
+    }
+
+    @Test
+    @DisplayName("Deve carregar as regras uma única vez dentro do intervalo de recarga")
+    void testCargaUnica() {
+        List<RegraValidacaoFiscalService.RegraCompilada> primeira = service.getRegras();
+        List<RegraValidacaoFiscalService.RegraCompilada> segunda = service.getRegras();
+
+        assertSame(primeira, segunda);
+        verify(regraValidacaoFiscalRepository, times(1)).findByModuloIgnoreCase(anyString());
+    }
+
+    @Test
+    @DisplayName("Regras do banco devem substituir, desligar ou se somar às padrão")
+    void testRegrasDoBanco() {
+        RegraValidacaoFiscal cfop = regra("CFOP_INVALIDO", "cfop ~ \"[125]\\d{3}\"", 20);
+        RegraValidacaoFiscal semLote = regra("LOTE_OBRIGATORIO", "lote != null", 60);
+        semLote.setAtivo(Boolean.FALSE);
+        RegraValidacaoFiscal nova = regra("UNIDADE_MEDIDA", "preenchido(unidadeMedida)", 5);
+        when(regraValidacaoFiscalRepository.findByModuloIgnoreCase(RegraValidacaoFiscalService.MODULO_NFE))
+            .thenReturn(List.of(cfop, semLote, nova));
+
+        List<RegraValidacaoFiscalService.RegraCompilada> regras = service.recarregar();
+
+        List<String> nomes = nomes(regras);
+        assertEquals("UNIDADE_MEDIDA", nomes.get(0));
+        assertFalse(nomes.contains("LOTE_OBRIGATORIO"));
+        assertSame(cfop, regras.get(nomes.indexOf("CFOP_INVALIDO")).getRegra());
+    }
+
+    @Test
+    @DisplayName("Regra com condição inválida deve ser ignorada sem afetar as demais")
+    void testRegraInvalida() {
+        when(regraValidacaoFiscalRepository.findByModuloIgnoreCase(RegraValidacaoFiscalService.MODULO_NFE))
+            .thenReturn(List.of(regra("QUEBRADA", "quantidade >", 1), regra("SEM_CONDICAO", null, 2)));
+
+        List<String> nomes = nomes(service.recarregar());
+
+        assertFalse(nomes.contains("QUEBRADA"));
+        assertEquals(8, nomes.size());
+        assertTrue(service.getRegrasInvalidas().get("QUEBRADA").contains("Condição inválida"));
+        assertTrue(service.getRegrasInvalidas().containsKey("SEM_CONDICAO"));
+    }
+
+    @Test
+    @DisplayName("Deve recarregar as regras alteradas após o intervalo, sem reiniciar")
+    void testRecargaAutomatica() {
+        RegraValidacaoFiscalService recarregaSempre =
+            new RegraValidacaoFiscalService(regraValidacaoFiscalRepository, Duration.ZERO);
+        assertEquals(8, recarregaSempre.getRegras().size());
+
+        when(regraValidacaoFiscalRepository.findByModuloIgnoreCase(RegraValidacaoFiscalService.MODULO_NFE))
+            .thenReturn(List.of(regra("PRECO_MAXIMO", "valorUnitario <= 1000", 90)));
+
+        List<String> nomes = nomes(recarregaSempre.getRegras());
+        assertEquals(9, nomes.size());
+        assertEquals("PRECO_MAXIMO", nomes.get(8));
+    }
+
+    @Test
+    @DisplayName("Falha ao reler o banco deve manter as regras já carregadas")
+    void testFalhaNaRecarga() {
+        RegraValidacaoFiscalService recarregaSempre =
+            new RegraValidacaoFiscalService(regraValidacaoFiscalRepository, Duration.ZERO);
+        List<RegraValidacaoFiscalService.RegraCompilada> carregadas = recarregaSempre.getRegras();
+
+        when(regraValidacaoFiscalRepository.findByModuloIgnoreCase(anyString()))
+            .thenThrow(new RuntimeException("Conexão recusada"));
+
+        assertSame(carregadas, recarregaSempre.getRegras());
+    }
+
+    @Test
+    @DisplayName("Deve montar a mensagem com os campos do item")
+    void testMensagem() {
+        RegraValidacaoFiscal regra = regra("PRECO_MAXIMO", "valorUnitario <= 1000", 90);
+        regra.setMensagemErro("Preço {valorUnitario} acima do limite em {codigoProduto}");
+        RegraValidacaoFiscalService.RegraCompilada compilada =
+            new RegraValidacaoFiscalService.RegraCompilada(regra, CondicaoRegraFiscal.compilar(regra.getCondicaoValidacao()));
+
+        NFeXmlData.ItemNFeDados item = new NFeXmlData.ItemNFeDados();
+        item.setCodigoProduto("PROD9");
+        item.setValorUnitario(new BigDecimal("1500.00"));
+        CondicaoRegraFiscal.Contexto contexto = new CondicaoRegraFiscal.Contexto(item, new Date());
+
+        assertFalse(compilada.isValido(contexto));
+        assertEquals("Preço 1500.00 acima do limite em PROD9", compilada.mensagem(contexto));
+    }
+
+    private static RegraValidacaoFiscal regra(String nome, String condicao, int ordem) {
+        RegraValidacaoFiscal regra = new RegraValidacaoFiscal();
+        regra.setNome(nome);
+        regra.setDescricao(nome);
+        regra.setModulo(RegraValidacaoFiscalService.MODULO_NFE);
+        regra.setTipoInconsistencia(TipoInconsistencia.PRODUTO_NAO_CADASTRADO);
+        regra.setCondicaoValidacao(condicao);
+        regra.setOrdemExecucao(ordem);
+        return regra;
+    }
+
+    private static List<String> nomes(List<RegraValidacaoFiscalService.RegraCompilada> regras) {
+        return regras.stream().map(r -> r.getRegra().getNome()).collect(Collectors.toList());
+    }
+}
@@ -0,0 +1,135 @@
+package com.annaehugo.freepharma.application.services;
+
+import com.annaehugo.freepharma.application.dto.fiscal.NFeXmlData;
+import com.annaehugo.freepharma.application.services.ProcessamentoNFeService.Diferencas;
+import com.annaehugo.freepharma.application.services.ProcessamentoNFeService.ProcessamentoResult;
+import com.annaehugo.freepharma.application.services.ProcessamentoNFeService.ValidacaoNFe;
+import com.annaehugo.freepharma.domain.entity.fiscal.ImportacaoNFe;
+import com.annaehugo.freepharma.domain.entity.fiscal.LoteProcessamento;
+import com.annaehugo.freepharma.domain.entity.fiscal.StatusImportacao;
+import com.annaehugo.freepharma.domain.repository.fiscal.ImportacaoNFeRepository;
+import com.annaehugo.freepharma.domain.repository.fiscal.LoteProcessamentoRepository;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.mockito.junit.jupiter.MockitoSettings;
+import org.mockito.quality.Strictness;
+
+import java.io.ByteArrayInputStream;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+@MockitoSettings(strictness = Strictness.LENIENT)
+@DisplayName("ReprocessamentoNFeService - Reprocessamento de importações guardadas")
+class ReprocessamentoNFeServiceTest {
+
+    @Mock
+    private ImportacaoNFeRepository importacaoNFeRepository;
+    @Mock
+    private LoteProcessamentoRepository loteProcessamentoRepository;
+    @Mock
+    private ArmazenamentoImportacaoService armazenamentoImportacaoService;
+    @Mock
+    private ProcessamentoNFeService processamentoNFeService;
+
+    private ReprocessamentoNFeService service;
+    private final AtomicReference<LoteProcessamento> loteGravado = new AtomicReference<>();
+
+    @BeforeEach
+    void setUp() {
+        service = new ReprocessamentoNFeService(importacaoNFeRepository, loteProcessamentoRepository,
+            armazenamentoImportacaoService, new NFeXmlParser(), processamentoNFeService, 2);
+        when(loteProcessamentoRepository.save(any(LoteProcessamento.class))).thenAnswer(invocation -> {
+            LoteProcessamento lote = invocation.getArgument(0);
+            lote.setId(1L);
+            loteGravado.set(lote);
+            return lote;
+        });
+        when(loteProcessamentoRepository.findById(1L)).thenAnswer(invocation -> Optional.ofNullable(loteGravado.get()));
+        when(processamentoNFeService.validarNFe(any(NFeXmlData.class), any(Date.class))).thenReturn(new ValidacaoNFe());
+        when(processamentoNFeService.reprocessarNFe(any(), any(), any(), any())).thenAnswer(invocation -> {
+            ProcessamentoResult result = new ProcessamentoResult();
+            result.setSucesso(true);
+            result.setDiferencas(new Diferencas());
+            return result;
+        });
+    }
+
+    @AfterEach
+    void tearDown() {
+        service.encerrar();
+    }
+
+    @Test
+    @DisplayName("Deve reaplicar cada nota do arquivo guardado com a data da importação")
+    void testReprocessarImportacoes() {
+        ImportacaoNFe primeira = importacao(1L, StatusImportacao.CONCLUIDA);
+        ImportacaoNFe segunda = importacao(2L, StatusImportacao.ERRO);
+        ImportacaoNFe pendente = importacao(3L, StatusImportacao.PENDENTE);
+        when(importacaoNFeRepository.findAllById(any())).thenReturn(Arrays.asList(primeira, segunda, pendente));
+        when(armazenamentoImportacaoService.abrir(any())).thenAnswer(invocation -> new ByteArrayInputStream(
+            NFeArquivoIteratorTest.montarEnvelope(NFeArquivoIteratorTest.notaXml("1"), NFeArquivoIteratorTest.notaXml("2"))));
+
+        LoteProcessamento lote = service.reprocessar(Arrays.asList(1L, 2L, 3L));
+        LoteProcessamento concluido = service.aguardar(lote.getId(), Duration.ofSeconds(10)).get();
+
+        assertEquals(ReprocessamentoNFeService.TIPO_LOTE, concluido.getTipoLote());
+        assertEquals("CONCLUIDO", concluido.getStatus());
+        assertEquals(100, concluido.getProgresso());
+        verify(processamentoNFeService, times(4)).reprocessarNFe(any(), any(), any(), any());
+        verify(processamentoNFeService, times(2)).validarNFe(any(NFeXmlData.class), eq(primeira.getDataImportacao()));
+        verify(armazenamentoImportacaoService, never()).abrir(pendente);
+        assertTrue(primeira.getLogProcessamento().contains("2 NFe reprocessadas (2 sem diferenças"));
+    }
+
+    @Test
+    @DisplayName("Arquivo que não está mais guardado deve encerrar o lote com erro sem afetar as demais")
+    void testArquivoAusente() {
+        ImportacaoNFe ausente = importacao(1L, StatusImportacao.CONCLUIDA);
+        ImportacaoNFe guardada = importacao(2L, StatusImportacao.CONCLUIDA);
+        when(importacaoNFeRepository.findByDataImportacaoBetween(any(), any())).thenReturn(Arrays.asList(ausente, guardada));
+        when(armazenamentoImportacaoService.abrir(ausente))
+            .thenThrow(new RuntimeException("O arquivo nota.xml não está mais armazenado"));
+        when(armazenamentoImportacaoService.abrir(guardada)).thenAnswer(invocation -> new ByteArrayInputStream(
+            NFeArquivoIteratorTest.montarEnvelope(NFeArquivoIteratorTest.notaXml("1"))));
+
+        LoteProcessamento lote = service.reprocessarPeriodo(new Date(0), new Date());
+        LoteProcessamento concluido = service.aguardar(lote.getId(), Duration.ofSeconds(10)).get();
+
+        assertEquals("ERRO", concluido.getStatus());
+        assertTrue(concluido.getDetalhesErro().contains("Importação 1"));
+        verify(processamentoNFeService, times(1)).reprocessarNFe(any(), any(), eq(guardada), any());
+    }
+
+    @Test
+    @DisplayName("Sem importações concluídas não deve criar lote")
+    void testSemImportacoesElegiveis() {
+        when(importacaoNFeRepository.findAllById(any()))
+            .thenReturn(Arrays.asList(importacao(1L, StatusImportacao.PROCESSANDO)));
+
+        assertThrows(RuntimeException.class, () -> service.reprocessar(Arrays.asList(1L)));
+        verify(loteProcessamentoRepository, never()).save(any());
+    }
+
+    private static ImportacaoNFe importacao(Long id, StatusImportacao status) {
+        ImportacaoNFe importacao = new ImportacaoNFe();
+        importacao.setId(id);
+        importacao.setNomeArquivo("nota.xml");
+        importacao.setStatus(status);
+        importacao.setDataImportacao(new Date(1_700_000_000_000L + id));
+        importacao.setLogProcessamento("1 NFe processadas, 0 com erro.");
+        return importacao;
+    }
+}
@@ -0,0 +1,142 @@
+package com.annaehugo.freepharma.application.services;
+
+import com.annaehugo.freepharma.domain.entity.administrativo.Unidade;
+import com.annaehugo.freepharma.domain.entity.estoque.EstoqueProduto;
+import com.annaehugo.freepharma.domain.entity.estoque.Fornecedor;
+import com.annaehugo.freepharma.domain.entity.estoque.MovimentacaoEstoque;
+import com.annaehugo.freepharma.domain.entity.estoque.ProdutoFornecedor;
+import com.annaehugo.freepharma.domain.entity.estoque.ProdutoReferencia;
+import com.annaehugo.freepharma.domain.entity.estoque.SnapshotEstoque;
+import com.annaehugo.freepharma.domain.repository.estoque.EstoqueProdutoRepository;
+import com.annaehugo.freepharma.domain.repository.estoque.MovimentacaoEstoqueRepository;
+import com.annaehugo.freepharma.domain.repository.estoque.SnapshotEstoqueRepository;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+import org.springframework.boot.test.autoconfigure.orm.jpa.TestEntityManager;
+import org.springframework.context.annotation.Import;
+import org.springframework.test.context.TestPropertySource;
+
+import java.math.BigDecimal;
+import java.util.Date;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@DataJpaTest
+@Import(SaldoEstoqueService.class)
+@TestPropertySource(properties = {
+    "spring.jpa.properties.hibernate.dialect=org.hibernate.dialect.H2Dialect"
+})
+@DisplayName("SaldoEstoqueService - Saldo pelo razão de estoque e snapshots")
+class SaldoEstoqueServiceTest {
+
+    @Autowired
+    private SaldoEstoqueService saldoEstoqueService;
+
+    @Autowired
+    private MovimentacaoEstoqueRepository movimentacaoEstoqueRepository;
+
+    @Autowired
+    private SnapshotEstoqueRepository snapshotEstoqueRepository;
+
+    @Autowired
+    private EstoqueProdutoRepository estoqueProdutoRepository;
+
+    @Autowired
+    private TestEntityManager entityManager;
+
+    @Test
+    @DisplayName("Saldo deve somar as movimentações ao snapshot e a consolidação deve copiá-lo para o estoque")
+    void testConsolidarMovimentacoes() {
+        EstoqueProduto estoque = criarEstoque(0);
+        entityManager.persist(SaldoEstoqueService.saldoInicial(estoque, 0));
+        registrar(estoque, MovimentacaoEstoque.TIPO_COMPRA, 30, new BigDecimal("4.00"));
+        registrar(estoque, MovimentacaoEstoque.TIPO_VENDA, -12, new BigDecimal("4.50"));
+
+        assertEquals(18, saldoEstoqueService.consultarSaldo(estoque.getId()));
+        assertEquals(1, saldoEstoqueService.gerarSnapshots());
+
+        SnapshotEstoque snapshot = snapshotEstoqueRepository.findFirstByEstoqueProdutoIdOrderByDataCorteDesc(estoque.getId()).get();
+        assertEquals(18, snapshot.getQuantidade());
+        EstoqueProduto consolidado = estoqueProdutoRepository.findById(estoque.getId()).get();
+        assertEquals(18, consolidado.getQuantidadeAtual());
+        assertEquals(0, new BigDecimal("4.50").compareTo(consolidado.getValorUnitario()));
+
+        registrar(estoque, MovimentacaoEstoque.TIPO_COMPRA, 5, null);
+        assertEquals(23, saldoEstoqueService.consultarSaldo(estoque.getId()));
+        assertEquals(3, saldoEstoqueService.listarMovimentacoes(estoque.getId()).size());
+    }
+
+    @Test
+    @DisplayName("Lote anterior ao razão deve partir de quantidadeAtual e ganhar snapshot na consolidação")
+    void testLoteAnteriorAoRazao() {
+        EstoqueProduto estoque = criarEstoque(40);
+        registrar(estoque, MovimentacaoEstoque.TIPO_COMPRA, 5, null);
+
+        assertEquals(45, saldoEstoqueService.consultarSaldo(estoque.getId()));
+        saldoEstoqueService.gerarSnapshots();
+
+        assertEquals(45, snapshotEstoqueRepository.findFirstByEstoqueProdutoIdOrderByDataCorteDesc(estoque.getId())
+            .get().getQuantidade());
+        assertEquals(45, estoqueProdutoRepository.findById(estoque.getId()).get().getQuantidadeAtual());
+        registrar(estoque, MovimentacaoEstoque.TIPO_VENDA, -1, null);
+        assertEquals(44, saldoEstoqueService.consultarSaldo(estoque.getId()));
+    }
+
+    @Test
+    @DisplayName("Movimentação confirmada depois da consolidação deve entrar no saldo mesmo com data anterior ao corte")
+    void testMovimentacaoConfirmadaDepoisDoCorte() {
+        EstoqueProduto estoque = criarEstoque(0);
+        entityManager.persist(SaldoEstoqueService.saldoInicial(estoque, 10));
+        registrar(estoque, MovimentacaoEstoque.TIPO_COMPRA, 7, null);
+        assertEquals(1, saldoEstoqueService.gerarSnapshots());
+        assertEquals(0, saldoEstoqueService.gerarSnapshots());
+
+        // Registrada no início de uma transação longa, só confirmada agora
+        MovimentacaoEstoque atrasada = SaldoEstoqueService.novaMovimentacao(estoque, MovimentacaoEstoque.TIPO_VENDA, -3,
+            null, null);
+        atrasada.setDataRegistro(new Date(System.currentTimeMillis() - 3_600_000));
+        saldoEstoqueService.registrar(atrasada);
+
+        assertEquals(14, saldoEstoqueService.consultarSaldo(estoque.getId()));
+        assertEquals(1, saldoEstoqueService.gerarSnapshots());
+        assertEquals(14, snapshotEstoqueRepository.findFirstByEstoqueProdutoIdOrderByDataCorteDesc(estoque.getId())
+            .get().getQuantidade());
+        assertEquals(14, estoqueProdutoRepository.findById(estoque.getId()).get().getQuantidadeAtual());
+        assertEquals(14, saldoEstoqueService.consultarSaldo(estoque.getId()));
+    }
+
+    private void registrar(EstoqueProduto estoque, String tipo, int quantidade, BigDecimal valorUnitario) {
+        saldoEstoqueService.registrar(SaldoEstoqueService.novaMovimentacao(estoque, tipo, quantidade, valorUnitario, null));
+    }
+
+    private EstoqueProduto criarEstoque(int quantidadeAtual) {
+        Unidade unidade = entityManager.persist(new Unidade());
+
+        Fornecedor fornecedor = new Fornecedor();
+        fornecedor.setRazaoSocial("Fornecedor");
+        fornecedor.setCnpj("11222333000144");
+        entityManager.persist(fornecedor);
+
+        ProdutoReferencia produto = new ProdutoReferencia();
+        produto.setCodigoInterno("SALDO1");
+        produto.setNome("Produto");
+        entityManager.persist(produto);
+
+        ProdutoFornecedor produtoFornecedor = new ProdutoFornecedor();
+        produtoFornecedor.setCodigoFornecedor("P1");
+        produtoFornecedor.setProdutoReferencia(produto);
+        produtoFornecedor.setFornecedor(fornecedor);
+        entityManager.persist(produtoFornecedor);
+
+        EstoqueProduto estoque = new EstoqueProduto();
+        estoque.setProdutoFornecedor(produtoFornecedor);
+        estoque.setProdutoReferencia(produto);
+        estoque.setUnidade(unidade);
+        estoque.setLote("L1");
+        estoque.setQuantidadeAtual(quantidadeAtual);
+        estoque.setValorUnitario(new BigDecimal("4.00"));
+        return entityManager.persist(estoque);
+    }
+}
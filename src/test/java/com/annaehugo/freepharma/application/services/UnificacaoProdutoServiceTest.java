@@ -0,0 +1,176 @@
+package com.annaehugo.freepharma.application.services;
+
+import com.annaehugo.freepharma.application.services.UnificacaoProdutoService.ResultadoUnificacao;
+import com.annaehugo.freepharma.domain.entity.administrativo.Farmacia;
+import com.annaehugo.freepharma.domain.entity.administrativo.Unidade;
+import com.annaehugo.freepharma.domain.entity.estoque.EstoqueProduto;
+import com.annaehugo.freepharma.domain.entity.estoque.Fornecedor;
+import com.annaehugo.freepharma.domain.entity.estoque.ProdutoFornecedor;
+import com.annaehugo.freepharma.domain.entity.estoque.ProdutoReferencia;
+import com.annaehugo.freepharma.domain.entity.fiscal.NotaFiscalItem;
+import com.annaehugo.freepharma.domain.repository.estoque.ProdutoReferenciaRepository;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+import org.springframework.boot.test.autoconfigure.orm.jpa.TestEntityManager;
+import org.springframework.context.annotation.Import;
+import org.springframework.test.context.TestPropertySource;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Optional;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@DataJpaTest
+@Import({UnificacaoProdutoService.class, SaldoEstoqueService.class, IndiceNomesProdutoService.class})
+@TestPropertySource(properties = "spring.jpa.properties.hibernate.dialect=org.hibernate.dialect.H2Dialect")
+@DisplayName("UnificacaoProdutoService - Unificação de produtos duplicados")
+class UnificacaoProdutoServiceTest {
+
+    @Autowired
+    private UnificacaoProdutoService unificacaoProdutoService;
+
+    @Autowired
+    private SaldoEstoqueService saldoEstoqueService;
+
+    @Autowired
+    private ProdutoReferenciaRepository produtoReferenciaRepository;
+
+    @Autowired
+    private TestEntityManager entityManager;
+
+    private Unidade unidade;
+    private Fornecedor primeiroFornecedor;
+    private Fornecedor segundoFornecedor;
+
+    @BeforeEach
+    void setUp() {
+        Farmacia farmacia = entityManager.persist(new Farmacia());
+        unidade = new Unidade();
+        unidade.setFarmacia(farmacia);
+        unidade = entityManager.persist(unidade);
+        primeiroFornecedor = fornecedor("11222333000144");
+        segundoFornecedor = fornecedor("55666777000188");
+    }
+
+    @Test
+    @DisplayName("Deve levar itens de nota, vínculos e estoques para o destino, somando os lotes repetidos")
+    void testUnificar() {
+        ProdutoReferencia destino = produto("PRD-1", "DIPIRONA 500MG CX20", null);
+        ProdutoReferencia duplicado = produto("AUTO-000000001", "Dipirona 500 mg c/20", "7891000000011");
+        ProdutoFornecedor vinculoDestino = vinculo(destino, primeiroFornecedor);
+        ProdutoFornecedor vinculoRepetido = vinculo(duplicado, primeiroFornecedor);
+        ProdutoFornecedor vinculoNovo = vinculo(duplicado, segundoFornecedor);
+        EstoqueProduto loteDestino = estoque(vinculoDestino, "L1", 5);
+        EstoqueProduto loteRepetido = estoque(vinculoRepetido, "L1", 3);
+        EstoqueProduto loteSoNoDuplicado = estoque(vinculoRepetido, "L2", 4);
+        EstoqueProduto loteOutroFornecedor = estoque(vinculoNovo, "L1", 1);
+        NotaFiscalItem item = new NotaFiscalItem();
+        item.setProdutoReferencia(duplicado);
+        item = entityManager.persist(item);
+        entityManager.flush();
+
+        ResultadoUnificacao resultado = unificacaoProdutoService.unificar(destino.getId(),
+            Collections.singletonList(duplicado.getId()));
+        entityManager.flush();
+        entityManager.clear();
+
+        assertEquals(1, resultado.getItensNotaFiscal());
+        assertEquals(1, resultado.getVinculosMovidos());
+        assertEquals(1, resultado.getVinculosDesativados());
+        assertEquals(2, resultado.getEstoquesMovidos());
+        assertEquals(1, resultado.getSaldosTransferidos());
+
+        assertEquals(destino.getId(), entityManager.find(NotaFiscalItem.class, item.getId()).getProdutoReferencia().getId());
+        assertEquals(destino.getId(), entityManager.find(ProdutoFornecedor.class, vinculoNovo.getId())
+            .getProdutoReferencia().getId());
+        assertFalse(entityManager.find(ProdutoFornecedor.class, vinculoRepetido.getId()).getAtivo());
+
+        EstoqueProduto movido = entityManager.find(EstoqueProduto.class, loteSoNoDuplicado.getId());
+        assertEquals(vinculoDestino.getId(), movido.getProdutoFornecedor().getId());
+        assertEquals(destino.getId(), movido.getProdutoReferencia().getId());
+        assertEquals(destino.getId(), entityManager.find(EstoqueProduto.class, loteOutroFornecedor.getId())
+            .getProdutoReferencia().getId());
+        assertEquals(8, saldoEstoqueService.consultarSaldo(loteDestino.getId()));
+        assertEquals(0, saldoEstoqueService.consultarSaldo(loteRepetido.getId()));
+
+        ProdutoReferencia unificado = entityManager.find(ProdutoReferencia.class, duplicado.getId());
+        assertEquals(UnificacaoProdutoService.STATUS_UNIFICADO, unificado.getStatus());
+        assertNull(unificado.getEan());
+        assertEquals("7891000000011", entityManager.find(ProdutoReferencia.class, destino.getId()).getEan());
+    }
+
+    @Test
+    @DisplayName("Não deve unificar produtos com EAN diferentes nem produtos já unificados")
+    void testUnificacaoRecusada() {
+        ProdutoReferencia destino = produto("PRD-1", "DIPIRONA 500MG CX20", "7891000000011");
+        ProdutoReferencia outroEan = produto("AUTO-000000001", "DIPIRONA 500MG CX20", "7891000000028");
+        ProdutoReferencia semEan = produto("AUTO-000000002", "DIPIRONA 500MG CX20", null);
+        entityManager.flush();
+
+        assertThrows(RuntimeException.class, () -> unificacaoProdutoService.unificar(destino.getId(),
+            Arrays.asList(outroEan.getId(), semEan.getId())));
+        assertThrows(RuntimeException.class, () -> unificacaoProdutoService.unificar(destino.getId(),
+            Collections.singletonList(destino.getId())));
+
+        unificacaoProdutoService.unificar(destino.getId(), Collections.singletonList(semEan.getId()));
+        assertThrows(RuntimeException.class, () -> unificacaoProdutoService.unificar(outroEan.getId(),
+            Collections.singletonList(semEan.getId())));
+    }
+
+    @Test
+    @DisplayName("Produtos unificados não devem voltar ao índice de nomes nem à busca por nome após reiniciar")
+    void testRecarregarIndiceAposUnificar() {
+        ProdutoReferencia duplicado = produto("AUTO-000000001", "Dipirona 500 mg c/20", null);
+        ProdutoReferencia destino = produto("PRD-1", "DIPIRONA 500MG CX20", null);
+        entityManager.flush();
+
+        unificacaoProdutoService.unificar(destino.getId(), Collections.singletonList(duplicado.getId()));
+        entityManager.flush();
+        entityManager.clear();
+
+        // Um índice novo, como o carregado na inicialização
+        IndiceNomesProdutoService recarregado = new IndiceNomesProdutoService(produtoReferenciaRepository, 0.75);
+        recarregado.carregar();
+        assertEquals(1, recarregado.getQuantidadeProdutos());
+        assertEquals(Optional.of(destino.getId()), recarregado.buscar("Dipirona 500 mg c/20"));
+
+        assertTrue(produtoReferenciaRepository.findByNomeInAndStatusNot(
+            Collections.singletonList("Dipirona 500 mg c/20"), UnificacaoProdutoService.STATUS_UNIFICADO).isEmpty());
+    }
+
+    private Fornecedor fornecedor(String cnpj) {
+        Fornecedor fornecedor = new Fornecedor();
+        fornecedor.setRazaoSocial("Fornecedor " + cnpj);
+        fornecedor.setCnpj(cnpj);
+        return entityManager.persist(fornecedor);
+    }
+
+    private ProdutoReferencia produto(String codigo, String nome, String ean) {
+        ProdutoReferencia produto = new ProdutoReferencia();
+        produto.setCodigoInterno(codigo);
+        produto.setNome(nome);
+        produto.setEan(ean);
+        return entityManager.persist(produto);
+    }
+
+    private ProdutoFornecedor vinculo(ProdutoReferencia produto, Fornecedor fornecedor) {
+        ProdutoFornecedor vinculo = new ProdutoFornecedor();
+        vinculo.setProdutoReferencia(produto);
+        vinculo.setFornecedor(fornecedor);
+        vinculo.setCodigoFornecedor("COD-" + produto.getCodigoInterno());
+        return entityManager.persist(vinculo);
+    }
+
+    private EstoqueProduto estoque(ProdutoFornecedor vinculo, String lote, int quantidade) {
+        EstoqueProduto estoque = new EstoqueProduto();
+        estoque.setProdutoFornecedor(vinculo);
+        estoque.setUnidade(unidade);
+        estoque.setLote(lote);
+        estoque.setQuantidadeAtual(quantidade);
+        return entityManager.persist(estoque);
+    }
+}
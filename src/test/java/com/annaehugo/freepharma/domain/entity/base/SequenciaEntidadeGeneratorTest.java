@@ -0,0 +1,71 @@
+package com.annaehugo.freepharma.domain.entity.base;
+
+import com.annaehugo.freepharma.domain.entity.estoque.Categoria;
+import org.hibernate.SessionFactory;
+import org.hibernate.stat.Statistics;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+import org.springframework.boot.test.autoconfigure.orm.jpa.TestEntityManager;
+import org.springframework.test.context.TestPropertySource;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@DataJpaTest
+@TestPropertySource(properties = {
+    "spring.jpa.properties.hibernate.dialect=org.hibernate.dialect.H2Dialect",
+    "spring.jpa.properties.hibernate.generate_statistics=true",
+    "spring.jpa.properties." + SequenciaEntidadeGenerator.TAMANHO_ALOCACAO + "=20"
+})
+@DisplayName("SequenciaEntidadeGenerator - IDs alocados em blocos por tabela")
+class SequenciaEntidadeGeneratorTest {
+
+    @Autowired
+    private TestEntityManager entityManager;
+
+    private Statistics estatisticas;
+
+    @BeforeEach
+    void setUp() {
+        estatisticas = entityManager.getEntityManager().getEntityManagerFactory()
+            .unwrap(SessionFactory.class).getStatistics();
+        estatisticas.clear();
+    }
+
+    @Test
+    @DisplayName("Deve criar a sequence <tabela>_id_seq com o tamanho de alocação configurado")
+    void testSequencePorTabela() {
+        Object incremento = entityManager.getEntityManager().createNativeQuery(
+                "SELECT INCREMENT FROM INFORMATION_SCHEMA.SEQUENCES WHERE UPPER(SEQUENCE_NAME) = 'CATEGORIA_ID_SEQ'")
+            .getSingleResult();
+
+        assertEquals(20L, ((Number) incremento).longValue());
+    }
+
+    @Test
+    @DisplayName("Deve reservar um bloco de IDs por ida à sequence")
+    void testAlocacaoEmBlocos() {
+        List<Categoria> categorias = new ArrayList<>();
+        for (int i = 0; i < 45; i++) {
+            Categoria categoria = new Categoria();
+            categoria.setCodigo("CAT" + i);
+            categoria.setNome("Categoria " + i);
+            entityManager.persist(categoria);
+            categorias.add(categoria);
+        }
+        entityManager.flush();
+
+        for (int i = 1; i < categorias.size(); i++) {
+            assertEquals(categorias.get(i - 1).getId() + 1, categorias.get(i).getId());
+        }
+        // 45 IDs em blocos de 20: 3 chamadas à sequence (o otimizador pooled busca o início e o fim do primeiro bloco)
+        assertTrue(estatisticas.getPrepareStatementCount() - 45 <= 4,
+            "Chamadas à sequence: " + (estatisticas.getPrepareStatementCount() - 45));
+    }
+}